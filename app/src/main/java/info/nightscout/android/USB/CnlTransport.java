@@ -0,0 +1,25 @@
+package info.nightscout.android.USB;
+
+import java.io.IOException;
+
+// transport used for all CNL message traffic
+// UsbHidDriver is the device implementation, messages and the reader only depend on this interface
+// so that a poll cycle can be driven by a different implementation ie. a recorded or emulated CNL
+
+public interface CnlTransport {
+
+    // CNL HID frame size
+    int USB_BLOCKSIZE = 64;
+
+    void open() throws IOException;
+
+    void close();
+
+    // read a single frame, returns the number of bytes read or <= 0 for timeout / error
+    int read(byte[] dest, int timeoutMillis);
+
+    void write(byte[] src, int timeoutMillis) throws IOException;
+
+    boolean isConnectionOpen();
+
+}
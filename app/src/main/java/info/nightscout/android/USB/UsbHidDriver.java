@@ -12,7 +12,7 @@ import java.io.IOException;
 // simplified usb driver targeting CNL comms
 // keeps overhead to a minimum allowing for high speed transfer of bulk packets from pump to cnl to uploader
 
-public class UsbHidDriver {
+public class UsbHidDriver implements CnlTransport {
     private final String TAG = UsbHidDriver.class.getSimpleName();
 
     private UsbInterface mInterface;
@@ -51,6 +51,7 @@ public class UsbHidDriver {
         return null;
     }
 
+    @Override
     public void open() throws IOException {
         Log.d(TAG, "Claiming HID interface.");
         mInterface = mDevice.getInterface(0);
@@ -67,6 +68,7 @@ public class UsbHidDriver {
         isConnectionOpen = true;
     }
 
+    @Override
     public void close() {
         synchronized (UsbHidDriver.class) {
             if (mConnection != null && isConnectionOpen) {
@@ -79,11 +81,13 @@ public class UsbHidDriver {
         }
     }
 
+    @Override
     public int read(byte[] dest, int timeoutMillis) {
         return mConnection.bulkTransfer(mReadEndpoint, dest, dest.length,
                 timeoutMillis);
     }
 
+    @Override
     public void write(byte[] src, int timeoutMillis) throws IOException {
         if (mConnection.bulkTransfer(mWriteEndpoint, src, src.length,
                 timeoutMillis) <= 0) {
@@ -91,6 +95,7 @@ public class UsbHidDriver {
         }
     }
 
+    @Override
     public boolean isConnectionOpen() {
         return isConnectionOpen;
     }
@@ -12,6 +12,7 @@ import com.bugfender.sdk.Bugfender;
 import com.crashlytics.android.Crashlytics;
 import com.crashlytics.android.answers.Answers;
 
+import info.nightscout.android.history.HistoryMigration;
 import info.nightscout.android.model.medtronicNg.PumpHistoryMarker;
 import info.nightscout.android.model.medtronicNg.PumpHistorySystem;
 import info.nightscout.android.model.medtronicNg.ContourNextLinkInfo;
@@ -25,11 +26,13 @@ import info.nightscout.android.model.medtronicNg.PumpHistoryLoop;
 import info.nightscout.android.model.medtronicNg.PumpHistoryMisc;
 import info.nightscout.android.model.medtronicNg.PumpHistoryPattern;
 import info.nightscout.android.model.medtronicNg.PumpHistoryProfile;
+import info.nightscout.android.model.medtronicNg.HistoryBlock;
 import info.nightscout.android.model.medtronicNg.HistorySegment;
 import info.nightscout.android.model.medtronicNg.PumpHistorySettings;
 import info.nightscout.android.model.medtronicNg.PumpInfo;
 import info.nightscout.android.model.medtronicNg.PumpStatusEvent;
 import info.nightscout.android.model.store.DataStore;
+import info.nightscout.android.model.store.SenderOutbox;
 import info.nightscout.android.model.store.StatCnl;
 import info.nightscout.android.model.store.StatPoll;
 import info.nightscout.android.model.store.StatNightscout;
@@ -40,6 +43,7 @@ import io.fabric.sdk.android.Fabric;
 import io.realm.Realm;
 import io.realm.RealmConfiguration;
 import io.realm.annotations.RealmModule;
+import io.realm.exceptions.RealmMigrationNeededException;
 import uk.co.chrisjenx.calligraphy.CalligraphyConfig;
 
 /**
@@ -51,6 +55,8 @@ public class UploaderApplication extends Application {
     private static RealmConfiguration storeConfiguration;
     private static RealmConfiguration userLogConfiguration;
     private static RealmConfiguration historyConfiguration;
+    private static RealmConfiguration historyBlockConfiguration;
+    private static RealmConfiguration historyReplayConfiguration;
 
     private static ConnectivityManager connectivityManager;
 
@@ -113,9 +119,33 @@ public class UploaderApplication extends Application {
         historyConfiguration = new RealmConfiguration.Builder()
                 .name("history.realm")
                 .modules(new HistoryModule())
+                .schemaVersion(HistoryMigration.SCHEMA_VERSION)
+                .migration(new HistoryMigration())
+                .build();
+
+        // the migration only covers the changes listed in HistoryMigration, a history realm that
+        // still fails validation is deleted as before and the history is pulled from the pump again
+        try {
+            Realm.getInstance(historyConfiguration).close();
+        } catch (RealmMigrationNeededException e) {
+            Log.w(TAG, "history realm failed validation after migration, deleting", e);
+            Realm.deleteRealm(historyConfiguration);
+        }
+
+        // raw history data from the pump, a cache so can be discarded on schema change
+        historyBlockConfiguration = new RealmConfiguration.Builder()
+                .name("historyblock.realm")
+                .modules(new HistoryBlockModule())
                 .deleteRealmIfMigrationNeeded()
                 .build();
 
+        // in memory history realm for replaying history dumps without touching the uploader history
+        historyReplayConfiguration = new RealmConfiguration.Builder()
+                .name("history-replay.realm")
+                .modules(new HistoryModule())
+                .inMemory()
+                .build();
+
         // Uploader specific string formatting and localisation formatting accessible from any module
         FormatKit.init(this);
 
@@ -149,6 +179,14 @@ public class UploaderApplication extends Application {
         return historyConfiguration;
     }
 
+    public static RealmConfiguration getHistoryBlockConfiguration() {
+        return historyBlockConfiguration;
+    }
+
+    public static RealmConfiguration getHistoryReplayConfiguration() {
+        return historyReplayConfiguration;
+    }
+
     @RealmModule(classes = {
             ContourNextLinkInfo.class,
             PumpInfo.class,
@@ -161,7 +199,8 @@ public class UploaderApplication extends Application {
             StatPoll.class,
             StatCnl.class,
             StatNightscout.class,
-            StatPushover.class
+            StatPushover.class,
+            SenderOutbox.class
     })
     private class StoreModule {}
 
@@ -188,4 +227,9 @@ public class UploaderApplication extends Application {
     })
     private class HistoryModule {}
 
+    @RealmModule(classes = {
+            HistoryBlock.class
+    })
+    private class HistoryBlockModule {}
+
 }
@@ -0,0 +1,351 @@
+package info.nightscout.android.history;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import info.nightscout.android.UploaderApplication;
+import info.nightscout.android.model.medtronicNg.HistoryBlock;
+import info.nightscout.android.utils.HexDump;
+import io.realm.Realm;
+import io.realm.RealmResults;
+import io.realm.Sort;
+
+/*
+Persistent cache of the history data received from the pump.
+
+History for a RTC range that has passed does not change so the verified data from each request
+is stored as it streams through the parser and kept once the parse has completed without error.
+When the uploader is killed before the history segments are updated, or a later part of the request fails,
+the next request is served from the cache instead of pulling the same history over the radio again.
+This also covers the full history pull after a history reset.
+
+Cached ranges that cover the newest and oldest parts of a request are replayed to the parser and only
+the remaining RTC range is requested from the pump. Events are parsed oldest first, as when the pump
+sends the whole request, so the older ranges are replayed before the pull and the newer ranges after it.
+A cached range in the middle of a request is not used as the pump can only send a single range per request.
+
+A range only covers the request start up to the newest event decoded from the data, the pump can send
+less than requested and the rest of the request must still be pulled.
+
+Total size is bounded, the least recently used ranges are evicted first.
+*/
+
+public class HistoryBlockCache {
+    private static final String TAG = HistoryBlockCache.class.getSimpleName();
+
+    private static final long CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int ROW_MAX_BYTES = 64 * 1024;
+
+    private final long pumpMAC;
+    private final byte historyType;
+
+    private final List<Range> replay = new ArrayList<>();
+
+    // RTC range requested from the pump
+    private int pullFrom;
+    private int pullTo;
+
+    // range being written, only used from the parser worker thread
+    private long writeKey;
+    private int writeSeq;
+    private long writeSize;
+    private boolean writeFailed;
+    private ByteArrayOutputStream writeBuffer;
+
+    public HistoryBlockCache(long pumpMAC, byte historyType) {
+        this.pumpMAC = pumpMAC;
+        this.historyType = historyType;
+    }
+
+    // returns the RTC range still needed from the pump or null when the cache covers the full range
+    public int[] missing(int startRTC, int endRTC) {
+        replay.clear();
+
+        Realm realm = Realm.getInstance(UploaderApplication.getHistoryBlockConfiguration());
+        try {
+            RealmResults<HistoryBlock> results = realm
+                    .where(HistoryBlock.class)
+                    .equalTo("pumpMAC", pumpMAC)
+                    .equalTo("historyType", historyType)
+                    .equalTo("complete", true)
+                    .equalTo("seq", 0)
+                    .lessThanOrEqualTo("fromRTC", endRTC)
+                    .greaterThanOrEqualTo("toRTC", startRTC)
+                    .sort("toRTC", Sort.DESCENDING)
+                    .findAll();
+
+            boolean[] used = new boolean[results.size()];
+            boolean trimmed = true;
+            while (trimmed && startRTC <= endRTC) {
+                trimmed = false;
+                for (int i = 0; i < results.size() && startRTC <= endRTC; i++) {
+                    if (used[i]) continue;
+                    HistoryBlock block = results.get(i);
+
+                    if (block.getFromRTC() <= endRTC && block.getToRTC() >= endRTC) {
+                        endRTC = block.getFromRTC() - 1;
+                        // newer ranges are found newest first
+                        replay.add(0, new Range(block, true));
+                        used[i] = trimmed = true;
+                    } else if (block.getFromRTC() <= startRTC && block.getToRTC() >= startRTC) {
+                        startRTC = block.getToRTC() + 1;
+                        replay.add(new Range(block, false));
+                        used[i] = trimmed = true;
+                    }
+                }
+            }
+
+        } finally {
+            realm.close();
+        }
+
+        if (replay.size() > 0)
+            Log.d(TAG, String.format("cache: type %s ranges: %s %s", historyType, replay.size(),
+                    startRTC > endRTC ? "full range cached"
+                            : "pull RTC " + HexDump.toHexString(startRTC) + " - " + HexDump.toHexString(endRTC)));
+
+        pullFrom = startRTC;
+        pullTo = endRTC;
+
+        return startRTC > endRTC ? null : new int[]{startRTC, endRTC};
+    }
+
+    // push the older or the newer cached ranges found by missing() to the parser, oldest first
+    // returns the number of ranges replayed
+    public int replay(PumpHistoryParser parser, boolean newer) {
+        final List<Range> ranges = new ArrayList<>();
+        for (Range range : replay) {
+            if (range.newer == newer) ranges.add(range);
+        }
+        if (ranges.size() == 0) return 0;
+
+        Realm realm = Realm.getInstance(UploaderApplication.getHistoryBlockConfiguration());
+        try {
+            for (Range range : ranges) {
+                RealmResults<HistoryBlock> rows = realm
+                        .where(HistoryBlock.class)
+                        .equalTo("key", range.key)
+                        .sort("seq", Sort.ASCENDING)
+                        .findAll();
+
+                long size = 0;
+                parser.resync();
+                for (HistoryBlock row : rows) {
+                    byte[] data = row.getData();
+                    parser.push(data, 0, data.length);
+                    size += data.length;
+                }
+
+                Log.d(TAG, String.format("replay: RTC %s - %s size: %s",
+                        HexDump.toHexString(range.fromRTC), HexDump.toHexString(range.toRTC), size));
+            }
+
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    Date now = new Date();
+                    for (Range range : ranges) {
+                        HistoryBlock head = realm.where(HistoryBlock.class)
+                                .equalTo("key", range.key)
+                                .equalTo("seq", 0)
+                                .findFirst();
+                        if (head != null) head.setDate(now);
+                    }
+                }
+            });
+
+        } finally {
+            realm.close();
+        }
+
+        return ranges.size();
+    }
+
+    /*
+    Writer, called by the pipelined parser as the pump data streams through it:
+    begin() on start and on every resent request, write() for each verified block,
+    then complete() with the newest event RTC decoded or discard() on failure
+    */
+
+    public void begin() {
+        writeBuffer = new ByteArrayOutputStream();
+        writeSeq = 0;
+        writeSize = 0;
+        writeFailed = false;
+
+        Realm realm = Realm.getInstance(UploaderApplication.getHistoryBlockConfiguration());
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    // incomplete ranges from a resent request or an uploader kill
+                    realm.where(HistoryBlock.class)
+                            .equalTo("pumpMAC", pumpMAC)
+                            .equalTo("historyType", historyType)
+                            .equalTo("complete", false)
+                            .findAll().deleteAllFromRealm();
+
+                    Number max = realm.where(HistoryBlock.class).max("key");
+                    writeKey = max == null ? 1 : max.longValue() + 1;
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "begin: cache write failed", e);
+            writeFailed = true;
+        } finally {
+            realm.close();
+        }
+    }
+
+    public void write(byte[] data) {
+        if (writeFailed || writeBuffer == null) return;
+
+        writeSize += data.length;
+        if (writeSize > CACHE_MAX_BYTES) {
+            Log.d(TAG, "write: range too large for the cache");
+            discard();
+            return;
+        }
+
+        writeBuffer.write(data, 0, data.length);
+        if (writeBuffer.size() >= ROW_MAX_BYTES) flush(null);
+    }
+
+    // newestRTC is null when no events were decoded
+    public void complete(final Integer newestRTC) {
+        if (writeFailed || writeBuffer == null) return;
+
+        final int fromRTC = pullFrom;
+        final int toRTC = newestRTC == null ? pullFrom - 1 : Math.min(newestRTC, pullTo);
+        if (toRTC < fromRTC) {
+            Log.d(TAG, "complete: no events received for the requested range");
+            discard();
+            return;
+        }
+
+        flush(new Realm.Transaction() {
+            @Override
+            public void execute(@NonNull Realm realm) {
+
+                // ranges inside the new range are no longer needed
+                RealmResults<HistoryBlock> inside = realm.where(HistoryBlock.class)
+                        .equalTo("pumpMAC", pumpMAC)
+                        .equalTo("historyType", historyType)
+                        .equalTo("seq", 0)
+                        .notEqualTo("key", writeKey)
+                        .greaterThanOrEqualTo("fromRTC", fromRTC)
+                        .lessThanOrEqualTo("toRTC", toRTC)
+                        .findAll();
+                for (Long key : keys(inside)) delete(realm, key);
+
+                for (HistoryBlock row : realm.where(HistoryBlock.class).equalTo("key", writeKey).findAll()) {
+                    row.complete(fromRTC, toRTC);
+                }
+
+                evict(realm);
+            }
+        });
+
+        if (!writeFailed)
+            Log.d(TAG, String.format("store: type %s RTC %s - %s size: %s rows: %s",
+                    historyType, HexDump.toHexString(fromRTC), HexDump.toHexString(toRTC), writeSize, writeSeq));
+
+        writeBuffer = null;
+    }
+
+    public void discard() {
+        writeBuffer = null;
+        if (writeFailed || writeSeq == 0) return;
+
+        Realm realm = Realm.getInstance(UploaderApplication.getHistoryBlockConfiguration());
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    delete(realm, writeKey);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "discard: cache write failed", e);
+        } finally {
+            realm.close();
+        }
+    }
+
+    // write the buffered data as a new row, with an optional transaction to run after it
+    private void flush(final Realm.Transaction then) {
+        final byte[] data = writeBuffer.toByteArray();
+        writeBuffer.reset();
+
+        Realm realm = Realm.getInstance(UploaderApplication.getHistoryBlockConfiguration());
+        try {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    if (data.length > 0)
+                        realm.createObject(HistoryBlock.class).addBlock(pumpMAC, historyType, writeKey, writeSeq++, data);
+                    if (then != null) then.execute(realm);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "flush: cache write failed", e);
+            writeFailed = true;
+        } finally {
+            realm.close();
+        }
+    }
+
+    private void evict(Realm realm) {
+        long total = realm.where(HistoryBlock.class).sum("size").longValue();
+        if (total <= CACHE_MAX_BYTES) return;
+
+        RealmResults<HistoryBlock> heads = realm
+                .where(HistoryBlock.class)
+                .equalTo("seq", 0)
+                .notEqualTo("key", writeKey)
+                .sort("date", Sort.ASCENDING)
+                .findAll();
+
+        int count = 0;
+        for (Long key : keys(heads)) {
+            if (total <= CACHE_MAX_BYTES) break;
+            total -= delete(realm, key);
+            count++;
+        }
+
+        Log.d(TAG, String.format("evict: deleted %s ranges, cache size: %s", count, total));
+    }
+
+    private List<Long> keys(RealmResults<HistoryBlock> heads) {
+        List<Long> keys = new ArrayList<>();
+        for (HistoryBlock head : heads) keys.add(head.getKey());
+        return keys;
+    }
+
+    // returns the number of bytes deleted
+    private long delete(Realm realm, long key) {
+        RealmResults<HistoryBlock> rows = realm.where(HistoryBlock.class).equalTo("key", key).findAll();
+        long size = rows.sum("size").longValue();
+        rows.deleteAllFromRealm();
+        return size;
+    }
+
+    private static class Range {
+        private final long key;
+        private final int fromRTC;
+        private final int toRTC;
+        private final boolean newer;
+
+        private Range(HistoryBlock head, boolean newer) {
+            this.key = head.getKey();
+            this.fromRTC = head.getFromRTC();
+            this.toRTC = head.getToRTC();
+            this.newer = newer;
+        }
+    }
+}
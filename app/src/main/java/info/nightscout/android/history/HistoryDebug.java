@@ -1,18 +1,24 @@
 package info.nightscout.android.history;
 
 import android.content.Context;
+import android.os.Debug;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Locale;
 
+import info.nightscout.android.UploaderApplication;
 import info.nightscout.android.medtronic.message.MessageUtils;
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
 
 import static info.nightscout.android.utils.ToolKit.read32BEtoInt;
 import static info.nightscout.android.utils.ToolKit.read8toUInt;
@@ -50,6 +56,9 @@ public class HistoryDebug {
         history("20180101-caty-670G-3-months.json");
 
         //history("20180104-caty-670G-2-weeks.json");
+
+        //benchmark("20180104-caty-670G-2-weeks.json");
+        //benchmark("20180101-caty-670G-3-months.json");
     }
 
     public void history(String file) {
@@ -63,7 +72,95 @@ public class HistoryDebug {
         } catch (Throwable ignored) {}
     }
 
-    // file = json file stored in assets
+    /*
+    Replay benchmark, the dump is replayed through the parser twice for cgm and pump history:
+    decode - decode stage only, no store
+    realm  - full parse into an in memory history realm, the uploader history is not touched
+    Time, events/sec, allocations and peak heap are logged for each pass.
+    */
+
+    public void benchmark(String file) {
+        benchmark(file, "cbg_pages");
+        benchmark(file, "pages");
+    }
+
+    private void benchmark(String file, String type) {
+        eventData = null;
+        read(file, type);
+        if (eventData == null || eventData.length == 0) return;
+        calcRTCandOFFSET(new Date(System.currentTimeMillis()));
+
+        Measure measure = new Measure();
+        int events = new PumpHistoryParser(eventData).decode(pumpRTC, pumpOFFSET);
+        measure.stop(file, type, "decode", events);
+
+        // an in memory realm is discarded when the last instance is closed, hold it open for the pass
+        RealmConfiguration replayConfiguration = UploaderApplication.getHistoryReplayConfiguration();
+        Realm replayRealm = Realm.getInstance(replayConfiguration);
+        try {
+            measure = new Measure();
+            new PumpHistoryParser(eventData)
+                    .realm(replayConfiguration)
+                    .process(pumpHistoryHandler.getPumpHistorySender(), 0, pumpRTC, pumpOFFSET, 0, 0, 0, 0, 0);
+            measure.stop(file, type, "realm", events);
+        } catch (Throwable e) {
+            measure.stop(file, type, "realm", 0);
+            Log.e(TAG, "benchmark replay failed", e);
+        } finally {
+            replayRealm.close();
+        }
+    }
+
+    private static class Measure implements Runnable {
+        private final long start;
+        private final Thread sampler;
+        private volatile boolean sampling = true;
+        private volatile long peak;
+
+        @SuppressWarnings("deprecation")
+        Measure() {
+            System.gc();
+            Debug.resetGlobalAllocCount();
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            sampler = new Thread(this);
+            sampler.setDaemon(true);
+            sampler.start();
+            start = System.nanoTime();
+        }
+
+        // sample the used heap for the peak
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (sampling) {
+                long used = runtime.totalMemory() - runtime.freeMemory();
+                if (used > peak) peak = used;
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        void stop(String file, String type, String sink, int events) {
+            long time = (System.nanoTime() - start) / 1000000L;
+            Debug.stopAllocCounting();
+            sampling = false;
+            sampler.interrupt();
+
+            Log.i(TAG, String.format(Locale.US, "benchmark %s %s %s: events: %s time: %sms rate: %s events/sec allocated: %s objects %sKB heap peak: %sKB",
+                    file, type, sink, events, time,
+                    time == 0 ? 0 : (events * 1000L) / time,
+                    Debug.getGlobalAllocCount(),
+                    Debug.getGlobalAllocSize() / 1024,
+                    peak / 1024));
+        }
+    }
+
+    // file = json file stored in assets, or an absolute path to a json file ie. a dump copied to the device
     // type = "pages" for pump history
     // type = "cbg_pages" for cgm history
 
@@ -136,7 +233,7 @@ public class HistoryDebug {
         String json = null;
 
         try {
-            InputStream is = mContext.getAssets().open(file);
+            InputStream is = file.startsWith("/") ? new FileInputStream(file) : mContext.getAssets().open(file);
 
             int size = is.available();
 
@@ -0,0 +1,76 @@
+package info.nightscout.android.history;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.RealmFieldType;
+import io.realm.RealmMigration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmSchema;
+
+/*
+History realm migration.
+
+The history realm holds months of pump history and the sender state for records that have already been
+uploaded, rebuilding it from the pump is slow and would resend everything. Any schema change to the
+history models needs a migration step here and SCHEMA_VERSION to be incremented. A realm that still does
+not match the models after migration is deleted on startup by UploaderApplication.
+
+version 0 -> 1: senderREQ/ACK/DEL concatenated sender ID strings to indexed int bitmasks
+*/
+
+public class HistoryMigration implements RealmMigration {
+    private static final String TAG = HistoryMigration.class.getSimpleName();
+
+    public static final long SCHEMA_VERSION = 1;
+
+    @Override
+    public void migrate(@NonNull DynamicRealm realm, long oldVersion, long newVersion) {
+        Log.i(TAG, String.format("history realm migration: version %s to %s", oldVersion, newVersion));
+
+        RealmSchema schema = realm.getSchema();
+
+        if (oldVersion == 0) {
+            for (RealmObjectSchema objectSchema : schema.getAll()) {
+                senderMask(objectSchema, "senderREQ");
+                senderMask(objectSchema, "senderACK");
+                senderMask(objectSchema, "senderDEL");
+            }
+            oldVersion++;
+        }
+    }
+
+    private void senderMask(RealmObjectSchema objectSchema, final String field) {
+        if (!objectSchema.hasField(field) || objectSchema.getFieldType(field) != RealmFieldType.STRING)
+            return;
+
+        final String temp = field + "Mask";
+
+        objectSchema
+                .addField(temp, int.class)
+                .transform(new RealmObjectSchema.Function() {
+                    @Override
+                    public void apply(DynamicRealmObject obj) {
+                        obj.setInt(temp, PumpHistorySender.senderMask(obj.getString(field)));
+                    }
+                })
+                .removeField(field)
+                .renameField(temp, field)
+                .addIndex(field);
+
+        Log.d(TAG, String.format("%s: %s converted to sender mask", objectSchema.getClassName(), field));
+    }
+
+    // realm compares configurations, all instances of this migration are equal
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof HistoryMigration;
+    }
+
+    @Override
+    public int hashCode() {
+        return HistoryMigration.class.hashCode();
+    }
+}
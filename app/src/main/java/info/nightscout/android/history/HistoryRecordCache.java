@@ -0,0 +1,129 @@
+package info.nightscout.android.history;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import info.nightscout.android.model.medtronicNg.PumpHistoryCGM;
+import io.realm.Realm;
+import io.realm.RealmModel;
+import io.realm.RealmObject;
+import io.realm.RealmQuery;
+
+/*
+Per parse cache of history records used by the PumpHistory* create or update methods.
+
+Each record type is looked up by pumpMAC + eventRTC (+ type field) before being created,
+the pump usually returns much more history than requested so most of these lookups find
+an existing record. The first lookup for a record type loads all records of that type
+within the rtc window of the parse, this is the requested range or the range of the decoded
+events, lookups in the window are then done in memory and lookups outside of the window fall
+back to a query. CGM readings are looked up through PumpHistoryCGM.CgmIndex which is built over
+the same window.
+
+The cache holds managed records and is only valid on the thread it was created on, in pipelined
+mode it is kept across the per block transactions as committed records remain valid.
+*/
+
+public class HistoryRecordCache {
+    private static final String TAG = HistoryRecordCache.class.getSimpleName();
+
+    // records with a eventRTC field
+    public interface Record extends RealmModel {
+        int getEventRTC();
+    }
+
+    private final Realm realm;
+    private final long pumpMAC;
+
+    private final boolean indexed;
+    private final int fromRTC;
+    private final int toRTC;
+
+    private final Map<String, SparseArray<RealmModel>> buckets = new HashMap<>();
+
+    // cgm records use the cgm index over the same window
+    private PumpHistoryCGM.CgmIndex cgmIndex;
+
+    private int hits;
+    private int queries;
+
+    // an empty window (fromRTC > toRTC) uses queries only
+    public HistoryRecordCache(Realm realm, long pumpMAC, int fromRTC, int toRTC) {
+        this.realm = realm;
+        this.pumpMAC = pumpMAC;
+        this.fromRTC = fromRTC;
+        this.toRTC = toRTC;
+        indexed = fromRTC <= toRTC;
+    }
+
+    public <T extends Record> T find(Class<T> clazz, int rtc) {
+        return find(clazz, rtc, null, 0);
+    }
+
+    public <T extends Record> T find(Class<T> clazz, int rtc, String typeField, int type) {
+        if (contains(rtc)) {
+            RealmModel record = bucket(clazz, typeField, type).get(rtc);
+            hits++;
+            // record may have been deleted during the parse
+            return record == null || !RealmObject.isValid(record) ? null : clazz.cast(record);
+        }
+
+        queries++;
+        return query(clazz, typeField, type)
+                .equalTo("eventRTC", rtc)
+                .findFirst();
+    }
+
+    public PumpHistoryCGM.CgmIndex cgm() {
+        if (cgmIndex == null) cgmIndex = new PumpHistoryCGM.CgmIndex(realm, pumpMAC, fromRTC, toRTC);
+        return cgmIndex;
+    }
+
+    // new records must be added so that later lookups in the same parse will find them
+    public void add(Class<? extends Record> clazz, int rtc, Record record) {
+        add(clazz, rtc, null, 0, record);
+    }
+
+    public void add(Class<? extends Record> clazz, int rtc, String typeField, int type, Record record) {
+        if (contains(rtc)) bucket(clazz, typeField, type).put(rtc, record);
+    }
+
+    public void stats() {
+        Log.d(TAG, String.format("record cache: RTC %08X - %08X buckets: %s hits: %s queries: %s",
+                fromRTC, toRTC, buckets.size(), hits, queries));
+    }
+
+    private boolean contains(int rtc) {
+        return indexed && rtc >= fromRTC && rtc <= toRTC;
+    }
+
+    private <T extends RealmModel> RealmQuery<T> query(Class<T> clazz, String typeField, int type) {
+        RealmQuery<T> query = realm.where(clazz)
+                .equalTo("pumpMAC", pumpMAC);
+        if (typeField != null) query.equalTo(typeField, type);
+        return query;
+    }
+
+    private <T extends Record> SparseArray<RealmModel> bucket(Class<T> clazz, String typeField, int type) {
+        String key = clazz.getSimpleName() + (typeField == null ? "" : ":" + typeField + "=" + type);
+
+        SparseArray<RealmModel> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new SparseArray<>();
+            for (T record : query(clazz, typeField, type)
+                    .between("eventRTC", fromRTC, toRTC)
+                    .findAll()) {
+                // first record wins as with findFirst
+                int rtc = record.getEventRTC();
+                if (bucket.indexOfKey(rtc) < 0) bucket.put(rtc, record);
+            }
+            buckets.put(key, bucket);
+            queries++;
+        }
+
+        return bucket;
+    }
+}
@@ -18,7 +18,7 @@ public class HistoryUtils {
 
     public static boolean nightscoutTTL(List<NightscoutItem> nightscoutItems, PumpHistoryInterface record, String senderID) {
 
-        if (record.getSenderDEL().contains(senderID)) {
+        if (PumpHistorySender.isSender(record.getSenderDEL(), senderID)) {
             Log.d(TAG, "TTL delete record");
 
             NightscoutItem nightscoutItem = new NightscoutItem();
@@ -64,7 +64,7 @@ public class HistoryUtils {
 
         NightscoutItem nightscoutItem = new NightscoutItem();
         nightscoutItem.setTimestamp(eventDate.getTime());
-        nightscoutItem.setMode(record.getSenderACK().contains(senderID) ? NightscoutItem.MODE.UPDATE : NightscoutItem.MODE.CHECK );
+        nightscoutItem.setMode(PumpHistorySender.isSender(record.getSenderACK(), senderID) ? NightscoutItem.MODE.UPDATE : NightscoutItem.MODE.CHECK );
 
         TreatmentsEndpoints.Treatment treatment = nightscoutItem.treatment();
         treatment.setKey600(record.getKey());
@@ -103,7 +103,7 @@ public class HistoryUtils {
 
         NightscoutItem nightscoutItem = new NightscoutItem();
         nightscoutItem.setTimestamp(eventDate.getTime());
-        nightscoutItem.setMode(record.getSenderACK().contains(senderID) ? NightscoutItem.MODE.UPDATE : NightscoutItem.MODE.CHECK );
+        nightscoutItem.setMode(PumpHistorySender.isSender(record.getSenderACK(), senderID) ? NightscoutItem.MODE.UPDATE : NightscoutItem.MODE.CHECK );
 
         EntriesEndpoints.Entry entry = nightscoutItem.entry();
         entry.setKey600(record.getKey());
@@ -117,8 +117,12 @@ public class HistoryUtils {
     }
 
     public static boolean integrity(PumpHistoryInterface record, Date eventDate) throws IntegrityException {
+        return integrity(record, eventDate.getTime());
+    }
+
+    public static boolean integrity(PumpHistoryInterface record, long eventTime) throws IntegrityException {
 
-        if (Math.abs(record.getEventDate().getTime() - eventDate.getTime()) >= MedtronicCnlService.INTEGRITY_FAIL_MS) {
+        if (Math.abs(record.getEventDate().getTime() - eventTime) >= MedtronicCnlService.INTEGRITY_FAIL_MS) {
             throw new IntegrityException("Integrity check failed");
         }
 
@@ -137,6 +141,11 @@ public class HistoryUtils {
         return String.format("%016X", value);
     }
 
+    // keys are made from the pump rtc, the mac is needed to identify a record across pumps
+    public static String recordID(PumpHistoryInterface record) {
+        return pumpMAC(record.getPumpMAC()) + record.getKey();
+    }
+
     // nightscout will delete events with the same type & date, workaround: offset dates
     public static void checkTreatmentDateDuplicated(Class clazz, PumpHistoryInterface record, TreatmentsEndpoints.Treatment treatment) {
         long timestamp = record.getEventDate().getTime();
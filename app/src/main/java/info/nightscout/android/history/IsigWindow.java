@@ -0,0 +1,223 @@
+package info.nightscout.android.history;
+
+import java.util.Date;
+
+import info.nightscout.android.model.medtronicNg.PumpHistoryCGM;
+import info.nightscout.android.model.medtronicNg.PumpHistoryMisc;
+import io.realm.Realm;
+import io.realm.RealmResults;
+import io.realm.Sort;
+
+/*
+Process wide window of the newest isig readings for the isig report.
+
+The newest SIZE history cgm records for the current sensor are held in a primitive ring. New records
+are pushed at the head as they arrive, a full reload from the history is only needed when the sensor
+changes or records have landed behind the newest held record ie. after a cgm backfill.
+
+The readings used for the report are the run of consecutive 5 minute readings from the newest record.
+Deltas, gain and average are derived from the ring once per change and held in primitive arrays.
+*/
+
+public class IsigWindow {
+
+    public static final int SIZE = 10;
+
+    private final int[] ringRTC = new int[SIZE];
+    private final double[] ringIsig = new double[SIZE];
+    private int head;
+    private int count;
+
+    private Date sensorDate;
+    private Date eventDate;
+    private long historyCount = -1;
+
+    private final double[] isig = new double[SIZE];
+    private final double[] delta = new double[SIZE];
+    private int size;
+    private boolean changed = true;
+
+    private int gainMinutes;
+    private double gainK;
+    private int period;
+    private double gain;
+    private double average;
+
+    private IsigWindow() {}
+
+    private static class LazyHolder {
+        static final IsigWindow instance = new IsigWindow();
+    }
+
+    public static IsigWindow getInstance() {
+        return LazyHolder.instance;
+    }
+
+    public synchronized void update(Realm historyRealm) {
+        Date limit = new Date(System.currentTimeMillis() - 24 * 60 * 60000L);
+
+        // limit isig to current sensor
+        RealmResults<PumpHistoryMisc> miscResults = historyRealm
+                .where(PumpHistoryMisc.class)
+                .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
+                .sort("eventDate", Sort.DESCENDING)
+                .findAll();
+        Date sensor = miscResults.size() > 0 ? miscResults.first().getEventDate() : null;
+        if (sensor != null) limit = sensor;
+
+        long total = historyRealm
+                .where(PumpHistoryCGM.class)
+                .greaterThanOrEqualTo("eventDate", limit)
+                .equalTo("history", true)
+                .count();
+
+        // without a sensor change the limit moves with the time so the count can't be compared
+        boolean reload = count == 0 || sensor == null || !sensor.equals(sensorDate);
+
+        if (!reload && total != historyCount) {
+            RealmResults<PumpHistoryCGM> cgmResults = historyRealm
+                    .where(PumpHistoryCGM.class)
+                    .greaterThan("eventDate", eventDate)
+                    .equalTo("history", true)
+                    .sort("eventDate", Sort.ASCENDING)
+                    .findAll();
+
+            // anything else is behind the newest record
+            if (historyCount + cgmResults.size() != total) reload = true;
+
+            else {
+                for (PumpHistoryCGM record : cgmResults) {
+                    push(record.getCgmRTC(), record.getIsig());
+                    eventDate = record.getEventDate();
+                }
+            }
+        }
+
+        if (reload) {
+            head = 0;
+            count = 0;
+            eventDate = null;
+            changed = true;
+
+            RealmResults<PumpHistoryCGM> cgmResults = historyRealm
+                    .where(PumpHistoryCGM.class)
+                    .greaterThanOrEqualTo("eventDate", limit)
+                    .equalTo("history", true)
+                    .sort("eventDate", Sort.DESCENDING)
+                    .limit(SIZE)
+                    .findAll();
+
+            for (int i = cgmResults.size() - 1; i >= 0; i--) {
+                push(cgmResults.get(i).getCgmRTC(), cgmResults.get(i).getIsig());
+            }
+            if (cgmResults.size() > 0) eventDate = cgmResults.first().getEventDate();
+        }
+
+        sensorDate = sensor;
+        historyCount = total;
+    }
+
+    private void push(int rtc, double value) {
+        head = (head + SIZE - 1) % SIZE;
+        ringRTC[head] = rtc;
+        ringIsig[head] = value;
+        if (count < SIZE) count++;
+        changed = true;
+    }
+
+    private void select() {
+        if (!changed) return;
+        changed = false;
+        gainMinutes = 0;
+
+        size = 0;
+        if (count == 0) return;
+
+        // readings in each 5 minute period going back from the newest
+        int cgmRTC = ringRTC[head] - 60;
+        for (int pos = 0; pos < count; pos++) {
+            int i = (head + pos) % SIZE;
+            if (ringRTC[i] > cgmRTC - (pos * 300)) {
+                isig[size] = ringIsig[i];
+                delta[size] = 0;
+                if (size > 0) delta[size - 1] = isig[size - 1] - isig[size];
+                size++;
+            }
+        }
+    }
+
+    /*
+    Kalman Filter
+    X = K * Z + (1 - K) * X1
+    X = current estimation
+    X1 = previous estimation
+    Z = current measurement
+    K = Kalman gain
+    */
+
+    public synchronized boolean gain(int minutes, double k) {
+        select();
+        if (minutes == gainMinutes && k == gainK) return false;
+        gainMinutes = minutes;
+        gainK = k;
+
+        double z = 0;
+        double x = 0;
+        double x1 = 0;
+        double p;
+        double p1 = 0;
+        double sum = 0;
+
+        period = (minutes / 5);
+        if (size < period) period = size;
+        period--;
+
+        gain = 0;
+        average = 0;
+        if (period > 0) {
+            for (int i = 0; i <= period; i++) {
+                p = isig[period - i];
+                if (i >= 1) z = p - p1;
+                if (i >= 2) x = (k * z) + (1 - k) * x1;
+                else x = z;
+                p1 = p;
+                x1 = x;
+                sum = sum + z;
+            }
+            gain = x;
+            average = sum / period;
+        }
+        return true;
+    }
+
+    public synchronized Date getEventDate() {
+        return eventDate;
+    }
+
+    public synchronized Date getSensorDate() {
+        return sensorDate;
+    }
+
+    public synchronized int getPeriod() {
+        return period;
+    }
+
+    // copy up to max readings, returns the number copied
+    public synchronized int copy(double[] isig, double[] delta, int max) {
+        select();
+        int n = Math.min(Math.min(size, max), isig.length);
+        System.arraycopy(this.isig, 0, isig, 0, n);
+        System.arraycopy(this.delta, 0, delta, 0, n);
+        // the delta for the last copied reading is against a reading that was not copied
+        if (n > 0 && n < size) delta[n - 1] = 0;
+        return n;
+    }
+
+    public synchronized double getGain() {
+        return gain;
+    }
+
+    public synchronized double getAverage() {
+        return average;
+    }
+}
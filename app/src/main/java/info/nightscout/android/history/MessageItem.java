@@ -2,6 +2,8 @@ package info.nightscout.android.history;
 
 import java.util.Date;
 
+import info.nightscout.android.utils.EnumTable;
+
 /**
  * Created by Pogman on 10.5.18.
  */
@@ -72,10 +74,15 @@ public class MessageItem {
             return this.value == value;
         }
 
+        private static final EnumTable<PRIORITY> TABLE = new EnumTable<>(values(), NORMAL, new EnumTable.Key<PRIORITY>() {
+            @Override
+            public int key(PRIORITY priority) {
+                return priority.value;
+            }
+        });
+
         public static PRIORITY convert(int value) {
-            for (PRIORITY priority : PRIORITY.values())
-                if (priority.value == value) return priority;
-            return PRIORITY.NORMAL;
+            return TABLE.get(value);
         }
     }
 
@@ -11,11 +11,15 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 
 import info.nightscout.android.R;
@@ -48,6 +52,7 @@ import info.nightscout.android.model.store.StatPoll;
 import info.nightscout.android.utils.FormatKit;
 import io.realm.Realm;
 import io.realm.RealmList;
+import io.realm.RealmQuery;
 import io.realm.RealmResults;
 import io.realm.Sort;
 
@@ -153,6 +158,11 @@ public class PumpHistoryHandler {
 
     // records as requested for a sender and ready for uploading / processing
     public List<PumpHistoryInterface> getSenderRecordsREQ(String senderID) {
+        return getSenderRecordsREQ(senderID, null);
+    }
+
+    // records with an id in the skip set are left requested and do not count towards the limiter
+    public List<PumpHistoryInterface> getSenderRecordsREQ(String senderID, Set<String> skip) {
 
         PumpHistorySender.Sender sender = pumpHistorySender.getSender(senderID);
 
@@ -163,45 +173,109 @@ public class PumpHistoryHandler {
         StringBuilder logdb = new StringBuilder();
         log.append(String.format("sender[%s] limitdate: %s",senderID, dateFormatter.format(limitDate)));
 
-        List<PumpHistoryInterface> records = new ArrayList<>();
+        RecordMerge merge = new RecordMerge();
+        int total = 0;
 
         List<String> request = sender.getRequest();
 
+        Integer[] masksREQ = PumpHistorySender.senderMasks(senderID, true);
+
         for (DBitem dBitem : historyDB) {
 
             if (request.contains(dBitem.historydb)) {
 
                 RealmResults<PumpHistoryInterface> requested = dBitem.results.where()
+                        .in("senderREQ", masksREQ)
                         .greaterThanOrEqualTo("eventDate", limitDate)
-                        .contains("senderREQ", senderID)
+                        .sort("eventDate", Sort.DESCENDING)
                         .findAll();
 
-                records.addAll(requested);
+                merge.add(requested);
+                total += requested.size();
 
                 if (requested.size() > 0) logdb.append(String.format(" %s: %s", dBitem.historydb, requested.size()));
             }
         }
 
-        log.append(String.format(" requested: %s", records.size()));
+        log.append(String.format(" requested: %s", total));
+
+        // limiter, merge from newest and fill the list from the end so it is sorted from oldest to newest
+        PumpHistoryInterface[] records = new PumpHistoryInterface[Math.min(total, sender.getLimiter())];
+        int skipped = 0;
+        int i = records.length;
+        while (i > 0 && merge.hasNext()) {
+            PumpHistoryInterface record = merge.next();
+            if (skip != null && skip.contains(HistoryUtils.recordID(record))) skipped++;
+            else records[--i] = record;
+        }
+
+        log.append(String.format(" skipped: %s limiter: %s final: %s", skipped, sender.getLimiter(), records.length - i));
+        log.append(logdb.toString());
+        Log.d(TAG, log.toString());
+
+        return Arrays.asList(records).subList(i, records.length);
+    }
+
+    /*
+    K-way merge of eventDate descending sorted results, returns records from newest to oldest.
+    Realm results are lazy so only the records that are taken from the merge are read.
+    Records with the same date are returned in reverse order of the results being added.
+    */
+    private static class RecordMerge implements Iterator<PumpHistoryInterface> {
 
-        // sort complete list from oldest to newest
-        Collections.sort(records, new Comparator<PumpHistoryInterface>() {
+        private final PriorityQueue<Cursor> queue = new PriorityQueue<>(16, new Comparator<Cursor>() {
             @Override
-            public int compare(PumpHistoryInterface record1, PumpHistoryInterface record2)
-            {
-                return  record1.getEventDate().compareTo(record2.getEventDate());
+            public int compare(Cursor cursor1, Cursor cursor2) {
+                if (cursor1.date != cursor2.date) return cursor1.date > cursor2.date ? -1 : 1;
+                return cursor2.order - cursor1.order;
             }
         });
 
-        // limiter
-        if (records.size() > sender.getLimiter())
-            records = records.subList(records.size() - sender.getLimiter(), records.size());
+        private int order;
 
-        log.append(String.format(" limiter: %s final: %s", sender.getLimiter(), records.size()));
-        log.append(logdb.toString());
-        Log.d(TAG, log.toString());
+        private void add(RealmResults<PumpHistoryInterface> results) {
+            Cursor cursor = new Cursor(results, order++);
+            if (cursor.read()) queue.add(cursor);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public PumpHistoryInterface next() {
+            Cursor cursor = queue.poll();
+            if (cursor == null) throw new NoSuchElementException();
+            PumpHistoryInterface record = cursor.record;
+            if (cursor.read()) queue.add(cursor);
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private static class Cursor {
+            private final RealmResults<PumpHistoryInterface> results;
+            private final int order;
+            private int position;
+            private PumpHistoryInterface record;
+            private long date;
+
+            private Cursor(RealmResults<PumpHistoryInterface> results, int order) {
+                this.results = results;
+                this.order = order;
+            }
 
-        return records;
+            private boolean read() {
+                if (position >= results.size()) return false;
+                record = results.get(position++);
+                date = record.getEventDate().getTime();
+                return true;
+            }
+        }
     }
 
     // post uploading / processing, clear the request and acknowledge
@@ -211,8 +285,8 @@ public class PumpHistoryHandler {
             public void execute(@NonNull Realm realm) {
 
                 for (PumpHistoryInterface record : records) {
-                    record.setSenderREQ(record.getSenderREQ().replace(senderID, ""));
-                    record.setSenderACK(record.getSenderACK().replace(senderID, "").concat(senderID));
+                    record.setSenderREQ(PumpHistorySender.clearSender(record.getSenderREQ(), senderID));
+                    record.setSenderACK(PumpHistorySender.setSender(record.getSenderACK(), senderID));
                 }
 
             }
@@ -224,8 +298,8 @@ public class PumpHistoryHandler {
             @Override
             public void execute(@NonNull Realm realm) {
 
-                record.setSenderREQ(record.getSenderREQ().replace(senderID, ""));
-                record.setSenderACK(record.getSenderACK().replace(senderID, "").concat(senderID));
+                record.setSenderREQ(PumpHistorySender.clearSender(record.getSenderREQ(), senderID));
+                record.setSenderACK(PumpHistorySender.setSender(record.getSenderACK(), senderID));
 
             }
         });
@@ -245,6 +319,9 @@ public class PumpHistoryHandler {
         RealmResults<PumpHistoryInterface> resultsToDelete;
         RealmResults<PumpHistoryInterface> resultsToUndelete;
 
+        Integer[] masksSet = PumpHistorySender.senderMasks(senderID, true);
+        Integer[] masksClear = PumpHistorySender.senderMasks(senderID, false);
+
         for (DBitem dBitem : historyDB) {
 
             for (Pair<String, Long>ttlItem : ttl) {
@@ -255,22 +332,21 @@ public class PumpHistoryHandler {
 
                     // tag records for deletion (helps keep NS history clean)
                     resultsToDelete = dBitem.results.where()
+                            .in("senderDEL", masksClear)
                             .lessThan("eventDate", ttlDate)
                             .beginGroup()
-                            .contains("senderREQ", senderID)
+                            .in("senderREQ", masksSet)
                             .or()
-                            .contains("senderACK", senderID)
+                            .in("senderACK", masksSet)
                             .endGroup()
-                            .not()
-                            .contains("senderDEL", senderID)
                             .findAll();
 
                     recordsToDelete.addAll(resultsToDelete);
 
                     // ttl date changed? recover already deleted records (resend to NS)
                     resultsToUndelete = dBitem.results.where()
+                            .in("senderDEL", masksSet)
                             .greaterThanOrEqualTo("eventDate", ttlDate)
-                            .contains("senderDEL", senderID)
                             .findAll();
 
                     recordsToUndelete.addAll(resultsToUndelete);
@@ -287,13 +363,13 @@ public class PumpHistoryHandler {
                 public void execute(@NonNull Realm realm) {
 
                     for (PumpHistoryInterface record : recordsToDelete) {
-                        record.setSenderREQ(record.getSenderREQ().replace(senderID, "").concat(senderID));
-                        record.setSenderDEL(record.getSenderDEL().replace(senderID, "").concat(senderID));
+                        record.setSenderREQ(PumpHistorySender.setSender(record.getSenderREQ(), senderID));
+                        record.setSenderDEL(PumpHistorySender.setSender(record.getSenderDEL(), senderID));
                     }
 
                     for (PumpHistoryInterface record : recordsToUndelete) {
-                        record.setSenderREQ(record.getSenderREQ().replace(senderID, "").concat(senderID));
-                        record.setSenderDEL(record.getSenderDEL().replace(senderID, ""));
+                        record.setSenderREQ(PumpHistorySender.setSender(record.getSenderREQ(), senderID));
+                        record.setSenderDEL(PumpHistorySender.clearSender(record.getSenderDEL(), senderID));
                     }
 
                 }
@@ -363,12 +439,11 @@ public class PumpHistoryHandler {
 
                     if (dBitem.historydb.equals(db)) {
                         results = dBitem.results.where()
-                                .contains("senderACK", senderID)
-                                .not()
-                                .contains("senderDEL", senderID)
+                                .in("senderACK", PumpHistorySender.senderMasks(senderID, true))
+                                .in("senderDEL", PumpHistorySender.senderMasks(senderID, false))
                                 .findAll();
                         for (PumpHistoryInterface record : results)
-                            if (!record.getSenderREQ().contains(senderID)) record.setSenderREQ(record.getSenderREQ() + senderID);
+                            record.setSenderREQ(PumpHistorySender.setSender(record.getSenderREQ(), senderID));
                     }
                 }
             }
@@ -477,7 +552,7 @@ public class PumpHistoryHandler {
             RealmResults<PumpHistorySystem> results = historyRealm
                     .where(PumpHistorySystem.class)
                     .equalTo("status", status.value())
-                    .contains("senderREQ", senderID)
+                    .in("senderREQ", PumpHistorySender.senderMasks(senderID, true))
                     .findAll();
             if (results.size() > 0) {
                 Log.d(TAG, String.format("SystemEvent dismiss: %s senderID = %s count = %s",
@@ -487,7 +562,7 @@ public class PumpHistoryHandler {
                     historyRealm.executeTransaction(new Realm.Transaction() {
                         @Override
                         public void execute(@NonNull Realm realm) {
-                            r.setSenderREQ(r.getSenderREQ().replace(senderID, ""));
+                            r.setSenderREQ(PumpHistorySender.clearSender(r.getSenderREQ(), senderID));
                         }
                     });
                 }
@@ -500,7 +575,7 @@ public class PumpHistoryHandler {
             RealmResults<PumpHistorySystem> results = historyRealm
                     .where(PumpHistorySystem.class)
                     .equalTo("status", status.value())
-                    .notEqualTo("senderREQ", "")
+                    .notEqualTo("senderREQ", 0)
                     .findAll();
             if (results.size() > 0) {
                 Log.d(TAG, String.format("SystemEvent dismiss: %s count = %s",
@@ -510,7 +585,7 @@ public class PumpHistoryHandler {
                     historyRealm.executeTransaction(new Realm.Transaction() {
                         @Override
                         public void execute(@NonNull Realm realm) {
-                            r.setSenderREQ("");
+                            r.setSenderREQ(0);
                         }
                     });
                 }
@@ -912,6 +987,20 @@ public class PumpHistoryHandler {
 
         private int processRTC;
 
+        // filter state, carried between runs by the checkpoint
+        private double factor;
+        private int target;
+        private double x;
+        private double offsetCount;
+        private double offsetSum;
+        private double offsetAvg;
+        private int step;
+
+        // set when process() has run the filter over a calibration period, the filter state is then a checkpoint
+        private boolean filtered;
+        private int checkpointSensorRTC;
+        private int checkpointCalRTC;
+
         public Estimate setOptions(boolean optEst, boolean optEol, boolean optErr) {
             this.optEst = optEst;
             this.optEol = optEol;
@@ -943,124 +1032,11 @@ public class PumpHistoryHandler {
                 // only consider cgm results up to this date as pump history may be stale
                 Date sessionEndDate = new Date (results.first().getToDate().getTime() + 6 * 60 * 60000L);
 
-                Date sensorStartDate = new Date(System.currentTimeMillis());
-
-                // viable sensor records
-                RealmResults<PumpHistoryMisc> sensorRecords = historyRealm
-                        .where(PumpHistoryMisc.class)
-                        .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
-                        .greaterThan("eventDate", limitDate)
-                        .sort("eventDate", Sort.DESCENDING)
-                        .findAll();
-                if (sensorRecords.size() == 0) return;
-
-                // use sensor records that are within set interval
-                // due to potential incomplete cal/cgm data
-                for (PumpHistoryMisc pumpHistoryMisc : sensorRecords) {
-                    if (sensorStartDate.getTime() - pumpHistoryMisc.getEventDate().getTime() < SENSOR_PERIOD_MS)
-                        sensorStartDate = pumpHistoryMisc.getEventDate();
-                    else break;
-                }
-
-                sensorRecords = historyRealm
-                        .where(PumpHistoryMisc.class)
-                        .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
-                        .greaterThanOrEqualTo("eventDate", sensorStartDate)
-                        .sort("eventRTC", Sort.ASCENDING)
-                        .findAll();
-                if (sensorRecords.size() == 0) return;
-                int sensorStartRTC = sensorRecords.first().getEventRTC();
-
-                // calibration records
-                RealmResults<PumpHistoryBG> calRecords = historyRealm
-                        .where(PumpHistoryBG.class)
-                        .equalTo("calibration", true)
-                        .greaterThan("calibrationRTC", sensorStartRTC)
-                        .sort("calibrationRTC", Sort.ASCENDING)
-                        .findAll();
-                if (calRecords.size() == 0) return;
-                Date calStartDate = calRecords.first().getCalibrationDate();
-                int calStartRTC = calRecords.first().getCalibrationRTC();
-
-                if (log >= 1) {
-                    Log.d(TAG, String.format("RECORDS sensor: %s start %s cal: %s start %s",
-                            sensorRecords.size(),
-                            df.format(sensorStartDate),
-                            calRecords.size(),
-                            df.format(calStartDate)
-                    ));
-                }
-
-                Byte[] exceptions;
-                if (optEol && optErr)
-                    exceptions = new Byte[]
-                            {
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_END_OF_LIFE.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_ERROR.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_SENSOR_ERROR.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_CAL_ERROR.value()
-                            };
-                else if (optEol)
-                    exceptions = new Byte[]
-                            {
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_END_OF_LIFE.value()
-                            };
-                else if (optErr)
-                    exceptions = new Byte[]
-                            {
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_ERROR.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_SENSOR_ERROR.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_CAL_ERROR.value()
-                            };
-                else
-                    exceptions = new Byte[]
-                            {
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
-                                    (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value()
-
-                            };
-
-                // viable cgm records
-                RealmResults<PumpHistoryCGM> cgmRecords = historyRealm
-                        .where(PumpHistoryCGM.class)
-                        .equalTo("history", true)
-                        .equalTo("discardData", false)
-                        .equalTo("noisyData", false)
-                        .in("sensorException", exceptions)
-                        .greaterThan("cgmRTC", calStartRTC)
-                        .lessThan("eventDate", sessionEndDate)
-                        .sort("cgmRTC", Sort.ASCENDING)
-                        .findAll();
-
-                processRTC = calStartRTC;
-
-                int n = 0;
-                boolean complete;
-                do {
-                    // unprocessed cgm records
-                    RealmResults<PumpHistoryCGM> unprocessedCgmRecords = cgmRecords.where()
-                            .equalTo("estimate", false)
-                            .equalTo("sgv", 0)
-                            .greaterThan("cgmRTC", processRTC)
-                            .findAll();
-
-                    if (unprocessedCgmRecords.size() > 0) {
-                        Log.d(TAG, "processing #" + n++);
-                        processRTC = unprocessedCgmRecords.first().getCgmRTC();
-                        complete = process(unprocessedCgmRecords, cgmRecords, sensorRecords, calRecords);
-                    } else complete = true;
+                Byte[] exceptions = exceptions();
 
-                } while (!complete);
+                // the filter only needs to run over new cgm records unless older history has changed
+                boolean checkpoint = updateIncremental(sessionEndDate, exceptions)
+                        || updateFull(sessionEndDate, exceptions);
 
                 // update records
                 if (updateRecords.size() > 0) {
@@ -1077,10 +1053,275 @@ public class PumpHistoryHandler {
 
                         }
                     });
+                    // display consumers in this process re-read the changed period
+                    long from = Long.MAX_VALUE;
+                    for (PumpHistoryCGM record : updateRecords) {
+                        if (record.getEventDate().getTime() < from) from = record.getEventDate().getTime();
+                    }
+                    TimeSeriesCache.getInstance().invalidate(from);
+
                     updateRecords.clear();
                     updateSgv.clear();
                 }
+
+                saveCheckpoint(checkpoint);
+            }
+        }
+
+        // continue from the checkpoint, falls back to a full run when a sensor change, calibration
+        // or backfilled cgm record has landed behind it, returns true when the filter state is a checkpoint
+        private boolean updateIncremental(Date sessionEndDate, Byte[] exceptions) {
+            if (dataStore.getEstimateCalRTC() == 0 || dataStore.getEstimateOptions() != options())
+                return false;
+
+            int sensorRTC = dataStore.getEstimateSensorRTC();
+            int calRTC = dataStore.getEstimateCalRTC();
+            int checkpointRTC = dataStore.getEstimateProcessRTC();
+
+            // checkpoint sensor must be the current sensor
+            RealmResults<PumpHistoryMisc> sensorRecords = historyRealm
+                    .where(PumpHistoryMisc.class)
+                    .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
+                    .greaterThanOrEqualTo("eventRTC", sensorRTC)
+                    .findAll();
+            if (sensorRecords.size() != 1 || sensorRecords.first().getEventRTC() != sensorRTC) {
+                Log.d(TAG, "checkpoint: sensor changed");
+                return false;
+            }
+
+            // checkpoint calibration and any calibrations since
+            RealmResults<PumpHistoryBG> calRecords = historyRealm
+                    .where(PumpHistoryBG.class)
+                    .equalTo("calibration", true)
+                    .greaterThanOrEqualTo("calibrationRTC", calRTC)
+                    .sort("calibrationRTC", Sort.ASCENDING)
+                    .findAll();
+            if (calRecords.size() == 0 || calRecords.first().getCalibrationRTC() != calRTC) {
+                Log.d(TAG, "checkpoint: calibration not found");
+                return false;
+            }
+            if (calRecords.size() > 1 && calRecords.get(1).getCalibrationRTC() <= checkpointRTC) {
+                Log.d(TAG, "checkpoint: calibration behind checkpoint");
+                return false;
+            }
+
+            // unprocessed cgm records behind the checkpoint ie. backfilled
+            if (cgmQuery(sessionEndDate, exceptions)
+                    .equalTo("estimate", false)
+                    .equalTo("sgv", 0)
+                    .greaterThan("cgmRTC", sensorRTC)
+                    .lessThanOrEqualTo("cgmRTC", checkpointRTC)
+                    .count() > 0) {
+                Log.d(TAG, "checkpoint: cgm records behind checkpoint");
+                return false;
+            }
+
+            // cgm records after the sensor period are not estimated
+            RealmResults<PumpHistoryCGM> cgmRecords = cgmQuery(sessionEndDate, exceptions)
+                    .greaterThan("cgmRTC", checkpointRTC)
+                    .lessThan("cgmRTC", HistoryUtils.offsetRTC(sensorRTC, 10 * 24 * 60 * 60))
+                    .sort("cgmRTC", Sort.ASCENDING)
+                    .findAll();
+
+            Log.d(TAG, String.format("incremental estimate: %s cgm records", cgmRecords.size()));
+
+            factor = calRecords.first().getCalibrationFactor();
+            target = calRecords.first().getCalibrationTarget();
+            x = dataStore.getEstimateX();
+            offsetCount = dataStore.getEstimateOffsetCount();
+            offsetSum = dataStore.getEstimateOffsetSum();
+            offsetAvg = offsetSum / offsetCount;
+            step = dataStore.getEstimateStep();
+
+            processRTC = checkpointRTC;
+            checkpointSensorRTC = sensorRTC;
+            checkpointCalRTC = calRTC;
+
+            int next = 1;
+            for (PumpHistoryCGM record : cgmRecords) {
+                // start of a new calibration period
+                while (next < calRecords.size() && calRecords.get(next).getCalibrationRTC() <= record.getCgmRTC()) {
+                    reset(calRecords.get(next));
+                    checkpointCalRTC = calRecords.get(next).getCalibrationRTC();
+                    next++;
+                }
+                filter(record);
+            }
+
+            return true;
+        }
+
+        private void saveCheckpoint(final boolean checkpoint) {
+            if (checkpoint
+                    ? dataStore.getEstimateCalRTC() == checkpointCalRTC
+                    && dataStore.getEstimateProcessRTC() == processRTC
+                    && dataStore.getEstimateOptions() == options()
+                    : dataStore.getEstimateCalRTC() == 0)
+                return;
+
+            storeRealm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    if (checkpoint) {
+                        dataStore.setEstimateOptions(options());
+                        dataStore.setEstimateSensorRTC(checkpointSensorRTC);
+                        dataStore.setEstimateCalRTC(checkpointCalRTC);
+                        dataStore.setEstimateProcessRTC(processRTC);
+                        dataStore.setEstimateStep(step);
+                        dataStore.setEstimateX(x);
+                        dataStore.setEstimateOffsetCount(offsetCount);
+                        dataStore.setEstimateOffsetSum(offsetSum);
+                    } else {
+                        dataStore.setEstimateCalRTC(0);
+                    }
+                }
+            });
+        }
+
+        private int options() {
+            return (optEst ? 1 : 0) | (optEol ? 2 : 0) | (optErr ? 4 : 0);
+        }
+
+        private RealmQuery<PumpHistoryCGM> cgmQuery(Date sessionEndDate, Byte[] exceptions) {
+            return historyRealm
+                    .where(PumpHistoryCGM.class)
+                    .equalTo("history", true)
+                    .equalTo("discardData", false)
+                    .equalTo("noisyData", false)
+                    .in("sensorException", exceptions)
+                    .lessThan("eventDate", sessionEndDate);
+        }
+
+        // returns true when the filter state after the run is a checkpoint
+        private boolean updateFull(Date sessionEndDate, Byte[] exceptions) {
+            Log.d(TAG, "full estimate");
+
+            Date sensorStartDate = new Date(System.currentTimeMillis());
+
+            // viable sensor records
+            RealmResults<PumpHistoryMisc> sensorRecords = historyRealm
+                    .where(PumpHistoryMisc.class)
+                    .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
+                    .greaterThan("eventDate", limitDate)
+                    .sort("eventDate", Sort.DESCENDING)
+                    .findAll();
+            if (sensorRecords.size() == 0) return false;
+
+            // use sensor records that are within set interval
+            // due to potential incomplete cal/cgm data
+            for (PumpHistoryMisc pumpHistoryMisc : sensorRecords) {
+                if (sensorStartDate.getTime() - pumpHistoryMisc.getEventDate().getTime() < SENSOR_PERIOD_MS)
+                    sensorStartDate = pumpHistoryMisc.getEventDate();
+                else break;
+            }
+
+            sensorRecords = historyRealm
+                    .where(PumpHistoryMisc.class)
+                    .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
+                    .greaterThanOrEqualTo("eventDate", sensorStartDate)
+                    .sort("eventRTC", Sort.ASCENDING)
+                    .findAll();
+            if (sensorRecords.size() == 0) return false;
+            int sensorStartRTC = sensorRecords.first().getEventRTC();
+
+            // calibration records
+            RealmResults<PumpHistoryBG> calRecords = historyRealm
+                    .where(PumpHistoryBG.class)
+                    .equalTo("calibration", true)
+                    .greaterThan("calibrationRTC", sensorStartRTC)
+                    .sort("calibrationRTC", Sort.ASCENDING)
+                    .findAll();
+            if (calRecords.size() == 0) return false;
+            Date calStartDate = calRecords.first().getCalibrationDate();
+            int calStartRTC = calRecords.first().getCalibrationRTC();
+
+            if (log >= 1) {
+                Log.d(TAG, String.format("RECORDS sensor: %s start %s cal: %s start %s",
+                        sensorRecords.size(),
+                        df.format(sensorStartDate),
+                        calRecords.size(),
+                        df.format(calStartDate)
+                ));
+            }
+
+            // viable cgm records
+            RealmResults<PumpHistoryCGM> cgmRecords = cgmQuery(sessionEndDate, exceptions)
+                    .greaterThan("cgmRTC", calStartRTC)
+                    .sort("cgmRTC", Sort.ASCENDING)
+                    .findAll();
+
+            processRTC = calStartRTC;
+
+            // the filter state is a checkpoint when the last calibration period processed was filtered
+            boolean checkpoint = false;
+
+            int n = 0;
+            boolean complete;
+            do {
+                // unprocessed cgm records
+                RealmResults<PumpHistoryCGM> unprocessedCgmRecords = cgmRecords.where()
+                        .equalTo("estimate", false)
+                        .equalTo("sgv", 0)
+                        .greaterThan("cgmRTC", processRTC)
+                        .findAll();
+
+                if (unprocessedCgmRecords.size() > 0) {
+                    Log.d(TAG, "processing #" + n++);
+                    processRTC = unprocessedCgmRecords.first().getCgmRTC();
+                    complete = process(unprocessedCgmRecords.first(), cgmRecords, sensorRecords, calRecords);
+                    checkpoint = filtered;
+                } else complete = true;
+
+            } while (!complete);
+
+            // nothing to process, run the filter over the last calibration period to set the checkpoint
+            // the period has no unprocessed records so this does not add to the records to update
+            if (n == 0 && cgmRecords.size() > 0) {
+                process(cgmRecords.last(), cgmRecords, sensorRecords, calRecords);
+                checkpoint = filtered;
             }
+
+            return checkpoint;
+        }
+
+        private Byte[] exceptions() {
+            if (optEol && optErr)
+                return new Byte[]
+                        {
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_END_OF_LIFE.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_ERROR.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_SENSOR_ERROR.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_CAL_ERROR.value()
+                        };
+            else if (optEol)
+                return new Byte[]
+                        {
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_END_OF_LIFE.value()
+                        };
+            else if (optErr)
+                return new Byte[]
+                        {
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_ERROR.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_SENSOR_ERROR.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_CAL_ERROR.value()
+                        };
+            else
+                return new Byte[]
+                        {
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_OK.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_NEEDED.value(),
+                                (byte) PumpHistoryParser.CGM_EXCEPTION.SENSOR_CAL_PENDING.value()
+
+                        };
         }
 
         public void updateOptions() {
@@ -1137,19 +1378,22 @@ public class PumpHistoryHandler {
 
                     }
                 });
+                TimeSeriesCache.getInstance().invalidate(limitDate.getTime());
             }
 
         }
 
+        // filter the calibration period that holds the cgm record
         private boolean process(
-                RealmResults<PumpHistoryCGM> unprocessedCgmRecords,
+                PumpHistoryCGM cgmRecord,
                 RealmResults<PumpHistoryCGM> cgmRecords,
                 RealmResults<PumpHistoryMisc> sensorRecords,
                 RealmResults<PumpHistoryBG> calRecords) {
 
-            // unprocessed cgm record
-            Date cgmStartDate = unprocessedCgmRecords.first().getEventDate();
-            int cgmStart = unprocessedCgmRecords.first().getCgmRTC();
+            filtered = false;
+
+            Date cgmStartDate = cgmRecord.getEventDate();
+            int cgmStart = cgmRecord.getCgmRTC();
 
             // sensor start/end
             RealmResults<PumpHistoryMisc> sensorResults = sensorRecords.where()
@@ -1193,8 +1437,10 @@ public class PumpHistoryHandler {
                     Log.d(TAG, "record outside calibration period, no estimated sgv available");
                 }
 
-                updateRecords.add(unprocessedCgmRecords.first());
-                updateSgv.add(0);
+                if (!cgmRecord.isEstimate() && cgmRecord.getSgv() == 0) {
+                    updateRecords.add(cgmRecord);
+                    updateSgv.add(0);
+                }
 
                 return false;
             }
@@ -1235,23 +1481,7 @@ public class PumpHistoryHandler {
             // Z = current measurement
             // K = Kalman gain
 
-            double factor = calResults.first().getCalibrationFactor();
-            int target = calResults.first().getCalibrationTarget();
-
-            int sgv;
-            double isig;
-
-            double offsetCount = 1;
-            double offsetAvg = OFFSET;
-            double offsetSum = OFFSET;
-
-            double z;
-            double x = 0;
-
-            boolean est;
-            double estsgv;
-
-            PumpHistoryParser.CGM_EXCEPTION ex;
+            reset(calResults.first());
 
             if (log >= 2) {
                 Log.d(TAG, String.format("BG %s cal: %s target: %s(%s) factor: %s",
@@ -1268,139 +1498,161 @@ public class PumpHistoryHandler {
             ));
             //factor = target / (calCgmRecords.get(0).getIsig() - OFFSET);
 
-            for (int i = 0; i < calCgmRecords.size(); i++) {
-                processRTC = calCgmRecords.get(i).getCgmRTC();
+            for (PumpHistoryCGM record : calCgmRecords) {
+                filter(record);
+            }
+
+            filtered = true;
+            checkpointSensorRTC = sensorStart;
+            checkpointCalRTC = calStart;
 
-                est = calCgmRecords.get(i).isEstimate();
-                estsgv = 0;
+            return false;
+        }
 
-                sgv = calCgmRecords.get(i).getSgv();
-                isig = calCgmRecords.get(i).getIsig();
-                ex = PumpHistoryParser.CGM_EXCEPTION.convert(calCgmRecords.get(i).getSensorException());
+        // one step of the filter, estimates are set for unprocessed records
+        private void filter(PumpHistoryCGM record) {
+            processRTC = record.getCgmRTC();
 
-                if (x == 0) x = isig;
+            boolean est = record.isEstimate();
+            double estsgv = 0;
 
-                else if (Math.abs(isig - x) < DROP) {
+            int sgv = record.getSgv();
+            double isig = record.getIsig();
+            double z;
+            PumpHistoryParser.CGM_EXCEPTION ex = PumpHistoryParser.CGM_EXCEPTION.convert(record.getSensorException());
 
-                    if (isig - x > CLIP) z = x + CLIP;
-                    else if (x - isig > CLIP) z = x - CLIP;
-                    else z = isig;
+            if (x == 0) x = isig;
 
-                    // use lower Kalman gain when sensor is in error/eol
-                    if (PumpHistoryParser.CGM_EXCEPTION.SENSOR_ERROR == ex
-                            || PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_SENSOR_ERROR == ex
-                            || PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_CAL_ERROR == ex)
-                        x = K_ERR * z + (1 - K_ERR) * x;
-                    else if (PumpHistoryParser.CGM_EXCEPTION.SENSOR_END_OF_LIFE == ex)
-                        x = K_EOL * z + (1 - K_EOL) * x;
-                    else
-                        x = K * z + (1 - K) * x;
+            else if (Math.abs(isig - x) < DROP) {
 
-                    estsgv = (x - OFFSET) * factor;
+                if (isig - x > CLIP) z = x + CLIP;
+                else if (x - isig > CLIP) z = x - CLIP;
+                else z = isig;
 
-                    // offset average may indicate estimation quality
-                    // ideal offset value is 3.0
-                    if (!est && sgv > 0) {
-                        offsetCount++;
-                        offsetSum += isig - (sgv / factor);
-                        offsetAvg = offsetSum / offsetCount;
-                    }
+                // use lower Kalman gain when sensor is in error/eol
+                if (PumpHistoryParser.CGM_EXCEPTION.SENSOR_ERROR == ex
+                        || PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_SENSOR_ERROR == ex
+                        || PumpHistoryParser.CGM_EXCEPTION.SENSOR_CHANGE_CAL_ERROR == ex)
+                    x = K_ERR * z + (1 - K_ERR) * x;
+                else if (PumpHistoryParser.CGM_EXCEPTION.SENSOR_END_OF_LIFE == ex)
+                    x = K_EOL * z + (1 - K_EOL) * x;
+                else
+                    x = K * z + (1 - K) * x;
 
-                } else if (log >= 1) {
-                    Log.d(TAG, String.format("No Estimate due to isig difference: %s >= %s",
-                            FormatKit.getInstance().formatAsDecimal(Math.abs(isig - x), 2),
-                            FormatKit.getInstance().formatAsDecimal(DROP, 2)
-                    ));
+                estsgv = (x - OFFSET) * factor;
+
+                // offset average may indicate estimation quality
+                // ideal offset value is 3.0
+                if (!est && sgv > 0) {
+                    offsetCount++;
+                    offsetSum += isig - (sgv / factor);
+                    offsetAvg = offsetSum / offsetCount;
                 }
 
-                if (log >= 2) {
-                    Log.d(TAG, String.format("[%s] t+%s %s | pump: %s(%s) isig: %s vctr: %s off: %s | est: %s(%s) %s | factor: %s offset: %s ex: %s",
-                            est ? "EST" : "SGV",
-                            i,
-                            df.format(calCgmRecords.get(i).getEventDate()),
-                            est ? 0 : sgv,
-                            est ? 0 : FormatKit.getInstance().formatAsGlucoseMMOL(sgv, false, 1),
-                            FormatKit.getInstance().formatAsDecimal(isig, 2),
-                            FormatKit.getInstance().formatAsDecimal(calCgmRecords.get(i).getVctr(), 2),
-                            sgv == 0 ? 0 : FormatKit.getInstance().formatAsDecimal(isig - (sgv / factor),2),
-                            (int) Math.round(estsgv),
-                            FormatKit.getInstance().formatAsGlucoseMMOL((int) Math.round(estsgv), false, 1),
-                            FormatKit.getInstance().formatAsDecimal(x, 2),
+            } else if (log >= 1) {
+                Log.d(TAG, String.format("No Estimate due to isig difference: %s >= %s",
+                        FormatKit.getInstance().formatAsDecimal(Math.abs(isig - x), 2),
+                        FormatKit.getInstance().formatAsDecimal(DROP, 2)
+                ));
+            }
+
+            if (log >= 2) {
+                Log.d(TAG, String.format("[%s] t+%s %s | pump: %s(%s) isig: %s vctr: %s off: %s | est: %s(%s) %s | factor: %s offset: %s ex: %s",
+                        est ? "EST" : "SGV",
+                        step,
+                        df.format(record.getEventDate()),
+                        est ? 0 : sgv,
+                        est ? 0 : FormatKit.getInstance().formatAsGlucoseMMOL(sgv, false, 1),
+                        FormatKit.getInstance().formatAsDecimal(isig, 2),
+                        FormatKit.getInstance().formatAsDecimal(record.getVctr(), 2),
+                        sgv == 0 ? 0 : FormatKit.getInstance().formatAsDecimal(isig - (sgv / factor),2),
+                        (int) Math.round(estsgv),
+                        FormatKit.getInstance().formatAsGlucoseMMOL((int) Math.round(estsgv), false, 1),
+                        FormatKit.getInstance().formatAsDecimal(x, 2),
+                        factor,
+                        FormatKit.getInstance().formatAsDecimal(offsetAvg,2),
+                        ex.name()
+                ));
+            }
+
+            // limit estimate result when out of range (same as pump)
+            if (estsgv > 0 && estsgv < 40) estsgv = 40;
+            else if (estsgv > 400) estsgv = 400;
+
+            if (!est && sgv == 0) {
+                int finalEstimate = (int) Math.round(estsgv);
+
+                updateRecords.add(record);
+                updateSgv.add(finalEstimate);
+
+                if (log >= 1) {
+                    Log.d(TAG, String.format("Final Estimate %s(%s) isig=%s vctr=%s t+%s f=%s o=%s x=%s ex=%s",
+                            finalEstimate,
+                            FormatKit.getInstance().formatAsGlucoseMMOL(finalEstimate, false, 1),
+                            isig,
+                            record.getVctr(),
+                            step,
                             factor,
                             FormatKit.getInstance().formatAsDecimal(offsetAvg,2),
+                            FormatKit.getInstance().formatAsDecimal(x,2),
                             ex.name()
                     ));
                 }
 
-                // limit estimate result when out of range (same as pump)
-                if (estsgv > 0 && estsgv < 40) estsgv = 40;
-                else if (estsgv > 400) estsgv = 400;
-
-                if (!est && sgv == 0) {
-                    int finalEstimate = (int) Math.round(estsgv);
-
-                    updateRecords.add(calCgmRecords.get(i));
-                    updateSgv.add(finalEstimate);
-
-                    if (log >= 1) {
-                        Log.d(TAG, String.format("Final Estimate %s(%s) isig=%s vctr=%s t+%s f=%s o=%s x=%s ex=%s",
-                                finalEstimate,
-                                FormatKit.getInstance().formatAsGlucoseMMOL(finalEstimate, false, 1),
-                                isig,
-                                calCgmRecords.get(i).getVctr(),
-                                i,
-                                factor,
-                                FormatKit.getInstance().formatAsDecimal(offsetAvg,2),
-                                FormatKit.getInstance().formatAsDecimal(x,2),
-                                ex.name()
-                        ));
-                    }
-
-                    if (optUserlog && finalEstimate > 0
-                            && System.currentTimeMillis() - calCgmRecords.get(i).getEventDate().getTime() < 20 * 60000L) {
-
-                        UserLogMessage.sendN(mContext, UserLogMessage.TYPE.ESTIMATE,
-                                String.format("{id;%s} {sgv;%s} {id;%s} {time.sgv;%s}",
-                                        R.string.ul_poll__estimated_sgv,
-                                        finalEstimate,
-                                        R.string.ul_poll__reading_time__at,
-                                        calCgmRecords.get(i).getEventDate().getTime()
-                                ));
-                        UserLogMessage.sendE(mContext, UserLogMessage.TYPE.ESTIMATE,
-                                String.format("{id;%s} {sgv;%s} {id;%s} {time.sgv.e;%s}",
-                                        R.string.ul_poll__estimated_sgv,
-                                        finalEstimate,
-                                        R.string.ul_poll__reading_time__at,
-                                        calCgmRecords.get(i).getEventDate().getTime()
-                                ));
-
-                        UserLogMessage.sendE(mContext,
-                                String.format("isig: %s vctr: %s roc: %s s: %s/%s %s%s%s%s%s",
-                                        calCgmRecords.get(i).getIsig(),
-                                        calCgmRecords.get(i).getVctr(),
-                                        calCgmRecords.get(i).getRateOfChange(),
-                                        calCgmRecords.get(i).getSensorStatus(),
-                                        calCgmRecords.get(i).getReadingStatus(),
-                                        calCgmRecords.get(i).isNoisyData() ? "N" : "",
-                                        calCgmRecords.get(i).isDiscardData() ? "D" : "",
-                                        calCgmRecords.get(i).isSensorError() ? "E" : "",
-                                        calCgmRecords.get(i).isBackfilledData() ? "B" : "",
-                                        calCgmRecords.get(i).isSettingsChanged() ? "S" : ""
-                                ));
-                        UserLogMessage.sendE(mContext,
-                                String.format("t+%s f: %s o: %s x: %s",
-                                        i,
-                                        factor,
-                                        FormatKit.getInstance().formatAsDecimal(offsetAvg, 2),
-                                        FormatKit.getInstance().formatAsDecimal(x, 2)
-                                ));
-                    }
-
+                if (optUserlog && finalEstimate > 0
+                        && System.currentTimeMillis() - record.getEventDate().getTime() < 20 * 60000L) {
+
+                    UserLogMessage.sendN(mContext, UserLogMessage.TYPE.ESTIMATE,
+                            String.format("{id;%s} {sgv;%s} {id;%s} {time.sgv;%s}",
+                                    R.string.ul_poll__estimated_sgv,
+                                    finalEstimate,
+                                    R.string.ul_poll__reading_time__at,
+                                    record.getEventDate().getTime()
+                            ));
+                    UserLogMessage.sendE(mContext, UserLogMessage.TYPE.ESTIMATE,
+                            String.format("{id;%s} {sgv;%s} {id;%s} {time.sgv.e;%s}",
+                                    R.string.ul_poll__estimated_sgv,
+                                    finalEstimate,
+                                    R.string.ul_poll__reading_time__at,
+                                    record.getEventDate().getTime()
+                            ));
+
+                    UserLogMessage.sendE(mContext,
+                            String.format("isig: %s vctr: %s roc: %s s: %s/%s %s%s%s%s%s",
+                                    record.getIsig(),
+                                    record.getVctr(),
+                                    record.getRateOfChange(),
+                                    record.getSensorStatus(),
+                                    record.getReadingStatus(),
+                                    record.isNoisyData() ? "N" : "",
+                                    record.isDiscardData() ? "D" : "",
+                                    record.isSensorError() ? "E" : "",
+                                    record.isBackfilledData() ? "B" : "",
+                                    record.isSettingsChanged() ? "S" : ""
+                            ));
+                    UserLogMessage.sendE(mContext,
+                            String.format("t+%s f: %s o: %s x: %s",
+                                    step,
+                                    factor,
+                                    FormatKit.getInstance().formatAsDecimal(offsetAvg, 2),
+                                    FormatKit.getInstance().formatAsDecimal(x, 2)
+                            ));
                 }
 
             }
 
-            return false;
+            step++;
+        }
+
+        // start of a calibration period
+        private void reset(PumpHistoryBG cal) {
+            factor = cal.getCalibrationFactor();
+            target = cal.getCalibrationTarget();
+            x = 0;
+            offsetCount = 1;
+            offsetAvg = OFFSET;
+            offsetSum = OFFSET;
+            step = 0;
         }
 
     }
@@ -1415,8 +1667,9 @@ public class PumpHistoryHandler {
         private int period;
         private double gain;
         private double average;
-        private List<Double> isig = new ArrayList();
-        private List<Double> delta = new ArrayList();
+        private double[] isig = new double[IsigWindow.SIZE];
+        private double[] delta = new double[IsigWindow.SIZE];
+        private int size;
         private DecimalFormat df;
 
         public IsigReport() {
@@ -1428,49 +1681,23 @@ public class PumpHistoryHandler {
         }
 
         public void readIsig(int max) {
-            Date limit = new Date(System.currentTimeMillis() - 24 * 60 * 60000L);
+            IsigWindow window = IsigWindow.getInstance();
+            window.update(historyRealm);
 
-            // limit isig to current sensor
-            RealmResults<PumpHistoryMisc> miscResults = historyRealm
-                    .where(PumpHistoryMisc.class)
-                    .equalTo("recordtype", PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR.value())
-                    .sort("eventDate", Sort.DESCENDING)
-                    .findAll();
-            if (miscResults.size() > 0) {
-                sensorDate = miscResults.first().getEventDate();
-                limit = sensorDate;
-            }
+            sensorDate = window.getSensorDate();
+            eventDate = window.getEventDate();
+            size = window.copy(isig, delta, max);
 
-            RealmResults<PumpHistoryCGM> cgmResults = historyRealm
-                    .where(PumpHistoryCGM.class)
-                    .greaterThanOrEqualTo("eventDate", limit)
-                    .equalTo("history", true)
-                    .sort("eventDate", Sort.DESCENDING)
-                    .findAll();
-            if (cgmResults.size() > 0) {
-                eventDate = cgmResults.first().getEventDate();
-                int cgmRTC = cgmResults.first().getCgmRTC() - 60;
-                int pos = 0;
-                int loc = 0;
-                while (pos < max && pos < cgmResults.size()) {
-                    if (cgmResults.get(pos).getCgmRTC() > cgmRTC - (pos * 300)) {
-                        isig.add(cgmResults.get(pos).getIsig());
-                        delta.add(0.0);
-                        if (loc > 0) delta.set(loc - 1, isig.get(loc - 1) - isig.get(loc));
-                        loc++;
-                    }
-                    pos++;
-                }
-            } else {
+            if (eventDate == null) {
                 // no current cgm event, set the event date to now
                 eventDate = new Date(System.currentTimeMillis());
             }
         }
 
         public void logcat() {
-            for (int i = 0; i < isig.size(); i++) {
+            for (int i = 0; i < size; i++) {
                 Log.d(TAG, String.format("(%s) isig: %s delta %s",
-                        i, df.format(isig.get(i)), df.format(delta.get(i))));
+                        i, df.format(isig[i]), df.format(delta[i])));
             }
         }
 
@@ -1479,47 +1706,19 @@ public class PumpHistoryHandler {
         }
 
         public int getIsigSize() {
-            return isig.size();
+            return size;
         }
 
         public void calcGain(int minutes, double k) {
-
-            // Kalman Filter
-            // X = K * Z + (1 - K) * X1
-            // X = current estimation
-            // X1 = previous estimation
-            // Z = current measurement
-            // K = Kalman gain
-
-            double z = 0;
-            double x = 0;
-            double x1 = 0;
-            double p;
-            double p1 = 0;
-            double sum = 0;
-
-            period = (minutes / 5);
-            if (isig.size() < period) period = isig.size();
-            period--;
-
-            if (period > 0) {
-                StringBuilder log = new StringBuilder();
-                for (int i = 0; i <= period; i++) {
-                    p = isig.get(period - i);
-                    if (i >= 1) z = p - p1;
-                    if (i >= 2) x = (k * z) + (1 - k) * x1;
-                    else x = z;
-                    p1 = p;
-                    x1 = x;
-                    sum = sum + z;
-                    log.append(String.format("%s=%s %s (%s) ",
-                            i, df.format(x), df.format(p), df.format(z)
-                    ));
-                }
-                gain = x;
-                average = sum / period;
-                Log.d(TAG, String.format("calcGain: minutes: %s gain: %s average: %s calc: %s",
-                        (period + 1) * 5, df.format(gain), df.format(average), log.toString()));
+            IsigWindow window = IsigWindow.getInstance();
+            synchronized (window) {
+                boolean calc = window.gain(minutes, k);
+                period = window.getPeriod();
+                gain = window.getGain();
+                average = window.getAverage();
+                if (calc && period > 0)
+                    Log.d(TAG, String.format("calcGain: minutes: %s gain: %s average: %s",
+                            (period + 1) * 5, df.format(gain), df.format(average)));
             }
         }
 
@@ -1529,19 +1728,19 @@ public class PumpHistoryHandler {
         }
 
         public String formatIsig(int pos) {
-            return isig.size() > pos ? df.format(isig.get(pos)) : "";
+            return size > pos ? df.format(isig[pos]) : "";
         }
 
         public String formatIsig(int pos, String s) {
-            if (isig.size() > pos) {
+            if (size > pos) {
                 if (s.length() > 0) s = s + " ";
-                s = s + df.format(isig.get(pos));
+                s = s + df.format(isig[pos]);
             }
             return s;
         }
 
         public String formatDelta(int pos) {
-            return delta.size() > pos ? df.format(delta.get(pos)) : "";
+            return size > pos ? df.format(delta[pos]) : "";
         }
 
         public String formatGain() {
@@ -1549,15 +1748,15 @@ public class PumpHistoryHandler {
         }
 
         public String formatROC5min() {
-            return df.format(delta.size() > 0 ? delta.get(0) : 0);
+            return df.format(size > 0 ? delta[0] : 0);
         }
 
         public String formatROC10min() {
-            return df.format((delta.size() > 0 ? delta.get(0) : 0)
-                    + (delta.size() > 1 ? delta.get(1) : 0));
+            return df.format((size > 0 ? delta[0] : 0)
+                    + (size > 1 ? delta[1] : 0));
         }
         public String formatStability() {
-            if (isig.size() < 3) return "";
+            if (size < 3) return "";
             if (Math.abs(gain) >= 2) return FormatKit.getInstance().getString(R.string.ul_isig__unstable);
             if (gain >= 0.8) return FormatKit.getInstance().getString(R.string.ul_isig__rising_fast);
             if (gain >= 0.3) return FormatKit.getInstance().getString(R.string.ul_isig__rising);
@@ -1576,7 +1775,7 @@ public class PumpHistoryHandler {
         }
 
         public String formatStabilityAsSymbol() {
-            if (isig.size() < 3) return "";
+            if (size < 3) return "";
             if (Math.abs(gain) >= 2) return "+-";
             if (gain >= 0.8) return "++";
             if (gain >= 0.3) return "+";
@@ -1935,34 +2134,73 @@ public class PumpHistoryHandler {
                     String.format("{id;%s}: {id;%s}\n   {time.hist.e;%s} - {time.hist.e;%s}",
                             userlogTAG, R.string.ul_history__requested, start, end));
 
+            // for efficiency limit the parse time range
+            // the pump sends large periods of data and for recent cgm backfill or automode microbolus updates,
+            // these can have a lot of already processed items that would otherwise need to be checked and discarded
+            long parseFrom = 0;
+            if (segment.get(0).getFromDate().getTime() == segment.get(0).getToDate().getTime()
+                    && segment.get(1).getFromDate().getTime() != segment.get(1).getToDate().getTime())
+                parseFrom = segment.get(1).getToDate().getTime() - 30 * 60000L;
+
+            // the parser is opened before the pump responds so it uses the RTC range the reader will set on the response,
+            // this is the request after it has been limited to the pump RTC range, null when there is nothing to request
+            int[] request = cnlReader.historyRequestRTC(start, end);
+            int parseFromRTC = request == null ? 1 : parseFrom == 0 ? request[0] : Math.max(request[0], cnlReader.historyRTC(parseFrom));
+            int parseToRTC = request == null ? 0 : request[1];
+
+            // history blocks are parsed as they arrive while the rest of the transfer is still in progress
+            PumpHistoryParser parser = new PumpHistoryParser();
+            parser.open(
+                    pumpHistorySender,
+                    cnlReader.getPumpSession().getPumpMAC(),
+                    cnlReader.getSessionRTC(),
+                    cnlReader.getSessionOFFSET(),
+                    cnlReader.getSessionClockDifference(),
+                    parseFrom,
+                    0,
+                    parseFromRTC,
+                    parseToRTC);
+
+            // history already received for the newest/oldest parts of the request is replayed from the cache
+            HistoryBlockCache blockCache = new HistoryBlockCache(cnlReader.getPumpSession().getPumpMAC(), historyType);
+            int[] pull = request == null ? null : blockCache.missing(request[0], request[1]);
+
             Date[] range;
-            ReadHistoryResponseMessage response = cnlReader.getHistory(start, end, historyType);
-            if (response == null) {
+            ReadHistoryResponseMessage response = null;
+            int cached = 0;
+            boolean received = false;
+            try {
+                // events are parsed oldest first, cached ranges older than the pull are replayed before it and newer ranges after it
+                cached = blockCache.replay(parser, false);
+                if (pull != null) {
+                    // received data is stored as it is parsed and kept when the parse completes without error
+                    parser.cache(blockCache);
+                    long timer = System.currentTimeMillis();
+                    response = cnlReader.getHistory(cnlReader.historyTime(pull[0]), cnlReader.historyTime(pull[1]), historyType, parser);
+                    statPoll.latency(StatPoll.PHASE.HISTORY_TRANSFER, System.currentTimeMillis() - timer);
+                    parser.cacheEnd();
+                }
+                cached += blockCache.replay(parser, true);
+                received = true;
+            } catch (UnexpectedMessageException | IllegalStateException e) {
+                // the transfer is stopped when the parser fails, report the parser failure instead
+                parser.abort();
+                parser.check();
+                throw e;
+            } finally {
+                if (!received) parser.abort();
+            }
+
+            if (response == null && cached == 0) {
+                parser.abort();
                 // no history data for period, will update the segment data using the requested start/end dates
                 range = new Date[] {new Date(start), new Date(end)};
             } else {
-
-                // for efficiency limit the parse time range
-                // the pump sends large periods of data and for recent cgm backfill or automode microbolus updates,
-                // these can have a lot of already processed items that would otherwise need to be checked and discarded
-                long parseFrom = 0;
-                if (segment.get(0).getFromDate().getTime() == segment.get(0).getToDate().getTime()
-                        && segment.get(1).getFromDate().getTime() != segment.get(1).getToDate().getTime())
-                    parseFrom = segment.get(1).getToDate().getTime() - 30 * 60000L;
-
                 long timer = System.currentTimeMillis();
-                range = new PumpHistoryParser(response.getEventData()).process(
-                        pumpHistorySender,
-                        cnlReader.getPumpSession().getPumpMAC(),
-                        cnlReader.getSessionRTC(),
-                        cnlReader.getSessionOFFSET(),
-                        cnlReader.getSessionClockDifference(),
-                        response.getReqStartTime(),
-                        response.getReqEndTime(),
-                        parseFrom,
-                        0);
+                range = parser.close();
                 timer = System.currentTimeMillis() - timer;
-                Log.d(TAG, logTAG + " parser processing took " + timer + "ms");
+                statPoll.latency(StatPoll.PHASE.HISTORY_PARSE, timer);
+                Log.d(TAG, logTAG + " parser processing after transfer took " + timer + "ms");
             }
 
             Log.d(TAG, String.format("%s received: %s - %s", logTAG,
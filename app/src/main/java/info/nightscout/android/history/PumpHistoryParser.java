@@ -5,9 +5,17 @@ import android.util.Log;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import info.nightscout.android.R;
 import info.nightscout.android.UploaderApplication;
@@ -26,7 +34,9 @@ import info.nightscout.android.model.medtronicNg.PumpHistoryPattern;
 import info.nightscout.android.model.medtronicNg.PumpHistorySystem;
 import info.nightscout.android.utils.HexDump;
 import info.nightscout.android.utils.FormatKit;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
+import io.realm.RealmConfiguration;
 
 import static info.nightscout.android.utils.ToolKit.read8toUInt;
 import static info.nightscout.android.utils.ToolKit.read32BEtoInt;
@@ -46,6 +56,7 @@ public class PumpHistoryParser {
     private PumpHistorySender pumpHistorySender;
 
     private Realm historyRealm;
+    private RealmConfiguration historyConfiguration = UploaderApplication.getHistoryConfiguration();
 
     private byte[] eventData;
 
@@ -55,11 +66,17 @@ public class PumpHistoryParser {
     private long eventNewest;
     private int eventRTC;
     private int eventOFFSET;
-    private Date eventDate;
+    private long eventMillis;
+    private Date eventDate; // allocated on first use, see eventDate()
 
+    private int eventLength;
+    private long[] eventReadings;
     private int index;
     private int event;
 
+    private long parseFrom;
+    private long parseTo;
+
     private long pumpMAC;
     private int pumpRTC;
     private int pumpOFFSET;
@@ -68,12 +85,66 @@ public class PumpHistoryParser {
 
     private IntegrityException integrityException;
 
+    // existing records for the parse, bounded to the requested rtc range or the decoded events
+    private HistoryRecordCache recordCache;
+    private int cacheFromRTC;
+    private int cacheToRTC;
+    private static final int CACHE_MARGIN_RTC = 6 * 60 * 60; // pump sends whole blocks either side of the request
+
+    private static final int DECODE_PARALLEL_MIN = 512; // events needed before decoding in parallel
+    private static final int DECODE_THREADS_MAX = 4;
+    private static final long DECODE_THREAD_KEEPALIVE_SECONDS = 30;
+
+    // decode executor shared by all parsers, idle threads time out between parses
+    private static class LazyHolder {
+        static final ThreadPoolExecutor decodeExecutor;
+
+        static {
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), DECODE_THREADS_MAX);
+            decodeExecutor = new ThreadPoolExecutor(threads, threads,
+                    DECODE_THREAD_KEEPALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            decodeExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static final byte[] PIPELINE_END = new byte[0];
+    private static final byte[] PIPELINE_RESYNC = new byte[0];
+    private static final byte[] PIPELINE_CACHE = new byte[0];
+    private static final byte[] PIPELINE_CACHE_END = new byte[0];
+
+    private LinkedBlockingQueue<byte[]> pipelineQueue;
+    private Thread pipelineThread;
+    private volatile boolean pipelineAbort;
+    private Exception pipelineException;
+
+    // pump data pushed between cache() and cacheEnd() is written to the block cache as it is parsed
+    private HistoryBlockCache blockCache;
+    private boolean caching;
+    private Integer cacheNewestRTC;
+
     public PumpHistoryParser(byte[] eventData) {
         this.eventData = eventData;
     }
 
     private DateFormat dateFormatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss", Locale.US);
 
+    // parse into a different history realm ie. a scratch realm when replaying history dumps
+    public PumpHistoryParser realm(RealmConfiguration historyConfiguration) {
+        this.historyConfiguration = historyConfiguration;
+        return this;
+    }
+
+    // decode stage only without any realm access, returns the number of events decoded
+    public int decode(final int pumpRTC, final int pumpOFFSET) {
+        session(0, pumpRTC, pumpOFFSET, 0, 0, 0);
+
+        eventLength = eventData.length;
+        index = 0;
+        event = 0;
+
+        return decodeEvents().length;
+    }
+
     public Date[] process(PumpHistorySender pumpHistorySender,
                           final long pumpMAC, final int pumpRTC, final int pumpOFFSET, final long pumpClockDifference,
                           long startTime, long endTime, long parseFrom, long parseTo) throws IntegrityException {
@@ -93,167 +164,550 @@ public class PumpHistoryParser {
     }
 
     private void parser(final long pumpMAC, final int pumpRTC, final int pumpOFFSET, final long pumpClockDifference, final long parseFrom, final long parseTo) throws IntegrityException {
-        historyRealm = Realm.getInstance(UploaderApplication.getHistoryConfiguration());
+        historyRealm = Realm.getInstance(historyConfiguration);
+
+        session(pumpMAC, pumpRTC, pumpOFFSET, pumpClockDifference, parseFrom, parseTo);
+
+        eventLength = eventData.length;
+        index = 0;
+        event = 0;
+
+        final DecodedEvent[] decoded = decodeEvents();
+
+        // all events are known before the apply so the cache only needs their range
+        int fromRTC = 1;
+        int toRTC = 0;
+        if (decoded.length > 0) {
+            fromRTC = toRTC = decoded[0].rtc;
+            for (DecodedEvent decodedEvent : decoded) {
+                if (decodedEvent.rtc < fromRTC) fromRTC = decodedEvent.rtc;
+                if (decodedEvent.rtc > toRTC) toRTC = decodedEvent.rtc;
+            }
+        }
+        recordCache = recordCache(historyRealm, fromRTC, toRTC);
+
+        historyRealm.executeTransaction(new Realm.Transaction() {
+            @Override
+            public void execute(@NonNull Realm realm) {
+
+                try {
+                    applyEvents(decoded);
+                } catch (IntegrityException e) {
+                    integrityException = e;
+                }
+            }
+        });
+
+        recordCache.stats();
+        recordCache = null;
+        historyRealm.close();
 
+        if (integrityException != null) throw integrityException;
+    }
+
+    private void session(final long pumpMAC, final int pumpRTC, final int pumpOFFSET, final long pumpClockDifference, final long parseFrom, final long parseTo) {
         this.pumpMAC = pumpMAC;
         this.pumpRTC = pumpRTC;
         this.pumpOFFSET = pumpOFFSET;
         this.pumpClockDifference = pumpClockDifference;
         this.pumpDRIFT = 4.0 / (24 * 60 * 60);
+        this.parseFrom = parseFrom;
+        this.parseTo = parseTo;
+    }
+
+    private HistoryRecordCache recordCache(Realm realm, int fromRTC, int toRTC) {
+        if (fromRTC > toRTC) return new HistoryRecordCache(realm, pumpMAC, fromRTC, toRTC);
+
+        // cgm readings are older than their event, keep the margin from wrapping the signed rtc value
+        int from = fromRTC - CACHE_MARGIN_RTC;
+        int to = toRTC + CACHE_MARGIN_RTC;
+        if (from > fromRTC) from = Integer.MIN_VALUE;
+        if (to < toRTC) to = Integer.MAX_VALUE;
+        return new HistoryRecordCache(realm, pumpMAC, from, to);
+    }
+
+    /*
+    Events are handled in two stages:
+    decode - the event chain is split on the event size and the headers and dates are decoded,
+             this is byte array work only and is run in parallel when there are many events
+    apply  - decoded events are applied to the history realm in their original order
+
+    The batch parser decodes all the data before its realm transaction is started, the pipelined parser
+    decodes each block before the short transaction for that block. Parallel decode only applies to
+    large batches, a pipelined block holds far fewer events than DECODE_PARALLEL_MIN.
+    */
+
+    private DecodedEvent[] decodeEvents() {
+        int[] starts = new int[eventLength / 0x0B + 1];
+        int count = 0;
+        int pos = index;
+
+        // stop at an incomplete event, in pipelined mode the remainder arrives with the next block
+        while (pos + 0x0B <= eventLength) {
+            int size = read8toUInt(eventData, pos + 0x02);
+            if (size == 0) {
+                Log.e(TAG, "zero size event at index " + pos + ", remaining history data ignored");
+                pos = eventLength;
+                break;
+            }
+            if (pos + size > eventLength) break;
+            if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = pos;
+            pos += size;
+        }
+
+        final int end = pos;
+        final int[] eventStarts = starts;
+        final DecodedEvent[] decoded = new DecodedEvent[count];
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), DECODE_THREADS_MAX);
+
+        if (count < DECODE_PARALLEL_MIN || threads < 2) {
+            decodeEvents(decoded, eventStarts, end, 0, count);
+
+        } else {
+            long timer = System.currentTimeMillis();
+
+            ThreadPoolExecutor executor = LazyHolder.decodeExecutor;
+            threads = executor.getMaximumPoolSize();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            int chunk = (count + threads - 1) / threads;
+
+            for (int from = 0; from < count; from += chunk) {
+                final int chunkFrom = from;
+                final int chunkTo = Math.min(from + chunk, count);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        decodeEvents(decoded, eventStarts, end, chunkFrom, chunkTo);
+                        return null;
+                    }
+                });
+            }
+
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                // keep the interrupt for the caller, the decode itself does not block
+                Log.w(TAG, "decode interrupted, decoding on the current thread");
+                Thread.currentThread().interrupt();
+                decodeEvents(decoded, eventStarts, end, 0, count);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new RuntimeException("Event decode failed", cause);
+            }
+
+            Log.d(TAG, String.format("decoded %s events using %s threads in %sms", count, threads, System.currentTimeMillis() - timer));
+        }
+
+        index = end;
+        return decoded;
+    }
+
+    private void decodeEvents(DecodedEvent[] decoded, int[] starts, int end, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int start = starts[i];
+            int size = (i + 1 < decoded.length ? starts[i + 1] : end) - start;
+            decoded[i] = decodeEvent(start, size);
+        }
+    }
+
+    private DecodedEvent decodeEvent(int start, int size) {
+        EventType type = EventType.convert(read8toUInt(eventData, start));
+        int rtc = read32BEtoInt(eventData, start + 0x03);
+        int offset = read32BEtoInt(eventData, start + 0x07);
+        long time = eventTime(rtc);
+
+        long[] readings = null;
+        if (type == EventType.SENSOR_GLUCOSE_READINGS_EXTENDED && inParseRange(time)) {
+            int minutesBetweenReadings = read8toUInt(eventData, start + 0x0B);
+            int numberOfReadings = read8toUInt(eventData, start + 0x0C);
+            readings = new long[numberOfReadings];
+            for (int i = 0; i < numberOfReadings; i++) {
+                readings[i] = eventTime(rtc - (i * minutesBetweenReadings * 60));
+            }
+        }
+
+        return new DecodedEvent(start, size, type, rtc, offset, time, readings);
+    }
+
+    private long eventTime(int rtc) {
+        int adjustedRTC = rtc + (int) ((double) (pumpRTC - rtc) * pumpDRIFT);
+        return MessageUtils.decodeTime((long) adjustedRTC & 0xFFFFFFFFL, (long) pumpOFFSET) - pumpClockDifference;
+    }
+
+    private boolean inParseRange(long eventTime) {
+        return (parseFrom == 0 || eventTime >= parseFrom) && (parseTo == 0 || eventTime <= parseTo);
+    }
+
+    private void applyEvents(DecodedEvent[] decoded) throws IntegrityException {
+        int end = index;
+
+        for (DecodedEvent decodedEvent : decoded) {
+
+            index = decodedEvent.index;
+            eventSize = decodedEvent.size;
+            eventType = decodedEvent.type;
+            eventRTC = decodedEvent.rtc;
+            eventOFFSET = decodedEvent.offset;
+            eventMillis = decodedEvent.time;
+            eventDate = null;
+            eventReadings = decodedEvent.readings;
+
+            if (eventMillis > eventNewest || eventNewest == 0) eventNewest = eventMillis;
+            if (eventMillis < eventOldest || eventOldest == 0) eventOldest = eventMillis;
+
+            if (inParseRange(eventMillis)) {
+
+                switch (eventType) {
+                    case SENSOR_GLUCOSE_READINGS_EXTENDED:
+                        sensorGlucoseReadingsExtended();
+                        break;
+                    case NORMAL_BOLUS_PROGRAMMED:
+                        normalBolusProgrammed();
+                        break;
+                    case NORMAL_BOLUS_DELIVERED:
+                        normalBolusDelivered();
+                        break;
+                    case SQUARE_BOLUS_PROGRAMMED:
+                        squareBolusProgrammed();
+                        break;
+                    case SQUARE_BOLUS_DELIVERED:
+                        squareBolusDelivered();
+                        break;
+                    case DUAL_BOLUS_PROGRAMMED:
+                        dualBolusProgrammed();
+                        break;
+                    case DUAL_BOLUS_PART_DELIVERED:
+                        dualBolusPartDelivered();
+                        break;
+                    case BOLUS_WIZARD_ESTIMATE:
+                        bolusWizardEstimate();
+                        break;
+                    case MEAL_WIZARD_ESTIMATE:
+                        mealWizardEstimate();
+                        break;
+                    case TEMP_BASAL_PROGRAMMED:
+                        tempBasalProgrammed();
+                        break;
+                    case TEMP_BASAL_COMPLETE:
+                        tempBasalComplete();
+                        break;
+                    case BASAL_PATTERN_SELECTED:
+                        basalPatternSelected();
+                        break;
+                    case INSULIN_DELIVERY_STOPPED:
+                        insulinDeliveryStopped();
+                        break;
+                    case INSULIN_DELIVERY_RESTARTED:
+                        insulinDeliveryRestarted();
+                        break;
+                    case BG_READING:
+                        bgReading();
+                        break;
+                    case CLOSED_LOOP_BG_READING:
+                        closedLoopBgReading();
+                        break;
+                    case CLOSED_LOOP_TRANSITION:
+                        closedLoopTransition();
+                        break;
+                    case BASAL_SEGMENT_START:
+                        basalSegmentStart();
+                        break;
+                    case CALIBRATION_COMPLETE:
+                        calibrationComplete();
+                        break;
+                    case GLUCOSE_SENSOR_CHANGE:
+                        glucoseSensorChange();
+                        break;
+                    case BATTERY_INSERTED:
+                        batteryInserted();
+                        break;
+                    case CANNULA_FILL_DELIVERED:
+                        cannulaFillDelivered();
+                        break;
+                    case FOOD_EVENT_MARKER:
+                        foodEventMarker();
+                        break;
+                    case EXERCISE_EVENT_MARKER:
+                        exerciseEventMarker();
+                        break;
+                    case INJECTION_EVENT_MARKER:
+                        injectionEventMarker();
+                        break;
+                    case OTHER_EVENT_MARKER:
+                        otherEventMarker();
+                        break;
+                    case ALARM_NOTIFICATION:
+                        alarmNotification();
+                        break;
+                    case ALARM_CLEARED:
+                        alarmCleared();
+                        break;
+                    case DAILY_TOTALS:
+                        dailyTotals();
+                        break;
+                    case CLOSED_LOOP_DAILY_TOTALS:
+                        closedLoopDailyTotals();
+                        break;
+
+                    // currently 670G temp targets are not implemented
+                    /*
+                    case CLOSED_LOOP_ALARM_AUTO_CLEARED:
+                        debugParser();
+                        break;
+                    case CLOSED_LOOP_TEMP_TARGET_STARTED:
+                        debugParser();
+                        break;
+                    case CLOSED_LOOP_TEMP_TARGET_ENDED:
+                        debugParser();
+                        break;
+                    */
+                }
+
+            }
+
+            event++;
+        }
+
+        index = end;
+    }
+
+    // events outside of the parse range and cgm readings only need the long time
+    private Date eventDate() {
+        if (eventDate == null) eventDate = new Date(eventMillis);
+        return eventDate;
+    }
+
+    private static class DecodedEvent {
+        private final int index;
+        private final int size;
+        private final EventType type;
+        private final int rtc;
+        private final int offset;
+        private final long time;
+        private final long[] readings; // sensor glucose reading times
+
+        private DecodedEvent(int index, int size, EventType type, int rtc, int offset, long time, long[] readings) {
+            this.index = index;
+            this.size = size;
+            this.type = type;
+            this.rtc = rtc;
+            this.offset = offset;
+            this.time = time;
+            this.readings = readings;
+        }
+    }
+
+    /*
+    Pipelined mode:
+    history blocks are pushed as they are received from the pump and parsed on a worker thread,
+    each block is decoded outside of a transaction and then applied in its own short history realm
+    transaction so the main process is not blocked while waiting for the radio, the parser only
+    holds the current block plus any partial event carried over from the previous block
+
+    parser.open(...)
+    parser.push(block) ... (older cached ranges replayed from the HistoryBlockCache)
+    parser.cache(blockCache)
+    parser.push(block) ... (from ReadHistoryRequestMessage)
+    parser.cacheEnd()
+    parser.push(block) ... (newer cached ranges replayed from the HistoryBlockCache)
+    range = parser.close() or parser.abort() on error
+    */
+
+    public PumpHistoryParser() {
+        this.eventData = new byte[0];
+    }
+
+    public void open(PumpHistorySender pumpHistorySender,
+                     final long pumpMAC, final int pumpRTC, final int pumpOFFSET, final long pumpClockDifference,
+                     long parseFrom, long parseTo, int requestFromRTC, int requestToRTC) {
+
+        this.pumpHistorySender = pumpHistorySender;
+
+        session(pumpMAC, pumpRTC, pumpOFFSET, pumpClockDifference, parseFrom, parseTo);
+        cacheFromRTC = requestFromRTC;
+        cacheToRTC = requestToRTC;
 
+        eventOldest = 0;
+        eventNewest = 0;
+        eventLength = 0;
         index = 0;
         event = 0;
 
-        historyRealm.executeTransaction(new Realm.Transaction() {
+        integrityException = null;
+        pipelineException = null;
+        blockCache = null;
+        pipelineQueue = new LinkedBlockingQueue<>();
+        pipelineAbort = false;
+
+        pipelineThread = new Thread(new Runnable() {
             @Override
-            public void execute(@NonNull Realm realm) {
+            public void run() {
+                pipeline();
+            }
+        });
+        pipelineThread.start();
+    }
 
-                try {
+    // add verified history data, can be any length and may split events
+    public void push(byte[] data, int offset, int length) {
+        running();
+        pipelineQueue.add(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    // history request is being resent, drop any partial event carried from the previous attempt
+    public void resync() {
+        running();
+        pipelineQueue.add(PIPELINE_RESYNC);
+    }
+
+    // data pushed from now on is received from the pump and is stored in the cache
+    public void cache(HistoryBlockCache blockCache) {
+        running();
+        this.blockCache = blockCache;
+        pipelineQueue.add(PIPELINE_CACHE);
+    }
 
-                    while (index < eventData.length) {
-
-                        eventType = EventType.convert(read8toUInt(eventData, index));
-                        eventSize = read8toUInt(eventData, index + 0x02);
-                        eventRTC = read32BEtoInt(eventData, index + 0x03);
-                        eventOFFSET = read32BEtoInt(eventData, index + 0x07);
-                        int adjustedRTC = eventRTC + (int) ((double) (pumpRTC - eventRTC) * pumpDRIFT);
-                        Date timestamp = MessageUtils.decodeDateTime((long) adjustedRTC & 0xFFFFFFFFL, (long) pumpOFFSET);
-
-                        eventDate = new Date(timestamp.getTime() - pumpClockDifference);
-
-                        long eventTime = eventDate.getTime();
-                        if (eventTime > eventNewest || eventNewest == 0) eventNewest = eventTime;
-                        if (eventTime < eventOldest || eventOldest == 0) eventOldest = eventTime;
-
-                        if ((parseFrom == 0 || eventTime >= parseFrom) && (parseTo == 0 || eventTime <= parseTo)) {
-
-                            switch (eventType) {
-                                case SENSOR_GLUCOSE_READINGS_EXTENDED:
-                                    sensorGlucoseReadingsExtended();
-                                    break;
-                                case NORMAL_BOLUS_PROGRAMMED:
-                                    normalBolusProgrammed();
-                                    break;
-                                case NORMAL_BOLUS_DELIVERED:
-                                    normalBolusDelivered();
-                                    break;
-                                case SQUARE_BOLUS_PROGRAMMED:
-                                    squareBolusProgrammed();
-                                    break;
-                                case SQUARE_BOLUS_DELIVERED:
-                                    squareBolusDelivered();
-                                    break;
-                                case DUAL_BOLUS_PROGRAMMED:
-                                    dualBolusProgrammed();
-                                    break;
-                                case DUAL_BOLUS_PART_DELIVERED:
-                                    dualBolusPartDelivered();
-                                    break;
-                                case BOLUS_WIZARD_ESTIMATE:
-                                    bolusWizardEstimate();
-                                    break;
-                                case MEAL_WIZARD_ESTIMATE:
-                                    mealWizardEstimate();
-                                    break;
-                                case TEMP_BASAL_PROGRAMMED:
-                                    tempBasalProgrammed();
-                                    break;
-                                case TEMP_BASAL_COMPLETE:
-                                    tempBasalComplete();
-                                    break;
-                                case BASAL_PATTERN_SELECTED:
-                                    basalPatternSelected();
-                                    break;
-                                case INSULIN_DELIVERY_STOPPED:
-                                    insulinDeliveryStopped();
-                                    break;
-                                case INSULIN_DELIVERY_RESTARTED:
-                                    insulinDeliveryRestarted();
-                                    break;
-                                case BG_READING:
-                                    bgReading();
-                                    break;
-                                case CLOSED_LOOP_BG_READING:
-                                    closedLoopBgReading();
-                                    break;
-                                case CLOSED_LOOP_TRANSITION:
-                                    closedLoopTransition();
-                                    break;
-                                case BASAL_SEGMENT_START:
-                                    basalSegmentStart();
-                                    break;
-                                case CALIBRATION_COMPLETE:
-                                    calibrationComplete();
-                                    break;
-                                case GLUCOSE_SENSOR_CHANGE:
-                                    glucoseSensorChange();
-                                    break;
-                                case BATTERY_INSERTED:
-                                    batteryInserted();
-                                    break;
-                                case CANNULA_FILL_DELIVERED:
-                                    cannulaFillDelivered();
-                                    break;
-                                case FOOD_EVENT_MARKER:
-                                    foodEventMarker();
-                                    break;
-                                case EXERCISE_EVENT_MARKER:
-                                    exerciseEventMarker();
-                                    break;
-                                case INJECTION_EVENT_MARKER:
-                                    injectionEventMarker();
-                                    break;
-                                case OTHER_EVENT_MARKER:
-                                    otherEventMarker();
-                                    break;
-                                case ALARM_NOTIFICATION:
-                                    alarmNotification();
-                                    break;
-                                case ALARM_CLEARED:
-                                    alarmCleared();
-                                    break;
-                                case DAILY_TOTALS:
-                                    dailyTotals();
-                                    break;
-                                case CLOSED_LOOP_DAILY_TOTALS:
-                                    closedLoopDailyTotals();
-                                    break;
-
-                                // currently 670G temp targets are not implemented
-                                /*
-                                case CLOSED_LOOP_ALARM_AUTO_CLEARED:
-                                    debugParser();
-                                    break;
-                                case CLOSED_LOOP_TEMP_TARGET_STARTED:
-                                    debugParser();
-                                    break;
-                                case CLOSED_LOOP_TEMP_TARGET_ENDED:
-                                    debugParser();
-                                    break;
-                                */
-                            }
-
-                        }
-
-                        event++;
-                        index += eventSize;
+    // pump data has been received, the range is stored if everything up to here parsed without error
+    public void cacheEnd() {
+        running();
+        pipelineQueue.add(PIPELINE_CACHE_END);
+    }
+
+    // fail fast when the worker has stopped so the transfer is not continued for nothing
+    private void running() {
+        if (pipelineThread == null || !pipelineThread.isAlive()) {
+            Throwable cause = integrityException != null ? integrityException : pipelineException;
+            throw new IllegalStateException("Pipelined parser has stopped", cause);
+        }
+    }
+
+    // rethrow the worker failure if there was one, call after close or abort
+    public void check() throws IntegrityException {
+        if (integrityException != null) throw integrityException;
+        if (pipelineException instanceof RuntimeException) throw (RuntimeException) pipelineException;
+        if (pipelineException != null) throw new RuntimeException("Pipelined parser failed", pipelineException);
+    }
+
+    // wait for all pushed data to be parsed and committed
+    public Date[] close() throws IntegrityException {
+        pipelineEnd();
+        check();
+
+        if (index < eventLength)
+            Log.w(TAG, "pipeline: incomplete event at end of history data, " + (eventLength - index) + " bytes discarded");
+
+        // event date range returned by pump as it is usually more then requested
+        return new Date[]{eventOldest == 0 ? null : new Date(eventOldest), eventNewest == 0 ? null : new Date(eventNewest)};
+    }
+
+    // stop parsing, blocks already applied are kept and will be found as existing records on the next pull
+    public void abort() {
+        pipelineAbort = true;
+        pipelineEnd();
+    }
+
+    private void pipelineEnd() {
+        if (pipelineThread == null) return;
+        pipelineQueue.add(PIPELINE_END);
+        try {
+            pipelineThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "pipeline: interrupted waiting for parser");
+            pipelineAbort = true;
+        }
+        pipelineThread = null;
+    }
+
+    private void pipeline() {
+        historyRealm = Realm.getInstance(historyConfiguration);
+        recordCache = recordCache(historyRealm, cacheFromRTC, cacheToRTC);
+        caching = false;
+
+        try {
+
+            while (true) {
+                byte[] data = pipelineQueue.take();
+                if (data == PIPELINE_END || pipelineAbort) break;
+
+                if (data == PIPELINE_CACHE || data == PIPELINE_RESYNC && caching) {
+                    caching = true;
+                    cacheNewestRTC = null;
+                    blockCache.begin();
+                }
+
+                if (data == PIPELINE_CACHE_END && caching) cacheEnd(false);
+
+                if (data == PIPELINE_CACHE || data == PIPELINE_RESYNC || data == PIPELINE_CACHE_END) {
+                    eventLength = 0;
+                    index = 0;
+                    continue;
+                }
+
+                if (caching) blockCache.write(data);
+
+                // join the partial event from the previous block with the new data
+                int remainder = eventLength - index;
+                byte[] buffer = new byte[remainder + data.length];
+                System.arraycopy(eventData, index, buffer, 0, remainder);
+                System.arraycopy(data, 0, buffer, remainder, data.length);
+                eventData = buffer;
+                eventLength = buffer.length;
+                index = 0;
+
+                DecodedEvent[] decoded = decodeEvents();
+                if (decoded.length == 0) continue;
+
+                if (caching) {
+                    for (DecodedEvent decodedEvent : decoded) {
+                        if (cacheNewestRTC == null || decodedEvent.rtc > cacheNewestRTC)
+                            cacheNewestRTC = decodedEvent.rtc;
                     }
+                }
 
+                historyRealm.beginTransaction();
+                try {
+                    applyEvents(decoded);
+                    historyRealm.commitTransaction();
                 } catch (IntegrityException e) {
-                    integrityException = e;
+                    // as with the single pass parser an integrity failure keeps the events processed until then
+                    historyRealm.commitTransaction();
+                    throw e;
+                } finally {
+                    if (historyRealm.isInTransaction()) historyRealm.cancelTransaction();
                 }
             }
-        });
 
+        } catch (IntegrityException e) {
+            integrityException = e;
+        } catch (Exception e) {
+            Log.e(TAG, "pipeline: parser error", e);
+            pipelineException = e;
+        }
+
+        if (caching) cacheEnd(pipelineAbort || integrityException != null || pipelineException != null);
+
+        recordCache.stats();
+        recordCache = null;
         historyRealm.close();
+    }
 
-        if (integrityException != null) throw integrityException;
+    // only a clean parse is stored, data that failed to parse must be pulled from the pump again
+    private void cacheEnd(boolean failed) {
+        if (failed) blockCache.discard();
+        else blockCache.complete(cacheNewestRTC);
+        caching = false;
     }
 
     private void debugParser() {
         PumpHistorySystem.debugParser(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 eventType, eventData, eventSize, index);
     }
 
@@ -289,13 +743,11 @@ public class PumpHistoryParser {
             }
 
             int thisRTC = eventRTC - (i * minutesBetweenReadings * 60);
-            int adjustedRTC = thisRTC + (int) ((double) (pumpRTC - thisRTC) * pumpDRIFT);
-            Date timestamp = MessageUtils.decodeDateTime((long) adjustedRTC & 0xFFFFFFFFL, (long) pumpOFFSET);
-            Date thisDate = new Date(timestamp.getTime() - pumpClockDifference);
+            long thisTime = eventReadings[i];
 
             PumpHistoryCGM.cgmFromHistory(
-                    pumpHistorySender, historyRealm, pumpMAC,
-                    thisDate, thisRTC, eventOFFSET,
+                    pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                    thisTime, thisRTC, eventOFFSET,
                     sgv,
                     isig,
                     vctr,
@@ -311,9 +763,8 @@ public class PumpHistoryParser {
 
             pos += 9;
 
-            long eventTime = thisDate.getTime();
-            if (eventTime > eventNewest || eventNewest == 0) eventNewest = eventTime;
-            if (eventTime < eventOldest || eventOldest == 0) eventOldest = eventTime;
+            if (thisTime > eventNewest || eventNewest == 0) eventNewest = thisTime;
+            if (thisTime < eventOldest || eventOldest == 0) eventOldest = thisTime;
         }
     }
 
@@ -325,7 +776,7 @@ public class PumpHistoryParser {
         double activeInsulin = read32BEtoInt(eventData, index + 0x12) / 10000.0;
         PumpHistoryBolus.bolus(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 BOLUS_TYPE.NORMAL_BOLUS.value(), true, false, false,
                 bolusRef,
                 bolusSource,
@@ -346,14 +797,14 @@ public class PumpHistoryParser {
 
         if(bolusSource == BOLUS_SOURCE.CLOSED_LOOP_MICRO_BOLUS.value) {
             PumpHistoryLoop.microbolus(
-                    pumpHistorySender, historyRealm, pumpMAC,
-                    eventDate, eventRTC, eventOFFSET,
+                    pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                    eventDate(), eventRTC, eventOFFSET,
                     bolusRef,
                     normalDeliveredAmount);
         } else {
             PumpHistoryBolus.bolus(
                     pumpHistorySender, historyRealm, pumpMAC,
-                    eventDate, eventRTC, eventOFFSET,
+                    eventDate(), eventRTC, eventOFFSET,
                     BOLUS_TYPE.NORMAL_BOLUS.value(), false, true, false,
                     bolusRef,
                     bolusSource,
@@ -373,7 +824,7 @@ public class PumpHistoryParser {
         int squareProgrammedDuration = read16BEtoUInt(eventData, index + 0x12);
         double activeInsulin = read32BEtoInt(eventData, index + 0x14) / 10000.0;
         PumpHistoryBolus.bolus(pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 BOLUS_TYPE.SQUARE_WAVE.value(), true, false, false,
                 bolusRef,
                 bolusSource,
@@ -395,7 +846,7 @@ public class PumpHistoryParser {
         double activeInsulin = read32BEtoInt(eventData, index + 0x1A) / 10000.0;
         PumpHistoryBolus.bolus(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 BOLUS_TYPE.SQUARE_WAVE.value(), false, false, true,
                 bolusRef,
                 bolusSource,
@@ -416,7 +867,7 @@ public class PumpHistoryParser {
         double activeInsulin = read32BEtoInt(eventData, index + 0x18) / 10000.0;
         PumpHistoryBolus.bolus(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 BOLUS_TYPE.DUAL_WAVE.value(), true, false, false,
                 bolusRef,
                 bolusSource,
@@ -440,7 +891,7 @@ public class PumpHistoryParser {
         double activeInsulin = read32BEtoInt(eventData, index + 0x1F) / 10000.0;
         PumpHistoryBolus.bolus(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 BOLUS_TYPE.DUAL_WAVE.value(), false, bolusPart == 1, bolusPart == 2,
                 bolusRef,
                 bolusSource,
@@ -470,7 +921,7 @@ public class PumpHistoryParser {
         double finalEstimate = read32BEtoInt(eventData, index + 0x31) / 10000.0;
         PumpHistoryBolus.bolusWizardEstimate(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 bgUnits,
                 carbUnits,
                 bgInput,
@@ -502,7 +953,7 @@ public class PumpHistoryParser {
 
         PumpHistoryBolus.bolusWizardEstimate(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 bgUnits,
                 carbUnits,
                 bgInput,
@@ -528,8 +979,8 @@ public class PumpHistoryParser {
         int percentageOfRate = read8toUInt(eventData, index + 0x11);
         int duration = read16BEtoUInt(eventData, index + 0x12);
         PumpHistoryBasal.programmed(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 preset,
                 type,
                 rate,
@@ -545,8 +996,8 @@ public class PumpHistoryParser {
         int duration = read16BEtoUInt(eventData, index + 0x12);
         boolean canceled = (eventData[index + 0x14] & 1) == 1;
         PumpHistoryBasal.completed(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 preset,
                 type,
                 rate,
@@ -559,8 +1010,8 @@ public class PumpHistoryParser {
         byte oldPatternNumber = eventData[index + 0x0B];
         byte newPatternNumber = eventData[index + 0x0C];
         PumpHistoryPattern.pattern(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 oldPatternNumber,
                 newPatternNumber);
     }
@@ -568,16 +1019,16 @@ public class PumpHistoryParser {
     private void insulinDeliveryStopped() {
         byte reason = eventData[index + 0x0B];
         PumpHistoryBasal.suspend(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 reason);
     }
 
     private void insulinDeliveryRestarted() {
         byte reason = eventData[index + 0x0B];
         PumpHistoryBasal.resume(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 reason);
     }
 
@@ -592,7 +1043,7 @@ public class PumpHistoryParser {
         String serial = new StringBuffer(readString(eventData, index + 0x0F, eventSize - 0x0F)).reverse().toString();
         PumpHistoryBG.bg(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 calibrationFlag,
                 bg,
                 bgUnits,
@@ -608,7 +1059,7 @@ public class PumpHistoryParser {
         boolean calibrationFlag = BG_CONTEXT.BG_SENT_FOR_CALIB.equals(bgContext) || BG_CONTEXT.ENTERED_IN_SENSOR_CALIB.equals(bgContext);
         PumpHistoryBG.bg(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 calibrationFlag,
                 bg,
                 bgUnits,
@@ -621,8 +1072,8 @@ public class PumpHistoryParser {
         byte transitionValue = eventData[index + 0x0B];
         byte transitionReason = eventData[index + 0x0C];
         PumpHistoryLoop.transition(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 transitionValue,
                 transitionReason);
     }
@@ -632,8 +1083,8 @@ public class PumpHistoryParser {
         byte segment = eventData[index + 0x0C];
         double rate = read32BEtoInt(eventData, index + 0x0D) / 10000.0;
         PumpHistoryLoop.basal(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 pattern);
     }
 
@@ -642,29 +1093,29 @@ public class PumpHistoryParser {
         int bgTarget = read16BEtoUInt(eventData, index + 0xD);
         PumpHistoryBG.calibration(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 calFactor,
                 bgTarget);
     }
 
     private void glucoseSensorChange() {
         PumpHistoryMisc.sensor(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMisc.RECORDTYPE.CHANGE_SENSOR);
     }
 
     private void batteryInserted() {
         PumpHistoryMisc.item(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMisc.RECORDTYPE.CHANGE_BATTERY);
     }
 
     private void rewind() {
         PumpHistoryMisc.item(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMisc.RECORDTYPE.CHANGE_CANNULA);
     }
 
@@ -673,8 +1124,8 @@ public class PumpHistoryParser {
         double delivered = read32BEtoInt(eventData, index + 0x0C) / 10000.0;
         double remaining = read32BEtoInt(eventData, index + 0x10) / 10000.0;
         PumpHistoryMisc.cannula(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 type,
                 delivered,
                 remaining);
@@ -684,8 +1135,8 @@ public class PumpHistoryParser {
         byte carbUnits = eventData[index + 0x0B + 0x08];
         double carbInput = read16BEtoUInt(eventData, index + +0x0B + 0x09) / (CARB_UNITS.EXCHANGES.equals(carbUnits) ? 10.0 : 1.0);
         PumpHistoryMarker.marker(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMarker.RECORDTYPE.FOOD,
                 0,
                 carbUnits,
@@ -696,8 +1147,8 @@ public class PumpHistoryParser {
     private void exerciseEventMarker() {
         int duration = read16BEtoUInt(eventData, index + 0x0B + 0x08);
         PumpHistoryMarker.marker(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMarker.RECORDTYPE.EXERCISE,
                 duration,
                 (byte) 0,
@@ -708,8 +1159,8 @@ public class PumpHistoryParser {
     private void injectionEventMarker() {
         double insulin = read32BEtoInt(eventData, index + 0x0B + 0x08) / 10000.0;
         PumpHistoryMarker.marker(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMarker.RECORDTYPE.EXERCISE,
                 0,
                 (byte) 0,
@@ -719,8 +1170,8 @@ public class PumpHistoryParser {
 
     private void otherEventMarker() {
         PumpHistoryMarker.marker(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryMarker.RECORDTYPE.OTHER,
                 0,
                 (byte) 0,
@@ -737,7 +1188,7 @@ public class PumpHistoryParser {
         if (extraData) alarmData = Arrays.copyOfRange(eventData,index + 0x13,index + 0x1B);
         PumpHistoryAlarm.alarm(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 faultNumber,
                 notificationMode,
                 alarmHistory,
@@ -749,7 +1200,7 @@ public class PumpHistoryParser {
         int faultNumber = read16BEtoInt(eventData, index + 0x0B);
         PumpHistoryAlarm.cleared(
                 pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                eventDate(), eventRTC, eventOFFSET,
                 faultNumber);
     }
 
@@ -816,8 +1267,8 @@ public class PumpHistoryParser {
         Date endDate = new Date(endTimestamp.getTime() - pumpClockDifference);
 
         PumpHistoryDaily.dailyTotals(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryDaily.TYPE.DAILY_TOTALS.value(),
                 startDate,
                 endDate,
@@ -956,8 +1407,8 @@ public class PumpHistoryParser {
         double totalManualBolusInsulin = Math.abs(dailyTotalBolusInsulinDelivered - totalBWIFoodOnlyBolus - totalBWICorrectionOnlyBolus - totalBWIFoodCorrectionBolus - totalOfMealWizardInsulinDeliveredFoodOnlyBolus - totalOfMealWizardInsulinDeliveredCorrectionOnlyBolus - totalOfMealWizardInsulinDeliveredFoodCorrectionBolus);
 
         PumpHistoryDaily.dailyTotals(
-                pumpHistorySender, historyRealm, pumpMAC,
-                eventDate, eventRTC, eventOFFSET,
+                pumpHistorySender, historyRealm, recordCache, pumpMAC,
+                eventDate(), eventRTC, eventOFFSET,
                 PumpHistoryDaily.TYPE.CLOSED_LOOP_DAILY_TOTALS.value(),
                 startDate,
                 endDate,
@@ -1715,10 +2166,15 @@ public class PumpHistoryParser {
             this.event = event;
         }
 
+        private static final EnumTable<EventType> TABLE = new EnumTable<>(values(), NO_TYPE, new EnumTable.Key<EventType>() {
+            @Override
+            public int key(EventType eventType) {
+                return eventType.event;
+            }
+        });
+
         public static EventType convert(int value) {
-            for (EventType eventType : EventType.values())
-                if (eventType.event == value) return eventType;
-            return EventType.NO_TYPE;
+            return TABLE.get(value);
         }
     }
 
@@ -1800,10 +2256,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<CGM_EXCEPTION> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<CGM_EXCEPTION>() {
+            @Override
+            public int key(CGM_EXCEPTION cgm_exception) {
+                return cgm_exception.value;
+            }
+        });
+
         public static CGM_EXCEPTION convert(int value) {
-            for (CGM_EXCEPTION cgm_exception : CGM_EXCEPTION.values())
-                if (cgm_exception.value == value) return cgm_exception;
-            return CGM_EXCEPTION.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -1843,10 +2304,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<SUSPEND_REASON> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<SUSPEND_REASON>() {
+            @Override
+            public int key(SUSPEND_REASON suspend_reason) {
+                return suspend_reason.value;
+            }
+        });
+
         public static SUSPEND_REASON convert(int value) {
-            for (SUSPEND_REASON suspend_reason : SUSPEND_REASON.values())
-                if (suspend_reason.value == value) return suspend_reason;
-            return SUSPEND_REASON.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -1886,10 +2352,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<RESUME_REASON> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<RESUME_REASON>() {
+            @Override
+            public int key(RESUME_REASON resume_reason) {
+                return resume_reason.value;
+            }
+        });
+
         public static RESUME_REASON convert(int value) {
-            for (RESUME_REASON resume_reason : RESUME_REASON.values())
-                if (resume_reason.value == value) return resume_reason;
-            return RESUME_REASON.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -1918,10 +2389,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BOLUS_SOURCE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BOLUS_SOURCE>() {
+            @Override
+            public int key(BOLUS_SOURCE bolus_source) {
+                return bolus_source.value;
+            }
+        });
+
         public static BOLUS_SOURCE convert(int value) {
-            for (BOLUS_SOURCE bolus_source : BOLUS_SOURCE.values())
-                if (bolus_source.value == value) return bolus_source;
-            return BOLUS_SOURCE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -1946,10 +2422,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BG_SOURCE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BG_SOURCE>() {
+            @Override
+            public int key(BG_SOURCE bg_source) {
+                return bg_source.value;
+            }
+        });
+
         public static BG_SOURCE convert(int value) {
-            for (BG_SOURCE bg_source : BG_SOURCE.values())
-                if (bg_source.value == value) return bg_source;
-            return BG_SOURCE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -1983,10 +2464,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BG_CONTEXT> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BG_CONTEXT>() {
+            @Override
+            public int key(BG_CONTEXT bg_context) {
+                return bg_context.value;
+            }
+        });
+
         public static BG_CONTEXT convert(int value) {
-            for (BG_CONTEXT bg_context : BG_CONTEXT.values())
-                if (bg_context.value == value) return bg_context;
-            return BG_CONTEXT.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2009,10 +2495,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BG_UNITS> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BG_UNITS>() {
+            @Override
+            public int key(BG_UNITS bg_units) {
+                return bg_units.value;
+            }
+        });
+
         public static BG_UNITS convert(int value) {
-            for (BG_UNITS bg_units : BG_UNITS.values())
-                if (bg_units.value == value) return bg_units;
-            return BG_UNITS.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2035,10 +2526,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<CARB_UNITS> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<CARB_UNITS>() {
+            @Override
+            public int key(CARB_UNITS carb_units) {
+                return carb_units.value;
+            }
+        });
+
         public static CARB_UNITS convert(int value) {
-            for (CARB_UNITS carb_units : CARB_UNITS.values())
-                if (carb_units.value == value) return carb_units;
-            return CARB_UNITS.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2061,10 +2557,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BG_ORIGIN> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BG_ORIGIN>() {
+            @Override
+            public int key(BG_ORIGIN bg_origin) {
+                return bg_origin.value;
+            }
+        });
+
         public static BG_ORIGIN convert(int value) {
-            for (BG_ORIGIN bg_origin : BG_ORIGIN.values())
-                if (bg_origin.value == value) return bg_origin;
-            return BG_ORIGIN.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2087,10 +2588,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<TEMP_BASAL_TYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<TEMP_BASAL_TYPE>() {
+            @Override
+            public int key(TEMP_BASAL_TYPE temp_basal_type) {
+                return temp_basal_type.value;
+            }
+        });
+
         public static TEMP_BASAL_TYPE convert(int value) {
-            for (TEMP_BASAL_TYPE temp_basal_type : TEMP_BASAL_TYPE.values())
-                if (temp_basal_type.value == value) return temp_basal_type;
-            return TEMP_BASAL_TYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2114,10 +2620,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BOLUS_STEP_SIZE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BOLUS_STEP_SIZE>() {
+            @Override
+            public int key(BOLUS_STEP_SIZE bolus_step_size) {
+                return bolus_step_size.value;
+            }
+        });
+
         public static BOLUS_STEP_SIZE convert(int value) {
-            for (BOLUS_STEP_SIZE bolus_step_size : BOLUS_STEP_SIZE.values())
-                if (bolus_step_size.value == value) return bolus_step_size;
-            return BOLUS_STEP_SIZE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2140,10 +2651,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<CANNULA_FILL_TYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<CANNULA_FILL_TYPE>() {
+            @Override
+            public int key(CANNULA_FILL_TYPE cannula_fill_type) {
+                return cannula_fill_type.value;
+            }
+        });
+
         public static CANNULA_FILL_TYPE convert(int value) {
-            for (CANNULA_FILL_TYPE cannula_fill_type : CANNULA_FILL_TYPE.values())
-                if (cannula_fill_type.value == value) return cannula_fill_type;
-            return CANNULA_FILL_TYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2181,10 +2697,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<CL_TRANSITION_REASON> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<CL_TRANSITION_REASON>() {
+            @Override
+            public int key(CL_TRANSITION_REASON cl_transition_reason) {
+                return cl_transition_reason.value;
+            }
+        });
+
         public static CL_TRANSITION_REASON convert(int value) {
-            for (CL_TRANSITION_REASON cl_transition_reason : CL_TRANSITION_REASON.values())
-                if (cl_transition_reason.value == value) return cl_transition_reason;
-            return CL_TRANSITION_REASON.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2207,10 +2728,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<CL_TRANSITION_VALUE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<CL_TRANSITION_VALUE>() {
+            @Override
+            public int key(CL_TRANSITION_VALUE cl_transition_value) {
+                return cl_transition_value.value;
+            }
+        });
+
         public static CL_TRANSITION_VALUE convert(int value) {
-            for (CL_TRANSITION_VALUE cl_transition_value : CL_TRANSITION_VALUE.values())
-                if (cl_transition_value.value == value) return cl_transition_value;
-            return CL_TRANSITION_VALUE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2234,10 +2760,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BOLUS_TYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BOLUS_TYPE>() {
+            @Override
+            public int key(BOLUS_TYPE bolus_type) {
+                return bolus_type.value;
+            }
+        });
+
         public static BOLUS_TYPE convert(int value) {
-            for (BOLUS_TYPE bolus_type : BOLUS_TYPE.values())
-                if (bolus_type.value == value) return bolus_type;
-            return BOLUS_TYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2260,10 +2791,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<DUAL_BOLUS_PART> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<DUAL_BOLUS_PART>() {
+            @Override
+            public int key(DUAL_BOLUS_PART dual_bolus_part) {
+                return dual_bolus_part.value;
+            }
+        });
+
         public static DUAL_BOLUS_PART convert(int value) {
-            for (DUAL_BOLUS_PART dual_bolus_part : DUAL_BOLUS_PART.values())
-                if (dual_bolus_part.value == value) return dual_bolus_part;
-            return DUAL_BOLUS_PART.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2297,10 +2833,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BOLUS_PRESET> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BOLUS_PRESET>() {
+            @Override
+            public int key(BOLUS_PRESET bolus_preset) {
+                return bolus_preset.value;
+            }
+        });
+
         public static BOLUS_PRESET convert(int value) {
-            for (BOLUS_PRESET bolus_preset : BOLUS_PRESET.values())
-                if (bolus_preset.value == value) return bolus_preset;
-            return BOLUS_PRESET.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2334,10 +2875,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<TEMP_BASAL_PRESET> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<TEMP_BASAL_PRESET>() {
+            @Override
+            public int key(TEMP_BASAL_PRESET temp_basal_preset) {
+                return temp_basal_preset.value;
+            }
+        });
+
         public static TEMP_BASAL_PRESET convert(int value) {
-            for (TEMP_BASAL_PRESET temp_basal_preset : TEMP_BASAL_PRESET.values())
-                if (temp_basal_preset.value == value) return temp_basal_preset;
-            return TEMP_BASAL_PRESET.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -2370,10 +2916,15 @@ public class PumpHistoryParser {
             return this.value == value;
         }
 
+        private static final EnumTable<BASAL_PATTERN> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<BASAL_PATTERN>() {
+            @Override
+            public int key(BASAL_PATTERN basal_pattern) {
+                return basal_pattern.value;
+            }
+        });
+
         public static BASAL_PATTERN convert(int value) {
-            for (BASAL_PATTERN basal_pattern : BASAL_PATTERN.values())
-                if (basal_pattern.value == value) return basal_pattern;
-            return BASAL_PATTERN.NA;
+            return TABLE.get(value);
         }
     }
 
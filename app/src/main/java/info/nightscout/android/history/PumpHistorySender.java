@@ -24,11 +24,67 @@ import info.nightscout.android.model.store.DataStore;
 public class PumpHistorySender {
     private static final String TAG = PumpHistorySender.class.getSimpleName();
 
-    // sender ID's should be unique, be wary that these are used in string 'contains' code statements
+    // sender ID's should be unique
     public static final String SENDER_ID_NIGHTSCOUT = "NS";
     public static final String SENDER_ID_XDRIP = "XD";
     public static final String SENDER_ID_PUSHOVER = "PO";
 
+    /*
+    History records hold the sender state (REQ/ACK/DEL) as an indexed int bitmask, each sender has a bit.
+    Realm has no bitwise query operators so a sender query is an indexed 'in' query on the
+    mask values that have (or do not have) the sender bit, there are only 2^senders possible values.
+    Bits must not be reassigned, they are persisted in the history realm.
+    */
+    public static final int SENDER_BIT_NIGHTSCOUT = 1;
+    public static final int SENDER_BIT_XDRIP = 1 << 1;
+    public static final int SENDER_BIT_PUSHOVER = 1 << 2;
+
+    public static final int SENDER_BITS = SENDER_BIT_NIGHTSCOUT | SENDER_BIT_XDRIP | SENDER_BIT_PUSHOVER;
+
+    private static final String[] SENDER_IDS = {SENDER_ID_NIGHTSCOUT, SENDER_ID_XDRIP, SENDER_ID_PUSHOVER};
+    private static final int[] SENDER_ID_BITS = {SENDER_BIT_NIGHTSCOUT, SENDER_BIT_XDRIP, SENDER_BIT_PUSHOVER};
+
+    public static int senderBit(String senderID) {
+        for (int i = 0; i < SENDER_IDS.length; i++) {
+            if (SENDER_IDS[i].equals(senderID)) return SENDER_ID_BITS[i];
+        }
+        throw new IllegalArgumentException("unknown senderID: " + senderID);
+    }
+
+    public static boolean isSender(int mask, String senderID) {
+        return (mask & senderBit(senderID)) != 0;
+    }
+
+    public static int setSender(int mask, String senderID) {
+        return mask | senderBit(senderID);
+    }
+
+    public static int clearSender(int mask, String senderID) {
+        return mask & ~senderBit(senderID);
+    }
+
+    // all mask values with the sender bit set (set = true) or clear (set = false), for use with an 'in' query
+    public static Integer[] senderMasks(String senderID, boolean set) {
+        int bit = senderBit(senderID);
+        Integer[] masks = new Integer[(SENDER_BITS + 1) / 2];
+        int n = 0;
+        for (int mask = 0; mask <= SENDER_BITS; mask++) {
+            if ((mask & ~SENDER_BITS) == 0 && ((mask & bit) != 0) == set) masks[n++] = mask;
+        }
+        return masks;
+    }
+
+    // convert the legacy concatenated sender ID string ("NSXDPO") to a mask
+    public static int senderMask(String senderIDs) {
+        int mask = 0;
+        if (senderIDs != null) {
+            for (int i = 0; i < SENDER_IDS.length; i++) {
+                if (senderIDs.contains(SENDER_IDS[i])) mask |= SENDER_ID_BITS[i];
+            }
+        }
+        return mask;
+    }
+
     private List<Sender> senders = new ArrayList<>();
 
     public PumpHistorySender() { }
@@ -273,12 +329,14 @@ public class PumpHistorySender {
         private List<Pair<SENDEROPT, String[]>> senderlists = new ArrayList<>();
 
         private String id = "";
+        private int bit = 0;
         private long stale = 0;
         private long process = 0;
         private int limiter = 0;
 
         private Sender (String id) {
             this.id = id;
+            this.bit = senderBit(id);
             senders.add(this);
         }
 
@@ -353,6 +411,10 @@ public class PumpHistorySender {
         public int getLimiter() {
             return limiter;
         }
+
+        public int getBit() {
+            return bit;
+        }
     }
 
     public Sender getSender(String senderID) {
@@ -405,28 +467,24 @@ public class PumpHistorySender {
 
     // set history record REQ for all associated senders
     public void setSenderREQ(PumpHistoryInterface record) {
-        String req = record.getSenderREQ();
-        String db = record.getClass().getSuperclass().getSimpleName();
-
-        for (Sender sender : senders) {
-            if (sender.active.contains(db) && !req.contains(sender.id))
-                req = req.concat(sender.id);
-        }
-
-        record.setSenderREQ(req);
+        record.setSenderREQ(record.getSenderREQ() | activeMask(record));
     }
 
     // set history record ACK for all associated senders
     public void setSenderACK(PumpHistoryInterface record) {
-        String ack = record.getSenderACK();
+        record.setSenderACK(record.getSenderACK() | activeMask(record));
+    }
+
+    private int activeMask(PumpHistoryInterface record) {
         String db = record.getClass().getSuperclass().getSimpleName();
+        int mask = 0;
 
         for (Sender sender : senders) {
-            if (sender.active.contains(db) && !ack.contains(sender.id))
-                ack = ack.concat(sender.id);
+            if (sender.active.contains(db))
+                mask |= sender.bit;
         }
 
-        record.setSenderACK(ack);
+        return mask;
     }
 
 }
@@ -0,0 +1,356 @@
+package info.nightscout.android.history;
+
+import android.util.Log;
+
+import java.util.Date;
+
+import info.nightscout.android.model.medtronicNg.PumpHistoryBolus;
+import info.nightscout.android.model.medtronicNg.PumpHistoryCGM;
+import info.nightscout.android.model.medtronicNg.PumpStatusEvent;
+import io.realm.Realm;
+import io.realm.RealmResults;
+import io.realm.Sort;
+
+/*
+Process wide cache of recent sgv, basal rate and bolus data for the display consumers.
+
+Each series is a ring of primitive arrays in time order. A refresh only reads the records from the
+last sync less a resync period, this picks up new records and late updates committed by the cnl process
+ie. programmed and square delivered bolus states. Changes made in this process to older records ie.
+estimates call invalidate(). History is backfilled by the cnl process so it can't invalidate the cache,
+sgv backfilled before the resync period is found by a change in the count of readings before the resync
+time and read with a full refresh. A full refresh is also made at a set interval.
+
+The period covers the urchin graphs when the last pump status is a day old and the extended bolus
+lookback that goes with them.
+
+The graph methods step back from a time in fixed periods with the same selection rules the urchin
+graphs used with their realm iterators.
+*/
+
+public class TimeSeriesCache {
+    private static final String TAG = TimeSeriesCache.class.getSimpleName();
+
+    public static final long TIME_STEP = 5 * 60000L;
+
+    private static final long PERIOD_MS = 48 * 60 * 60000L;
+    private static final long RESYNC_MS = 60 * 60000L;
+    private static final long RESYNC_BOLUS_MS = 8 * 60 * 60000L;
+    private static final long FULL_REFRESH_MS = 60 * 60000L;
+    // consumers updating for the same poll share a refresh
+    private static final long COALESCE_MS = 10000L;
+
+    private static final int CAPACITY = 2048;
+
+    private static final byte FLAG_ESTIMATE = 1;
+    private static final byte FLAG_EXTENDED = 1 << 1;
+
+    private final Series sgv = new Series();
+    private final Series basal = new Series();
+    private final Series bolus = new Series();
+
+    private long syncTimestamp;
+    private long fullTimestamp;
+    private long dirtyFrom = Long.MAX_VALUE;
+
+    private TimeSeriesCache() {}
+
+    private static class LazyHolder {
+        static final TimeSeriesCache instance = new TimeSeriesCache();
+    }
+
+    public static TimeSeriesCache getInstance() {
+        return LazyHolder.instance;
+    }
+
+    public static class Sgv {
+        private final long time;
+        private final int rtc;
+        private final int sgv;
+        private final boolean estimate;
+        private final byte exception;
+        private final String trend;
+
+        private Sgv(long time, int rtc, int sgv, boolean estimate, byte exception, String trend) {
+            this.time = time;
+            this.rtc = rtc;
+            this.sgv = sgv;
+            this.estimate = estimate;
+            this.exception = exception;
+            this.trend = trend;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getRtc() {
+            return rtc;
+        }
+
+        public int getSgv() {
+            return sgv;
+        }
+
+        public boolean isEstimate() {
+            return estimate;
+        }
+
+        public byte getException() {
+            return exception;
+        }
+
+        public String getTrend() {
+            return trend;
+        }
+    }
+
+    // records changed in this process from this time will be read again on the next refresh
+    public synchronized void invalidate(long from) {
+        if (from < dirtyFrom) dirtyFrom = from;
+    }
+
+    // realm instances are from the calling thread
+    public synchronized void refresh(Realm realm, Realm historyRealm) {
+        long now = System.currentTimeMillis();
+
+        boolean full = now - fullTimestamp > FULL_REFRESH_MS || now < syncTimestamp;
+        if (!full && now - syncTimestamp < COALESCE_MS && dirtyFrom == Long.MAX_VALUE) return;
+
+        long from = full ? now - PERIOD_MS : Math.min(syncTimestamp - RESYNC_MS, dirtyFrom);
+        long bolusFrom = full ? now - PERIOD_MS : Math.min(syncTimestamp - RESYNC_BOLUS_MS, dirtyFrom);
+
+        if (!full && sgvBackfilled(historyRealm, now - PERIOD_MS, from)) {
+            full = true;
+            from = now - PERIOD_MS;
+            bolusFrom = now - PERIOD_MS;
+        }
+
+        sgv.trim(now - PERIOD_MS, from);
+        basal.trim(now - PERIOD_MS, from);
+        bolus.trim(now - PERIOD_MS, bolusFrom);
+
+        RealmResults<PumpHistoryCGM> cgmResults = historyRealm.where(PumpHistoryCGM.class)
+                .greaterThanOrEqualTo("eventDate", new Date(Math.max(from, now - PERIOD_MS)))
+                .notEqualTo("sgv", 0)
+                .sort("eventDate", Sort.ASCENDING)
+                .findAll();
+        for (PumpHistoryCGM record : cgmResults) {
+            int i = sgv.add(record.getEventDate().getTime());
+            sgv.aux[i] = record.getCgmRTC();
+            sgv.value[i] = record.getSgv();
+            sgv.flag[i] = record.isEstimate() ? FLAG_ESTIMATE : 0;
+            sgv.code[i] = record.getSensorException();
+            sgv.text[i] = record.getCgmTrend();
+        }
+
+        RealmResults<PumpStatusEvent> statusResults = realm.where(PumpStatusEvent.class)
+                .greaterThanOrEqualTo("eventDate", new Date(Math.max(from, now - PERIOD_MS)))
+                .sort("eventDate", Sort.ASCENDING)
+                .findAll();
+        for (PumpStatusEvent record : statusResults) {
+            int i = basal.add(record.getEventDate().getTime());
+            if (record.isSuspended())
+                basal.rate[i] = 0;
+            else if (record.isTempBasalActive()) {
+                if (record.getTempBasalPercentage() != 0)
+                    basal.rate[i] = (record.getTempBasalPercentage() * record.getBasalRate()) / 100;
+                else
+                    basal.rate[i] = record.getTempBasalRate();
+            } else
+                basal.rate[i] = record.getBasalRate();
+        }
+
+        RealmResults<PumpHistoryBolus> bolusResults = historyRealm.where(PumpHistoryBolus.class)
+                .greaterThanOrEqualTo("eventDate", new Date(Math.max(bolusFrom, now - PERIOD_MS)))
+                .equalTo("programmed", true)
+                .sort("eventDate", Sort.ASCENDING)
+                .findAll();
+        for (PumpHistoryBolus record : bolusResults) {
+            int i = bolus.add(record.getEventDate().getTime());
+            long programmed = record.getProgrammedDate().getTime();
+            bolus.aux[i] = programmed;
+            bolus.end[i] = record.isSquareDelivered()
+                    ? record.getSquareDeliveredDate().getTime()
+                    : programmed + (record.getSquareProgrammedDuration() * 60000L);
+            bolus.flag[i] = record.getBolusType() == PumpHistoryParser.BOLUS_TYPE.NORMAL_BOLUS.value() ? 0 : FLAG_EXTENDED;
+        }
+
+        Log.d(TAG, String.format("refresh: %s read cgm: %s status: %s bolus: %s cached cgm: %s status: %s bolus: %s",
+                full ? "full" : "partial",
+                cgmResults.size(), statusResults.size(), bolusResults.size(),
+                sgv.count, basal.count, bolus.count));
+
+        syncTimestamp = now;
+        if (full) fullTimestamp = now;
+        dirtyFrom = Long.MAX_VALUE;
+    }
+
+    // readings in the history before the resync time that are not in the cache, ie. sgv backfilled after a lost sensor signal
+    private boolean sgvBackfilled(Realm historyRealm, long oldest, long from) {
+        if (from <= oldest) return false;
+
+        long count = historyRealm.where(PumpHistoryCGM.class)
+                .greaterThanOrEqualTo("eventDate", new Date(oldest))
+                .lessThan("eventDate", new Date(from))
+                .notEqualTo("sgv", 0)
+                .count();
+        long cached = sgv.search(from) - sgv.search(oldest);
+
+        if (count == cached) return false;
+        Log.d(TAG, String.format("refresh: sgv backfilled before resync time, history: %s cached: %s", count, cached));
+        return true;
+    }
+
+    // sgv reading counting back from the newest, null when not available
+    public synchronized Sgv sgv(int back) {
+        if (back < 0 || back >= sgv.count) return null;
+        int i = sgv.index(sgv.count - 1 - back);
+        return new Sgv(sgv.time[i], (int) sgv.aux[i], sgv.value[i], (sgv.flag[i] & FLAG_ESTIMATE) != 0, sgv.code[i], sgv.text[i]);
+    }
+
+    // oldest sgv in each step after time
+    public synchronized int[] graphSgv(long time, int steps) {
+        int[] graph = new int[steps];
+        int lower = sgv.search(time - (steps * TIME_STEP) + 1);
+        int n = sgv.count - 1;
+
+        for (int step = 0; step < steps; step++) {
+            int value = 0;
+            while (n >= lower && sgv.time[sgv.index(n)] >= time) {
+                value = sgv.value[sgv.index(n)];
+                n--;
+            }
+            graph[step] = value;
+            time -= TIME_STEP;
+        }
+
+        return graph;
+    }
+
+    // basal rate in each step, a step without a pump status record holds the previous rate
+    public synchronized float[] graphBasal(long time, int steps, long limit) {
+        float[] graph = new float[steps];
+        int lower = basal.search(limit);
+        int n = basal.count - 1;
+        float rate = 0;
+
+        for (int step = 0; step < steps; step++) {
+            while (n >= lower) {
+                int i = basal.index(n);
+                if (basal.time[i] < time + (TIME_STEP * 2)) {
+                    if (basal.time[i] >= time) {
+                        rate = basal.rate[i];
+                        n--;
+                    }
+                    break;
+                }
+                n--;
+            }
+            graph[step] = rate;
+            time -= TIME_STEP;
+        }
+
+        return graph;
+    }
+
+    // step has a bolus programmed
+    public synchronized boolean[] graphBolus(long time, int steps) {
+        boolean[] graph = new boolean[steps];
+        int lower = bolus.search(time - (steps * TIME_STEP) + 1);
+        int n = bolus.count - 1;
+
+        for (int step = 0; step < steps; step++) {
+            while (n >= lower) {
+                int i = bolus.index(n);
+                if (bolus.aux[i] < time + TIME_STEP) {
+                    if (bolus.aux[i] >= time) {
+                        graph[step] = true;
+                        n--;
+                    }
+                    break;
+                }
+                n--;
+            }
+            time -= TIME_STEP;
+        }
+
+        return graph;
+    }
+
+    // step is within a square or dual bolus delivery period
+    public synchronized boolean[] graphBolusExtended(long time, int steps, long limit) {
+        boolean[] graph = new boolean[steps];
+        int lower = bolus.search(limit + 1);
+        int n = bolus.count - 1;
+
+        for (int step = 0; step < steps; step++) {
+            while (n >= lower) {
+                int i = bolus.index(n);
+                if ((bolus.flag[i] & FLAG_EXTENDED) != 0 && bolus.aux[i] < time + TIME_STEP) {
+                    graph[step] = bolus.end[i] > time;
+                    break;
+                }
+                n--;
+            }
+            time -= TIME_STEP;
+        }
+
+        return graph;
+    }
+
+    private static class Series {
+        private final long[] time = new long[CAPACITY];
+        private final long[] aux = new long[CAPACITY];
+        private final long[] end = new long[CAPACITY];
+        private final int[] value = new int[CAPACITY];
+        private final float[] rate = new float[CAPACITY];
+        private final byte[] flag = new byte[CAPACITY];
+        private final byte[] code = new byte[CAPACITY];
+        private final String[] text = new String[CAPACITY];
+
+        private int head;
+        private int count;
+
+        private int index(int n) {
+            return (head + n) % CAPACITY;
+        }
+
+        // drop records before the period and records that will be read again
+        private void trim(long oldest, long from) {
+            while (count > 0 && time[head] < oldest) {
+                text[head] = null;
+                head = (head + 1) % CAPACITY;
+                count--;
+            }
+            while (count > 0 && time[index(count - 1)] >= from) {
+                text[index(count - 1)] = null;
+                count--;
+            }
+            if (count == 0) head = 0;
+        }
+
+        // records are added in time order, when full the oldest is dropped
+        private int add(long t) {
+            if (count == CAPACITY) {
+                head = (head + 1) % CAPACITY;
+                count--;
+            }
+            int i = index(count++);
+            time[i] = t;
+            return i;
+        }
+
+        // position of the first record at or after t
+        private int search(long t) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (time[index(mid)] < t) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
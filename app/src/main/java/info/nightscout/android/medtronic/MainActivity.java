@@ -80,6 +80,7 @@ import info.nightscout.android.utils.RealmKit;
 import io.realm.OrderedCollectionChangeSet;
 import io.realm.OrderedRealmCollectionChangeListener;
 import io.realm.Realm;
+import io.realm.RealmQuery;
 import io.realm.RealmResults;
 import io.realm.Sort;
 import uk.co.chrisjenx.calligraphy.CalligraphyContextWrapper;
@@ -1209,13 +1210,14 @@ public class MainActivity extends AppCompatActivity implements OnSharedPreferenc
         double maxY = 100;
 
         if (results != null) {
-            RealmResults<PumpHistoryCGM> minmaxY = results.where()
-                    .greaterThan("eventDate", new Date(minX))
-                    .sort("sgv", Sort.ASCENDING)
-                    .findAll();
-            if (minmaxY.size() > 0) {
-                minY = minmaxY.first().getSgv();
-                maxY = minmaxY.last().getSgv();
+            // aggregate over the chart period, no sorted results needed
+            RealmQuery<PumpHistoryCGM> minmaxY = results.where()
+                    .greaterThan("eventDate", new Date(minX));
+            Number min = minmaxY.min("sgv");
+            Number max = minmaxY.max("sgv");
+            if (min != null && max != null) {
+                minY = min.intValue();
+                maxY = max.intValue();
             }
         }
 
@@ -13,7 +13,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.history.PumpHistoryParser;
 import info.nightscout.android.medtronic.message.BeginEHSMMessage;
 import info.nightscout.android.medtronic.message.BolusWizardCarbRatiosRequestMessage;
@@ -62,7 +62,7 @@ public class MedtronicCnlReader {
 
     private static final byte[] RADIO_CHANNELS = {0x14, 0x11, 0x0e, 0x17, 0x1a};
 
-    private UsbHidDriver mDevice;
+    private CnlTransport mDevice;
 
     private MedtronicCnlSession mPumpSession = new MedtronicCnlSession();
     private String mStickSerial = null;
@@ -75,7 +75,7 @@ public class MedtronicCnlReader {
     private int sessionOFFSET;
     private long sessionClockDifference;
 
-    public MedtronicCnlReader(UsbHidDriver device) {
+    public MedtronicCnlReader(CnlTransport device) {
         mDevice = device;
     }
 
@@ -383,9 +383,23 @@ public class MedtronicCnlReader {
         Log.d(TAG, "Finished getHistoryLogcat");
     }
 
+    // history request RTC for a time as used by getHistory, kept within the pump RTC range so signed int RTCs compare in order
+    public int historyRTC(long time) {
+        long rtc = MessageUtils.rtcFromTime(time + sessionClockDifference, sessionOFFSET);
+        return (int) Math.max(Math.min(rtc, 0xFFFFFFFFL), 0x80000001L);
+    }
+
+    public long historyTime(int rtc) {
+        return MessageUtils.decodeTime(rtc & 0xFFFFFFFFL, sessionOFFSET) - sessionClockDifference;
+    }
+
     public ReadHistoryResponseMessage getHistory(long startTime, long endTime, final int type) throws EncryptionException, IOException, ChecksumException, TimeoutException, UnexpectedMessageException {
-        Log.d(TAG, "Begin getHistory");
+        return getHistory(startTime, endTime, type, null);
+    }
 
+    // RTC range that getHistory will request from the pump, this is the range set on the response as reqStartRTC/reqEndRTC
+    // returns null when the period is outside of the pump RTC range and there are no events to request
+    public int[] historyRequestRTC(long startTime, long endTime) {
         long maxRTC = sessionRTC & 0xFFFFFFFFL;
         long minRTC = maxRTC - ((90 * 24 * 60 * 60) - 3600);
 
@@ -404,21 +418,31 @@ public class MedtronicCnlReader {
             return null;
         }
 
-        if (reqEndRTC > maxRTC) {
-            reqEndRTC = maxRTC;
-            endTime = sessionDate.getTime();
-        }
-
+        if (reqEndRTC > maxRTC) reqEndRTC = maxRTC;
         if (reqStartRTC < minRTC) reqStartRTC = minRTC;
 
-        final int startRTC = (int) reqStartRTC;
-        final int endRTC = (int) reqEndRTC;
+        return new int[]{(int) reqStartRTC, (int) reqEndRTC};
+    }
+
+    // when a parser is supplied history blocks are passed to it as they arrive and the response has no event data
+    public ReadHistoryResponseMessage getHistory(long startTime, long endTime, final int type, final PumpHistoryParser parser) throws EncryptionException, IOException, ChecksumException, TimeoutException, UnexpectedMessageException {
+        Log.d(TAG, "Begin getHistory");
+
+        int[] request = historyRequestRTC(startTime, endTime);
+        if (request == null) return null;
+
+        // end of request was limited to the pump RTC
+        if (MessageUtils.rtcFromTime(endTime + sessionClockDifference, sessionOFFSET) > (sessionRTC & 0xFFFFFFFFL))
+            endTime = sessionDate.getTime();
+
+        final int startRTC = request[0];
+        final int endRTC = request[1];
         Log.d (TAG, "getHistory: final startRTC=" + HexDump.toHexString(startRTC) + " endRTC=" + HexDump.toHexString(endRTC));
 
         RequestMessage requestMessage = new RequestMessage() {
             @Override
             ReadHistoryResponseMessage request() throws IOException, EncryptionException, ChecksumException, TimeoutException, UnexpectedMessageException {
-                return new ReadHistoryRequestMessage(mPumpSession, startRTC, endRTC, type).send(mDevice);
+                return new ReadHistoryRequestMessage(mPumpSession, startRTC, endRTC, type, parser).send(mDevice);
             }
         };
 
@@ -2,9 +2,16 @@ package info.nightscout.android.medtronic;
 
 import org.apache.commons.lang3.ArrayUtils;
 
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import info.nightscout.android.medtronic.exception.EncryptionException;
+
 /**
  * Created by lgoedhart on 26/03/2016.
  */
@@ -25,6 +32,11 @@ public class MedtronicCnlSession {
     private byte medtronicSequenceNumber = 1;
     private byte comDSequenceNumber = 1;
 
+    // AES/CFB ciphers for the session key and radio channel
+    // built once per channel, every message starts from the same IV so each doFinal resets the cipher for the next message
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+
     public byte[] getHMAC() throws NoSuchAlgorithmException {
         String shortSerial = this.stickSerial.replaceAll("\\d+-", "");
         byte[] message = (shortSerial + HMAC_PADDING).getBytes();
@@ -50,6 +62,38 @@ public class MedtronicCnlSession {
         return iv;
     }
 
+    // input and output can be the same array, returns the number of bytes written to output
+    public synchronized int encrypt(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws EncryptionException {
+        try {
+            if (encryptCipher == null) encryptCipher = cipher(Cipher.ENCRYPT_MODE);
+            return encryptCipher.doFinal(input, inputOffset, length, output, outputOffset);
+        } catch (GeneralSecurityException e) {
+            encryptCipher = null;
+            throw new EncryptionException("Could not encrypt Medtronic Message");
+        }
+    }
+
+    public synchronized int decrypt(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) throws EncryptionException {
+        try {
+            if (decryptCipher == null) decryptCipher = cipher(Cipher.DECRYPT_MODE);
+            return decryptCipher.doFinal(input, inputOffset, length, output, outputOffset);
+        } catch (GeneralSecurityException e) {
+            decryptCipher = null;
+            throw new EncryptionException("Could not decrypt Medtronic Message");
+        }
+    }
+
+    private Cipher cipher(int mode) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(getIV()));
+        return cipher;
+    }
+
+    private synchronized void cipherReset() {
+        encryptCipher = null;
+        decryptCipher = null;
+    }
+
     public long getLinkMAC() {
         return linkMAC;
     }
@@ -110,6 +154,7 @@ public class MedtronicCnlSession {
     }
 
     public void setRadioChannel(byte radioChannel) {
+        if (this.radioChannel != radioChannel) cipherReset();
         this.radioChannel = radioChannel;
     }
 
@@ -118,6 +163,7 @@ public class MedtronicCnlSession {
     }
 
     public void setKey(byte[] key) {
+        cipherReset();
         this.key = key;
     }
 
@@ -12,9 +12,11 @@ import java.util.Locale;
 import info.nightscout.android.UploaderApplication;
 import info.nightscout.android.model.store.StatCnl;
 import info.nightscout.android.model.store.StatInterface;
+import info.nightscout.android.model.store.StatLatency;
 import info.nightscout.android.model.store.StatPoll;
 import info.nightscout.android.model.store.StatNightscout;
 import info.nightscout.android.model.store.StatPushover;
+import info.nightscout.android.utils.LatencyHistogram;
 import io.realm.Realm;
 import io.realm.RealmResults;
 
@@ -273,4 +275,72 @@ public class Stats {
         return sb.toString();
     }
 
+    public static String latencyCSV(Date date) {
+        return latency(sdfDateToKey.format(date), false);
+    }
+
+    public static String latencyJSON(Date date) {
+        return latency(sdfDateToKey.format(date), true);
+    }
+
+    // export the latency histograms for a day, one row per poll phase / message type with the percentiles and bucket counts
+    public static String latency(String key, boolean json) {
+        int[] bounds = LatencyHistogram.BOUNDS;
+
+        StringBuilder sb = new StringBuilder();
+
+        if (json) {
+            sb.append(String.format("{\"key\":\"%s\",\"bounds\":[", key));
+            for (int i = 0; i < bounds.length; i++) {
+                sb.append(i > 0 ? "," : "").append(bounds[i]);
+            }
+            sb.append("],\"latency\":[");
+        } else {
+            sb.append("key,stat,name,count,p50,p90,p99,max");
+            for (int bound : bounds) sb.append(",le").append(bound);
+            sb.append(",gt").append(bounds[bounds.length - 1]).append("\n");
+        }
+
+        Realm storeRealm = Realm.getInstance(UploaderApplication.getStoreConfiguration());
+
+        int n = 0;
+        for (Class clazz : STAT_CLASSES) {
+            StatInterface record = (StatInterface) storeRealm.where(clazz)
+                    .equalTo("key", key)
+                    .findFirst();
+            if (!(record instanceof StatLatency)) continue;
+
+            StatLatency stat = (StatLatency) record;
+            List<Integer> keys = stat.getLatencyKey();
+            List<Integer> counts = stat.getLatencyCount();
+            List<Integer> max = stat.getLatencyMax();
+
+            for (int row = 0; row < LatencyHistogram.rows(keys, counts, max); row++) {
+                String stats = String.format(json
+                                ? "%s{\"stat\":\"%s\",\"name\":\"%s\",\"count\":%s,\"p50\":%s,\"p90\":%s,\"p99\":%s,\"max\":%s,\"buckets\":["
+                                : "%s%s,%s,%s,%s,%s,%s,%s",
+                        json ? (n > 0 ? "," : "") : key + ",",
+                        clazz.getSimpleName(),
+                        stat.latencyName(keys.get(row)),
+                        LatencyHistogram.count(counts, row),
+                        LatencyHistogram.percentile(counts, max, row, 50),
+                        LatencyHistogram.percentile(counts, max, row, 90),
+                        LatencyHistogram.percentile(counts, max, row, 99),
+                        max.get(row));
+                sb.append(stats);
+
+                for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                    sb.append(json && bucket == 0 ? "" : ",").append(counts.get(row * LatencyHistogram.BUCKETS + bucket));
+                }
+                sb.append(json ? "]}" : "\n");
+                n++;
+            }
+        }
+
+        storeRealm.close();
+
+        if (json) sb.append("]}");
+        return sb.toString();
+    }
+
 }
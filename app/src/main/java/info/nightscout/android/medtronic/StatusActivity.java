@@ -1,11 +1,15 @@
 package info.nightscout.android.medtronic;
 
+import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.view.Menu;
 import android.view.MenuItem;
 
+import java.util.Date;
+
 import com.mikepenz.google_material_typeface_library.GoogleMaterial;
 import com.mikepenz.iconics.IconicsDrawable;
 
@@ -34,12 +38,35 @@ public class StatusActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_status, menu);
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
-        if (item.getItemId() == android.R.id.home) {
-            finish();
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                break;
+            case R.id.action_export_latency_csv:
+                share(item.getTitle(), "text/csv", Stats.latencyCSV(new Date(System.currentTimeMillis())));
+                return true;
+            case R.id.action_export_latency_json:
+                share(item.getTitle(), "application/json", Stats.latencyJSON(new Date(System.currentTimeMillis())));
+                return true;
         }
 
         return super.onOptionsItemSelected(item);
     }
+
+    // poll phase and pump message latency for today, for separating comms time from processing time
+    private void share(CharSequence title, String type, String text) {
+        Intent intent = new Intent(Intent.ACTION_SEND)
+                .setType(type)
+                .putExtra(Intent.EXTRA_SUBJECT, "600SeriesAndroidUploader latency " + Stats.sdfDateToKey.format(System.currentTimeMillis()))
+                .putExtra(Intent.EXTRA_TEXT, text);
+        startActivity(Intent.createChooser(intent, title));
+    }
 }
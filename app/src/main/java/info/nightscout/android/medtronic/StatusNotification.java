@@ -15,11 +15,11 @@ import info.nightscout.android.PumpAlert;
 import info.nightscout.android.R;
 import info.nightscout.android.UploaderApplication;
 import info.nightscout.android.history.PumpHistoryParser;
+import info.nightscout.android.history.TimeSeriesCache;
 import info.nightscout.android.model.medtronicNg.PumpHistoryAlarm;
 import info.nightscout.android.model.medtronicNg.PumpHistoryBG;
 import info.nightscout.android.model.medtronicNg.PumpHistoryBasal;
 import info.nightscout.android.model.medtronicNg.PumpHistoryBolus;
-import info.nightscout.android.model.medtronicNg.PumpHistoryCGM;
 import info.nightscout.android.model.medtronicNg.PumpStatusEvent;
 import info.nightscout.android.model.store.DataStore;
 import info.nightscout.android.utils.FormatKit;
@@ -149,26 +149,26 @@ public class StatusNotification {
                 String sgv = "";
                 String delta = "";
 
-                RealmResults<PumpHistoryCGM> results = historyRealm.where(PumpHistoryCGM.class)
-                        .greaterThan("eventDate", new Date(currentTime - 24 * 60 * 60000L))
-                        .greaterThan("sgv", 0)
-                        .sort("eventDate", Sort.DESCENDING)
-                        .findAll();
-                if (results.size() > 0) {
-                    sgvValue = results.first().getSgv();
-                    sgvTime = results.first().getEventDate().getTime();
+                TimeSeriesCache cache = TimeSeriesCache.getInstance();
+                cache.refresh(realm, historyRealm);
+                TimeSeriesCache.Sgv sgv0 = cache.sgv(0);
+                TimeSeriesCache.Sgv sgv1 = cache.sgv(1);
+
+                if (sgv0 != null && sgv0.getTime() > currentTime - 24 * 60 * 60000L) {
+                    sgvValue = sgv0.getSgv();
+                    sgvTime = sgv0.getTime();
                     sgvAge = (currentTime - sgvTime) / 60000L;
 
                     int deltaValue = 0;
-                    if (results.size() > 1 && mode != NOTIFICATION.ERROR) {
-                        int deltaTime = (int) ((sgvTime - results.get(1).getEventDate().getTime()) / 60000L);
+                    if (sgv1 != null && sgv1.getTime() > currentTime - 24 * 60 * 60000L && mode != NOTIFICATION.ERROR) {
+                        int deltaTime = (int) ((sgvTime - sgv1.getTime()) / 60000L);
                         if (sgvAge < 60 && deltaTime < 30) {
-                            deltaValue = sgvValue - results.get(1).getSgv();
+                            deltaValue = sgvValue - sgv1.getSgv();
                         }
                     }
 
                     sgv = String.format(
-                            results.first().isEstimate()
+                            sgv0.isEstimate()
                                     ? FormatKit.getInstance().getString(R.string.notification__SGV_value_estimated)
                                     : FormatKit.getInstance().getString(R.string.notification__SGV_value),
                             FormatKit.getInstance().formatAsGlucose(sgvValue, false, true)
@@ -180,7 +180,7 @@ public class StatusNotification {
                                     (FormatKit.getInstance().formatAsGlucose(deltaValue, false, 2))
                     );
 
-                    estimate = results.first().isEstimate() ? FormatKit.getInstance().getString(R.string.notification__ESTIMATE) : "";
+                    estimate = sgv0.isEstimate() ? FormatKit.getInstance().getString(R.string.notification__ESTIMATE) : "";
 
                 } else sgv = FormatKit.getInstance().getString(R.string.notification__SGV_not_available);
 
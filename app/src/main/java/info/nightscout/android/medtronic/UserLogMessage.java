@@ -8,6 +8,7 @@ import android.util.Log;
 import info.nightscout.android.UploaderApplication;
 import info.nightscout.android.medtronic.service.MasterService;
 import info.nightscout.android.model.store.UserLog;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
 import io.realm.RealmResults;
 import io.realm.Sort;
@@ -224,10 +225,15 @@ public class UserLogMessage {
             return this.value == value;
         }
 
+        private static final EnumTable<TYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<TYPE>() {
+            @Override
+            public int key(TYPE type) {
+                return type.value;
+            }
+        });
+
         public static TYPE convert(int value) {
-            for (TYPE type : TYPE.values())
-                if (type.value == value) return type;
-            return TYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -251,10 +257,15 @@ public class UserLogMessage {
             return this.value == value;
         }
 
+        private static final EnumTable<FLAG> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<FLAG>() {
+            @Override
+            public int key(FLAG flag) {
+                return flag.value;
+            }
+        });
+
         public static FLAG convert(byte value) {
-            for (FLAG flag : FLAG.values())
-                if (flag.value == value) return flag;
-            return FLAG.NA;
+            return TABLE.get(value);
         }
     }
 
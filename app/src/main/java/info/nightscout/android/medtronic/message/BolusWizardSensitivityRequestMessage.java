@@ -3,7 +3,7 @@ package info.nightscout.android.medtronic.message;
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
@@ -20,7 +20,7 @@ public class BolusWizardSensitivityRequestMessage extends MedtronicSendMessageRe
         super(MessageType.READ_BOLUS_WIZARD_SENSITIVITY_FACTORS, pumpSession, null);
     }
 
-    public BolusWizardSensitivityResponseMessage send(UsbHidDriver mDevice, int millis) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
+    public BolusWizardSensitivityResponseMessage send(CnlTransport mDevice, int millis) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
         sendToPump(mDevice, TAG);
         return getResponse(readFromPump(mDevice, mPumpSession, TAG));
     }
@@ -3,7 +3,7 @@ package info.nightscout.android.medtronic.message;
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
@@ -20,7 +20,7 @@ public class BolusWizardTargetsRequestMessage extends MedtronicSendMessageReques
         super(MessageType.READ_BOLUS_WIZARD_BG_TARGETS, pumpSession, null);
     }
 
-    public BolusWizardTargetsResponseMessage send(UsbHidDriver mDevice, int millis) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
+    public BolusWizardTargetsResponseMessage send(CnlTransport mDevice, int millis) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
         sendToPump(mDevice, TAG);
         return getResponse(readFromPump(mDevice, mPumpSession, TAG));
     }
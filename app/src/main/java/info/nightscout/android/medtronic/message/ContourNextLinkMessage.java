@@ -2,23 +2,22 @@ package info.nightscout.android.medtronic.message;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import info.nightscout.android.BuildConfig;
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
+import info.nightscout.android.medtronic.Stats;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
 import info.nightscout.android.medtronic.exception.UnexpectedMessageException;
+import info.nightscout.android.model.store.StatCnl;
 import info.nightscout.android.utils.HexDump;
+import info.nightscout.android.utils.EnumTable;
 
 import static info.nightscout.android.utils.ToolKit.read16BEtoShort;
 import static info.nightscout.android.utils.ToolKit.read32BEtoInt;
@@ -36,20 +35,34 @@ public abstract class ContourNextLinkMessage {
     public static final int READ_TIMEOUT_MS = 25000;
     public static final int CNL_READ_TIMEOUT_MS = 2000;
 
-    private static final int MULTIPACKET_TIMEOUT_MS = 1000; // minimum timeout
-    private static final int MULTIPACKET_SEGMENT_MS = 50; // time allowance per segment
+    private static final int MULTIPACKET_TIMEOUT_MS = 1000; // timeout for first segment after a request
+    private static final int MULTIPACKET_SEGMENT_MS = 50; // initial segment latency estimate
+    private static final int MULTIPACKET_SEGMENT_MIN_MS = 500; // minimum timeout between segments
+    private static final int MULTIPACKET_LATENCY_FACTOR = 4; // timeout as a multiple of measured segment latency
     private static final int MULTIPACKET_SEGMENT_RETRY = 10;
 
-    private static final int USB_BLOCKSIZE = 64;
-    private static final String USB_HEADER = "ABC";
+    private static final int USB_BLOCKSIZE = CnlTransport.USB_BLOCKSIZE;
+    private static final byte[] USB_HEADER = {'A', 'B', 'C'};
 
     private static final boolean DEBUG_READ = false; //BuildConfig.DEBUG;
     private static final boolean DEBUG_READ_MS = false; //BuildConfig.DEBUG;
     private static final boolean DEBUG_WRITE = false; //BuildConfig.DEBUG;
     private static final boolean DEBUG_WRITE_MS = false; //BuildConfig.DEBUG;
 
+    // reusable frame buffers, messages are only sent and read on the poll thread so each thread has its own set
+    // avoids per frame allocations during multipacket transfers
+    private static final ThreadLocal<FrameBuffers> FRAME_BUFFERS = new ThreadLocal<FrameBuffers>() {
+        @Override
+        protected FrameBuffers initialValue() {
+            return new FrameBuffers();
+        }
+    };
+
     protected ByteBuffer mPayload;
 
+    // start of the current pump request, used for the per message type latency stats
+    private long requestTime;
+
     public enum CommandAction {
         NO_TYPE(0x0),
         INITIALIZE(0x01),
@@ -171,10 +184,15 @@ public abstract class ContourNextLinkMessage {
             return this.value == value;
         }
 
+        private static final EnumTable<NAK> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<NAK>() {
+            @Override
+            public int key(NAK nak) {
+                return nak.value;
+            }
+        });
+
         public static NAK convert(int value) {
-            for (NAK nak : NAK.values())
-                if (nak.value == value) return nak;
-            return NAK.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -194,78 +212,99 @@ public abstract class ContourNextLinkMessage {
         }
     }
 
-    protected void sendMessage(UsbHidDriver mDevice) throws IOException {
+    protected void sendMessage(CnlTransport mDevice) throws IOException {
         long runtime = System.currentTimeMillis();
         long timer;
         String info = "";
 
         int pos = 0;
         byte[] message = this.encode();
+        byte[] frame = FRAME_BUFFERS.get().writeFrame;
 
         while (message.length > pos) {
-            ByteBuffer outputBuffer = ByteBuffer.allocate(USB_BLOCKSIZE);
             int sendLength = (pos + 60 > message.length) ? message.length - pos : 60;
-            outputBuffer.put(USB_HEADER.getBytes());
-            outputBuffer.put((byte) sendLength);
-            outputBuffer.put(message, pos, sendLength);
+
+            // frame is reused, header written in place and any unused tail zeroed
+            frame[0] = USB_HEADER[0];
+            frame[1] = USB_HEADER[1];
+            frame[2] = USB_HEADER[2];
+            frame[3] = (byte) sendLength;
+            System.arraycopy(message, pos, frame, 4, sendLength);
+            if (sendLength < 60) Arrays.fill(frame, 4 + sendLength, USB_BLOCKSIZE, (byte) 0);
 
             if (DEBUG_WRITE_MS) {
                 timer = System.currentTimeMillis();
-                mDevice.write(outputBuffer.array(), 10000);
+                mDevice.write(frame, 10000);
                 timer = System.currentTimeMillis() - timer;
-                info = String.format("%s [%sms %s %s %s]", info, timer, USB_BLOCKSIZE, USB_HEADER, sendLength);
+                info = String.format("%s [%sms %s %s]", info, timer, USB_BLOCKSIZE, sendLength);
             } else {
-                mDevice.write(outputBuffer.array(), 10000);
+                mDevice.write(frame, 10000);
             }
-            if (DEBUG_WRITE) Log.d(TAG, "WRITE: packet:" + HexDump.dumpHexString(outputBuffer.array()));
+            if (DEBUG_WRITE) Log.d(TAG, "WRITE: packet:" + HexDump.dumpHexString(frame));
 
             pos += sendLength;
         }
 
         runtime = System.currentTimeMillis() - runtime;
-        if (runtime < 100) Log.d(TAG, String.format("WRITE: [%sms]%s", runtime, info));
-        else Log.w(TAG, String.format("WRITE: runtime > 100ms [%sms]%s", runtime, info));
+        if (runtime < 100) Log.d(TAG, "WRITE: [" + runtime + "ms]" + info);
+        else Log.w(TAG, "WRITE: runtime > 100ms [" + runtime + "ms]" + info);
     }
 
-    protected byte[] readMessage(UsbHidDriver mDevice) throws IOException, TimeoutException {
+    protected byte[] readMessage(CnlTransport mDevice) throws IOException, TimeoutException {
         return readMessage(mDevice, READ_TIMEOUT_MS);
     }
 
-    protected byte[] readMessage(UsbHidDriver mDevice, int timeout) throws IOException, TimeoutException {
+    protected byte[] readMessage(CnlTransport mDevice, int timeout) throws IOException, TimeoutException {
         long runtime = System.currentTimeMillis();
-        long timer;
+        long timer = 0;
         String info = "";
 
-        ByteArrayOutputStream responseMessage = new ByteArrayOutputStream();
-        byte[] responseBuffer = new byte[USB_BLOCKSIZE];
+        FrameBuffers buffers = FRAME_BUFFERS.get();
+        byte[] responseBuffer = buffers.readFrame;
+        byte[] responseMessage = null;
+        int responseSize = 0;
         int bytesRead;
         int messageSize = 0;
         int expectedSize = 0;
 
         do {
-            timer = System.currentTimeMillis();
-            if (responseMessage.size() == 0)
+            if (DEBUG_READ_MS) timer = System.currentTimeMillis();
+            if (responseSize == 0)
                 // initial read using the specified timeout
                 bytesRead = mDevice.read(responseBuffer, timeout);
             else
                 // once a read is in progress the additional reads should be immediate
                 bytesRead = mDevice.read(responseBuffer, 10000);
-            timer = System.currentTimeMillis() - timer;
 
             if (bytesRead > 0) {
 
                 // Validate the header
-                ByteBuffer header = ByteBuffer.allocate(3);
-                header.put(responseBuffer, 0, 3);
-                String headerString = new String(header.array());
-                if (!headerString.equals(USB_HEADER))
+                if (responseBuffer[0] != USB_HEADER[0] || responseBuffer[1] != USB_HEADER[1] || responseBuffer[2] != USB_HEADER[2])
                     throw new IOException("Unexpected header received" + HexDump.dumpHexString(responseBuffer));
 
                 messageSize = responseBuffer[3];
-                responseMessage.write(responseBuffer, 4, messageSize);
+
+                if (responseMessage == null) {
+                    // 0x80 or 0x81 messages have their full size in the first frame, assemble directly into a buffer of that size
+                    // all other messages use the reusable message buffer
+                    if (messageSize >= 0x21
+                            && ((responseBuffer[0x12 + 4] & 0xFF) == 0x80 || (responseBuffer[0x12 + 4] & 0xFF) == 0x81))
+                        responseMessage = new byte[0x21 + ((responseBuffer[0x1C + 4] & 0xFF) | (responseBuffer[0x1D + 4] << 8 & 0xFF00))];
+                    else
+                        responseMessage = buffers.messageBuffer(USB_BLOCKSIZE);
+                }
+
+                if (responseSize + messageSize > responseMessage.length) {
+                    // message is larger then the header size indicated or the message buffer
+                    byte[] grow = new byte[Math.max(responseSize + messageSize, responseMessage.length * 2)];
+                    System.arraycopy(responseMessage, 0, grow, 0, responseSize);
+                    responseMessage = grow;
+                }
+                System.arraycopy(responseBuffer, 4, responseMessage, responseSize, messageSize);
+                responseSize += messageSize;
 
                 if (DEBUG_READ_MS)
-                    info = String.format("%s [%sms %s %s %s]", info, timer, bytesRead, headerString, messageSize);
+                    info = String.format("%s [%sms %s %s]", info, System.currentTimeMillis() - timer, bytesRead, messageSize);
 
                 // get the expected size for 0x80 or 0x81 messages as they may be on a block boundary
                 if (expectedSize == 0 && messageSize >= 0x21
@@ -278,33 +317,43 @@ public abstract class ContourNextLinkMessage {
                 throw new IOException("readMessage: got a zero-sized response");
             }
 
-        } while (bytesRead > 0 && messageSize == 60 && responseMessage.size() != expectedSize);
+        } while (bytesRead > 0 && messageSize == 60 && responseSize != expectedSize);
 
         runtime = System.currentTimeMillis() - runtime;
-        info = String.format(" [%sms/%sms]%s", runtime, timeout, info);
 
         if (bytesRead == -1) {
+            info = " [" + runtime + "ms/" + timeout + "ms]" + info;
             if (runtime > 10000) Log.w(TAG, "READ: runtime > 10000ms TIMEOUT" + info);
             else Log.d(TAG, "READ: TIMEOUT" + info);
             throw new TimeoutException("Timeout waiting for a read response " + info);
         }
 
+        byte[] response;
+        if (responseMessage != null && responseMessage.length == responseSize)
+            response = responseMessage;
+        else if (responseMessage != null)
+            response = Arrays.copyOf(responseMessage, responseSize);
+        else
+            response = new byte[0];
+
+        info = " [" + runtime + "ms/" + timeout + "ms]" + info;
+
         // a 'response divisible by 60' is in general a valid response on a block boundary, noted in log as it may also be due to a usb read error
-        if (responseMessage.size() % 60 == 0)
-            Log.w(TAG, String.format("READ: response divisible by 60, response size: %s expected size: %s%s", responseMessage.size(), expectedSize, info));
+        if (responseSize % 60 == 0)
+            Log.w(TAG, String.format("READ: response divisible by 60, response size: %s expected size: %s%s", responseSize, expectedSize, info));
 
         if (runtime > 10000)
             Log.w(TAG, "READ: runtime > 10000ms" + info);
 
         if (DEBUG_READ)
-            Log.d(TAG, "READ:" + info + HexDump.dumpHexString(responseMessage.toByteArray()));
+            Log.d(TAG, "READ:" + info + HexDump.dumpHexString(response));
         else
             Log.d(TAG, "READ:" + info);
 
-        return responseMessage.toByteArray();
+        return response;
     }
 
-    protected byte[] readResponse0x80(UsbHidDriver mDevice, int timeout, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
+    protected byte[] readResponse0x80(CnlTransport mDevice, int timeout, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
 
         byte[] payload = readMessage(mDevice, timeout);
 
@@ -387,7 +436,7 @@ public abstract class ContourNextLinkMessage {
         return payload;
     }
 
-    protected byte[] readResponse0x81(UsbHidDriver mDevice, int timeout, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
+    protected byte[] readResponse0x81(CnlTransport mDevice, int timeout, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
         byte[] payload;
 
         try {
@@ -464,7 +513,7 @@ public abstract class ContourNextLinkMessage {
     // consistently stable even with a small timeout, clears multiple messages with very rare miss
     // which will get caught using the post-clear method as fail-safe
 
-    protected int clearMessage(UsbHidDriver mDevice, int timeout) throws IOException {
+    protected int clearMessage(CnlTransport mDevice, int timeout) throws IOException {
         Log.d(TAG, "CLEAR: [" + timeout + "ms]");
         int count = 0;
         boolean cleared = false;
@@ -513,25 +562,36 @@ public abstract class ContourNextLinkMessage {
         return count;
     }
 
-    protected byte[] sendToPump(UsbHidDriver mDevice, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
+    protected byte[] sendToPump(CnlTransport mDevice, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
         return sendToPump(mDevice, PRESEND_CLEAR_TIMEOUT_MS, tag);
     }
 
-    protected byte[] sendToPump(UsbHidDriver mDevice, int timeout, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
+    protected byte[] sendToPump(CnlTransport mDevice, int timeout, String tag) throws IOException, TimeoutException, UnexpectedMessageException {
         clearMessage(mDevice, timeout);
+        requestTime = System.currentTimeMillis();
         sendMessage(mDevice);
         return readResponse0x81(mDevice, READ_TIMEOUT_MS, tag);
     }
 
-    protected byte[] readFromPump(UsbHidDriver mDevice, MedtronicCnlSession pumpSession, String tag) throws IOException, TimeoutException, EncryptionException, ChecksumException, UnexpectedMessageException {
+    // pump request message type, 0 for messages that are not pump requests
+    protected short requestType() {
+        return 0;
+    }
+
+    // time from the request being sent (or the previous read for requests with several responses) to the response
+    private void requestLatency() {
+        long now = System.currentTimeMillis();
+        if (requestTime > 0 && requestType() != 0 && Stats.opened() > 0)
+            ((StatCnl) Stats.getInstance().readRecord(StatCnl.class)).latency(requestType(), now - requestTime);
+        requestTime = now;
+    }
+
+    protected byte[] readFromPump(CnlTransport mDevice, MedtronicCnlSession pumpSession, String tag) throws IOException, TimeoutException, EncryptionException, ChecksumException, UnexpectedMessageException {
         MultipacketSession multipacketSession = null;
-        byte[] tupple;
         byte[] payload = null;
         byte[] decrypted = null;
 
         int retry = 0;
-        int expectedSegments = 0;
-        long timeout;
 
         short cmd;
 
@@ -543,23 +603,14 @@ public abstract class ContourNextLinkMessage {
 
                 do {
 
-                    if (expectedSegments < 1) {
-                        tupple = multipacketSession.missingSegments();
-                        new MultipacketResendPacketsMessage(pumpSession, tupple).send(mDevice);
-                        expectedSegments = read16BEtoUInt(tupple, 0x02);
+                    // request the next gap as soon as the pump has finished sending the current window
+                    // rather than waiting out a timeout for segments that will not arrive
+                    if (multipacketSession.windowDone()) {
+                        new MultipacketResendPacketsMessage(pumpSession, multipacketSession.missingSegments()).send(mDevice);
                     }
 
                     try {
-                        // timeout adjusted for efficiency and to allow for large gaps of missing segments as the pump will keep sending until done
-                        if (multipacketSession.segmentsFilled == 0)
-                            // pump may have missed the initial ack, we need to wait the max timeout period
-                            timeout = READ_TIMEOUT_MS;
-                        else {
-                            timeout = MULTIPACKET_SEGMENT_MS * expectedSegments;
-                            if (timeout < MULTIPACKET_TIMEOUT_MS)
-                                timeout = MULTIPACKET_TIMEOUT_MS;
-                        }
-                        payload = readResponse0x80(mDevice, (int) timeout, tag);
+                        payload = readResponse0x80(mDevice, multipacketSession.segmentTimeout(), tag);
                         retry = 0;
 
                     } catch (TimeoutException e) {
@@ -576,8 +627,10 @@ public abstract class ContourNextLinkMessage {
                             throw new TimeoutException(String.format("Multisession timeout, retry failed (%s)", tag));
                         }
 
-                        Log.w(TAG, String.format("*** Multisession timeout: count: %s/%s expecting: %s retry: %s", multipacketSession.segmentsFilled, multipacketSession.packetsToFetch, expectedSegments, retry));
-                        expectedSegments = 0;
+                        Log.w(TAG, String.format("*** Multisession timeout: count: %s/%s window: %s-%s retry: %s",
+                                multipacketSession.segmentsFilled, multipacketSession.packetsToFetch,
+                                multipacketSession.windowStart + 1, multipacketSession.windowEnd + 1, retry));
+                        multipacketSession.timeout();
                     }
 
                 } while (retry > 0);
@@ -643,7 +696,6 @@ public abstract class ContourNextLinkMessage {
                             throw new UnexpectedMessageException(String.format("multipacketSession could not be initiated (%s)", tag));
                         }
                         new AckMessage(pumpSession, MedtronicSendMessageRequestMessage.MessageType.INITIATE_MULTIPACKET_TRANSFER.response()).send(mDevice);
-                        expectedSegments = multipacketSession.packetsToFetch;
                         break;
 
                     case MULTIPACKET_SEGMENT_TRANSMISSION:
@@ -656,9 +708,7 @@ public abstract class ContourNextLinkMessage {
                             Log.d(TAG, "*** Multisession Complete - packet not needed");
                         } else {
                             try {
-                                if (multipacketSession.addSegment(decrypted)) {
-                                    expectedSegments--;
-                                }
+                                multipacketSession.addSegment(decrypted);
                             } catch (UnexpectedMessageException e) {
                                 clearMessage(mDevice, ERROR_CLEAR_TIMEOUT_MS);
                                 throw e;
@@ -668,6 +718,7 @@ public abstract class ContourNextLinkMessage {
                             }
                             if (multipacketSession.payloadComplete()) {
                                 Log.d(TAG, "*** Multisession Complete");
+                                multipacketSession.stats();
                                 new AckMessage(pumpSession, MedtronicSendMessageRequestMessage.MessageType.MULTIPACKET_SEGMENT_TRANSMISSION.response()).send(mDevice);
                             }
                         }
@@ -730,16 +781,37 @@ public abstract class ContourNextLinkMessage {
         }
 
         if (multipacketSession != null)
-            if (multipacketSession.payloadComplete()) return multipacketSession.response;
-            else {
+            if (multipacketSession.payloadComplete()) {
+                requestLatency();
+                return multipacketSession.response;
+            } else {
                 clearMessage(mDevice, ERROR_CLEAR_TIMEOUT_MS);
                 throw new UnexpectedMessageException(String.format("multipacketSession did not complete (%s)", tag));
             }
 
+        requestLatency();
+
         // when returning non-multipacket decrypted data we need to trim the 2 byte checksum
         return Arrays.copyOfRange(decrypted, 0, decrypted.length - 2);
     }
 
+    private static class FrameBuffers {
+        private static final int MESSAGE_BUFFER_SIZE = 1024;
+
+        private final byte[] readFrame = new byte[USB_BLOCKSIZE];
+        private final byte[] writeFrame = new byte[USB_BLOCKSIZE];
+        private byte[] messageBuffer = new byte[MESSAGE_BUFFER_SIZE];
+
+        // scratch buffer for assembling messages of unknown size, contents are only valid until the next read
+        private byte[] messageBuffer(int size) {
+            if (messageBuffer.length < size)
+                messageBuffer = new byte[Math.max(size, messageBuffer.length * 2)];
+            return messageBuffer;
+        }
+    }
+
+    // tracks received segments and the currently requested window of segments
+    // gaps are requested as soon as the pump reaches the end of a window and read timeouts adapt to the measured segment latency
     private class MultipacketSession {
         private int sessionSize;
         private int packetSize;
@@ -749,6 +821,20 @@ public abstract class ContourNextLinkMessage {
         private boolean[] segments;
         private byte[] response;
 
+        // segment window requested from the pump, inclusive
+        private int windowStart;
+        private int windowEnd;
+        private int windowSegments;
+        private boolean windowOpen;
+
+        private long startTime;
+        private long lastSegmentTime;
+        private double segmentLatency = MULTIPACKET_SEGMENT_MS;
+
+        private int resendRequests;
+        private int repeatedSegments;
+        private int timeouts;
+
         private MultipacketSession(byte[] settings) {
             sessionSize = read32BEtoInt(settings, 0x0003);
             packetSize = read16BEtoUInt(settings, 0x0007);
@@ -757,6 +843,13 @@ public abstract class ContourNextLinkMessage {
             response = new byte[sessionSize + 1];
             segments  = new boolean[packetsToFetch];
             response[0] = settings[0]; // comDSequenceNumber
+
+            // the pump sends all segments after the initiate ack
+            windowStart = 0;
+            windowEnd = lastPacketNumber();
+            windowOpen = true;
+            startTime = System.currentTimeMillis();
+
             Log.d(TAG, String.format("*** Starting a new Multipacket Session. Expecting %s bytes of data from %s packets", sessionSize, packetsToFetch));
         }
 
@@ -768,15 +861,48 @@ public abstract class ContourNextLinkMessage {
             return segmentsFilled == packetsToFetch;
         }
 
+        // pump has sent everything in the requested window, any remaining gaps need to be requested
+        private boolean windowDone() {
+            return !windowOpen && !payloadComplete();
+        }
+
+        private void timeout() {
+            timeouts++;
+            windowOpen = false;
+        }
+
+        private int segmentTimeout() {
+            // pump may have missed the initial ack, we need to wait the max timeout period
+            if (segmentsFilled == 0) return READ_TIMEOUT_MS;
+            // first segment of a window includes the request turnaround
+            if (windowSegments == 0) return MULTIPACKET_TIMEOUT_MS;
+
+            int timeout = (int) (segmentLatency * MULTIPACKET_LATENCY_FACTOR);
+            if (timeout < MULTIPACKET_SEGMENT_MIN_MS) timeout = MULTIPACKET_SEGMENT_MIN_MS;
+            else if (timeout > MULTIPACKET_TIMEOUT_MS) timeout = MULTIPACKET_TIMEOUT_MS;
+            return timeout;
+        }
+
         private boolean addSegment(byte[] data) throws UnexpectedMessageException {
             int packetNumber = read16BEtoUInt(data, 0x0003);
             int packetSize = data.length - 7;
 
+            long now = System.currentTimeMillis();
+            if (windowSegments > 0)
+                segmentLatency = (segmentLatency * 7 + (now - lastSegmentTime)) / 8;
+            lastSegmentTime = now;
+            windowSegments++;
+
+            // a repeated segment is not new data and must not close the window
             if (segments[packetNumber]) {
+                repeatedSegments++;
                 Log.w(TAG, String.format("*** Got a Repeated Multipacket Segment: %s of %s, count: %s [packetSize=%s %s/%s]", packetNumber + 1, packetsToFetch, segmentsFilled, packetSize, this.packetSize, this.lastPacketSize));
                 return false;
             }
 
+            // pump sends segments in order, reaching the window end means any gaps in the window were lost
+            if (packetNumber >= windowEnd) windowOpen = false;
+
             if (packetNumber == lastPacketNumber() &&
                     packetSize != this.lastPacketSize) {
                 throw new UnexpectedMessageException("Multipacket Transfer last packet size mismatch");
@@ -788,6 +914,9 @@ public abstract class ContourNextLinkMessage {
             segments[packetNumber] = true;
             segmentsFilled++;
 
+            if (packetNumber < windowStart || packetNumber > windowEnd)
+                Log.w(TAG, String.format("*** Multipacket Segment outside of requested window: %s (%s-%s)", packetNumber + 1, windowStart + 1, windowEnd + 1));
+
             Log.d(TAG, String.format("*** Got a Multipacket Segment: %s of %s, count: %s [packetSize=%s %s/%s]", packetNumber + 1, packetsToFetch, segmentsFilled, packetSize, this.packetSize, this.lastPacketSize));
 
             // from[], offset, to[], offset, size
@@ -806,10 +935,28 @@ public abstract class ContourNextLinkMessage {
                 } else missing++;
             }
 
+            windowStart = packetNumber;
+            windowEnd = packetNumber + missing - 1;
+            windowSegments = 0;
+            windowOpen = true;
+            resendRequests++;
+
             Log.d(TAG, String.format("*** Request Missing Multipacket Segments, position: %s of %s, missing: %s", packetNumber + 1, packetsToFetch, missing));
 
             return new byte[]{(byte) (packetNumber >> 8), (byte) packetNumber, (byte) (missing >> 8), (byte) missing};
         }
+
+        private void stats() {
+            long runtime = System.currentTimeMillis() - startTime;
+            Log.i(TAG, String.format("*** Multisession Stats: %s bytes %s packets in %sms (%s bytes/sec) resend: %s repeated: %s timeouts: %s latency: %.1fms",
+                    sessionSize, packetsToFetch, runtime,
+                    runtime == 0 ? 0 : (sessionSize * 1000L) / runtime,
+                    resendRequests, repeatedSegments, timeouts, segmentLatency));
+
+            if (Stats.opened() > 0)
+                ((StatCnl) Stats.getInstance().readRecord(StatCnl.class)).multipacket(
+                        sessionSize, packetsToFetch, runtime, resendRequests, repeatedSegments, timeouts);
+        }
     }
 
 // refactor in progress to use constants for payload offsets
@@ -867,33 +1014,11 @@ public abstract class ContourNextLinkMessage {
             throw new EncryptionException( "Could not decrypt Medtronic Message (encryptedPayloadSize out of range)" );
         }
 
-        byte[] decryptedPayload = decrypt(pumpSession.getKey(), pumpSession.getIV(),
-                Arrays.copyOfRange(payload, offset, offset + encryptedPayloadSize));
-
-        if (decryptedPayload == null) {
-            throw new EncryptionException( "Could not decrypt Medtronic Message (decryptedPayload == null)" );
-        }
+        // decrypted straight from the received payload by the session cipher
+        byte[] decryptedPayload = new byte[encryptedPayloadSize];
+        pumpSession.decrypt(payload, offset, encryptedPayloadSize, decryptedPayload, 0);
 
         return decryptedPayload;
     }
 
-    private SecretKeySpec secretKeySpec;
-    private IvParameterSpec ivSpec;
-
-    protected byte[] decrypt(byte[] key, byte[] iv, byte[] encrypted) throws EncryptionException {
-        if (secretKeySpec == null) secretKeySpec = new SecretKeySpec(key, "AES");
-        if (ivSpec == null) ivSpec = new IvParameterSpec(iv);
-
-        byte[] decrypted;
-
-        try {
-            Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivSpec);
-            decrypted = cipher.doFinal(encrypted);
-        } catch (Exception e ) {
-            throw new EncryptionException( "Could not decrypt Medtronic Message" );
-        }
-        return decrypted;
-    }
-
 }
@@ -3,7 +3,7 @@ package info.nightscout.android.medtronic.message;
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
 import info.nightscout.android.medtronic.exception.UnexpectedMessageException;
@@ -18,7 +18,7 @@ public class DeviceInfoRequestCommandMessage extends ContourNextLinkRequestMessa
     }
 
     @Override
-    public DeviceInfoResponseCommandMessage send(UsbHidDriver mDevice, int millis) throws IOException, TimeoutException, EncryptionException, ChecksumException, UnexpectedMessageException {
+    public DeviceInfoResponseCommandMessage send(CnlTransport mDevice, int millis) throws IOException, TimeoutException, EncryptionException, ChecksumException, UnexpectedMessageException {
 
         clearMessage(mDevice, PRESEND_CLEAR_TIMEOUT_MS);
 
@@ -7,7 +7,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
@@ -31,7 +31,7 @@ public class DiscoveryRequestMessage extends MedtronicRequestMessage<DiscoveryRe
     }
 
     @Override
-    public DiscoveryResponseMessage send(UsbHidDriver mDevice) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
+    public DiscoveryResponseMessage send(CnlTransport mDevice) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
         byte[] payload;
 
         clearMessage(mDevice, PRESEND_CLEAR_TIMEOUT_MS);
@@ -4,14 +4,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
-import info.nightscout.android.medtronic.exception.EncryptionException;
 
 /**
  * Created by lgoedhart on 26/03/2016.
@@ -47,24 +42,7 @@ public abstract class MedtronicRequestMessage<T> extends ContourNextLinkBinaryRe
         return payloadBuffer.array();
     }
 
-
-    // TODO - maybe move the SecretKeySpec, IvParameterSpec and Cipher construction into the PumpSession?
-    protected static byte[] encrypt(byte[] key, byte[] iv, byte[] clear) throws EncryptionException {
-        SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        byte[] encrypted = new byte[0];
-
-        try {
-            Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivSpec);
-            encrypted = cipher.doFinal(clear);
-        } catch (Exception e) {
-            throw new EncryptionException( "Could not encrypt Medtronic Message" );
-        }
-        return encrypted;
-    }
-
-    protected void sendMessage(UsbHidDriver mDevice) throws IOException {
+    protected void sendMessage(CnlTransport mDevice) throws IOException {
         super.sendMessage(mDevice);
         mPumpSession.incrMedtronicSequenceNumber();
     }
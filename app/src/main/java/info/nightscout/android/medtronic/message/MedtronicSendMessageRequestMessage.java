@@ -7,6 +7,7 @@ import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
 import info.nightscout.android.medtronic.exception.UnexpectedMessageException;
 import info.nightscout.android.utils.HexDump;
+import info.nightscout.android.utils.EnumTable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -59,15 +60,43 @@ public abstract class MedtronicSendMessageRequestMessage<T>  extends MedtronicRe
             return new byte[]{(byte) (this.request >> 8), (byte) (this.request)};
         }
 
+        private static final EnumTable<MessageType> TABLE = new EnumTable<>(values(), NO_TYPE, new EnumTable.Key<MessageType>() {
+            @Override
+            public int key(MessageType messageType) {
+                return messageType.response;
+            }
+        });
+
         public static MessageType convert(short value) {
-            for (MessageType messageType : MessageType.values())
-                if (messageType.response == value) return messageType;
-            return MessageType.NO_TYPE;
+            return TABLE.get(value);
+        }
+
+        private static final EnumTable<MessageType> REQUEST_TABLE = new EnumTable<>(values(), NO_TYPE, new EnumTable.Key<MessageType>() {
+            @Override
+            public int key(MessageType messageType) {
+                return messageType.request;
+            }
+        });
+
+        public static MessageType request(int value) {
+            return REQUEST_TABLE.get(value);
+        }
+
+        public short request() {
+            return request;
         }
     }
 
+    private MessageType messageType;
+
     protected MedtronicSendMessageRequestMessage(MessageType messageType, MedtronicCnlSession pumpSession, byte[] payload) throws EncryptionException, ChecksumException {
         super(CommandType.SEND_MESSAGE, CommandAction.TRANSMIT_PACKET, pumpSession, buildPayload(messageType, pumpSession, payload));
+        this.messageType = messageType;
+    }
+
+    @Override
+    protected short requestType() {
+        return messageType.request();
     }
 
     @Override
@@ -128,7 +157,8 @@ public abstract class MedtronicSendMessageRequestMessage<T>  extends MedtronicRe
         String outputString = HexDump.dumpHexString(sendPayloadBuffer.array());
         Log.d(TAG, String.format("*** REQUEST: %s (%04X) PAYLOAD: %s", messageType.name(), messageType.request, outputString));
 
-        payloadBuffer.put(encrypt( pumpSession.getKey(), pumpSession.getIV(), sendPayloadBuffer.array()));
+        // encrypted directly into the message buffer
+        pumpSession.encrypt(sendPayloadBuffer.array(), 0, sendPayloadBuffer.capacity(), payloadBuffer.array(), payloadBuffer.position());
 
         return payloadBuffer.array();
     }
@@ -1,6 +1,5 @@
 package info.nightscout.android.medtronic.message;
 
-import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
 
@@ -18,27 +17,62 @@ public class MessageUtils {
         return sum;
     }
 
+    private static final int CRC16CCITT_POLYNOMIAL = 0x1021;
+    private static final int[] CRC16CCITT_TABLE = CRC16CCITTTable(CRC16CCITT_POLYNOMIAL);
+
+    private static int[] CRC16CCITTTable(int polynomial) {
+        int[] table = new int[256];
+        for (int n = 0; n < 256; n++) {
+            int crc = n << 8;
+            for (int i = 0; i < 8; i++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+            }
+            table[n] = crc & 0xffff;
+        }
+        return table;
+    }
+
     public static int CRC16CCITT(byte[] data, int initialValue, int polynomial, int bytesToCheck) {
         return CRC16CCITT(data, 0, initialValue, polynomial, bytesToCheck);
     }
 
     public static int CRC16CCITT(byte[] data, int offset, int initialValue, int polynomial, int bytesToCheck) {
-        // From http://introcs.cs.princeton.edu/java/61data/CRC16CCITT.java
-        int crc = initialValue;
-        for (int c = 0; c < bytesToCheck; c++) {
-            byte b = data[c + offset];
-            for (int i = 0; i < 8; i++) {
-                boolean bit = ((b >> (7 - i) & 1) == 1);
-                boolean c15 = ((crc >> 15 & 1) == 1);
-                crc <<= 1;
-                if (c15 ^ bit) crc ^= polynomial;
-            }
+        // table driven, one lookup per byte instead of one iteration per bit
+        int[] table = polynomial == CRC16CCITT_POLYNOMIAL ? CRC16CCITT_TABLE : CRC16CCITTTable(polynomial);
+        int crc = initialValue & 0xffff;
+        int end = offset + bytesToCheck;
+        for (int c = offset; c < end; c++) {
+            crc = ((crc << 8) ^ table[((crc >> 8) ^ data[c]) & 0xff]) & 0xffff;
         }
-
-        crc &= 0xffff;
         return crc;
     }
 
+    /**
+     * Verify all blocks of a history payload in one pass.
+     * Each block stores its used size and CRC16 in the last 4 bytes (big endian).
+     *
+     * @return index of the first block that fails the check, or -1 when all blocks are valid
+     */
+    public static int CRC16CCITTBlocks(byte[] data, int offset, int length, int blockSize, int initialValue, int polynomial) {
+        int[] table = polynomial == CRC16CCITT_POLYNOMIAL ? CRC16CCITT_TABLE : CRC16CCITTTable(polynomial);
+        int blocks = length / blockSize;
+        for (int i = 0; i < blocks; i++) {
+            int blockStart = offset + i * blockSize;
+            int blockTail = blockStart + blockSize - 4;
+            int size = ((data[blockTail] & 0xff) << 8) | (data[blockTail + 1] & 0xff);
+            int checksum = ((data[blockTail + 2] & 0xff) << 8) | (data[blockTail + 3] & 0xff);
+            if (size > blockSize) return i;
+
+            int crc = initialValue & 0xffff;
+            int end = blockStart + size;
+            for (int c = blockStart; c < end; c++) {
+                crc = ((crc << 8) ^ table[((crc >> 8) ^ data[c]) & 0xff]) & 0xffff;
+            }
+            if (crc != checksum) return i;
+        }
+        return -1;
+    }
+
     public static byte[] hexStringToByteArray(String s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
@@ -57,41 +91,87 @@ public class MessageUtils {
         return builder.toString();
     }
 
-    public static Date decodeDateTime( long rtc, long offset ) {
-        TimeZone currentTz = java.util.Calendar.getInstance().getTimeZone();
+    // Base time is midnight 1st Jan 2000 (GMT)
+    private static final long BASE_TIME = 946684800;
 
-        // Base time is midnight 1st Jan 2000 (GMT)
-        long baseTime = 946684800;
+    public static Date decodeDateTime( long rtc, long offset ) {
+        return new Date(decodeTime(rtc, offset));
+    }
 
+    public static long decodeTime( long rtc, long offset ) {
         // The time from the pump represents epochTime in GMT, but we treat it as if it were in our own timezone
         // We do this, because the pump does not have a concept of timezone
         // For example, if baseTime + rtc + offset was 1463137668, this would be
         // Fri, 13 May 2016 21:07:48 GMT.
         // However, the time the pump *means* is Fri, 13 May 2016 21:07:48 in our own timezone
-        long offsetFromUTC = currentTz.getOffset(Calendar.getInstance().getTimeInMillis());
+        long offsetFromUTC = ZoneOffset.current();
 
-        return new Date((( baseTime + rtc + offset ) * 1000L ) - offsetFromUTC );
+        return (( BASE_TIME + rtc + offset ) * 1000L ) - offsetFromUTC;
     }
 
     public static long rtcFromTime( long time, long offset ) {
-        TimeZone currentTz = java.util.Calendar.getInstance().getTimeZone();
+        long offsetFromUTC = ZoneOffset.current();
 
-        // Base time is midnight 1st Jan 2000 (GMT)
-        long baseTime = 946684800;
+        return ((offsetFromUTC + time) / 1000L) - BASE_TIME - offset;
+    }
 
-        long offsetFromUTC = currentTz.getOffset(Calendar.getInstance().getTimeInMillis());
+    /*
+    Offset from UTC for the current time in the default timezone.
 
-        return ((offsetFromUTC + time) / 1000L) - baseTime - offset;
-    }
+    Looking this up needs a Calendar and TimeZone for every call and the history parser converts
+    every event and every sensor reading. The offset is cached until the next DST transition or
+    for a short period so a change of timezone by the user is picked up.
+    */
+    private static class ZoneOffset {
+        private static final long RECHECK_MS = 60000L;
+        private static final long TRANSITION_SEARCH_MS = 60 * 60000L;
 
-    public static long offsetFromTime( long time, long rtc ) {
-        TimeZone currentTz = java.util.Calendar.getInstance().getTimeZone();
+        private static volatile ZoneOffset cached;
 
-        // Base time is midnight 1st Jan 2000 (GMT)
-        long baseTime = 946684800;
+        private final long offset;
+        private final long validFrom;
+        private final long validUntil;
 
-        long offsetFromUTC = currentTz.getOffset(Calendar.getInstance().getTimeInMillis());
+        private ZoneOffset(long offset, long validFrom, long validUntil) {
+            this.offset = offset;
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+        }
+
+        private static long current() {
+            long now = System.currentTimeMillis();
+            ZoneOffset zoneOffset = cached;
+            if (zoneOffset == null || now < zoneOffset.validFrom || now >= zoneOffset.validUntil) {
+                zoneOffset = create(TimeZone.getDefault(), now);
+                cached = zoneOffset;
+            }
+            return zoneOffset.offset;
+        }
+
+        private static ZoneOffset create(TimeZone timeZone, long now) {
+            long offset = timeZone.getOffset(now);
+            long until = now + RECHECK_MS;
+
+            // if a transition is close find it so the offset changes at the correct time
+            if (timeZone.getOffset(now + TRANSITION_SEARCH_MS) != offset) {
+                long low = now;
+                long high = now + TRANSITION_SEARCH_MS;
+                while (high - low > 1) {
+                    long mid = (low + high) >>> 1;
+                    if (timeZone.getOffset(mid) == offset) low = mid;
+                    else high = mid;
+                }
+                // high is the first ms using the new offset
+                if (high < until) until = high;
+            }
+
+            return new ZoneOffset(offset, now, until);
+        }
+    }
+
+    public static long offsetFromTime( long time, long rtc ) {
+        long offsetFromUTC = ZoneOffset.current();
 
-        return ((offsetFromUTC + time) / 1000L) - baseTime - rtc;
+        return ((offsetFromUTC + time) / 1000L) - BASE_TIME - rtc;
     }
 }
@@ -3,7 +3,7 @@ package info.nightscout.android.medtronic.message;
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
@@ -20,7 +20,7 @@ public class MultipacketResendPacketsMessage extends MedtronicSendMessageRequest
         super(MessageType.MULTIPACKET_RESEND_PACKETS, pumpSession, payload);
     }
 
-    public MultipacketResendPacketsMessage send(UsbHidDriver mDevice) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
+    public MultipacketResendPacketsMessage send(CnlTransport mDevice) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
 
         sendToPump(mDevice, TAG);
 
@@ -3,7 +3,7 @@ package info.nightscout.android.medtronic.message;
 import java.io.IOException;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
@@ -20,7 +20,7 @@ public class NakMessage extends MedtronicSendMessageRequestMessage {
         super(MessageType.NAK_COMMAND, pumpSession, payload);
     }
 
-    public NakMessage send(UsbHidDriver mDevice) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
+    public NakMessage send(CnlTransport mDevice) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
         sendToPump(mDevice, TAG);
 
         return null;
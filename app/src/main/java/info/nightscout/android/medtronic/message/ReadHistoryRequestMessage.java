@@ -15,7 +15,8 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
-import info.nightscout.android.USB.UsbHidDriver;
+import info.nightscout.android.USB.CnlTransport;
+import info.nightscout.android.history.PumpHistoryParser;
 import info.nightscout.android.medtronic.MedtronicCnlSession;
 import info.nightscout.android.medtronic.exception.ChecksumException;
 import info.nightscout.android.medtronic.exception.EncryptionException;
@@ -39,10 +40,18 @@ public class ReadHistoryRequestMessage extends MedtronicSendMessageRequestMessag
 
     private ByteArrayOutputStream blocks;
 
+    // pipelined mode, verified blocks are handed to the parser as they arrive
+    private PumpHistoryParser parser;
+
     public ReadHistoryRequestMessage(MedtronicCnlSession pumpSession, int startRTC, int endRTC, int dataType) throws EncryptionException, ChecksumException {
         super(MessageType.READ_HISTORY, pumpSession, buildPayload(startRTC, endRTC, dataType));
     }
 
+    public ReadHistoryRequestMessage(MedtronicCnlSession pumpSession, int startRTC, int endRTC, int dataType, PumpHistoryParser parser) throws EncryptionException, ChecksumException {
+        this(pumpSession, startRTC, endRTC, dataType);
+        this.parser = parser;
+    }
+
     protected static byte[] buildPayload(int startRTC, int endRTC, int dataType) {
         ByteBuffer payload = ByteBuffer.allocate(12);
         payload.order(ByteOrder.BIG_ENDIAN);
@@ -55,8 +64,9 @@ public class ReadHistoryRequestMessage extends MedtronicSendMessageRequestMessag
         return payload.array();
     }
 
-    public ReadHistoryResponseMessage send(UsbHidDriver mDevice, int millis) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
+    public ReadHistoryResponseMessage send(CnlTransport mDevice, int millis) throws IOException, TimeoutException, ChecksumException, EncryptionException, UnexpectedMessageException {
         blocks = new ByteArrayOutputStream();
+        if (parser != null) parser.resync();
 
         sendToPump(mDevice, TAG);
 
@@ -89,6 +99,10 @@ public class ReadHistoryRequestMessage extends MedtronicSendMessageRequestMessag
                         } catch (ChecksumException e) {
                             clearMessage(mDevice, ERROR_CLEAR_TIMEOUT_MS);
                             throw e;
+                        } catch (IllegalStateException e) {
+                            // pipelined parser has failed, the caller gets the parser failure from the parser
+                            clearMessage(mDevice, ERROR_CLEAR_TIMEOUT_MS);
+                            throw new UnexpectedMessageException("history parser stopped");
                         } catch (Exception e) {
                             clearMessage(mDevice, ERROR_CLEAR_TIMEOUT_MS);
                             throw new UnexpectedMessageException("history message block corrupt");
@@ -148,17 +162,22 @@ public class ReadHistoryRequestMessage extends MedtronicSendMessageRequestMessag
             throw new UnexpectedMessageException("Block payload size is not a multiple of 2048");
         }
 
-        for (int i = 0; i < blockPayload.length / BLOCK_SIZE; i++) {
-            int blockStart = i * BLOCK_SIZE;
+        int badBlock = MessageUtils.CRC16CCITTBlocks(blockPayload, 0, blockPayload.length, BLOCK_SIZE, 0xFFFF, 0x1021);
+        if (badBlock >= 0) {
+            int blockStart = badBlock * BLOCK_SIZE;
             int blockSize = read16BEtoUInt(blockPayload, blockStart + BLOCK_SIZE - 4);
             int blockChecksum = read16BEtoUInt(blockPayload, blockStart + BLOCK_SIZE - 2);
-
+            if (blockSize > BLOCK_SIZE)
+                throw new UnexpectedMessageException("Bad size in block " + badBlock + " (" + blockSize + ")");
             int calculatedChecksum = MessageUtils.CRC16CCITT(blockPayload, blockStart, 0xFFFF, 0x1021, blockSize);
-            if (blockChecksum != calculatedChecksum) {
-                throw new ChecksumException("Bad checksum in block " + i + " (" + HexDump.toHexString(blockChecksum) + "/" + HexDump.toHexString(calculatedChecksum) + ")");
-            } else {
-                blocks.write(blockPayload, blockStart, blockSize);
-            }
+            throw new ChecksumException("Bad checksum in block " + badBlock + " (" + HexDump.toHexString(blockChecksum) + "/" + HexDump.toHexString(calculatedChecksum) + ")");
+        }
+
+        for (int i = 0; i < blockPayload.length / BLOCK_SIZE; i++) {
+            int blockStart = i * BLOCK_SIZE;
+            int blockSize = read16BEtoUInt(blockPayload, blockStart + BLOCK_SIZE - 4);
+            if (parser != null) parser.push(blockPayload, blockStart, blockSize);
+            else blocks.write(blockPayload, blockStart, blockSize);
         }
     }
 }
@@ -366,7 +366,9 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
                     UserLogMessage.send(mContext, R.string.ul_poll__connecting_to_contour_next_link);
 
                     shutdownProtect = true;
+                    long phaseStart = System.currentTimeMillis();
                     cnlReader.requestDeviceInfo();
+                    phase(StatPoll.PHASE.DEVICE_INFO, phaseStart);
 
                     // Is the device already configured?
                     if (realm.where(ContourNextLinkInfo.class).equalTo("serialNumber", cnlReader.getStickSerial()).findFirst() == null) {
@@ -384,16 +386,22 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
 
                     cnlReader.getPumpSession().setStickSerial(info.getSerialNumber());
 
+                    phaseStart = System.currentTimeMillis();
                     cnlReader.enterControlMode();
+                    phaseStart = phase(StatPoll.PHASE.CONTROL_MODE, phaseStart);
 
                     try {
                         cnlReader.enterPassthroughMode();
+                        phaseStart = phase(StatPoll.PHASE.PASSTHROUGH_MODE, phaseStart);
                         shutdownProtect = false;
                         cnlReader.openConnection();
+                        phaseStart = phase(StatPoll.PHASE.OPEN_CONNECTION, phaseStart);
 
                         cnlReader.requestReadInfo();
+                        phaseStart = phase(StatPoll.PHASE.READ_INFO, phaseStart);
 
                         cnlReader.requestLinkKey();
+                        phase(StatPoll.PHASE.LINK_KEY, phaseStart);
                         realm.executeTransaction(new Realm.Transaction() {
                             @Override
                             public void execute(@NonNull Realm realm) {
@@ -418,7 +426,9 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
                                 .equalTo("pumpMac", pumpMAC)
                                 .findFirst();
 
+                        phaseStart = System.currentTimeMillis();
                         final byte radioChannel = cnlReader.negotiateChannel(activePump.getLastRadioChannel());
+                        phase(StatPoll.PHASE.NEGOTIATE_CHANNEL, phaseStart);
                         if (radioChannel == 0) {
                             Log.i(TAG, "Could not communicate with the pump. Is it nearby?");
                             UserLogMessage.send(mContext, UserLogMessage.TYPE.WARN, R.string.ul_poll__could_not_communicate_with_the_pump);
@@ -467,7 +477,9 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
 
                             pumpRecord.setDeviceName(deviceName);
 
+                            phaseStart = System.currentTimeMillis();
                             cnlReader.getPumpTime();
+                            phase(StatPoll.PHASE.PUMP_TIME, phaseStart);
                             pumpClockDifference = cnlReader.getSessionClockDifference();
 
                             pumpRecord.setPumpMAC(pumpMAC);
@@ -475,7 +487,9 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
                             pumpRecord.setEventRTC(cnlReader.getSessionRTC());
                             pumpRecord.setEventOFFSET(cnlReader.getSessionOFFSET());
                             pumpRecord.setClockDifference(pumpClockDifference);
+                            phaseStart = System.currentTimeMillis();
                             cnlReader.updatePumpStatus(pumpRecord);
+                            phase(StatPoll.PHASE.PUMP_STATUS, phaseStart);
 
                             validatePumpRecord(pumpRecord, activePump);
 
@@ -528,9 +542,12 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
                                             && pumpHistoryHandler.pumpHistoryRecency() > dataStore.getLowBatPollInterval()
                                             && pumpHistoryHandler.pumpHistoryRecency() < 60 * 60000L)) {
 
-                                if (pumpHistoryHandler.update(cnlReader))
-                                    // poll sooner when the limiter is reached as more history data is required
-                                    pollInterval = POLL_PERIOD_MS / 2;
+                                phaseStart = System.currentTimeMillis();
+                                boolean limited = pumpHistoryHandler.update(cnlReader);
+                                phase(StatPoll.PHASE.HISTORY, phaseStart);
+
+                                // poll sooner when the limiter is reached as more history data is required
+                                if (limited) pollInterval = POLL_PERIOD_MS / 2;
                             }
 
                         }
@@ -642,6 +659,7 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
                     UserLogMessage.sendE(mContext, String.format("{id;%s} {time.poll.e;%s} [%sms]", R.string.ul_poll__next_poll_due_at, nextpoll, timer));
 
                     statPoll.timer(timer);
+                    statPoll.latency(StatPoll.PHASE.POLL, timer);
 
                     RemoveOutdatedRecords();
                     statusWarnings();
@@ -799,6 +817,13 @@ CNL: unpaired PUMP: unpaired UPLOADER: unregistered = "Invalid message received
         }
     }
 
+    // record the latency for a poll phase, returns the end time for use as the start of a following phase
+    private long phase(StatPoll.PHASE phase, long start) {
+        long now = System.currentTimeMillis();
+        statPoll.latency(phase, now - start);
+        return now;
+    }
+
     private void statsReport() {
         String todayKey = Stats.sdfDateToKey.format(timePollStarted);
         Log.i(TAG, "STATS: " + Stats.report(todayKey));
@@ -0,0 +1,95 @@
+package info.nightscout.android.model.medtronicNg;
+
+import java.util.Date;
+
+import io.realm.RealmObject;
+import io.realm.annotations.Index;
+
+/*
+Decompressed and CRC verified history data as received from the pump for a requested RTC range.
+The data holds every event the pump sent for the request, this is usually more then the range.
+
+Data is written in rows as it is received, rows of a range share the key and are replayed in seq order.
+The range is only set and marked complete when the transfer has finished, toRTC is the newest event
+actually received so a short response never covers more than the pump sent.
+*/
+
+public class HistoryBlock extends RealmObject {
+    @Index
+    private long pumpMAC;
+    private byte historyType;
+
+    @Index
+    private long key;
+    private int seq;
+    private boolean complete;
+
+    private int fromRTC;
+    private int toRTC;
+
+    private byte[] data;
+    private int size;
+
+    // last used, for eviction
+    private Date date;
+
+    public void addBlock(long pumpMAC, byte historyType, long key, int seq, byte[] data) {
+        this.pumpMAC = pumpMAC;
+        this.historyType = historyType;
+        this.key = key;
+        this.seq = seq;
+        this.data = data;
+        this.size = data.length;
+        this.date = new Date();
+    }
+
+    public void complete(int fromRTC, int toRTC) {
+        this.fromRTC = fromRTC;
+        this.toRTC = toRTC;
+        this.complete = true;
+    }
+
+    public long getPumpMAC() {
+        return pumpMAC;
+    }
+
+    public byte getHistoryType() {
+        return historyType;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getFromRTC() {
+        return fromRTC;
+    }
+
+    public int getToRTC() {
+        return toRTC;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+}
@@ -30,11 +30,11 @@ public class PumpHistoryAlarm extends RealmObject implements PumpHistoryInterfac
     private static final String TAG = PumpHistoryAlarm.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -135,7 +135,7 @@ public class PumpHistoryAlarm extends RealmObject implements PumpHistoryInterfac
             if (!pumpHistorySender.isOpt(senderID, PumpHistorySender.SENDEROPT.ALARM_CLEARED))
                 return messageItems;
             if (!pumpHistorySender.isOpt(senderID, PumpHistorySender.SENDEROPT.ALARM_CLEARED_ALWAYS_UPDATE)
-                    && senderACK.contains(senderID))
+                    && PumpHistorySender.isSender(senderACK, senderID))
                 return messageItems;
         }
 
@@ -371,32 +371,32 @@ public class PumpHistoryAlarm extends RealmObject implements PumpHistoryInterfac
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
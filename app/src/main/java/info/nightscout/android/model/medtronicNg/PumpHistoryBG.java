@@ -35,11 +35,11 @@ public class PumpHistoryBG extends RealmObject implements PumpHistoryInterface {
     private static final String TAG = PumpHistoryBG.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -156,7 +156,7 @@ public class PumpHistoryBG extends RealmObject implements PumpHistoryInterface {
                     FormatKit.getInstance().getString(R.string.text__Target),
                     FormatKit.getInstance().formatAsGlucose(bg, pumpHistorySender.isOpt(senderID, PumpHistorySender.SENDEROPT.GLUCOSE_UNITS)));
 
-        } else if (!senderACK.contains(senderID) && pumpHistorySender.isOpt(senderID, PumpHistorySender.SENDEROPT.BG_INFO)) {
+        } else if (!PumpHistorySender.isSender(senderACK, senderID) && pumpHistorySender.isOpt(senderID, PumpHistorySender.SENDEROPT.BG_INFO)) {
             type = MessageItem.TYPE.BG;
             date = eventDate;
             title = "BG";
@@ -349,32 +349,32 @@ public class PumpHistoryBG extends RealmObject implements PumpHistoryInterface {
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
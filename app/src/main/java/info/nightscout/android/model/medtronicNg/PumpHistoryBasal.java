@@ -7,6 +7,7 @@ import java.util.Date;
 import java.util.List;
 
 import info.nightscout.android.R;
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.PumpHistoryParser;
@@ -14,6 +15,7 @@ import info.nightscout.android.history.PumpHistorySender;
 import info.nightscout.android.utils.FormatKit;
 import info.nightscout.android.upload.nightscout.TreatmentsEndpoints;
 import info.nightscout.android.history.NightscoutItem;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
 import io.realm.RealmObject;
 import io.realm.RealmResults;
@@ -25,16 +27,16 @@ import io.realm.annotations.Index;
  * Created by Pogman on 26.10.17.
  */
 
-public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterface {
+public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterface, HistoryRecordCache.Record {
     @Ignore
     private static final String TAG = PumpHistoryBasal.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -86,10 +88,15 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
             return this.value == value;
         }
 
+        private static final EnumTable<RECORDTYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<RECORDTYPE>() {
+            @Override
+            public int key(RECORDTYPE recordtype) {
+                return recordtype.value;
+            }
+        });
+
         public static RECORDTYPE convert(byte value) {
-            for (RECORDTYPE recordtype : RECORDTYPE.values())
-                if (recordtype.value == value) return recordtype;
-            return RECORDTYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -251,7 +258,7 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
     }
 
     public static void programmed(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte preset,
             byte type,
@@ -259,14 +266,11 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
             int percentageOfRate,
             int duration) {
 
-        PumpHistoryBasal programmedRecord = realm.where(PumpHistoryBasal.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("recordtype", RECORDTYPE.PROGRAMMED.value())
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryBasal programmedRecord = cache.find(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.PROGRAMMED.value());
         if (programmedRecord == null) {
             Log.d(TAG, "*new* temp basal programmed");
             programmedRecord = realm.createObject(PumpHistoryBasal.class);
+            cache.add(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.PROGRAMMED.value(), programmedRecord);
             programmedRecord.pumpMAC = pumpMAC;
             programmedRecord.recordtype = RECORDTYPE.PROGRAMMED.value();
             programmedRecord.eventDate = eventDate;
@@ -309,7 +313,7 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
     }
 
     public static void completed(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte preset,
             byte type,
@@ -318,14 +322,11 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
             int duration,
             boolean canceled) {
 
-        PumpHistoryBasal completedRecord = realm.where(PumpHistoryBasal.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("recordtype", RECORDTYPE.COMPLETED.value())
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryBasal completedRecord = cache.find(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.COMPLETED.value());
         if (completedRecord == null) {
             Log.d(TAG, "*new* temp basal completed");
             completedRecord = realm.createObject(PumpHistoryBasal.class);
+            cache.add(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.COMPLETED.value(), completedRecord);
             completedRecord.pumpMAC = pumpMAC;
             completedRecord.recordtype = RECORDTYPE.COMPLETED.value();
             completedRecord.eventDate = eventDate;
@@ -365,18 +366,15 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
     }
 
     public static void suspend(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte reason) {
 
-        PumpHistoryBasal suspendRecord = realm.where(PumpHistoryBasal.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("recordtype", RECORDTYPE.SUSPEND.value())
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryBasal suspendRecord = cache.find(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.SUSPEND.value());
         if (suspendRecord == null) {
             Log.d(TAG, "*new* suspend basal");
             suspendRecord = realm.createObject(PumpHistoryBasal.class);
+            cache.add(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.SUSPEND.value(), suspendRecord);
             suspendRecord.pumpMAC = pumpMAC;
             suspendRecord.recordtype = RECORDTYPE.SUSPEND.value();
             suspendRecord.eventDate = eventDate;
@@ -391,18 +389,15 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
     }
 
     public static void resume(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte reason) {
 
-        PumpHistoryBasal resumeRecord = realm.where(PumpHistoryBasal.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("recordtype", RECORDTYPE.RESUME.value())
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryBasal resumeRecord = cache.find(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.RESUME.value());
         if (resumeRecord == null) {
             Log.d(TAG, "*new* resume basal");
             resumeRecord = realm.createObject(PumpHistoryBasal.class);
+            cache.add(PumpHistoryBasal.class, eventRTC, "recordtype", RECORDTYPE.RESUME.value(), resumeRecord);
             resumeRecord.pumpMAC = pumpMAC;
             resumeRecord.recordtype = RECORDTYPE.RESUME.value();
             resumeRecord.eventDate = eventDate;
@@ -455,32 +450,32 @@ public class PumpHistoryBasal extends RealmObject implements PumpHistoryInterfac
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
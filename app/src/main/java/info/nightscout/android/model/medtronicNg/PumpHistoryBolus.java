@@ -28,11 +28,11 @@ public class PumpHistoryBolus extends RealmObject implements PumpHistoryInterfac
     private static final String TAG = PumpHistoryBolus.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -578,32 +578,32 @@ public class PumpHistoryBolus extends RealmObject implements PumpHistoryInterfac
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -1,9 +1,13 @@
 package info.nightscout.android.model.medtronicNg;
 
+import android.util.Log;
+import android.util.SparseArray;
+
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.NightscoutItem;
@@ -13,6 +17,7 @@ import info.nightscout.android.medtronic.exception.IntegrityException;
 import info.nightscout.android.upload.nightscout.EntriesEndpoints;
 import io.realm.Realm;
 import io.realm.RealmObject;
+import io.realm.RealmResults;
 import io.realm.annotations.Ignore;
 import io.realm.annotations.Index;
 
@@ -25,11 +30,11 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
     private static final String TAG = PumpHistoryCGM.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -133,8 +138,8 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
     }
 
     public static void cgmFromHistory(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
-            Date eventDate, int eventRTC, int eventOFFSET,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
+            long eventTime, int eventRTC, int eventOFFSET,
             int sgv,
             double isig,
             double vctr,
@@ -148,10 +153,8 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
             boolean sensorError,
             byte sensorException) throws IntegrityException {
 
-        PumpHistoryCGM record = realm.where(PumpHistoryCGM.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("cgmRTC", eventRTC)
-                .findFirst();
+        CgmIndex index = cache.cgm();
+        PumpHistoryCGM record = index.find(realm, eventRTC);
 
         if (record == null) {
             // create new entry
@@ -159,7 +162,7 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
             record.pumpMAC = pumpMAC;
             record.key = HistoryUtils.key("CGM", eventRTC);
             record.history = true;
-            record.eventDate = eventDate;
+            record.eventDate = new Date(eventTime);
             record.cgmRTC = eventRTC;
             record.cgmOFFSET = eventOFFSET;
             record.isig = isig;
@@ -174,10 +177,11 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
             record.sensorError = sensorError;
             sgv(record, sgv, null, sensorException);
             pumpHistorySender.setSenderREQ(record);
+            index.add(record);
         }
 
         else {
-            HistoryUtils.integrity(record, eventDate);
+            HistoryUtils.integrity(record, eventTime);
             if (!record.history) {
                 // update the entry
                 record.history = true;
@@ -224,6 +228,57 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
         else HistoryUtils.integrity(record, eventDate);
     }
 
+    // in memory lookup of the cgm records for a pump, built once per parse over a rtc range
+    // a cgm history event holds many readings and each would otherwise need its own realm query
+    // readings outside of the indexed range fall back to a query
+    public static class CgmIndex {
+        private final long pumpMAC;
+        private final int fromRTC;
+        private final int toRTC;
+        private final boolean indexed;
+        private final SparseArray<PumpHistoryCGM> records = new SparseArray<>();
+
+        // an empty range (fromRTC > toRTC) uses queries only
+        public CgmIndex(Realm realm, long pumpMAC, int fromRTC, int toRTC) {
+            this.pumpMAC = pumpMAC;
+            this.fromRTC = fromRTC;
+            this.toRTC = toRTC;
+            indexed = fromRTC <= toRTC;
+
+            if (indexed) {
+                RealmResults<PumpHistoryCGM> results = realm.where(PumpHistoryCGM.class)
+                        .equalTo("pumpMAC", pumpMAC)
+                        .between("cgmRTC", fromRTC, toRTC)
+                        .findAll();
+                for (PumpHistoryCGM record : results) {
+                    // first record wins as with findFirst
+                    if (records.indexOfKey(record.cgmRTC) < 0) records.put(record.cgmRTC, record);
+                }
+                Log.d(TAG, String.format("cgm index: %s records for RTC %08X - %08X", records.size(), fromRTC, toRTC));
+            }
+        }
+
+        private boolean contains(int rtc) {
+            return indexed && rtc >= fromRTC && rtc <= toRTC;
+        }
+
+        private PumpHistoryCGM find(Realm realm, int rtc) {
+            if (contains(rtc)) {
+                PumpHistoryCGM record = records.get(rtc);
+                // record may have been deleted during the parse
+                return record == null || !record.isValid() ? null : record;
+            }
+            return realm.where(PumpHistoryCGM.class)
+                    .equalTo("pumpMAC", pumpMAC)
+                    .equalTo("cgmRTC", rtc)
+                    .findFirst();
+        }
+
+        private void add(PumpHistoryCGM record) {
+            if (contains(record.cgmRTC)) records.put(record.cgmRTC, record);
+        }
+    }
+
     private static void sgv(PumpHistoryCGM record, int sgv, String trend, byte sensorException) {
         // 600 pumps produce a exception for low/high readings but no actual sgv
         // it will show 'below 40 / 2.2' or 'above 400 / 22.2' on the pump
@@ -323,32 +378,32 @@ public class PumpHistoryCGM extends RealmObject implements PumpHistoryInterface
     public List<MessageItem> message(PumpHistorySender pumpHistorySender, String senderID) {return new ArrayList<>();}
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Locale;
 
 import info.nightscout.android.R;
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.NightscoutItem;
@@ -16,6 +17,7 @@ import info.nightscout.android.history.PumpHistoryParser;
 import info.nightscout.android.history.PumpHistorySender;
 import info.nightscout.android.utils.FormatKit;
 import info.nightscout.android.upload.nightscout.TreatmentsEndpoints;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
 import io.realm.RealmObject;
 import io.realm.annotations.Ignore;
@@ -25,16 +27,16 @@ import io.realm.annotations.Index;
  * Created by Pogman on 01.04.18.
  */
 
-public class PumpHistoryDaily extends RealmObject implements PumpHistoryInterface {
+public class PumpHistoryDaily extends RealmObject implements PumpHistoryInterface, HistoryRecordCache.Record {
     @Ignore
     private static final String TAG = PumpHistoryDaily.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -573,7 +575,7 @@ public class PumpHistoryDaily extends RealmObject implements PumpHistoryInterfac
     }
 
     public static void dailyTotals(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             int type,
             Date startDate,
@@ -640,13 +642,11 @@ public class PumpHistoryDaily extends RealmObject implements PumpHistoryInterfac
             int totalTimeInAboveTherapyTargetRangeHiLimit,
             int totalTimeInBelowTherapyTargetRangeLowLimit) {
 
-        PumpHistoryDaily record = realm.where(PumpHistoryDaily.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryDaily record = cache.find(PumpHistoryDaily.class, eventRTC);
         if (record == null) {
             Log.d(TAG, "*new*" + " daily totals: (event) " + eventDate + " (startDate) " + startDate + " (endDate) " + endDate);
             record = realm.createObject(PumpHistoryDaily.class);
+            cache.add(PumpHistoryDaily.class, eventRTC, record);
             record.pumpMAC = pumpMAC;
             record.eventDate = eventDate;
             record.key = HistoryUtils.key("DAILY", eventRTC);
@@ -750,40 +750,45 @@ public class PumpHistoryDaily extends RealmObject implements PumpHistoryInterfac
             return this.value == value;
         }
 
+        private static final EnumTable<TYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<TYPE>() {
+            @Override
+            public int key(TYPE type) {
+                return type.value;
+            }
+        });
+
         public static TYPE convert(int value) {
-            for (TYPE TYPE : TYPE.values())
-                if (TYPE.value == value) return TYPE;
-            return TYPE.NA;
+            return TABLE.get(value);
         }
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -7,6 +7,7 @@ import java.util.Date;
 import java.util.List;
 
 import info.nightscout.android.R;
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.NightscoutItem;
@@ -14,6 +15,7 @@ import info.nightscout.android.history.PumpHistoryParser;
 import info.nightscout.android.history.PumpHistorySender;
 import info.nightscout.android.upload.nightscout.TreatmentsEndpoints;
 import info.nightscout.android.utils.FormatKit;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
 import io.realm.RealmObject;
 import io.realm.annotations.Ignore;
@@ -23,16 +25,16 @@ import io.realm.annotations.Index;
  * Created by Pogman on 17.1.18.
  */
 
-public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface {
+public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface, HistoryRecordCache.Record {
     @Ignore
     private static final String TAG = PumpHistoryLoop.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -77,10 +79,15 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
             return this.value == value;
         }
 
+        private static final EnumTable<RECORDTYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<RECORDTYPE>() {
+            @Override
+            public int key(RECORDTYPE recordtype) {
+                return recordtype.value;
+            }
+        });
+
         public static RECORDTYPE convert(int value) {
-            for (RECORDTYPE recordtype : RECORDTYPE.values())
-                if (recordtype.value == value) return recordtype;
-            return RECORDTYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -152,22 +159,19 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
     }
 
     public static void microbolus(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             int bolusRef,
             double deliveredAmount) {
 
         //if (true) return;
 
-        PumpHistoryLoop record = realm.where(PumpHistoryLoop.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("eventRTC", eventRTC)
-                .equalTo("recordtype", RECORDTYPE.MICROBOLUS.value())
-                .findFirst();
+        PumpHistoryLoop record = cache.find(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.MICROBOLUS.value());
 
         if (record == null) {
             Log.d(TAG, "*new* microbolus ref: " + bolusRef);
             record = realm.createObject(PumpHistoryLoop.class);
+            cache.add(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.MICROBOLUS.value(), record);
             record.pumpMAC = pumpMAC;
             record.recordtype = RECORDTYPE.MICROBOLUS.value();
             record.eventDate = eventDate;
@@ -181,7 +185,7 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
     }
 
     public static void transition(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte transitionValue,
             byte transitionReason) {
@@ -191,14 +195,11 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
         switch (PumpHistoryParser.CL_TRANSITION_VALUE.convert(transitionValue)) {
 
             case CL_INTO_ACTIVE:
-                record = realm.where(PumpHistoryLoop.class)
-                        .equalTo("pumpMAC", pumpMAC)
-                        .equalTo("eventRTC", eventRTC)
-                        .equalTo("recordtype", RECORDTYPE.TRANSITION_IN.value())
-                        .findFirst();
+                record = cache.find(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.TRANSITION_IN.value());
                 if (record == null) {
                     Log.d(TAG, "*new* loop transition in event");
                     record = realm.createObject(PumpHistoryLoop.class);
+                    cache.add(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.TRANSITION_IN.value(), record);
                     record.pumpMAC = pumpMAC;
                     record.recordtype = RECORDTYPE.TRANSITION_IN.value();
                     record.eventDate = eventDate;
@@ -212,14 +213,11 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
                 break;
 
             case CL_OUT_OF_ACTIVE:
-                record = realm.where(PumpHistoryLoop.class)
-                        .equalTo("eventRTC", eventRTC)
-                        .equalTo("pumpMAC", pumpMAC)
-                        .equalTo("recordtype", RECORDTYPE.TRANSITION_OUT.value())
-                        .findFirst();
+                record = cache.find(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.TRANSITION_OUT.value());
                 if (record == null) {
                     Log.d(TAG, "*new* loop transition out event");
                     record = realm.createObject(PumpHistoryLoop.class);
+                    cache.add(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.TRANSITION_OUT.value(), record);
                     record.pumpMAC = pumpMAC;
                     record.recordtype = RECORDTYPE.TRANSITION_OUT.value();
                     record.eventDate = eventDate;
@@ -234,7 +232,7 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
     }
 
     public static void basal(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte pattern) {
 
@@ -247,15 +245,12 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
 
         if (transitionRecord != null) {
 
-            PumpHistoryLoop record = realm.where(PumpHistoryLoop.class)
-                    .equalTo("pumpMAC", pumpMAC)
-                    .equalTo("recordtype", RECORDTYPE.RESTART_BASAL.value())
-                    .equalTo("eventRTC", eventRTC)
-                    .findFirst();
+            PumpHistoryLoop record = cache.find(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.RESTART_BASAL.value());
 
             if (record == null) {
                 Log.d(TAG, "*new* loop restart basal pattern");
                 record = realm.createObject(PumpHistoryLoop.class);
+                cache.add(PumpHistoryLoop.class, eventRTC, "recordtype", RECORDTYPE.RESTART_BASAL.value(), record);
                 record.pumpMAC = pumpMAC;
                 record.recordtype = RECORDTYPE.RESTART_BASAL.value();
                 record.eventDate = eventDate;
@@ -271,32 +266,32 @@ public class PumpHistoryLoop extends RealmObject implements PumpHistoryInterface
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -7,6 +7,7 @@ import java.util.Date;
 import java.util.List;
 
 import info.nightscout.android.R;
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.NightscoutItem;
@@ -14,21 +15,22 @@ import info.nightscout.android.history.PumpHistoryParser;
 import info.nightscout.android.history.PumpHistorySender;
 import info.nightscout.android.utils.FormatKit;
 import info.nightscout.android.upload.nightscout.TreatmentsEndpoints;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
 import io.realm.RealmObject;
 import io.realm.annotations.Ignore;
 import io.realm.annotations.Index;
 
-public class PumpHistoryMarker extends RealmObject implements PumpHistoryInterface {
+public class PumpHistoryMarker extends RealmObject implements PumpHistoryInterface, HistoryRecordCache.Record {
     @Ignore
     private static final String TAG = PumpHistoryMarker.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -70,10 +72,15 @@ public class PumpHistoryMarker extends RealmObject implements PumpHistoryInterfa
             return this.value == value;
         }
 
+        private static final EnumTable<RECORDTYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<RECORDTYPE>() {
+            @Override
+            public int key(RECORDTYPE recordtype) {
+                return recordtype.value;
+            }
+        });
+
         public static RECORDTYPE convert(int value) {
-            for (RECORDTYPE recordtype : RECORDTYPE.values())
-                if (recordtype.value == value) return recordtype;
-            return RECORDTYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -206,7 +213,7 @@ public class PumpHistoryMarker extends RealmObject implements PumpHistoryInterfa
     }
 
     public static void marker(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             RECORDTYPE recordtype,
             int duration,
@@ -214,15 +221,12 @@ public class PumpHistoryMarker extends RealmObject implements PumpHistoryInterfa
             double carbInput,
             double insulin) {
 
-        PumpHistoryMarker record = realm.where(PumpHistoryMarker.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("eventRTC", eventRTC)
-                .equalTo("recordtype", recordtype.value())
-                .findFirst();
+        PumpHistoryMarker record = cache.find(PumpHistoryMarker.class, eventRTC, "recordtype", recordtype.value());
 
         if (record == null) {
             Log.d(TAG, "*new* recordtype: " + recordtype.name());
             record = realm.createObject(PumpHistoryMarker.class);
+            cache.add(PumpHistoryMarker.class, eventRTC, "recordtype", recordtype.value(), record);
             record.pumpMAC = pumpMAC;
             record.recordtype = recordtype.value();
             record.eventDate = eventDate;
@@ -238,32 +242,32 @@ public class PumpHistoryMarker extends RealmObject implements PumpHistoryInterfa
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
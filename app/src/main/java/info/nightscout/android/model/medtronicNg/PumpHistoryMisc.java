@@ -10,6 +10,7 @@ import java.util.List;
 import java.util.Locale;
 
 import info.nightscout.android.R;
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.PumpHistoryParser;
@@ -17,6 +18,7 @@ import info.nightscout.android.history.PumpHistorySender;
 import info.nightscout.android.utils.FormatKit;
 import info.nightscout.android.upload.nightscout.TreatmentsEndpoints;
 import info.nightscout.android.history.NightscoutItem;
+import info.nightscout.android.utils.EnumTable;
 
 import io.realm.Realm;
 import io.realm.RealmObject;
@@ -29,18 +31,18 @@ import io.realm.annotations.Index;
  * Created by Pogman on 26.10.17.
  */
 
-public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface {
+public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface, HistoryRecordCache.Record {
     @Ignore
     private static final String TAG = PumpHistoryMisc.class.getSimpleName();
     @Ignore
     private static final int LIFETIMES_TOTAL = 5;
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -82,10 +84,15 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
             return this.value == value;
         }
 
+        private static final EnumTable<RECORDTYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<RECORDTYPE>() {
+            @Override
+            public int key(RECORDTYPE recordtype) {
+                return recordtype.value;
+            }
+        });
+
         public static RECORDTYPE convert(byte value) {
-            for (RECORDTYPE recordtype : RECORDTYPE.values())
-                if (recordtype.value == value) return recordtype;
-            return RECORDTYPE.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -170,7 +177,7 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
         List<MessageItem> messageItems = new ArrayList<>();
 
         // check if already sent as it may re-trigger due to lifetime/calibration updates
-        if (senderACK.contains(senderID)) return messageItems;
+        if (PumpHistorySender.isSender(senderACK, senderID)) return messageItems;
 
         String message;
         String title;
@@ -335,19 +342,16 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
     }
 
     public static PumpHistoryMisc item(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             RECORDTYPE recordtype) {
 
-        PumpHistoryMisc record = realm.where(PumpHistoryMisc.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("recordtype", recordtype.value())
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryMisc record = cache.find(PumpHistoryMisc.class, eventRTC, "recordtype", recordtype.value());
 
         if (record == null) {
             Log.d(TAG, "*new* recordtype: " + recordtype.name());
             record = realm.createObject(PumpHistoryMisc.class);
+            cache.add(PumpHistoryMisc.class, eventRTC, "recordtype", recordtype.value(), record);
             record.pumpMAC = pumpMAC;
 
             record.eventDate = eventDate;
@@ -409,15 +413,11 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
     */
 
     public static void sensor(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             RECORDTYPE recordtype) {
 
-        PumpHistoryMisc record = realm.where(PumpHistoryMisc.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("recordtype", RECORDTYPE.CHANGE_SENSOR.value())
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryMisc record = cache.find(PumpHistoryMisc.class, eventRTC, "recordtype", RECORDTYPE.CHANGE_SENSOR.value());
 
         if (record == null && (realm.where(PumpHistoryMisc.class)
                 .equalTo("pumpMAC", pumpMAC)
@@ -428,6 +428,7 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
         {
             Log.d(TAG, "*new* recordtype: " + recordtype.name());
             record = realm.createObject(PumpHistoryMisc.class);
+            cache.add(PumpHistoryMisc.class, eventRTC, "recordtype", RECORDTYPE.CHANGE_SENSOR.value(), record);
             record.pumpMAC = pumpMAC;
 
             record.eventDate = eventDate;
@@ -443,7 +444,7 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
     }
 
     public static void cannula(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte type,
             double delivered,
@@ -452,7 +453,7 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
         if (PumpHistoryParser.CANNULA_FILL_TYPE.CANULLA_FILL.equals(type)
                 && delivered >= 0) {
             PumpHistoryMisc record = PumpHistoryMisc.item(
-                    pumpHistorySender, realm, pumpMAC,
+                    pumpHistorySender, realm, cache, pumpMAC,
                     eventDate, eventRTC, eventOFFSET,
                     RECORDTYPE.CHANGE_CANNULA);
             if (record != null) {
@@ -463,7 +464,7 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
         } else if (PumpHistoryParser.CANNULA_FILL_TYPE.TUBING_FILL.equals(type)
                 && delivered + remaining >= 0) {
             PumpHistoryMisc record = PumpHistoryMisc.item(
-                    pumpHistorySender, realm, pumpMAC,
+                    pumpHistorySender, realm, cache, pumpMAC,
                     eventDate, eventRTC, eventOFFSET,
                     RECORDTYPE.CHANGE_INSULIN);
             if (record != null) {
@@ -474,32 +475,32 @@ public class PumpHistoryMisc extends RealmObject implements PumpHistoryInterface
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -7,6 +7,7 @@ import java.util.Date;
 import java.util.List;
 
 import info.nightscout.android.R;
+import info.nightscout.android.history.HistoryRecordCache;
 import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.MessageItem;
 import info.nightscout.android.history.PumpHistorySender;
@@ -22,16 +23,16 @@ import io.realm.annotations.Index;
  * Created by Pogman on 24.1.18.
  */
 
-public class PumpHistoryPattern extends RealmObject implements PumpHistoryInterface {
+public class PumpHistoryPattern extends RealmObject implements PumpHistoryInterface, HistoryRecordCache.Record {
     @Ignore
     private static final String TAG = PumpHistoryPattern.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -94,19 +95,17 @@ public class PumpHistoryPattern extends RealmObject implements PumpHistoryInterf
     }
 
     public static void pattern(
-            PumpHistorySender pumpHistorySender, Realm realm, long pumpMAC,
+            PumpHistorySender pumpHistorySender, Realm realm, HistoryRecordCache cache, long pumpMAC,
             Date eventDate, int eventRTC, int eventOFFSET,
             byte oldPatternNumber,
             byte newPatternNumber) {
 
-        PumpHistoryPattern record = realm.where(PumpHistoryPattern.class)
-                .equalTo("pumpMAC", pumpMAC)
-                .equalTo("eventRTC", eventRTC)
-                .findFirst();
+        PumpHistoryPattern record = cache.find(PumpHistoryPattern.class, eventRTC);
         if (record == null) {
             Log.d(TAG, "*new*" + " basal pattern switch");
             // create new entry
             record = realm.createObject(PumpHistoryPattern.class);
+            cache.add(PumpHistoryPattern.class, eventRTC, record);
             record.pumpMAC = pumpMAC;
             record.key = HistoryUtils.key("PRO", eventRTC);
             record.eventDate = eventDate;
@@ -119,32 +118,32 @@ public class PumpHistoryPattern extends RealmObject implements PumpHistoryInterf
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
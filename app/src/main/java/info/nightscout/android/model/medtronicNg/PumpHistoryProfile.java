@@ -39,11 +39,11 @@ public class PumpHistoryProfile extends RealmObject implements PumpHistoryInterf
     private static final String AUTOMODE = "Auto Mode";
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -79,7 +79,7 @@ public class PumpHistoryProfile extends RealmObject implements PumpHistoryInterf
 */
         NightscoutItem nightscoutItem = new NightscoutItem();
         nightscoutItems.add(nightscoutItem);
-        ProfileEndpoints.Profile profile = nightscoutItem.ack(senderACK.contains(senderID)).profile();
+        ProfileEndpoints.Profile profile = nightscoutItem.ack(PumpHistorySender.isSender(senderACK, senderID)).profile();
 
         TimeZone tz = TimeZone.getDefault();
         Date startdate = new Date(eventDate.getTime()); // - 90 * 24 * 60 * 60000L) ; // active from date
@@ -315,32 +315,32 @@ public class PumpHistoryProfile extends RealmObject implements PumpHistoryInterf
     public List<MessageItem> message(PumpHistorySender pumpHistorySender, String senderID) {return new ArrayList<>();}
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -15,6 +15,7 @@ import info.nightscout.android.history.PumpHistorySender;
 import info.nightscout.android.medtronic.message.MessageUtils;
 import info.nightscout.android.utils.FormatKit;
 import info.nightscout.android.upload.nightscout.TreatmentsEndpoints;
+import info.nightscout.android.utils.EnumTable;
 import io.realm.Realm;
 import io.realm.RealmList;
 import io.realm.RealmObject;
@@ -28,11 +29,11 @@ public class PumpHistorySystem extends RealmObject implements PumpHistoryInterfa
     private static final String TAG = PumpHistorySystem.class.getSimpleName();
 
     @Index
-    private String senderREQ = "";
+    private int senderREQ;
     @Index
-    private String senderACK = "";
+    private int senderACK;
     @Index
-    private String senderDEL = "";
+    private int senderDEL;
 
     @Index
     private Date eventDate;
@@ -96,10 +97,15 @@ public class PumpHistorySystem extends RealmObject implements PumpHistoryInterfa
             return this.value == value;
         }
 
+        private static final EnumTable<STATUS> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<STATUS>() {
+            @Override
+            public int key(STATUS status) {
+                return status.value;
+            }
+        });
+
         public static STATUS convert(int value) {
-            for (STATUS status : STATUS.values())
-                if (status.value == value) return status;
-            return STATUS.NA;
+            return TABLE.get(value);
         }
     }
 
@@ -112,7 +118,7 @@ public class PumpHistorySystem extends RealmObject implements PumpHistoryInterfa
 
         String message = makeMessage(pumpHistorySender, senderID);
         if (message.equals("")) {
-            if (senderACK.contains(senderID))
+            if (PumpHistorySender.isSender(senderACK, senderID))
                 HistoryUtils.nightscoutDeleteTreatment(nightscoutItems, this, senderID);
             return nightscoutItems;
         }
@@ -434,32 +440,32 @@ public class PumpHistorySystem extends RealmObject implements PumpHistoryInterfa
     }
 
     @Override
-    public String getSenderREQ() {
+    public int getSenderREQ() {
         return senderREQ;
     }
 
     @Override
-    public void setSenderREQ(String senderREQ) {
+    public void setSenderREQ(int senderREQ) {
         this.senderREQ = senderREQ;
     }
 
     @Override
-    public String getSenderACK() {
+    public int getSenderACK() {
         return senderACK;
     }
 
     @Override
-    public void setSenderACK(String senderACK) {
+    public void setSenderACK(int senderACK) {
         this.senderACK = senderACK;
     }
 
     @Override
-    public String getSenderDEL() {
+    public int getSenderDEL() {
         return senderDEL;
     }
 
     @Override
-    public void setSenderDEL(String senderDEL) {
+    public void setSenderDEL(int senderDEL) {
         this.senderDEL = senderDEL;
     }
 
@@ -31,6 +31,7 @@ public class DataStore extends RealmObject {
     private boolean nightscoutCareportal;
     private boolean nightscoutUseQuery;
     private boolean nightscoutUseProfile;
+    private boolean nightscoutUseGzip = true;
 
     private boolean requestProfile;
     private boolean requestPumpHistory;
@@ -41,6 +42,16 @@ public class DataStore extends RealmObject {
     private boolean reportIsigAvailable;
     private long reportIsigTimestamp;
 
+    // sgv estimate checkpoint, filter state after the last processed cgm record
+    private int estimateOptions;
+    private int estimateSensorRTC;
+    private int estimateCalRTC;
+    private int estimateProcessRTC;
+    private int estimateStep;
+    private double estimateX;
+    private double estimateOffsetCount;
+    private double estimateOffsetSum;
+
     private boolean prefsProcessed;
 
     private String lastStatReport;
@@ -783,6 +794,14 @@ public class DataStore extends RealmObject {
         this.nightscoutUseQuery = nightscoutUseQuery;
     }
 
+    public boolean isNightscoutUseGzip() {
+        return nightscoutUseGzip;
+    }
+
+    public void setNightscoutUseGzip(boolean nightscoutUseGzip) {
+        this.nightscoutUseGzip = nightscoutUseGzip;
+    }
+
     public boolean isNightscoutUseProfile() {
         return nightscoutUseProfile;
     }
@@ -2011,6 +2030,70 @@ public class DataStore extends RealmObject {
         this.reportIsigTimestamp = reportIsigTimestamp;
     }
 
+    public int getEstimateOptions() {
+        return estimateOptions;
+    }
+
+    public void setEstimateOptions(int estimateOptions) {
+        this.estimateOptions = estimateOptions;
+    }
+
+    public int getEstimateSensorRTC() {
+        return estimateSensorRTC;
+    }
+
+    public void setEstimateSensorRTC(int estimateSensorRTC) {
+        this.estimateSensorRTC = estimateSensorRTC;
+    }
+
+    public int getEstimateCalRTC() {
+        return estimateCalRTC;
+    }
+
+    public void setEstimateCalRTC(int estimateCalRTC) {
+        this.estimateCalRTC = estimateCalRTC;
+    }
+
+    public int getEstimateProcessRTC() {
+        return estimateProcessRTC;
+    }
+
+    public void setEstimateProcessRTC(int estimateProcessRTC) {
+        this.estimateProcessRTC = estimateProcessRTC;
+    }
+
+    public int getEstimateStep() {
+        return estimateStep;
+    }
+
+    public void setEstimateStep(int estimateStep) {
+        this.estimateStep = estimateStep;
+    }
+
+    public double getEstimateX() {
+        return estimateX;
+    }
+
+    public void setEstimateX(double estimateX) {
+        this.estimateX = estimateX;
+    }
+
+    public double getEstimateOffsetCount() {
+        return estimateOffsetCount;
+    }
+
+    public void setEstimateOffsetCount(double estimateOffsetCount) {
+        this.estimateOffsetCount = estimateOffsetCount;
+    }
+
+    public double getEstimateOffsetSum() {
+        return estimateOffsetSum;
+    }
+
+    public void setEstimateOffsetSum(double estimateOffsetSum) {
+        this.estimateOffsetSum = estimateOffsetSum;
+    }
+
     public boolean isReportIsigAvailable() {
         return reportIsigAvailable;
     }
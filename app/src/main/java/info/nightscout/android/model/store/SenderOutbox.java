@@ -0,0 +1,102 @@
+package info.nightscout.android.model.store;
+
+import java.util.Date;
+
+import io.realm.RealmObject;
+import io.realm.annotations.Ignore;
+import io.realm.annotations.Index;
+import io.realm.annotations.PrimaryKey;
+
+/*
+Retry state for history records that a sender has failed to upload.
+
+The history records remain requested for the sender until acknowledged, an outbox entry holds the
+attempt count and the time of the next attempt so a record that keeps failing backs off without
+holding up the other records in the pass.
+*/
+
+public class SenderOutbox extends RealmObject {
+    @Ignore
+    private static final long BACKOFF_MS = 5 * 60000L;
+    @Ignore
+    private static final long BACKOFF_MAX_MS = 4 * 60 * 60000L;
+
+    @PrimaryKey
+    private String key;
+    @Index
+    private String senderID;
+    private String recordID;
+    @Index
+    private Date eventDate;
+    @Index
+    private Date nextAttempt;
+    private Date lastAttempt;
+    private int attempts;
+    private String error;
+
+    public static String key(String senderID, String recordID) {
+        return senderID + recordID;
+    }
+
+    // exponential backoff from the next poll
+    public void failed(long now, String error) {
+        attempts++;
+        long backoff = BACKOFF_MS << Math.min(attempts - 1, 16);
+        lastAttempt = new Date(now);
+        nextAttempt = new Date(now + Math.min(backoff, BACKOFF_MAX_MS));
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s attempts: %s next: %s error: %s", recordID, attempts, nextAttempt, error);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getSenderID() {
+        return senderID;
+    }
+
+    public void setSenderID(String senderID) {
+        this.senderID = senderID;
+    }
+
+    public String getRecordID() {
+        return recordID;
+    }
+
+    public void setRecordID(String recordID) {
+        this.recordID = recordID;
+    }
+
+    public Date getEventDate() {
+        return eventDate;
+    }
+
+    public void setEventDate(Date eventDate) {
+        this.eventDate = eventDate;
+    }
+
+    public Date getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public Date getLastAttempt() {
+        return lastAttempt;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
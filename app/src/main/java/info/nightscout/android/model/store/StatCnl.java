@@ -2,12 +2,15 @@ package info.nightscout.android.model.store;
 
 import java.util.Date;
 
+import info.nightscout.android.medtronic.message.MedtronicSendMessageRequestMessage;
+import info.nightscout.android.utils.LatencyHistogram;
+import io.realm.RealmList;
 import io.realm.RealmObject;
 import io.realm.annotations.Ignore;
 import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
-public class StatCnl extends RealmObject implements StatInterface {
+public class StatCnl extends RealmObject implements StatLatency {
     @Ignore
     private static final String TAG = StatCnl.class.getSimpleName();
 
@@ -23,6 +26,19 @@ public class StatCnl extends RealmObject implements StatInterface {
     private int cnlError;
     private int cnlJitter;
 
+    private int multipacketTransfer;
+    private int multipacketPackets;
+    private int multipacketResend;
+    private int multipacketRepeated;
+    private int multipacketTimeout;
+    private long multipacketBytes;
+    private long multipacketTime;
+
+    // per pump message type latency histograms, keyed by the request message type
+    private RealmList<Integer> latencyKey = new RealmList<>();
+    private RealmList<Integer> latencyCount = new RealmList<>();
+    private RealmList<Integer> latencyMax = new RealmList<>();
+
     public void connected() {
         long now = System.currentTimeMillis();
         cnlConnect++;
@@ -39,13 +55,39 @@ public class StatCnl extends RealmObject implements StatInterface {
         cnlDisconnectDate = new Date(now);
     }
 
+    public void multipacket(int bytes, int packets, long time, int resend, int repeated, int timeout) {
+        multipacketTransfer++;
+        multipacketBytes += bytes;
+        multipacketPackets += packets;
+        multipacketTime += time;
+        multipacketResend += resend;
+        multipacketRepeated += repeated;
+        multipacketTimeout += timeout;
+    }
+
+    public void latency(int messageType, long ms) {
+        LatencyHistogram.record(latencyKey, latencyCount, latencyMax, messageType, ms);
+    }
+
+    @Override
+    public String latencyName(int key) {
+        return MedtronicSendMessageRequestMessage.MessageType.request(key).name();
+    }
+
     @Override
     public String toString() {
-        return String.format("Connect: %s Disconnect: %s Error: %s Jitter: %s",
+        return String.format("Connect: %s Disconnect: %s Error: %s Jitter: %s Multipacket: %s/%sKB/%ss Rate: %sB/s Resend: %s Repeated: %s Timeout: %s",
                 cnlConnect,
                 cnlDisconnect,
                 cnlError,
-                cnlJitter
+                cnlJitter,
+                multipacketTransfer,
+                multipacketBytes / 1024,
+                multipacketTime / 1000,
+                multipacketTime == 0 ? 0 : (multipacketBytes * 1000L) / multipacketTime,
+                multipacketResend,
+                multipacketRepeated,
+                multipacketTimeout
         );
     }
 
@@ -116,4 +158,75 @@ public class StatCnl extends RealmObject implements StatInterface {
     public void setCnlJitter(int cnlJitter) {
         this.cnlJitter = cnlJitter;
     }
+
+    public int getMultipacketTransfer() {
+        return multipacketTransfer;
+    }
+
+    public void setMultipacketTransfer(int multipacketTransfer) {
+        this.multipacketTransfer = multipacketTransfer;
+    }
+
+    public int getMultipacketPackets() {
+        return multipacketPackets;
+    }
+
+    public void setMultipacketPackets(int multipacketPackets) {
+        this.multipacketPackets = multipacketPackets;
+    }
+
+    public int getMultipacketResend() {
+        return multipacketResend;
+    }
+
+    public void setMultipacketResend(int multipacketResend) {
+        this.multipacketResend = multipacketResend;
+    }
+
+    public int getMultipacketRepeated() {
+        return multipacketRepeated;
+    }
+
+    public void setMultipacketRepeated(int multipacketRepeated) {
+        this.multipacketRepeated = multipacketRepeated;
+    }
+
+    public int getMultipacketTimeout() {
+        return multipacketTimeout;
+    }
+
+    public void setMultipacketTimeout(int multipacketTimeout) {
+        this.multipacketTimeout = multipacketTimeout;
+    }
+
+    public long getMultipacketBytes() {
+        return multipacketBytes;
+    }
+
+    public void setMultipacketBytes(long multipacketBytes) {
+        this.multipacketBytes = multipacketBytes;
+    }
+
+    public long getMultipacketTime() {
+        return multipacketTime;
+    }
+
+    public void setMultipacketTime(long multipacketTime) {
+        this.multipacketTime = multipacketTime;
+    }
+
+    @Override
+    public RealmList<Integer> getLatencyKey() {
+        return latencyKey;
+    }
+
+    @Override
+    public RealmList<Integer> getLatencyCount() {
+        return latencyCount;
+    }
+
+    @Override
+    public RealmList<Integer> getLatencyMax() {
+        return latencyMax;
+    }
 }
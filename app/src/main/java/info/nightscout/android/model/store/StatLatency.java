@@ -0,0 +1,17 @@
+package info.nightscout.android.model.store;
+
+import java.util.List;
+
+// stat records that hold latency histograms, see LatencyHistogram for the list layout
+
+public interface StatLatency extends StatInterface {
+
+    List<Integer> getLatencyKey();
+
+    List<Integer> getLatencyCount();
+
+    List<Integer> getLatencyMax();
+
+    String latencyName(int key);
+
+}
@@ -21,6 +21,9 @@ public class StatNightscout extends RealmObject implements StatInterface {
     private int siteUnavailable;
     private int totalRecords;
     private int totalHttp;
+    private int cleanupQuery;
+    private int cleanupCheck;
+    private int cleanupDelete;
     private int timer;
     private long timerMS;
     private int timer1;
@@ -38,12 +41,15 @@ public class StatNightscout extends RealmObject implements StatInterface {
 
     @Override
     public String toString() {
-        return String.format("Run: %s Error: %s Unavailable: %s Records: %s Http: %s Timers: %s~%sms %s~%sms",
+        return String.format("Run: %s Error: %s Unavailable: %s Records: %s Http: %s Cleanup: %s/%s/%s Timers: %s~%sms %s~%sms",
                 run,
                 error,
                 siteUnavailable,
                 totalRecords,
                 totalHttp,
+                cleanupQuery,
+                cleanupCheck,
+                cleanupDelete,
                 timer,
                 timer == 0 ? 0 : timerMS / timer,
                 timer1,
@@ -110,4 +116,22 @@ public class StatNightscout extends RealmObject implements StatInterface {
     public void setTotalHttp(int totalHttp) {
         this.totalHttp = totalHttp;
     }
+
+    public int getCleanupQuery() {
+        return cleanupQuery;
+    }
+
+    public int getCleanupCheck() {
+        return cleanupCheck;
+    }
+
+    public int getCleanupDelete() {
+        return cleanupDelete;
+    }
+
+    public void cleanup(int query, int check, int delete) {
+        cleanupQuery += query;
+        cleanupCheck += check;
+        cleanupDelete += delete;
+    }
 }
@@ -2,12 +2,15 @@ package info.nightscout.android.model.store;
 
 import java.util.Date;
 
+import info.nightscout.android.utils.EnumTable;
+import info.nightscout.android.utils.LatencyHistogram;
+import io.realm.RealmList;
 import io.realm.RealmObject;
 import io.realm.annotations.Ignore;
 import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
-public class StatPoll extends RealmObject implements StatInterface {
+public class StatPoll extends RealmObject implements StatLatency {
     @Ignore
     private static final String TAG = StatPoll.class.getSimpleName();
 
@@ -51,6 +54,58 @@ public class StatPoll extends RealmObject implements StatInterface {
     private int timer1;
     private long timer1MS;
 
+    // per phase latency histograms
+    private RealmList<Integer> latencyKey = new RealmList<>();
+    private RealmList<Integer> latencyCount = new RealmList<>();
+    private RealmList<Integer> latencyMax = new RealmList<>();
+
+    public enum PHASE {
+        POLL(1),
+        DEVICE_INFO(2),
+        CONTROL_MODE(3),
+        PASSTHROUGH_MODE(4),
+        OPEN_CONNECTION(5),
+        READ_INFO(6),
+        LINK_KEY(7),
+        NEGOTIATE_CHANNEL(8),
+        PUMP_TIME(9),
+        PUMP_STATUS(10),
+        HISTORY(11),
+        HISTORY_TRANSFER(12),
+        HISTORY_PARSE(13),
+        NA(-1);
+
+        private int value;
+
+        PHASE(int value) {
+            this.value = value;
+        }
+
+        public int value() {
+            return value;
+        }
+
+        private static final EnumTable<PHASE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<PHASE>() {
+            @Override
+            public int key(PHASE phase) {
+                return phase.value;
+            }
+        });
+
+        public static PHASE convert(int value) {
+            return TABLE.get(value);
+        }
+    }
+
+    public void latency(PHASE phase, long ms) {
+        LatencyHistogram.record(latencyKey, latencyCount, latencyMax, phase.value, ms);
+    }
+
+    @Override
+    public String latencyName(int key) {
+        return PHASE.convert(key).name();
+    }
+
     public void timer(long timer) {
         if (timer <= 10000) {
             timer1++;
@@ -341,4 +396,19 @@ public class StatPoll extends RealmObject implements StatInterface {
     public void incHistoryReqEstimate() {
         historyReqEstimate++;
     }
+
+    @Override
+    public RealmList<Integer> getLatencyKey() {
+        return latencyKey;
+    }
+
+    @Override
+    public RealmList<Integer> getLatencyCount() {
+        return latencyCount;
+    }
+
+    @Override
+    public RealmList<Integer> getLatencyMax() {
+        return latencyMax;
+    }
 }
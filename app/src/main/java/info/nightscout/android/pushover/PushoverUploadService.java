@@ -10,8 +10,11 @@ import android.util.Log;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import info.nightscout.android.R;
 import info.nightscout.android.UploaderApplication;
@@ -35,6 +38,13 @@ public class PushoverUploadService extends Service {
 
     private static final String PUSHOVER_URL = "https://api.pushover.net/";
 
+    // pushover message length limit
+    private static final int MESSAGE_MAX_LENGTH = 1024;
+    // part of the app message limit kept for alarms and other high priority messages
+    private static final int QUOTA_RESERVE_DIVISOR = 20;
+    // hold time after a limit response without a reset time
+    private static final long QUOTA_RETRY_SECONDS = 60 * 60;
+
     private Context mContext;
 
     private Realm storeRealm;
@@ -215,44 +225,217 @@ public class PushoverUploadService extends Service {
     private void process() {
         messagesSent = 0;
 
+        // quota as reported by the last message sent
+        appLimit = (int) dataStore.getPushoverAppLimit();
+        appRemaining = (int) dataStore.getPushoverAppRemaining();
+        appReset = dataStore.getPushoverAppReset();
+        int quotaLimit = appLimit;
+        int quotaRemaining = appRemaining;
+        long quotaReset = appReset;
+
         pumpHistoryHandler = new PumpHistoryHandler(mContext);
         List<PumpHistoryInterface> records = pumpHistoryHandler.getSenderRecordsREQ(SENDER_ID_PUSHOVER);
 
-        for (PumpHistoryInterface record : records) {
+        // messages still to send for each record
+        int[] pending = new int[records.size()];
 
-            List<info.nightscout.android.history.MessageItem> messageItems = record.message(pumpHistoryHandler.getPumpHistorySender(), SENDER_ID_PUSHOVER);
+        // a record is acknowledged as a whole so its messages are never split between sent and held,
+        // a record with any high priority message has all of its messages sent as they are
+        List<List<Outgoing>> urgent = new ArrayList<>();
+        List<Outgoing> low = new ArrayList<>();
 
-            boolean success = true;
+        for (int r = 0; r < records.size(); r++) {
+            List<MessageItem> messageItems = records.get(r).message(pumpHistoryHandler.getPumpHistorySender(), SENDER_ID_PUSHOVER);
+            List<Outgoing> messages = new ArrayList<>();
+            boolean isUrgent = false;
             for (MessageItem messageItem : messageItems) {
-                success &= send(messageItem);
+                Outgoing outgoing = new Outgoing(build(messageItem), messageItem.getDate().getTime(), r);
+                isUrgent |= !outgoing.isLowPriority();
+                messages.add(outgoing);
+                pending[r]++;
             }
+            if (isUrgent) urgent.add(messages);
+            else low.addAll(messages);
+        }
+
+        // alarms and other high priority messages are sent as they are and before any digest
+        boolean failed = false;
+        int held = 0;
+
+        for (int i = 0; i < urgent.size() && !failed; i++) {
+            List<Outgoing> messages = urgent.get(i);
+            if (held > 0 || !isQuotaAvailable(false, messages.size())) {
+                held += messages.size();
+                continue;
+            }
+            for (Outgoing outgoing : messages) {
+                if (!post(outgoing.pem, outgoing.time)) {
+                    failed = true;
+                    break;
+                }
+                outgoing.sent(pending);
+            }
+        }
 
-            if (success) {
-                pumpHistoryHandler.setSenderRecordACK(record, SENDER_ID_PUSHOVER);
+        // a record can be in more than one digest, the digests are sent together or held together
+        if (!failed && low.size() > 0) {
+            List<Outgoing> digests = coalesce(low);
+            if (held > 0 || !isQuotaAvailable(true, digests.size())) {
+                held += low.size();
             } else {
-                statPushover.incError();
-                break;
+                for (Outgoing digest : digests) {
+                    if (!post(digest.pem, digest.time)) {
+                        failed = true;
+                        break;
+                    }
+                    digest.sent(pending);
+                }
             }
+        }
 
+        if (failed) statPushover.incError();
+
+        if (held > 0) {
+            Log.w(TAG, String.format("quota limit: %s remaining: %s held: %s", appLimit, appRemaining, held));
+            UserLogMessage.sendE(mContext, UserLogMessage.TYPE.PUSHOVER, String.format("{id;%s}: %s/%s held %s",
+                    R.string.ul_share__pushover, appLimit - appRemaining, appLimit, held));
+        }
+
+        // acknowledge all records with every message sent in one transaction
+        List<PumpHistoryInterface> sent = new ArrayList<>();
+        for (int r = 0; r < records.size(); r++) {
+            if (pending[r] == 0) sent.add(records.get(r));
         }
+        if (sent.size() > 0) pumpHistoryHandler.setSenderRecordsACK(sent, SENDER_ID_PUSHOVER);
 
         pumpHistoryHandler.close();
 
+        // a limit response changes the quota without any message sent
+        if (appLimit != quotaLimit || appRemaining != quotaRemaining || appReset != quotaReset) {
+            storeRealm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    dataStore.setPushoverAppLimit(appLimit);
+                    dataStore.setPushoverAppRemaining(appRemaining);
+                    dataStore.setPushoverAppReset(appReset);
+                }
+            });
+        }
+
         if (messagesSent > 0) {
             statPushover.setMessagesSent(statPushover.getMessagesSent() + messagesSent);
             statPushover.setLimit(appLimit);
             statPushover.setRemaining(appRemaining);
             statPushover.setResetTime(appReset * 1000);
             DateFormat df = new SimpleDateFormat("yyyy/MM/dd", Locale.ENGLISH);
-            Log.i(TAG, String.format("Sent: %s Limit: %s Remaining: %d Reset: %s",
-                    messagesSent, appLimit, appRemaining, df.format(appReset * 1000)));
+            Log.i(TAG, String.format("Sent: %s Limit: %s Remaining: %d Reset: %s Records: %s",
+                    messagesSent, appLimit, appRemaining, df.format(appReset * 1000), sent.size()));
             UserLogMessage.sendN(mContext, UserLogMessage.TYPE.PUSHOVER, String.format("{id;%s}: {id;%s} %s",
                     R.string.ul_share__pushover, R.string.ul_share__processed, messagesSent));
         }
     }
 
-    public boolean send(MessageItem messageItem) {
-        boolean success;
+    // low priority messages are held back when the remaining quota is down to the reserve for alarms
+    // appLimit is 0 when a limit response had no limit headers, remaining is then 0 until the reset
+    private boolean isQuotaAvailable(boolean lowPriority, int count) {
+        if (System.currentTimeMillis() >= appReset * 1000L) return true;
+        return appRemaining - count >= (lowPriority ? appLimit / QUOTA_RESERVE_DIVISOR : 0);
+    }
+
+    /*
+    Low priority messages with the same priority and sound are joined into digest messages,
+    one line per message in time order, up to the pushover message length.
+    A digest takes the time of the newest message and is acknowledged for all of the records in it.
+    */
+    private List<Outgoing> coalesce(List<Outgoing> messages) {
+        List<Outgoing> digests = new ArrayList<>();
+        Map<String, List<Outgoing>> groups = new LinkedHashMap<>();
+
+        for (Outgoing outgoing : messages) {
+            String key = outgoing.pem.getPriority() + "|" + outgoing.pem.getSound();
+            List<Outgoing> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(outgoing);
+        }
+
+        for (List<Outgoing> group : groups.values()) {
+            List<Outgoing> run = new ArrayList<>();
+            int length = 0;
+            for (Outgoing outgoing : group) {
+                int line = outgoing.line().length();
+                if (run.size() > 0 && length + 1 + line > MESSAGE_MAX_LENGTH) {
+                    digests.add(digest(run));
+                    run = new ArrayList<>();
+                    length = 0;
+                }
+                length += (run.size() > 0 ? 1 : 0) + line;
+                run.add(outgoing);
+            }
+            if (run.size() > 0) digests.add(digest(run));
+        }
+
+        return digests;
+    }
+
+    private Outgoing digest(List<Outgoing> run) {
+        if (run.size() == 1) return run.get(0);
+
+        Outgoing newest = run.get(run.size() - 1);
+
+        StringBuilder sb = new StringBuilder();
+        for (Outgoing outgoing : run) {
+            sb.append(sb.length() == 0 ? "" : "\n");
+            sb.append(outgoing.line());
+        }
+
+        PushoverEndpoints.Message pem = new PushoverEndpoints.Message();
+        pem.setToken(apiToken);
+        pem.setUser(userToken);
+        pem.setTitle(String.format("%s (+%s)", newest.pem.getTitle(), run.size() - 1));
+        pem.setMessage(sb.toString());
+        pem.setTimestamp(newest.pem.getTimestamp());
+        pem.setPriority(newest.pem.getPriority());
+        pem.setSound(newest.pem.getSound());
+        pem.setDevice(newest.pem.getDevice());
+
+        Outgoing digest = new Outgoing(pem, newest.time);
+        for (Outgoing outgoing : run) digest.records.addAll(outgoing.records);
+        return digest;
+    }
+
+    private static class Outgoing {
+        private final PushoverEndpoints.Message pem;
+        private final long time;
+        private final List<Integer> records = new ArrayList<>();
+
+        private Outgoing(PushoverEndpoints.Message pem, long time) {
+            this.pem = pem;
+            this.time = time;
+        }
+
+        private Outgoing(PushoverEndpoints.Message pem, long time, int record) {
+            this(pem, time);
+            records.add(record);
+        }
+
+        private boolean isLowPriority() {
+            return PRIORITY.LOWEST.string.equals(pem.getPriority()) || PRIORITY.LOW.string.equals(pem.getPriority());
+        }
+
+        // digest line
+        private String line() {
+            return pem.getTitle() + ": " + pem.getMessage();
+        }
+
+        private void sent(int[] pending) {
+            for (int r : records) pending[r]--;
+        }
+    }
+
+    private PushoverEndpoints.Message build(MessageItem messageItem) {
 
         String title = messageItem.getTitle();
         String message = messageItem.getMessage();
@@ -273,8 +456,6 @@ public class PushoverUploadService extends Service {
         if (message.length() == 0)
             message = "...";
 
-        PushoverEndpoints pushoverEndpoints = pushoverApi.getPushoverEndpoints();
-
         PushoverEndpoints.Message pem = new PushoverEndpoints.Message();
         pem.setToken(apiToken);
         pem.setUser(userToken);
@@ -423,10 +604,25 @@ public class PushoverUploadService extends Service {
             pem.setExpire(dataStore.getPushoverEmergencyExpire());
         }
 
+        return pem;
+    }
+
+    private boolean post(PushoverEndpoints.Message pem, long time) {
+        boolean success;
+
+        PushoverEndpoints pushoverEndpoints = pushoverApi.getPushoverEndpoints();
+
         try {
             Response<PushoverEndpoints.Message> response = pushoverEndpoints.postMessage(pem).execute();
 
-            if (!response.isSuccessful()) {
+            if (response.code() == 429) {
+                // app has reached the monthly limit, hold messages until the reset
+                limits(response.headers());
+                appRemaining = 0;
+                long now = System.currentTimeMillis() / 1000L;
+                if (appReset <= now) appReset = now + QUOTA_RETRY_SECONDS;
+                throw new Exception("message limit reached");
+            } else if (!response.isSuccessful()) {
                 throw new Exception("no response " + response.message());
             } else if (response.body() == null) {
                 throw new Exception("response body null");
@@ -437,26 +633,14 @@ public class PushoverUploadService extends Service {
                 throw new Exception("server error");
             }
 
-            try {
-                Headers headers = response.headers();
-                for (int i = 0, count = headers.size(); i < count; i++) {
-                    String name = headers.name(i);
-                    if ("X-Limit-App-Limit".equalsIgnoreCase(name)) {
-                        appLimit = Integer.parseInt(headers.value(i));
-                    } else if ("X-Limit-App-Remaining".equalsIgnoreCase(name)) {
-                        appRemaining = Integer.parseInt(headers.value(i));
-                    } else if ("X-Limit-App-Reset".equalsIgnoreCase(name)) {
-                        appReset = Long.parseLong(headers.value(i));
-                    }
-                }
-            } catch (Exception ignored) {}
+            limits(response.headers());
 
             UserLogMessage.sendE(mContext, UserLogMessage.TYPE.PUSHOVER,
                     String.format("{id;%s}: %s/%s {date.time;%s} '%s' '%s' '%s' '%s'%s",
                             R.string.ul_share__pushover,
                             appLimit - appRemaining,
                             appLimit,
-                            messageItem.getDate().getTime(),
+                            time,
                             pem.getTitle(),
                             pem.getMessage(),
                             pem.getPriority(),
@@ -476,6 +660,21 @@ public class PushoverUploadService extends Service {
         return success;
     }
 
+    private void limits(Headers headers) {
+        try {
+            for (int i = 0, count = headers.size(); i < count; i++) {
+                String name = headers.name(i);
+                if ("X-Limit-App-Limit".equalsIgnoreCase(name)) {
+                    appLimit = Integer.parseInt(headers.value(i));
+                } else if ("X-Limit-App-Remaining".equalsIgnoreCase(name)) {
+                    appRemaining = Integer.parseInt(headers.value(i));
+                } else if ("X-Limit-App-Reset".equalsIgnoreCase(name)) {
+                    appReset = Long.parseLong(headers.value(i));
+                }
+            }
+        } catch (Exception ignored) {}
+    }
+
     public enum PRIORITY {
         LOWEST("-2"),
         LOW("-1"),
@@ -5,11 +5,13 @@ import com.google.gson.annotations.SerializedName;
 import java.util.Date;
 import java.util.List;
 
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.DELETE;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.Headers;
 import retrofit2.http.POST;
 import retrofit2.http.Query;
@@ -146,6 +148,12 @@ public interface EntriesEndpoints {
                               @Query("find[date][$lte]") String to,
                               @Query("find[key600]") String key);
 
+    // find entries using a list of keys
+    @GET("/api/v1/entries/sgv.json")
+    Call<List<Entry>> findKeys(@Query("find[date][$gte]") String date,
+                               @Query("find[key600][$in][]") List<String> keys,
+                               @Query("count") String count);
+
     // delete entry using id
     @DELETE("/api/v1/entries/sgv.json")
     Call<ResponseBody> deleteID(@Query("find[date]") String date,
@@ -199,7 +207,7 @@ public interface EntriesEndpoints {
     @POST("/api/v1/entries")
     Call<ResponseBody> sendEntry(@Body Entry entry);
 
-    // post bulk entries
+    // post bulk entries, streamed json array body with optional gzip content encoding
     @POST("/api/v1/entries")
-    Call<ResponseBody> sendEntries(@Body List<Entry> entries);
+    Call<ResponseBody> sendEntries(@Header("Content-Encoding") String encoding, @Body RequestBody entries);
 }
@@ -0,0 +1,124 @@
+package info.nightscout.android.upload.nightscout;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/*
+Streaming JSON array request body for the nightscout bulk posts.
+
+Records are written from the pending list straight to the connection with the Gson JsonWriter, the
+document is never held in memory. Output matches the Retrofit Gson converter.
+
+With gzip the body is sent with chunked transfer encoding and the caller adds the Content-Encoding header.
+Without gzip the content length is found with a counting pass so sites that reject chunked bodies still work.
+
+chunk() finds the end of a size bounded run of records so a large backfill is posted as several requests.
+*/
+
+public class JsonBulkBody extends RequestBody {
+
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/json; charset=UTF-8");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Gson gson;
+    private final List<?> records;
+    private final int from;
+    private final int to;
+    private final boolean gzip;
+
+    private long contentLength = -1;
+
+    public JsonBulkBody(Gson gson, List<?> records, int from, int to, boolean gzip) {
+        this.gson = gson;
+        this.records = records;
+        this.from = from;
+        this.to = to;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        if (gzip) return -1;
+        if (contentLength < 0) {
+            CountingOutputStream counter = new CountingOutputStream();
+            write(new OutputStreamWriter(counter, UTF_8), from, to);
+            contentLength = counter.count;
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        if (gzip) {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+            write(new OutputStreamWriter(gzipSink.outputStream(), UTF_8), from, to);
+            gzipSink.close();
+        } else {
+            write(new OutputStreamWriter(sink.outputStream(), UTF_8), from, to);
+        }
+    }
+
+    private void write(Writer writer, int from, int to) throws IOException {
+        JsonWriter jsonWriter = gson.newJsonWriter(writer);
+        jsonWriter.beginArray();
+        for (int i = from; i < to; i++) {
+            Object record = records.get(i);
+            gson.toJson(record, record.getClass(), jsonWriter);
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+    }
+
+    // end index of the run of records from this index that fits in maxBytes, at least one record
+    public static int chunk(Gson gson, List<?> records, int from, long maxBytes) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        Writer writer = new OutputStreamWriter(counter, UTF_8);
+        JsonWriter jsonWriter = gson.newJsonWriter(writer);
+        jsonWriter.beginArray();
+
+        int to = from;
+        while (to < records.size()) {
+            Object record = records.get(to);
+            gson.toJson(record, record.getClass(), jsonWriter);
+            jsonWriter.flush();
+            // closing bracket
+            if (to > from && counter.count + 1 > maxBytes) break;
+            to++;
+        }
+        return to;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -62,6 +62,7 @@ public class NightscoutStatus {
     private boolean ns_devicestatus = false;
     private boolean ns_usequery = false;
     private boolean ns_useprofile = false;
+    private boolean ns_usegzip = true;
 
     private String ns_version_code = "0.0.0";
     private String ns_version_channel = "";
@@ -91,6 +92,7 @@ public class NightscoutStatus {
         ns_careportal = dataStore.isNightscoutCareportal();
         ns_usequery = dataStore.isNightscoutUseQuery();
         ns_useprofile = dataStore.isNightscoutUseProfile();
+        ns_usegzip = dataStore.isNightscoutUseGzip();
 
         if (!UploaderApplication.isOnline()) {
             available = false;
@@ -125,6 +127,9 @@ public class NightscoutStatus {
                     }
                 }
 
+                // retry gzip encoded bulk posts when the site becomes available, it may have been updated
+                if (available && !dataStore.isNightscoutAvailable()) ns_usegzip = true;
+
                 if (available && dataStore.isDbgEnableUploadErrors()) {
 
                     if (!dataStore.isNightscoutAvailable()) {
@@ -255,6 +260,7 @@ public class NightscoutStatus {
                 dataStore.setNightscoutCareportal(ns_careportal);
                 dataStore.setNightscoutUseQuery(ns_usequery);
                 dataStore.setNightscoutUseProfile(ns_useprofile);
+                dataStore.setNightscoutUseGzip(ns_usegzip);
             }
         });
 
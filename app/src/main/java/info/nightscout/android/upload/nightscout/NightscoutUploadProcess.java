@@ -3,13 +3,27 @@ package info.nightscout.android.upload.nightscout;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.google.gson.Gson;
+
 import java.text.SimpleDateFormat;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import info.nightscout.android.R;
 import info.nightscout.android.history.NightscoutItem;
@@ -26,7 +40,9 @@ import info.nightscout.android.upload.nightscout.DeviceEndpoints.PumpInfo;
 import info.nightscout.android.upload.nightscout.DeviceEndpoints.DeviceStatus;
 import info.nightscout.android.utils.FormatKit;
 import io.realm.Realm;
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
+import retrofit2.Call;
 import retrofit2.Response;
 
 import static info.nightscout.android.history.PumpHistorySender.SENDER_ID_NIGHTSCOUT;
@@ -40,6 +56,10 @@ Entries - QUERY support, GET & POST & DELETE a single entry, POST & DELETE has b
 Treatments - QUERY support, GET & POST & DELETE a single treatment, POST has bulk support
 Profile - no QUERY support, GET returns all profile sets, can POST & DELETE a single profile set, POST does not support bulk upload
 
+Records are tracked through the pass, a record is sent when all of its items have been checked or bulk sent.
+A request the site rejects fails the records of the items it was for and the pass carries on, the caller
+acknowledges the sent records and backs off the failed records. Network errors still end the pass.
+
 */
 
 public class NightscoutUploadProcess {
@@ -49,6 +69,24 @@ public class NightscoutUploadProcess {
     // debug use only as may have issues if there is a lot of treatment entries in NS
     private static final boolean CLEAN_COMPLETE = false;
 
+    // use batched key queries to find existing items when a pass has at least this many items
+    private static final int RECONCILE_MIN_ITEMS = 10;
+    private static final int RECONCILE_BATCH_KEYS = 50;
+    private static final int RECONCILE_PAGE_COUNT = 500;
+
+    // independent requests in flight per endpoint, checks and deletes for different keys can overlap
+    private static final int HTTP_THREADS = 4;
+    private static final int HTTP_PARALLEL_CHECK = 4;
+    private static final int HTTP_PARALLEL_DELETE = 4;
+    private static final int HTTP_PARALLEL_DEVICE = 2;
+    private static final int HTTP_PARALLEL_BULK = 2;
+
+    // bulk posts are split when the json for a run of records is larger then this
+    private static final long BULK_MAX_BYTES = 256 * 1024;
+
+    // cleanup page size when query based deletes are not supported and treatments are deleted by id
+    private static final int CLEANUP_PAGE_COUNT = 100;
+
     private DeviceEndpoints deviceEndpoints;
     private EntriesEndpoints entriesEndpoints;
     private TreatmentsEndpoints treatmentsEndpoints;
@@ -63,25 +101,39 @@ public class NightscoutUploadProcess {
     private String enteredBy;
     private PumpHistoryHandler.ExtraInfo extraInfo;
 
-    private boolean cancel;
-
-    private int entriesBulkCount;
-    private int entriesDeleteCount;
-    private int entriesCheckCount;
-    private int treatmentsBulkCount;
-    private int treatmentsDeleteCount;
-    private int treatmentsCheckCount;
-    private int profileWriteCount;
-    private int profileDeleteCount;
-    private int profileCheckCount;
-    private int deviceWriteCount;
-    private int cheanupCheckCount;
-    private int cheanupDeleteCount;
+    private volatile boolean cancel;
+    private boolean useQuery;
+    private volatile boolean useGzip;
+    private volatile boolean statusSent;
+
+    // per record items still to send, -1 until the record has been processed
+    private AtomicIntegerArray recordPending = new AtomicIntegerArray(0);
+    private AtomicReferenceArray<String> recordError = new AtomicReferenceArray<>(0);
+    // entry and treatment items to the index of their record
+    private final Map<Object, Integer> itemRecord = new IdentityHashMap<>();
+
+    private final Gson gson = new Gson();
+
+    private final AtomicInteger entriesBulkCount = new AtomicInteger();
+    private final AtomicInteger entriesDeleteCount = new AtomicInteger();
+    private final AtomicInteger entriesCheckCount = new AtomicInteger();
+    private final AtomicInteger treatmentsBulkCount = new AtomicInteger();
+    private final AtomicInteger treatmentsDeleteCount = new AtomicInteger();
+    private final AtomicInteger treatmentsCheckCount = new AtomicInteger();
+    private final AtomicInteger profileWriteCount = new AtomicInteger();
+    private final AtomicInteger profileDeleteCount = new AtomicInteger();
+    private final AtomicInteger profileCheckCount = new AtomicInteger();
+    private final AtomicInteger deviceWriteCount = new AtomicInteger();
+    private final AtomicInteger cheanupCheckCount = new AtomicInteger();
+    private final AtomicInteger cheanupDeleteCount = new AtomicInteger();
+    private final AtomicInteger cheanupQueryCount = new AtomicInteger();
 
     private UploadApi uploadApi;
+    private UploadExecutor uploadExecutor;
 
     NightscoutUploadProcess(String url, String secret) throws Exception {
         uploadApi = new UploadApi(url, secret);
+        uploadExecutor = new UploadExecutor(HTTP_THREADS);
         deviceEndpoints = uploadApi.getDeviceEndpoints();
         entriesEndpoints = uploadApi.getEntriesEndpoints();
         treatmentsEndpoints = uploadApi.getTreatmentsEndpoints();
@@ -107,6 +159,12 @@ public class NightscoutUploadProcess {
         cancel = false;
         resetCounts();
 
+        statusSent = false;
+        recordPending = new AtomicIntegerArray(records.size());
+        recordError = new AtomicReferenceArray<>(records.size());
+        for (int i = 0; i < records.size(); i++) recordPending.set(i, -1);
+        itemRecord.clear();
+
         this.pumpHistorySender = pumpHistorySender;
 
         this.storeRealm = storeRealm;
@@ -114,6 +172,10 @@ public class NightscoutUploadProcess {
 
         this.extraInfo = extraInfo;
 
+        // read here as requests run on the executor threads
+        this.useQuery = dataStore.isNightscoutUseQuery();
+        this.useGzip = dataStore.isNightscoutUseGzip();
+
         if (dataStore.getNsDeviceName().length() == 0) this.device = device;
         else this.device = DEVICE_HEADER + dataStore.getNsDeviceName();
 
@@ -122,31 +184,45 @@ public class NightscoutUploadProcess {
 
         if (dataStore.isNsEnableDeviceStatus())
             uploadStatus(statusRecords, uploaderBatteryLevel);
+        statusSent = !cancel;
 
-        if (!cancel) uploadEvents(records);
+        try {
+            if (!cancel) uploadEvents(records);
+        } finally {
+            // site rejected a gzip encoded body, don't try again until the next status report
+            if (!useGzip && dataStore.isNightscoutUseGzip()) {
+                storeRealm.executeTransaction(new Realm.Transaction() {
+                    @Override
+                    public void execute(@NonNull Realm realm) {
+                        dataStore.setNightscoutUseGzip(false);
+                    }
+                });
+            }
+        }
 
-        Log.d(TAG, String.format("HTTP workload: Entries: check=%s delete=%s bulk=%s Treatments: check=%s delete=%s bulk=%s Device: write=%s Profile: check=%s delete=%s write=%s Clean: check=%s delete=%s",
-                entriesCheckCount, entriesDeleteCount, entriesBulkCount,
-                treatmentsCheckCount, treatmentsDeleteCount, treatmentsBulkCount,
-                deviceWriteCount,
-                profileCheckCount, profileDeleteCount, profileWriteCount,
-                cheanupCheckCount, cheanupDeleteCount
+        Log.d(TAG, String.format("HTTP workload: Entries: check=%s delete=%s bulk=%s Treatments: check=%s delete=%s bulk=%s Device: write=%s Profile: check=%s delete=%s write=%s Clean: check=%s delete=%s query=%s",
+                entriesCheckCount.get(), entriesDeleteCount.get(), entriesBulkCount.get(),
+                treatmentsCheckCount.get(), treatmentsDeleteCount.get(), treatmentsBulkCount.get(),
+                deviceWriteCount.get(),
+                profileCheckCount.get(), profileDeleteCount.get(), profileWriteCount.get(),
+                cheanupCheckCount.get(), cheanupDeleteCount.get(), cheanupQueryCount.get()
                 ));
     }
 
     private void resetCounts() {
-        entriesBulkCount = 0;
-        entriesDeleteCount = 0;
-        entriesCheckCount = 0;
-        treatmentsBulkCount = 0;
-        treatmentsDeleteCount = 0;
-        treatmentsCheckCount = 0;
-        profileWriteCount = 0;
-        profileDeleteCount = 0;
-        profileCheckCount = 0;
-        deviceWriteCount = 0;
-        cheanupCheckCount = 0;
-        cheanupDeleteCount = 0;
+        entriesBulkCount.set(0);
+        entriesDeleteCount.set(0);
+        entriesCheckCount.set(0);
+        treatmentsBulkCount.set(0);
+        treatmentsDeleteCount.set(0);
+        treatmentsCheckCount.set(0);
+        profileWriteCount.set(0);
+        profileDeleteCount.set(0);
+        profileCheckCount.set(0);
+        deviceWriteCount.set(0);
+        cheanupCheckCount.set(0);
+        cheanupDeleteCount.set(0);
+        cheanupQueryCount.set(0);
     }
 
     // Format date to Zulu (UTC) time
@@ -163,32 +239,201 @@ public class NightscoutUploadProcess {
 
         cleanupCheck();
 
-        List<EntriesEndpoints.Entry> entries = new ArrayList<>();
-        List<TreatmentsEndpoints.Treatment> treatments = new ArrayList<>();
+        List<NightscoutItem> entryItems = new ArrayList<>();
+        List<NightscoutItem> treatmentItems = new ArrayList<>();
 
-        for (PumpHistoryInterface record : records) {
-            List<NightscoutItem> nightscoutItems = record.nightscout(pumpHistorySender, SENDER_ID_NIGHTSCOUT);
+        for (int r = 0; r < records.size() && !cancel; r++) {
+            List<NightscoutItem> nightscoutItems = records.get(r).nightscout(pumpHistorySender, SENDER_ID_NIGHTSCOUT);
+            int pending = 0;
             for (NightscoutItem nightscoutItem : nightscoutItems) {
-                if (nightscoutItem.isEntry())
-                    processEntry(modeOverride(nightscoutItem), nightscoutItem.getEntry(), entries);
-                else if (nightscoutItem.isTreatment())
-                    processTreatment(modeOverride(nightscoutItem), nightscoutItem.getTreatment(), treatments);
-                else if (nightscoutItem.isProfile())
-                    processProfile(nightscoutItem.getMode(), nightscoutItem.getProfile());
+                if (nightscoutItem.isEntry()) {
+                    entryItems.add(nightscoutItem);
+                    itemRecord.put(nightscoutItem.getEntry(), r);
+                    pending++;
+                } else if (nightscoutItem.isTreatment()) {
+                    treatmentItems.add(nightscoutItem);
+                    itemRecord.put(nightscoutItem.getTreatment(), r);
+                    pending++;
+                } else if (nightscoutItem.isProfile()) {
+                    try {
+                        processProfile(nightscoutItem.getMode(), nightscoutItem.getProfile());
+                    } catch (NightscoutException e) {
+                        Log.w(TAG, "profile item failed: " + e.getMessage());
+                        recordFailed(r, e.getMessage());
+                    }
+                }
             }
-            if (cancel) break;
+            recordPending.set(r, pending);
         }
 
-        // bulk uploading for entries and treatments
+        final List<EntriesEndpoints.Entry> entries = new ArrayList<>();
+        final List<TreatmentsEndpoints.Treatment> treatments = new ArrayList<>();
+
+        // fetch what is already in nightscout for the keys of the pass with a few batched queries
+        // and diff locally, falls back to a key check per item for small passes
+        final Map<String, List<EntriesEndpoints.Entry>> entriesFound = reconcileEntries(entryItems);
 
+        // items with the same key are checked in order, different keys are checked in parallel
+        List<UploadExecutor.Request<List<EntriesEndpoints.Entry>>> entryRequests = new ArrayList<>();
+        for (final List<NightscoutItem> keyed : groupByKey(entryItems)) {
+            final List<NightscoutItem.MODE> modes = modeOverride(keyed);
+            entryRequests.add(new UploadExecutor.Request<List<EntriesEndpoints.Entry>>() {
+                @Override
+                public List<EntriesEndpoints.Entry> call() throws Exception, NightscoutException {
+                    List<EntriesEndpoints.Entry> queue = new ArrayList<>();
+                    for (int i = 0; i < keyed.size() && !cancel; i++) {
+                        EntriesEndpoints.Entry item = keyed.get(i).getEntry();
+                        try {
+                            EntriesEndpoints.Entry entry = processEntry(modes.get(i), item, entriesFound);
+                            if (entry != null) queue.add(entry);
+                            else itemSent(item);
+                        } catch (NightscoutException e) {
+                            // the remaining items for the key depend on this one
+                            for (int j = i; j < keyed.size(); j++) itemFailed(keyed.get(j).getEntry(), e.getMessage());
+                            break;
+                        }
+                    }
+                    return queue;
+                }
+            });
+        }
+        for (List<EntriesEndpoints.Entry> queue : uploadExecutor.run(entryRequests, HTTP_PARALLEL_CHECK)) {
+            if (queue != null) entries.addAll(queue);
+        }
+
+        final Map<String, List<TreatmentsEndpoints.Treatment>> treatmentsFound = reconcileTreatments(treatmentItems);
+
+        List<UploadExecutor.Request<List<TreatmentsEndpoints.Treatment>>> treatmentRequests = new ArrayList<>();
+        for (final List<NightscoutItem> keyed : groupByKey(treatmentItems)) {
+            final List<NightscoutItem.MODE> modes = modeOverride(keyed);
+            treatmentRequests.add(new UploadExecutor.Request<List<TreatmentsEndpoints.Treatment>>() {
+                @Override
+                public List<TreatmentsEndpoints.Treatment> call() throws Exception, NightscoutException {
+                    List<TreatmentsEndpoints.Treatment> queue = new ArrayList<>();
+                    for (int i = 0; i < keyed.size() && !cancel; i++) {
+                        TreatmentsEndpoints.Treatment item = keyed.get(i).getTreatment();
+                        try {
+                            TreatmentsEndpoints.Treatment treatment = processTreatment(modes.get(i), item, treatmentsFound);
+                            if (treatment != null) queue.add(treatment);
+                            else itemSent(item);
+                        } catch (NightscoutException e) {
+                            // the remaining items for the key depend on this one
+                            for (int j = i; j < keyed.size(); j++) itemFailed(keyed.get(j).getTreatment(), e.getMessage());
+                            break;
+                        }
+                    }
+                    return queue;
+                }
+            });
+        }
+        for (List<TreatmentsEndpoints.Treatment> queue : uploadExecutor.run(treatmentRequests, HTTP_PARALLEL_CHECK)) {
+            if (queue != null) treatments.addAll(queue);
+        }
+
+        // bulk uploading for entries and treatments, both can be sent together
+
+        List<UploadExecutor.Request<Void>> bulkRequests = new ArrayList<>();
         if (!cancel && entries.size() > 0) {
-            Response<ResponseBody> result = entriesEndpoints.sendEntries(entries).execute();
-            if (!result.isSuccessful()) throw new NightscoutException("(entries) " + result.message());
+            bulkRequests.add(new UploadExecutor.Request<Void>() {
+                @Override
+                public Void call() throws Exception, NightscoutException {
+                    sendBulk("entries", entries, new BulkCall() {
+                        @Override
+                        public Call<ResponseBody> call(String encoding, RequestBody body) {
+                            return entriesEndpoints.sendEntries(encoding, body);
+                        }
+                    });
+                    return null;
+                }
+            });
         }
         if (!cancel && treatments.size() > 0) {
-            Response<ResponseBody> result = treatmentsEndpoints.sendTreatments(treatments).execute();
-            if (!result.isSuccessful()) throw new NightscoutException("(treatments) " + result.message());
+            bulkRequests.add(new UploadExecutor.Request<Void>() {
+                @Override
+                public Void call() throws Exception, NightscoutException {
+                    sendBulk("treatments", treatments, new BulkCall() {
+                        @Override
+                        public Call<ResponseBody> call(String encoding, RequestBody body) {
+                            return treatmentsEndpoints.sendTreatments(encoding, body);
+                        }
+                    });
+                    return null;
+                }
+            });
+        }
+        uploadExecutor.run(bulkRequests, HTTP_PARALLEL_BULK);
+    }
+
+    private interface BulkCall {
+        Call<ResponseBody> call(String encoding, RequestBody body);
+    }
+
+    // stream the records in size bounded chunks, gzip encoded unless the site has rejected it
+    // a rejected chunk fails the records it was for and the remaining chunks are still sent
+    private void sendBulk(String name, List<?> records, BulkCall bulkCall)
+            throws Exception {
+
+        int from = 0;
+        while (from < records.size() && !cancel) {
+            int to = JsonBulkBody.chunk(gson, records, from, BULK_MAX_BYTES);
+
+            boolean gzip = useGzip;
+            Response<ResponseBody> result = bulkCall.call(gzip ? "gzip" : null,
+                    new JsonBulkBody(gson, records, from, to, gzip)).execute();
+
+            if (gzip && (result.code() == 400 || result.code() == 411 || result.code() == 415)) {
+                Log.w(TAG, String.format("(%s) gzip request rejected with code %s, sending uncompressed", name, result.code()));
+                useGzip = false;
+                result = bulkCall.call(null, new JsonBulkBody(gson, records, from, to, false)).execute();
+            }
+
+            if (result.isSuccessful()) {
+                Log.d(TAG, String.format("(%s) bulk sent %s records gzip: %s", name, to - from, gzip && useGzip));
+                for (int i = from; i < to; i++) itemSent(records.get(i));
+            } else {
+                Log.w(TAG, String.format("(%s) bulk failed for %s records code: %s", name, to - from, result.code()));
+                for (int i = from; i < to; i++) itemFailed(records.get(i), "(" + name + ") " + result.message());
+            }
+            from = to;
+        }
+    }
+
+    private void itemSent(Object item) {
+        Integer r = itemRecord.get(item);
+        if (r != null) recordPending.decrementAndGet(r);
+    }
+
+    private void itemFailed(Object item, String error) {
+        Integer r = itemRecord.get(item);
+        if (r != null) recordFailed(r, error);
+    }
+
+    // keep the first error for the record
+    private void recordFailed(int r, String error) {
+        recordError.compareAndSet(r, null, error == null ? "" : error);
+    }
+
+    private Collection<List<NightscoutItem>> groupByKey(List<NightscoutItem> items) {
+        Map<String, List<NightscoutItem>> keyed = new LinkedHashMap<>();
+        for (NightscoutItem item : items) {
+            String key = item.isEntry() ? item.getEntry().getKey600() : item.getTreatment().getKey600();
+            List<NightscoutItem> list = keyed.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                keyed.put(key, list);
+            }
+            list.add(item);
         }
+        return keyed.values();
+    }
+
+    // modes are resolved before the requests run as the override reads the data store
+    private List<NightscoutItem.MODE> modeOverride(List<NightscoutItem> items) {
+        List<NightscoutItem.MODE> modes = new ArrayList<>();
+        for (NightscoutItem item : items) {
+            modes.add(modeOverride(item));
+        }
+        return modes;
     }
 
     private NightscoutItem.MODE modeOverride(NightscoutItem nightscoutItem) {
@@ -201,125 +446,264 @@ public class NightscoutUploadProcess {
         return mode;
     }
 
-    private void processEntry(NightscoutItem.MODE mode, EntriesEndpoints.Entry entry, List<EntriesEndpoints.Entry> entries)
+    // get all entries in nightscout for the keys of the pending items, queried in batches of keys over
+    // the whole history as an integrity reset can move the dates of records that are already uploaded
+    // returns null when reconciliation is not worthwhile, keys missing from the map use the key check per item
+    private Map<String, List<EntriesEndpoints.Entry>> reconcileEntries(List<NightscoutItem> items)
             throws Exception, NightscoutException {
 
+        if (items.size() < RECONCILE_MIN_ITEMS) return null;
+
         String from = Long.toString(new SimpleDateFormat("yyyy", Locale.ENGLISH).parse("2017").getTime());
 
-        String key = entry.getKey600();
-        String mac = entry.getPumpMAC600();
+        Set<String> keys = new LinkedHashSet<>();
+        for (NightscoutItem item : items) keys.add(item.getEntry().getKey600());
 
-        entriesCheckCount++;
-        Response<List<EntriesEndpoints.Entry>> response = entriesEndpoints.findKey(from, key).execute();
+        Map<String, List<EntriesEndpoints.Entry>> found = new HashMap<>();
+        int count = 0;
+
+        for (List<String> batch : batchKeys(keys)) {
+            if (cancel) break;
+
+            entriesCheckCount.incrementAndGet();
+            Response<List<EntriesEndpoints.Entry>> response = entriesEndpoints.findKeys(
+                    from, batch, String.valueOf(RECONCILE_PAGE_COUNT)).execute();
+
+            if (!response.isSuccessful()) {
+                Log.d(TAG, "no response from nightscout site!");
+                throw new NightscoutException("(reconcileEntries) " + response.message());
+            }
 
-        if (response.isSuccessful()) {
             List<EntriesEndpoints.Entry> list = response.body();
-            int count = list.size();
+            if (list.size() >= RECONCILE_PAGE_COUNT) {
+                Log.w(TAG, "reconcile: entries batch truncated, using key check per item");
+                continue;
+            }
 
-            if (count > 0) {
-                Log.d(TAG, "found " + count + " already in nightscout for KEY: " + key);
+            for (String key : batch) found.put(key, new ArrayList<EntriesEndpoints.Entry>());
+            for (EntriesEndpoints.Entry item : list) {
+                List<EntriesEndpoints.Entry> keyed = found.get(item.getKey600());
+                if (keyed != null) {
+                    keyed.add(item);
+                    count++;
+                }
+            }
+        }
 
-                for (EntriesEndpoints.Entry item : list) {
+        Log.d(TAG, String.format("reconcile: found %s keyed entries in nightscout for %s items %s keys",
+                count, items.size(), found.size()));
 
-                    // v0.6.1 did not record the pump MAC, remove and rewrite keys with mac as needed
-                    if (count > 1 || item.getPumpMAC600() == null ||
-                            (item.getPumpMAC600().equals(mac) &&
-                                    mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.DELETE)) {
-                        entriesDeleteCount++;
-                        Response<ResponseBody> responseBody = entriesEndpoints.deleteID(item.getDate().toString(), item.get_id()).execute();
-                        if (responseBody.isSuccessful()) {
-                            Log.d(TAG, String.format("deleted entry ID: %s with KEY: %s MAC: %s DATE: %s (%s)",
-                                    item.get_id(), item.getKey600(), item.getPumpMAC600(), item.getDateString(), item.getDate()));
-                        } else {
-                            Log.d(TAG, "no DELETE response from nightscout site");
-                            throw new NightscoutException("(processEntry) " + responseBody.message());
-                        }
-                    }
+        return found;
+    }
 
-                    // in check mode and 1 item already in nightscout
-                    else return;
+    // get all treatments in nightscout for the keys of the pending items, see reconcileEntries
+    private Map<String, List<TreatmentsEndpoints.Treatment>> reconcileTreatments(List<NightscoutItem> items)
+            throws Exception, NightscoutException {
+
+        if (items.size() < RECONCILE_MIN_ITEMS) return null;
+
+        String from = "2017";
+
+        Set<String> keys = new LinkedHashSet<>();
+        for (NightscoutItem item : items) keys.add(item.getTreatment().getKey600());
+
+        Map<String, List<TreatmentsEndpoints.Treatment>> found = new HashMap<>();
+        int count = 0;
+
+        for (List<String> batch : batchKeys(keys)) {
+            if (cancel) break;
 
-                    count--;
+            treatmentsCheckCount.incrementAndGet();
+            Response<List<TreatmentsEndpoints.Treatment>> response = treatmentsEndpoints.findKeys(
+                    from, batch, String.valueOf(RECONCILE_PAGE_COUNT)).execute();
+
+            if (!response.isSuccessful()) {
+                Log.d(TAG, "no response from nightscout site!");
+                throw new NightscoutException("(reconcileTreatments) " + response.message());
+            }
+
+            List<TreatmentsEndpoints.Treatment> list = response.body();
+            if (list.size() >= RECONCILE_PAGE_COUNT) {
+                Log.w(TAG, "reconcile: treatments batch truncated, using key check per item");
+                continue;
+            }
+
+            for (String key : batch) found.put(key, new ArrayList<TreatmentsEndpoints.Treatment>());
+            for (TreatmentsEndpoints.Treatment item : list) {
+                List<TreatmentsEndpoints.Treatment> keyed = found.get(item.getKey600());
+                if (keyed != null) {
+                    keyed.add(item);
+                    count++;
                 }
             }
+        }
 
-            if (mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.CHECK) {
-                Log.d(TAG, String.format("queued item for nightscout entries bulk upload. KEY: %s MAC: %s DATE: %s (%s)",
-                        key, mac, entry.getDateString(), entry.getDate()));
-                entry.setDevice(device);
-                entries.add(entry);
-                entriesBulkCount++;
+        Log.d(TAG, String.format("reconcile: found %s keyed treatments in nightscout for %s items %s keys",
+                count, items.size(), found.size()));
+
+        return found;
+    }
+
+    private List<List<String>> batchKeys(Set<String> keys) {
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = null;
+        for (String key : keys) {
+            if (batch == null || batch.size() == RECONCILE_BATCH_KEYS) {
+                batch = new ArrayList<>();
+                batches.add(batch);
             }
+            batch.add(key);
+        }
+        return batches;
+    }
+
+    // returns the entry when it needs to be queued for the bulk upload
+    private EntriesEndpoints.Entry processEntry(NightscoutItem.MODE mode, EntriesEndpoints.Entry entry,
+                                               Map<String, List<EntriesEndpoints.Entry>> found)
+            throws Exception, NightscoutException {
+
+        String key = entry.getKey600();
+        String mac = entry.getPumpMAC600();
+
+        List<EntriesEndpoints.Entry> list;
+
+        if (found != null && found.containsKey(key)) {
+            list = found.get(key);
 
         } else {
-            Log.d(TAG, "no response from nightscout site!");
-            throw new NightscoutException("(processEntry) " + response.message());
+            String from = Long.toString(new SimpleDateFormat("yyyy", Locale.ENGLISH).parse("2017").getTime());
+
+            entriesCheckCount.incrementAndGet();
+            Response<List<EntriesEndpoints.Entry>> response = entriesEndpoints.findKey(from, key).execute();
+
+            if (!response.isSuccessful()) {
+                Log.d(TAG, "no response from nightscout site!");
+                throw new NightscoutException("(processEntry) " + response.message());
+            }
+            list = response.body();
         }
+
+        int count = list.size();
+
+        if (count > 0) {
+            Log.d(TAG, "found " + count + " already in nightscout for KEY: " + key);
+
+            Iterator<EntriesEndpoints.Entry> iterator = list.iterator();
+            while (iterator.hasNext()) {
+                EntriesEndpoints.Entry item = iterator.next();
+
+                // v0.6.1 did not record the pump MAC, remove and rewrite keys with mac as needed
+                if (count > 1 || item.getPumpMAC600() == null ||
+                        (item.getPumpMAC600().equals(mac) &&
+                                mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.DELETE)) {
+                    entriesDeleteCount.incrementAndGet();
+                    Response<ResponseBody> responseBody = entriesEndpoints.deleteID(item.getDate().toString(), item.get_id()).execute();
+                    if (responseBody.isSuccessful()) {
+                        Log.d(TAG, String.format("deleted entry ID: %s with KEY: %s MAC: %s DATE: %s (%s)",
+                                item.get_id(), item.getKey600(), item.getPumpMAC600(), item.getDateString(), item.getDate()));
+                        // keep the reconciled set in step with nightscout
+                        iterator.remove();
+                    } else {
+                        Log.d(TAG, "no DELETE response from nightscout site");
+                        throw new NightscoutException("(processEntry) " + responseBody.message());
+                    }
+                }
+
+                // in check mode and 1 item already in nightscout
+                else return null;
+
+                count--;
+            }
+        }
+
+        if (mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.CHECK) {
+            Log.d(TAG, String.format("queued item for nightscout entries bulk upload. KEY: %s MAC: %s DATE: %s (%s)",
+                    key, mac, entry.getDateString(), entry.getDate()));
+            entry.setDevice(device);
+            entriesBulkCount.incrementAndGet();
+            return entry;
+        }
+
+        return null;
     }
 
-    private void processTreatment(NightscoutItem.MODE mode, TreatmentsEndpoints.Treatment treatment, List<TreatmentsEndpoints.Treatment> treatments)
+    // returns the treatment when it needs to be queued for the bulk upload
+    private TreatmentsEndpoints.Treatment processTreatment(NightscoutItem.MODE mode, TreatmentsEndpoints.Treatment treatment,
+                                                           Map<String, List<TreatmentsEndpoints.Treatment>> found)
             throws Exception, NightscoutException {
 
-        String from = "2017";
-
         String key = treatment.getKey600();
         String mac = treatment.getPumpMAC600();
 
-        treatmentsCheckCount++;
-        Response<List<TreatmentsEndpoints.Treatment>> response = treatmentsEndpoints.findKey(from, key).execute();
+        List<TreatmentsEndpoints.Treatment> list;
 
-        if (response.isSuccessful()) {
-            List<TreatmentsEndpoints.Treatment> list = response.body();
-            int count = list.size();
+        if (found != null && found.containsKey(key)) {
+            list = found.get(key);
 
-            if (count > 0) {
-                Log.d(TAG, "found " + count + " already in nightscout for KEY: " + key);
+        } else {
+            String from = "2017";
 
-                for (TreatmentsEndpoints.Treatment item : list) {
+            treatmentsCheckCount.incrementAndGet();
+            Response<List<TreatmentsEndpoints.Treatment>> response = treatmentsEndpoints.findKey(from, key).execute();
 
-                    // v0.6.1 did not record the pump MAC, remove and rewrite keys with mac as needed
-                    if (count > 1 || item.getPumpMAC600() == null ||
-                            (item.getPumpMAC600().equals(mac) &&
-                                    mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.DELETE)) {
-                        treatmentsDeleteCount++;
-                        Response<ResponseBody> responseBody = dataStore.isNightscoutUseQuery()
-                                ? treatmentsEndpoints.deleteID(item.getCreated_at(), item.get_id()).execute()
-                                : treatmentsEndpoints.deleteID(item.get_id()).execute();
-                        if (responseBody.isSuccessful()) {
-                            Log.d(TAG, String.format("deleted treatment ID: %s with KEY: %s MAC: %s DATE: %s QUERY: %s",
-                                    item.get_id(), item.getKey600(), item.getPumpMAC600(), item.getCreated_at(), dataStore.isNightscoutUseQuery()));
-                        } else {
-                            Log.d(TAG, "no DELETE response from nightscout site");
-                            throw new NightscoutException("(processTreatment) " + responseBody.message());
-                        }
-                    }
-
-                    // in check mode and 1 item already in nightscout
-                    else return;
+            if (!response.isSuccessful()) {
+                Log.d(TAG, "no response from nightscout site!");
+                throw new NightscoutException("(processTreatment) " + response.message());
+            }
+            list = response.body();
+        }
 
-                    count--;
+        int count = list.size();
+
+        if (count > 0) {
+            Log.d(TAG, "found " + count + " already in nightscout for KEY: " + key);
+
+            Iterator<TreatmentsEndpoints.Treatment> iterator = list.iterator();
+            while (iterator.hasNext()) {
+                TreatmentsEndpoints.Treatment item = iterator.next();
+
+                // v0.6.1 did not record the pump MAC, remove and rewrite keys with mac as needed
+                if (count > 1 || item.getPumpMAC600() == null ||
+                        (item.getPumpMAC600().equals(mac) &&
+                                mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.DELETE)) {
+                    treatmentsDeleteCount.incrementAndGet();
+                    Response<ResponseBody> responseBody = useQuery
+                            ? treatmentsEndpoints.deleteID(item.getCreated_at(), item.get_id()).execute()
+                            : treatmentsEndpoints.deleteID(item.get_id()).execute();
+                    if (responseBody.isSuccessful()) {
+                        Log.d(TAG, String.format("deleted treatment ID: %s with KEY: %s MAC: %s DATE: %s QUERY: %s",
+                                item.get_id(), item.getKey600(), item.getPumpMAC600(), item.getCreated_at(), useQuery));
+                        // keep the reconciled set in step with nightscout
+                        iterator.remove();
+                    } else {
+                        Log.d(TAG, "no DELETE response from nightscout site");
+                        throw new NightscoutException("(processTreatment) " + responseBody.message());
+                    }
                 }
-            }
 
-            if (mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.CHECK) {
-                Log.d(TAG, String.format("queued item for nightscout treatments bulk upload. KEY: %s MAC: %s DATE: %s",
-                        key, mac, treatment.getCreated_at()));
-                if (enteredBy.length() > 0) treatment.setEnteredBy(enteredBy);
-                treatments.add(treatment);
-                treatmentsBulkCount++;
+                // in check mode and 1 item already in nightscout
+                else return null;
+
+                count--;
             }
+        }
 
-        } else {
-            Log.d(TAG, "no response from nightscout site!");
-            throw new NightscoutException("(processTreatment) " + response.message());
+        if (mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.CHECK) {
+            Log.d(TAG, String.format("queued item for nightscout treatments bulk upload. KEY: %s MAC: %s DATE: %s",
+                    key, mac, treatment.getCreated_at()));
+            if (enteredBy.length() > 0) treatment.setEnteredBy(enteredBy);
+            treatmentsBulkCount.incrementAndGet();
+            return treatment;
         }
+
+        return null;
     }
 
     private void processProfile(NightscoutItem.MODE mode, ProfileEndpoints.Profile profile)
             throws Exception, NightscoutException {
 
         String key = profile.getKey600();
-        profileCheckCount++;
+        profileCheckCount.incrementAndGet();
         Response<List<ProfileEndpoints.Profile>> response = profileEndpoints.getProfiles().execute();
 
         if (response.isSuccessful()) {
@@ -338,7 +722,7 @@ public class NightscoutUploadProcess {
 
                     for (ProfileEndpoints.Profile item : list) {
                         foundID = item.get_id();
-                        profileDeleteCount++;
+                        profileDeleteCount.incrementAndGet();
                         Response<ResponseBody> responseBody = profileEndpoints.deleteID(foundID).execute();
                         if (responseBody.isSuccessful()) {
                             Log.d(TAG, "deleted this item! ID: " + foundID);
@@ -363,7 +747,7 @@ public class NightscoutUploadProcess {
                                 foundKey = item.getKey600();
                                 if (foundKey != null && foundKey.equals(key)) {
                                     foundID = item.get_id();
-                                    profileDeleteCount++;
+                                    profileDeleteCount.incrementAndGet();
                                     Response<ResponseBody> responseBody = profileEndpoints.deleteID(foundID).execute();
                                     if (responseBody.isSuccessful()) {
                                         Log.d(TAG, "deleted this item! KEY: " + key + " ID: " + foundID);
@@ -383,7 +767,7 @@ public class NightscoutUploadProcess {
 
             if (mode == NightscoutItem.MODE.UPDATE || mode == NightscoutItem.MODE.CHECK) {
                 Log.d(TAG, "new item sending to nightscout profile, KEY: " + key);
-                profileWriteCount++;
+                profileWriteCount.incrementAndGet();
                 Response<ResponseBody> responseBody = profileEndpoints.sendProfile(profile).execute();
                 if (!responseBody.isSuccessful()) {
                     Log.d(TAG, "no POST response from nightscout site");
@@ -443,12 +827,20 @@ public class NightscoutUploadProcess {
             deviceStatus.setUploaderBattery(uploaderBatteryLevel);
         }
 
-        for (DeviceStatus status : deviceEntries) {
-            deviceWriteCount++;
-            Response<ResponseBody> result = deviceEndpoints.sendDeviceStatus(status).execute();
-            if (!result.isSuccessful()) throw new NightscoutException("(device status) " + result.message());
-            if (cancel) break;
+        List<UploadExecutor.Request<Void>> requests = new ArrayList<>();
+        for (final DeviceStatus status : deviceEntries) {
+            requests.add(new UploadExecutor.Request<Void>() {
+                @Override
+                public Void call() throws Exception, NightscoutException {
+                    if (cancel) return null;
+                    deviceWriteCount.incrementAndGet();
+                    Response<ResponseBody> result = deviceEndpoints.sendDeviceStatus(status).execute();
+                    if (!result.isSuccessful()) throw new NightscoutException("(device status) " + result.message());
+                    return null;
+                }
+            });
         }
+        uploadExecutor.run(requests, HTTP_PARALLEL_DEVICE);
     }
 
     private String buildPumpString(PumpStatusEvent record) {
@@ -568,32 +960,48 @@ public class NightscoutUploadProcess {
         if (dataStore.isNightscoutInitCleanup()) {
             Log.i(TAG, "running nightscout initial cleanup check");
 
-            String cleanFrom = formatDateForNS(now - dataStore.getSysPumpHistoryDays() * 24 * 60 * 60000L);
-            String cleanTo = formatDateForNS(now);
+            final String cleanFrom = formatDateForNS(now - dataStore.getSysPumpHistoryDays() * 24 * 60 * 60000L);
+            final String cleanTo = formatDateForNS(now);
 
             // delete debug notes
-            while (deleteTreatments(treatmentsEndpoints.findNotesRegex(
-                    "2017", cleanTo,
-                    "debug",
-                    "20").execute()) == 20) ;
-            while (deleteTreatments(treatmentsEndpoints.findNotesRegex(
-                    "2017", cleanTo,
-                    "Debug",
-                    "20").execute()) == 20) ;
+            cleanupTreatments("debug notes", new CleanupQuery() {
+                @Override
+                public Call<ResponseBody> delete() {
+                    return treatmentsEndpoints.deleteNotesRegex("2017", cleanTo, "[Dd]ebug");
+                }
+
+                @Override
+                public Call<List<TreatmentsEndpoints.Treatment>> find(String count) {
+                    return treatmentsEndpoints.findNotesRegex("2017", cleanTo, "[Dd]ebug", count);
+                }
+            });
 
             // delete events that have changed for v.7.0
-            while (deleteTreatments(treatmentsEndpoints.findKeyRegexNoPumpMAC(
-                    cleanFrom, cleanTo,
-                    "BG Check", "", "20").execute()) == 20) ;
-            while (deleteTreatments(treatmentsEndpoints.findNotesRegexNoPumpMAC(
-                    cleanFrom, cleanTo,
-                    "Sensor changed", "", "", "20").execute()) == 20) ;
-            while (deleteTreatments(treatmentsEndpoints.findNotesRegexNoPumpMAC(
-                    cleanFrom, cleanTo,
-                    "Pump battery changed", "", "", "20").execute()) == 20) ;
-            while (deleteTreatments(treatmentsEndpoints.findNotesRegexNoPumpMAC(
-                    cleanFrom, cleanTo,
-                    "Reservoir changed", "", "", "20").execute()) == 20) ;
+            cleanupTreatments("bg check", new CleanupQuery() {
+                @Override
+                public Call<ResponseBody> delete() {
+                    return treatmentsEndpoints.deleteKeyRegexNoPumpMAC(cleanFrom, cleanTo, "BG Check", "");
+                }
+
+                @Override
+                public Call<List<TreatmentsEndpoints.Treatment>> find(String count) {
+                    return treatmentsEndpoints.findKeyRegexNoPumpMAC(cleanFrom, cleanTo, "BG Check", "", count);
+                }
+            });
+
+            for (final String notes : new String[]{"Sensor changed", "Pump battery changed", "Reservoir changed"}) {
+                cleanupTreatments(notes, new CleanupQuery() {
+                    @Override
+                    public Call<ResponseBody> delete() {
+                        return treatmentsEndpoints.deleteNotesRegexNoPumpMAC(cleanFrom, cleanTo, notes, "", "");
+                    }
+
+                    @Override
+                    public Call<List<TreatmentsEndpoints.Treatment>> find(String count) {
+                        return treatmentsEndpoints.findNotesRegexNoPumpMAC(cleanFrom, cleanTo, notes, "", "", count);
+                    }
+                });
+            }
 
             storeRealm.executeTransaction(new Realm.Transaction() {
                 @Override
@@ -608,20 +1016,36 @@ public class NightscoutUploadProcess {
             Log.d(TAG, "running nightscout message cleanup check");
 
             // clean up any old alarm or system messages that may remain in NS when multiple uploaders are in use
-            String cleanTo = formatDateForNS(now - 24 * 60 * 60000L);
+            final String cleanTo = formatDateForNS(now - 24 * 60 * 60000L);
 
-            while (deleteTreatments(treatmentsEndpoints.findKeyRegex(
-                    "2017",
-                    cleanTo,
-                    "SYS", "20").execute()) == 20) ;
+            cleanupTreatments("system messages", new CleanupQuery() {
+                @Override
+                public Call<ResponseBody> delete() {
+                    return treatmentsEndpoints.deleteKeyRegex("2017", cleanTo, "SYS");
+                }
+
+                @Override
+                public Call<List<TreatmentsEndpoints.Treatment>> find(String count) {
+                    return treatmentsEndpoints.findKeyRegex("2017", cleanTo, "SYS", count);
+                }
+            });
 
             if (!(dataStore.isNsEnableAlarms() && dataStore.getNsAlarmTTL() == 0)) {
-                while (deleteTreatments(treatmentsEndpoints.findKeyRegex(
-                        "2017",
-                        dataStore.isNsEnableAlarms()
-                                ? formatDateForNS(now - dataStore.getNsAlarmTTL() * 60 * 60000L)
-                                : cleanTo,
-                        "ALARM", "20").execute()) == 20) ;
+                final String alarmTo = dataStore.isNsEnableAlarms()
+                        ? formatDateForNS(now - dataStore.getNsAlarmTTL() * 60 * 60000L)
+                        : cleanTo;
+
+                cleanupTreatments("alarm messages", new CleanupQuery() {
+                    @Override
+                    public Call<ResponseBody> delete() {
+                        return treatmentsEndpoints.deleteKeyRegex("2017", alarmTo, "ALARM");
+                    }
+
+                    @Override
+                    public Call<List<TreatmentsEndpoints.Treatment>> find(String count) {
+                        return treatmentsEndpoints.findKeyRegex("2017", alarmTo, "ALARM", count);
+                    }
+                });
             }
 
             storeRealm.executeTransaction(new Realm.Transaction() {
@@ -659,6 +1083,7 @@ public class NightscoutUploadProcess {
         if (cgmFrom < cgmTo) {
             Log.d(TAG, "cleanup: entries (cgm history) " + formatDateForNS(cgmFrom) + " to " + formatDateForNS(cgmTo));
 
+            cheanupQueryCount.incrementAndGet();
             Response<ResponseBody> responseBody = CLEAN_COMPLETE
                     ? entriesEndpoints.deleteCleanupItems(
                     String.valueOf(cgmFrom), String.valueOf(cgmTo)).execute()
@@ -689,22 +1114,26 @@ public class NightscoutUploadProcess {
 
             Log.d(TAG, "cleanup: treatments (pump history) " + formatDateForNS(pumpFrom) + " to " + formatDateForNS(pumpTo));
 
-            int result;
-            do {
-                result = deleteTreatments(
-                        CLEAN_COMPLETE
-                                ? treatmentsEndpoints.findDateRangeCount(
-                                formatDateForNS(pumpFrom),
-                                formatDateForNS(pumpTo),
-                                "20").execute()
-                                : treatmentsEndpoints.findCleanupItems(
-                                formatDateForNS(pumpFrom),
-                                formatDateForNS(pumpTo),
-                                "Note", "", "20").execute()
-                );
-            } while (result == 20);
-
-            if (result >= 0) {
+            final String cleanFrom = formatDateForNS(pumpFrom);
+            final String cleanTo = formatDateForNS(pumpTo);
+
+            boolean result = cleanupTreatments("non keyed treatments", new CleanupQuery() {
+                @Override
+                public Call<ResponseBody> delete() {
+                    return CLEAN_COMPLETE
+                            ? treatmentsEndpoints.deleteDateRange(cleanFrom, cleanTo)
+                            : treatmentsEndpoints.deleteCleanupItems(cleanFrom, cleanTo, "Note", "");
+                }
+
+                @Override
+                public Call<List<TreatmentsEndpoints.Treatment>> find(String count) {
+                    return CLEAN_COMPLETE
+                            ? treatmentsEndpoints.findDateRangeCount(cleanFrom, cleanTo, count)
+                            : treatmentsEndpoints.findCleanupItems(cleanFrom, cleanTo, "Note", "", count);
+                }
+            });
+
+            if (result) {
                 final long pumpFromFinal = pumpFrom;
                 storeRealm.executeTransaction(new Realm.Transaction() {
                     @Override
@@ -716,82 +1145,158 @@ public class NightscoutUploadProcess {
         }
     }
 
-    private int deleteTreatments(Response<List<TreatmentsEndpoints.Treatment>> response) throws Exception {
-        cheanupCheckCount++;
-        int result = 0;
-        if (response.isSuccessful()) {
+    private interface CleanupQuery {
+        // query based delete of all the matching treatments
+        Call<ResponseBody> delete();
+
+        // find a page of the matching treatments
+        Call<List<TreatmentsEndpoints.Treatment>> find(String count);
+    }
+
+    // delete the treatments matching a cleanup query, returns true when the cleanup completed
+    // nightscout versions with query support delete in a single request, otherwise pages are found and deleted by id
+    private boolean cleanupTreatments(String name, CleanupQuery query) throws Exception {
+
+        if (useQuery) {
+            cheanupQueryCount.incrementAndGet();
+            Response<ResponseBody> responseBody = query.delete().execute();
+            if (responseBody.isSuccessful()) {
+                Log.d(TAG, "cleanup: query delete " + name);
+                return true;
+            }
+            Log.w(TAG, String.format("cleanup: query delete %s failed code: %s, deleting by id", name, responseBody.code()));
+        }
+
+        Set<String> deleted = new HashSet<>();
+
+        while (!cancel) {
+            cheanupCheckCount.incrementAndGet();
+            Response<List<TreatmentsEndpoints.Treatment>> response = query.find(String.valueOf(CLEANUP_PAGE_COUNT)).execute();
+            if (!response.isSuccessful()) return false;
+
             List<TreatmentsEndpoints.Treatment> list = response.body();
             for (TreatmentsEndpoints.Treatment item : list) {
-                cheanupDeleteCount++;
-                Response<ResponseBody> responseBody = dataStore.isNightscoutUseQuery()
-                        ? treatmentsEndpoints.deleteID(item.getCreated_at(), item.get_id()).execute()
-                        : treatmentsEndpoints.deleteID(item.get_id()).execute();
-                if (responseBody.isSuccessful()) {
-                    Log.d(TAG, String.format("deleted treatment ID: %s with KEY: %s MAC: %s DATE: %s QUERY: %s",
-                            item.get_id(), item.getKey600(), item.getPumpMAC600(), item.getCreated_at(), dataStore.isNightscoutUseQuery()));
-                } else {
-                    Log.d(TAG, "no DELETE response from nightscout site");
-                    return -1;
+                // the site is not deleting the items, stop before looping on the same page
+                if (!deleted.add(item.get_id())) {
+                    Log.w(TAG, "cleanup: " + name + " items remain after delete");
+                    return false;
                 }
-                result++;
             }
-        } else return -1;
-        return result;
+
+            if (!deleteTreatments(list)) return false;
+
+            if (list.size() < CLEANUP_PAGE_COUNT) {
+                Log.d(TAG, String.format("cleanup: deleted %s %s by id", deleted.size(), name));
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean deleteTreatments(List<TreatmentsEndpoints.Treatment> list) throws Exception {
+
+        List<UploadExecutor.Request<Void>> requests = new ArrayList<>();
+        for (final TreatmentsEndpoints.Treatment item : list) {
+            requests.add(new UploadExecutor.Request<Void>() {
+                @Override
+                public Void call() throws Exception, NightscoutException {
+                    if (cancel) return null;
+                    cheanupDeleteCount.incrementAndGet();
+                    Response<ResponseBody> responseBody = useQuery
+                            ? treatmentsEndpoints.deleteID(item.getCreated_at(), item.get_id()).execute()
+                            : treatmentsEndpoints.deleteID(item.get_id()).execute();
+                    if (!responseBody.isSuccessful()) {
+                        Log.d(TAG, "no DELETE response from nightscout site");
+                        throw new NightscoutException("(cleanup) " + responseBody.message());
+                    }
+                    Log.d(TAG, String.format("deleted treatment ID: %s with KEY: %s MAC: %s DATE: %s QUERY: %s",
+                            item.get_id(), item.getKey600(), item.getPumpMAC600(), item.getCreated_at(), useQuery));
+                    return null;
+                }
+            });
+        }
+
+        try {
+            uploadExecutor.run(requests, HTTP_PARALLEL_DELETE);
+        } catch (NightscoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isStatusSent() {
+        return statusSent;
+    }
+
+    // all items for the record have been sent
+    public boolean isRecordSent(int index) {
+        return index < recordPending.length()
+                && recordPending.get(index) == 0 && recordError.get(index) == null;
+    }
+
+    // error for a record that failed, null when the record has not failed
+    public String getRecordError(int index) {
+        return index < recordError.length() ? recordError.get(index) : null;
     }
 
     public int getEntriesBulkCount() {
-        return entriesBulkCount;
+        return entriesBulkCount.get();
     }
 
     public int getEntriesDeleteCount() {
-        return entriesDeleteCount;
+        return entriesDeleteCount.get();
     }
 
     public int getEntriesCheckCount() {
-        return entriesCheckCount;
+        return entriesCheckCount.get();
     }
 
     public int getTreatmentsBulkCount() {
-        return treatmentsBulkCount;
+        return treatmentsBulkCount.get();
     }
 
     public int getTreatmentsDeleteCount() {
-        return treatmentsDeleteCount;
+        return treatmentsDeleteCount.get();
     }
 
     public int getTreatmentsCheckCount() {
-        return treatmentsCheckCount;
+        return treatmentsCheckCount.get();
     }
 
     public int getProfileWriteCount() {
-        return profileWriteCount;
+        return profileWriteCount.get();
     }
 
     public int getProfileDeleteCount() {
-        return profileDeleteCount;
+        return profileDeleteCount.get();
     }
 
     public int getProfileCheckCount() {
-        return profileCheckCount;
+        return profileCheckCount.get();
     }
 
     public int getDeviceWriteCount() {
-        return deviceWriteCount;
+        return deviceWriteCount.get();
     }
 
     public int getCheanupCheckCount() {
-        return cheanupCheckCount;
+        return cheanupCheckCount.get();
     }
 
     public int getCheanupDeleteCount() {
-        return cheanupDeleteCount;
+        return cheanupDeleteCount.get();
+    }
+
+    public int getCheanupQueryCount() {
+        return cheanupQueryCount.get();
     }
 
     public int getHttpWorkload() {
-        return entriesCheckCount + entriesDeleteCount + (entriesBulkCount == 0 ? 0 : 1) +
-                treatmentsCheckCount + treatmentsDeleteCount + (treatmentsBulkCount == 0 ? 0 : 1) +
-                deviceWriteCount +
-                profileCheckCount + profileDeleteCount + profileWriteCount +
-                cheanupCheckCount + cheanupDeleteCount;
+        return entriesCheckCount.get() + entriesDeleteCount.get() + (entriesBulkCount.get() == 0 ? 0 : 1) +
+                treatmentsCheckCount.get() + treatmentsDeleteCount.get() + (treatmentsBulkCount.get() == 0 ? 0 : 1) +
+                deviceWriteCount.get() +
+                profileCheckCount.get() + profileDeleteCount.get() + profileWriteCount.get() +
+                cheanupCheckCount.get() + cheanupDeleteCount.get() + cheanupQueryCount.get();
     }
 }
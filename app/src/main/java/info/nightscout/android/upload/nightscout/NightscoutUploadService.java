@@ -9,10 +9,14 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import info.nightscout.android.R;
 import info.nightscout.android.UploaderApplication;
+import info.nightscout.android.history.HistoryUtils;
 import info.nightscout.android.history.PumpHistoryHandler;
 import info.nightscout.android.medtronic.Stats;
 import info.nightscout.android.medtronic.UserLogMessage;
@@ -20,8 +24,10 @@ import info.nightscout.android.medtronic.service.MasterService;
 import info.nightscout.android.model.medtronicNg.PumpHistoryInterface;
 import info.nightscout.android.model.medtronicNg.PumpStatusEvent;
 import info.nightscout.android.model.store.DataStore;
+import info.nightscout.android.model.store.SenderOutbox;
 import info.nightscout.android.model.store.StatNightscout;
 import io.realm.Realm;
+import io.realm.RealmResults;
 import io.realm.Sort;
 
 import static info.nightscout.android.history.PumpHistorySender.SENDER_ID_NIGHTSCOUT;
@@ -184,7 +190,12 @@ public class NightscoutUploadService extends Service {
 
             Log.i(TAG, "Device status records to process for upload: " + statusRecords.size());
 
-            List<PumpHistoryInterface> records = pumpHistoryHandler.getSenderRecordsREQ(SENDER_ID_NIGHTSCOUT);
+            // records that failed to upload are left out of the pass until their next attempt
+            Set<String> deferred = getOutboxDeferred();
+            if (deferred.size() > 0)
+                Log.i(TAG, "History records waiting for retry after failed upload: " + deferred.size());
+
+            List<PumpHistoryInterface> records = pumpHistoryHandler.getSenderRecordsREQ(SENDER_ID_NIGHTSCOUT, deferred);
 
             // rerun the uploader if we hit the limiter for this pass
             if (records.size() >= pumpHistoryHandler.getPumpHistorySender().getSender(SENDER_ID_NIGHTSCOUT).getLimiter()) {
@@ -200,6 +211,9 @@ public class NightscoutUploadService extends Service {
 
             if (total > 0) {
 
+                // records are acknowledged once per pass, a failed record must only have its backoff increased once
+                boolean acknowledged = false;
+
                 try {
 
                     long start = System.currentTimeMillis();
@@ -223,24 +237,31 @@ public class NightscoutUploadService extends Service {
                             statusRecords,
                             records);
 
-                    if (!nightscoutUploadProcess.isCancel()) {
-                        pumpHistoryHandler.setSenderRecordsACK(records, SENDER_ID_NIGHTSCOUT);
-
-                        final List<PumpStatusEvent> finalStatusRecords = statusRecords;
-                        realm.executeTransaction(new Realm.Transaction() {
-                            @Override
-                            public void execute(@NonNull Realm realm) {
-                                for (PumpStatusEvent updateRecord : finalStatusRecords)
-                                    updateRecord.setUploaded(true);
-                            }
-                        });
+                    acknowledged = true;
+                    String failed = acknowledge(statusRecords, records);
+
+                    if (failed != null) {
+                        statNightscout.incError();
 
+                        if (dataStore.isDbgEnableUploadErrors()) {
+                            UserLogMessage.send(mContext, UserLogMessage.TYPE.WARN,
+                                    String.format("{id;%s} %s",
+                                            R.string.ul_ns__warn_upload_unsuccessful,
+                                            failed));
+                        }
+                    }
+
+                    if (!nightscoutUploadProcess.isCancel()) {
                         long timer = System.currentTimeMillis() - start;
                         statNightscout.timer(timer);
                         statNightscout.settotalRecords(statNightscout.getTotalRecords() + total);
                         statNightscout.setTotalHttp(statNightscout.getTotalHttp() + nightscoutUploadProcess.getHttpWorkload());
+                        statNightscout.cleanup(
+                                nightscoutUploadProcess.getCheanupQueryCount(),
+                                nightscoutUploadProcess.getCheanupCheckCount(),
+                                nightscoutUploadProcess.getCheanupDeleteCount());
 
-                        UserLogMessage.sendE(mContext, String.format("{id;%s}: {id;%s} %s http %s E:%s/%s/%s T:%s/%s/%s P:%s/%s/%s D:%s C:%s/%s [%sms]",
+                        UserLogMessage.sendE(mContext, String.format("{id;%s}: {id;%s} %s http %s E:%s/%s/%s T:%s/%s/%s P:%s/%s/%s D:%s C:%s/%s/%s [%sms]",
                                 R.string.ul_share__nightscout, R.string.ul_share__processed, total,
                                 nightscoutUploadProcess.getHttpWorkload(),
                                 nightscoutUploadProcess.getEntriesCheckCount(),
@@ -255,6 +276,7 @@ public class NightscoutUploadService extends Service {
                                 nightscoutUploadProcess.getDeviceWriteCount(),
                                 nightscoutUploadProcess.getCheanupCheckCount(),
                                 nightscoutUploadProcess.getCheanupDeleteCount(),
+                                nightscoutUploadProcess.getCheanupQueryCount(),
                                 timer));
 
                     } else {
@@ -265,6 +287,9 @@ public class NightscoutUploadService extends Service {
                     Log.e(TAG, "Nightscout Server Error:", e);
                     statNightscout.incError();
 
+                    // keep the progress made before the pass ended
+                    if (!acknowledged) acknowledge(statusRecords, records);
+
                     // Do not rerun, try again after the next poll
                     rerun = false;
 
@@ -286,6 +311,9 @@ public class NightscoutUploadService extends Service {
                     Log.e(TAG, "Exception while processing upload:", e);
                     statNightscout.incError();
 
+                    // keep the progress made before the pass ended
+                    if (!acknowledged) acknowledge(statusRecords, records);
+
                     // Do not rerun, try again after the next poll
                     rerun = false;
 
@@ -320,4 +348,111 @@ public class NightscoutUploadService extends Service {
         }
     }
 
+    // ids of the records waiting for their next attempt, entries for records outside the process period are removed
+    private Set<String> getOutboxDeferred() {
+        long now = System.currentTimeMillis();
+        Date limitDate = new Date(now - pumpHistoryHandler.getPumpHistorySender().getSender(SENDER_ID_NIGHTSCOUT).getProcess());
+
+        final RealmResults<SenderOutbox> expired = storeRealm.where(SenderOutbox.class)
+                .equalTo("senderID", SENDER_ID_NIGHTSCOUT)
+                .lessThan("eventDate", limitDate)
+                .findAll();
+        if (expired.size() > 0) {
+            storeRealm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    expired.deleteAllFromRealm();
+                }
+            });
+        }
+
+        Set<String> deferred = new HashSet<>();
+        for (SenderOutbox outbox : storeRealm.where(SenderOutbox.class)
+                .equalTo("senderID", SENDER_ID_NIGHTSCOUT)
+                .greaterThan("nextAttempt", new Date(now))
+                .findAll()) {
+            deferred.add(outbox.getRecordID());
+        }
+        return deferred;
+    }
+
+    // acknowledge the records sent in the pass and back off the records that failed
+    // returns the count and first error of any failed records
+    private String acknowledge(final List<PumpStatusEvent> statusRecords, List<PumpHistoryInterface> records) {
+        if (nightscoutUploadProcess == null) return null;
+
+        final long now = System.currentTimeMillis();
+
+        if (nightscoutUploadProcess.isStatusSent()) {
+            realm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    for (PumpStatusEvent updateRecord : statusRecords)
+                        updateRecord.setUploaded(true);
+                }
+            });
+        }
+
+        List<PumpHistoryInterface> sent = new ArrayList<>();
+        final List<String> sentID = new ArrayList<>();
+        final List<String> failedID = new ArrayList<>();
+        final List<Date> failedDate = new ArrayList<>();
+        final List<String> failedError = new ArrayList<>();
+
+        for (int i = 0; i < records.size(); i++) {
+            PumpHistoryInterface record = records.get(i);
+            if (nightscoutUploadProcess.isRecordSent(i)) {
+                sent.add(record);
+                sentID.add(HistoryUtils.recordID(record));
+            } else if (nightscoutUploadProcess.getRecordError(i) != null) {
+                failedID.add(HistoryUtils.recordID(record));
+                failedDate.add(record.getEventDate());
+                failedError.add(nightscoutUploadProcess.getRecordError(i));
+            }
+        }
+
+        if (sent.size() > 0) pumpHistoryHandler.setSenderRecordsACK(sent, SENDER_ID_NIGHTSCOUT);
+
+        final boolean outbox = storeRealm.where(SenderOutbox.class)
+                .equalTo("senderID", SENDER_ID_NIGHTSCOUT)
+                .count() > 0;
+
+        if (failedID.size() > 0 || (outbox && sentID.size() > 0)) {
+            storeRealm.executeTransaction(new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+
+                    if (outbox) {
+                        for (String recordID : sentID) {
+                            SenderOutbox item = realm.where(SenderOutbox.class)
+                                    .equalTo("key", SenderOutbox.key(SENDER_ID_NIGHTSCOUT, recordID))
+                                    .findFirst();
+                            if (item != null) item.deleteFromRealm();
+                        }
+                    }
+
+                    for (int i = 0; i < failedID.size(); i++) {
+                        String key = SenderOutbox.key(SENDER_ID_NIGHTSCOUT, failedID.get(i));
+                        SenderOutbox item = realm.where(SenderOutbox.class)
+                                .equalTo("key", key)
+                                .findFirst();
+                        if (item == null) {
+                            item = realm.createObject(SenderOutbox.class, key);
+                            item.setSenderID(SENDER_ID_NIGHTSCOUT);
+                            item.setRecordID(failedID.get(i));
+                            item.setEventDate(failedDate.get(i));
+                        }
+                        item.failed(now, failedError.get(i));
+                        Log.w(TAG, "upload failed, retry scheduled: " + item.toString());
+                    }
+                }
+            });
+        }
+
+        Log.i(TAG, String.format("acknowledged history: %s failed: %s status: %s",
+                sent.size(), failedID.size(), nightscoutUploadProcess.isStatusSent() ? statusRecords.size() : 0));
+
+        return failedID.size() == 0 ? null : String.format("(%s records) %s", failedID.size(), failedError.get(0));
+    }
+
 }
@@ -6,11 +6,13 @@ import java.math.BigDecimal;
 import java.util.Date;
 import java.util.List;
 
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.DELETE;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.Headers;
 import retrofit2.http.POST;
 import retrofit2.http.Path;
@@ -302,6 +304,12 @@ public interface TreatmentsEndpoints {
                                   @Query("find[created_at][$lte]") String to,
                                   @Query("find[key600]") String key);
 
+    // find treatments using a list of keys
+    @GET("/api/v1/treatments.json")
+    Call<List<Treatment>> findKeys(@Query("find[created_at][$gte]") String from,
+                                   @Query("find[key600][$in][]") List<String> keys,
+                                   @Query("count") String count);
+
     // find treatments using date range
     @GET("/api/v1/treatments.json")
     Call<List<Treatment>> findDateRangeCount(@Query("find[created_at][$gte]") String from,
@@ -356,6 +364,41 @@ public interface TreatmentsEndpoints {
     Call<ResponseBody> deleteID(@Query("find[created_at]") String date,
                                 @Query("find[_id]") String id);
 
+    // query based cleanup deletes, the same queries as the cleanup finds without a count limit
+
+    @DELETE("/api/v1/treatments.json")
+    Call<ResponseBody> deleteDateRange(@Query("find[created_at][$gte]") String from,
+                                       @Query("find[created_at][$lte]") String to);
+
+    @DELETE("/api/v1/treatments.json")
+    Call<ResponseBody> deleteCleanupItems(@Query("find[created_at][$gte]") String from,
+                                          @Query("find[created_at][$lte]") String to,
+                                          @Query("find[eventType][$ne]") String type,
+                                          @Query("find[key600][$not][$exists]") String empty);
+
+    @DELETE("/api/v1/treatments.json")
+    Call<ResponseBody> deleteKeyRegex(@Query("find[created_at][$gte]") String from,
+                                      @Query("find[created_at][$lte]") String to,
+                                      @Query("find[key600][$regex]") String key);
+
+    @DELETE("/api/v1/treatments.json")
+    Call<ResponseBody> deleteNotesRegex(@Query("find[created_at][$gte]") String from,
+                                        @Query("find[created_at][$lte]") String to,
+                                        @Query("find[notes][$regex]") String notes);
+
+    @DELETE("/api/v1/treatments.json")
+    Call<ResponseBody> deleteKeyRegexNoPumpMAC(@Query("find[created_at][$gte]") String from,
+                                               @Query("find[created_at][$lte]") String to,
+                                               @Query("find[key600][$regex]") String key,
+                                               @Query("find[pumpMAC600][$not][$exists]") String pumpMAC600);
+
+    @DELETE("/api/v1/treatments.json")
+    Call<ResponseBody> deleteNotesRegexNoPumpMAC(@Query("find[created_at][$gte]") String from,
+                                                 @Query("find[created_at][$lte]") String to,
+                                                 @Query("find[notes][$regex]") String notes,
+                                                 @Query("find[key600][$exists]") String key600,
+                                                 @Query("find[pumpMAC600][$not][$exists]") String pumpMAC600);
+
     @Headers({
             "Accept: application/json",
             "Content-type: application/json"
@@ -365,7 +408,7 @@ public interface TreatmentsEndpoints {
     @POST("/api/v1/treatments")
     Call<ResponseBody> sendTreatment(@Body Treatment treatment);
 
-    // post bulk treatments
+    // post bulk treatments, streamed json array body with optional gzip content encoding
     @POST("/api/v1/treatments")
-    Call<ResponseBody> sendTreatments(@Body List<Treatment> treatments);
+    Call<ResponseBody> sendTreatments(@Header("Content-Encoding") String encoding, @Body RequestBody treatments);
 }
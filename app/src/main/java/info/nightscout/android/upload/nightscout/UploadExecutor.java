@@ -0,0 +1,126 @@
+package info.nightscout.android.upload.nightscout;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+Runs independent nightscout requests in parallel with a bound on the requests in flight.
+
+Each run is a list of requests that do not depend on each other, results are returned in request order.
+After a failure no further requests in the run are started, the requests in flight are allowed to finish
+and the first failure is thrown. Requests that should not end the run catch their own failures ie. the
+per key checks mark the records they were for as failed and return.
+
+Requests must not touch Realm objects as they run on the executor threads.
+Idle threads time out so the executor can be kept with the upload process between passes.
+*/
+
+public class UploadExecutor {
+    private static final String TAG = UploadExecutor.class.getSimpleName();
+
+    private static final long THREAD_KEEPALIVE_SECONDS = 30;
+
+    public interface Request<T> {
+        T call() throws Exception, NightscoutException;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    public UploadExecutor(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads,
+                THREAD_KEEPALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> List<T> run(List<Request<T>> requests, int parallel) throws Exception, NightscoutException {
+        final int count = requests.size();
+        final Object[] results = new Object[count];
+
+        if (parallel < 2 || count < 2) {
+            for (int i = 0; i < count; i++) {
+                results[i] = requests.get(i).call();
+            }
+            return list(results);
+        }
+
+        parallel = Math.min(parallel, executor.getMaximumPoolSize());
+
+        long timer = System.currentTimeMillis();
+
+        final Semaphore permits = new Semaphore(parallel);
+        final Throwable[] failed = new Throwable[1];
+
+        for (int i = 0; i < count; i++) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                // keep the interrupt for the caller, the requests in flight are still waited for below
+                Thread.currentThread().interrupt();
+                synchronized (failed) {
+                    if (failed[0] == null) failed[0] = e;
+                }
+                break;
+            }
+
+            synchronized (failed) {
+                if (failed[0] != null) {
+                    permits.release();
+                    break;
+                }
+            }
+
+            final int index = i;
+            final Request<T> request = requests.get(i);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Object result = request.call();
+                        synchronized (results) {
+                            results[index] = result;
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failed) {
+                            if (failed[0] == null) failed[0] = t;
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        // wait for the requests in flight
+        permits.acquireUninterruptibly(parallel);
+        permits.release(parallel);
+
+        Log.d(TAG, String.format("run: requests: %s parallel: %s time: %sms",
+                count, parallel, System.currentTimeMillis() - timer));
+
+        Throwable t;
+        synchronized (failed) {
+            t = failed[0];
+        }
+        if (t instanceof NightscoutException) throw (NightscoutException) t;
+        if (t instanceof Exception) throw (Exception) t;
+        if (t instanceof Error) throw (Error) t;
+        if (t != null) throw new Exception(t);
+
+        synchronized (results) {
+            return list(results);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> list(Object[] results) {
+        List<T> list = new ArrayList<>(results.length);
+        for (Object result : results) list.add((T) result);
+        return list;
+    }
+}
@@ -15,7 +15,6 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
@@ -24,6 +23,7 @@ import info.nightscout.android.R;
 import info.nightscout.android.UploaderApplication;
 import info.nightscout.android.history.PumpHistoryHandler;
 import info.nightscout.android.history.PumpHistoryParser;
+import info.nightscout.android.history.TimeSeriesCache;
 import info.nightscout.android.medtronic.UserLogMessage;
 import info.nightscout.android.medtronic.service.MasterService;
 import info.nightscout.android.model.medtronicNg.PumpHistoryBG;
@@ -262,11 +262,8 @@ public class UrchinService extends Service {
                         .sort("cgmDate", Sort.DESCENDING)
                         .findAll();
 
-                RealmResults<PumpHistoryCGM> sgvresults = historyRealm.where(PumpHistoryCGM.class)
-                        .notEqualTo("sgv", 0)
-                        .greaterThan("eventDate", new Date(timeNow - 2 * 60 * 60000L))
-                        .sort("eventDate", Sort.DESCENDING)
-                        .findAll();
+                TimeSeriesCache cache = TimeSeriesCache.getInstance();
+                cache.refresh(realm, historyRealm);
 
                 long lastReceivedEventTime;
                 long lastReceivedCgmTime;
@@ -302,22 +299,24 @@ public class UrchinService extends Service {
                 delta = NO_DELTA_VALUE;
                 trend = TREND.NONE.value();
 
-                if (sgvresults.size() > 0) {
-                    long age = (eventTime - sgvresults.first().getEventDate().getTime()) / 1000L;
+                TimeSeriesCache.Sgv sgv0 = cache.sgv(0);
+                TimeSeriesCache.Sgv sgv1 = cache.sgv(1);
+                if (sgv0 != null && sgv0.getTime() > timeNow - 2 * 60 * 60000L) {
+                    long age = (eventTime - sgv0.getTime()) / 1000L;
 
                     // don't show any sgv if older then 60mins
                     if (age < 61 * 60)
-                        sgv = sgvresults.first().getSgv();
+                        sgv = sgv0.getSgv();
 
                     // don't show trend/delta if older then 10mins
                     if (age < 11 * 60) {
-                        if (sgvresults.first().getCgmTrend() != null)
-                            trend = TREND.valueOf(PumpHistoryCGM.NS_TREND.valueOf(sgvresults.first().getCgmTrend()).dexcom().name()).value();
+                        if (sgv0.getTrend() != null)
+                            trend = TREND.valueOf(PumpHistoryCGM.NS_TREND.valueOf(sgv0.getTrend()).dexcom().name()).value();
 
                         // don't show delta if sgv period older then 5 mins
-                        if (sgvresults.size() > 1
-                                && sgvresults.get(0).getCgmRTC() - sgvresults.get(1).getCgmRTC() < 6 * 60)
-                            delta = sgvresults.get(0).getSgv() - sgvresults.get(1).getSgv();
+                        if (sgv1 != null && sgv1.getTime() > timeNow - 2 * 60 * 60000L
+                                && sgv0.getRtc() - sgv1.getRtc() < 6 * 60)
+                            delta = sgv0.getSgv() - sgv1.getSgv();
                     }
                 }
 
@@ -358,32 +357,10 @@ public class UrchinService extends Service {
 
         byte[] graph = new byte[GRAPH_MAX_SGV_COUNT];
 
-        RealmResults<PumpHistoryCGM> results = historyRealm.where(PumpHistoryCGM.class)
-                .greaterThan("eventDate", new Date(time - (GRAPH_MAX_SGV_COUNT * TIME_STEP)))
-                .notEqualTo("sgv", 0)
-                .sort("eventDate", Sort.DESCENDING)
-                .findAll();
-
-        Iterator<PumpHistoryCGM> iterator = results.iterator();
-        PumpHistoryCGM record = null;
-        int sgv;
+        int[] sgvs = TimeSeriesCache.getInstance().graphSgv(time, GRAPH_MAX_SGV_COUNT);
 
         for (int i = 0; i < GRAPH_MAX_SGV_COUNT; i++) {
-            sgv = 0;
-
-            do {
-                if (record == null && iterator.hasNext()) record = iterator.next();
-                if (record != null && record.getEventDate().getTime() >= time) {
-                    sgv = record.getSgv();
-                    record = null;
-                } else {
-                    break;
-                }
-            } while (iterator.hasNext());
-
-            graph[i] = (byte) (sgv >> 1);
-
-            time = time - TIME_STEP;
+            graph[i] = (byte) (sgvs[i] >> 1);
         }
 
         return graph;
@@ -394,49 +371,13 @@ public class UrchinService extends Service {
         // period to use for scaling largest to smallest basal
         int basalPeriod = (dataStore.getUrchinBasalPeriod() + 1) * 12;
 
-        Date limitDate = new Date(timeNow - (basalPeriod * TIME_STEP));
-
-        RealmResults<PumpStatusEvent> results = realm
-                .where(PumpStatusEvent.class)
-                .greaterThanOrEqualTo("eventDate", limitDate)
-                .sort("eventDate", Sort.DESCENDING)
-                .findAll();
-
-        Iterator<PumpStatusEvent> iterator = results.iterator();
-        PumpStatusEvent record = null;
-
-        Float[] basals = new Float[basalPeriod];
-        Float basal = (float) 0;
-        Float largest = (float) 0;
-
         // get basals for each time step in period
-        for (int i = 0; i < basalPeriod; i++) {
-
-            do {
-                if (record == null && iterator.hasNext()) record = iterator.next();
-                if (record != null && record.getEventDate().getTime() < time + (TIME_STEP * 2)) {
-
-                    if (record.getEventDate().getTime() >= time) {
-                        if (record.isSuspended()) {
-                            basal = (float) 0;
-                        } else if (record.isTempBasalActive()) {
-                            if (record.getTempBasalPercentage() != 0)
-                                basal = (record.getTempBasalPercentage() * record.getBasalRate()) / 100;
-                            else
-                                basal = record.getTempBasalRate();
-                        } else {
-                            basal = record.getBasalRate();
-                        }
-                        record = null;
-                    }
-                    break;
-
-                } else record = null;
-            } while (iterator.hasNext());
+        float[] basals = TimeSeriesCache.getInstance().graphBasal(time, basalPeriod, timeNow - (basalPeriod * TIME_STEP));
 
-            basals[i] = basal;
-            if (basal > largest) largest = basal;
-            time = time - TIME_STEP;
+        float basal;
+        float largest = 0;
+        for (int i = 0; i < basalPeriod; i++) {
+            if (basals[i] > largest) largest = basals[i];
         }
 
         float scale = dataStore.getUrchinBasalScale() / largest; // urchin graph range 0-31
@@ -472,34 +413,10 @@ public class UrchinService extends Service {
 
         if (dataStore.isUrchinBolusGraph()) {
 
-            RealmResults<PumpHistoryBolus> results = historyRealm.where(PumpHistoryBolus.class)
-                    .greaterThan("eventDate", new Date(time - (GRAPH_MAX_SGV_COUNT * TIME_STEP)))
-                    .equalTo("programmed", true)
-                    .sort("eventDate", Sort.DESCENDING)
-                    .findAll();
-
-            Iterator<PumpHistoryBolus> iterator = results.iterator();
-            PumpHistoryBolus record = null;
-
-            int flag;
+            boolean[] bolus = TimeSeriesCache.getInstance().graphBolus(time, GRAPH_MAX_SGV_COUNT);
 
             for (int i = 0; i < GRAPH_MAX_SGV_COUNT; i++) {
-                flag = 0;
-
-                do {
-                    if (record == null && iterator.hasNext()) record = iterator.next();
-                    if (record != null && record.getProgrammedDate().getTime() < time + TIME_STEP) {
-                        if (record.getProgrammedDate().getTime() >= time) {
-                            flag = 1;
-                            record = null;
-                        }
-                        break;
-                    } else record = null;
-                } while (iterator.hasNext());
-
-                graph[i] = (byte) (graph[i] & 0xFE | flag);
-
-                time = time - TIME_STEP;
+                graph[i] = (byte) (graph[i] & 0xFE | (bolus[i] ? 1 : 0));
             }
         }
 
@@ -510,36 +427,11 @@ public class UrchinService extends Service {
         int bolusPop = dataStore.getUrchinBolusPop() << 1;
         if (bolusPop > 0 ) {
 
-            RealmResults<PumpHistoryBolus> results = historyRealm.where(PumpHistoryBolus.class)
-                    .greaterThan("eventDate", new Date(time - (GRAPH_MAX_SGV_COUNT * TIME_STEP) - (8 * 60 * 60000L)))
-                    .notEqualTo("bolusType", PumpHistoryParser.BOLUS_TYPE.NORMAL_BOLUS.value())
-                    .equalTo("programmed", true)
-                    .sort("eventDate", Sort.DESCENDING)
-                    .findAll();
-
-            Iterator<PumpHistoryBolus> iterator = results.iterator();
-            PumpHistoryBolus record = null;
-
-            boolean flag;
+            boolean[] bolus = TimeSeriesCache.getInstance().graphBolusExtended(time, GRAPH_MAX_SGV_COUNT,
+                    time - (GRAPH_MAX_SGV_COUNT * TIME_STEP) - (8 * 60 * 60000L));
 
             for (int i = 0; i < GRAPH_MAX_SGV_COUNT; i++) {
-                flag = false;
-
-                do {
-                    if (record == null && iterator.hasNext()) record = iterator.next();
-                    if (record != null && record.getProgrammedDate().getTime() < time + TIME_STEP) {
-                        if ((record.isSquareDelivered() && record.getSquareDeliveredDate().getTime() > time)
-                                || (!record.isSquareDelivered() && record.getProgrammedDate().getTime() + (record.getSquareProgrammedDuration() * 60000L) > time)) {
-                            flag = true;
-                        }
-                        break;
-                    }
-                    record = null;
-                } while (iterator.hasNext());
-
-                if (flag) graph[i] = (byte) (graph[i] & 0x01 | bolusPop);
-
-                time = time - TIME_STEP;
+                if (bolus[i]) graph[i] = (byte) (graph[i] & 0x01 | bolusPop);
             }
         }
 
@@ -0,0 +1,74 @@
+package info.nightscout.android.utils;
+
+/*
+Lookup table for converting protocol and history values to their enum.
+
+A dense table is built over the range of key values so convert() is an array read and does
+not clone values() on every call. When keys are duplicated the first declared enum is used,
+this matches the behaviour of scanning values() in order.
+
+Use as a static in the enum, after the constants:
+
+private static final EnumTable<TYPE> TABLE = new EnumTable<>(values(), NA, new EnumTable.Key<TYPE>() {
+    @Override
+    public int key(TYPE type) {
+        return type.value;
+    }
+});
+*/
+
+public class EnumTable<E extends Enum<E>> {
+
+    // keep tables small, larger key ranges fall back to a scan of the cached values
+    private static final int MAX_SPAN = 0x1000;
+
+    public interface Key<E> {
+        int key(E e);
+    }
+
+    private final E[] values;
+    private final int[] keys;
+    private final E fallback;
+
+    private final Object[] table;
+    private final int min;
+
+    public EnumTable(E[] values, E fallback, Key<E> key) {
+        this.values = values;
+        this.fallback = fallback;
+
+        keys = new int[values.length];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = key.key(values[i]);
+            if (keys[i] < min) min = keys[i];
+            if (keys[i] > max) max = keys[i];
+        }
+        this.min = min;
+
+        if (values.length > 0 && (long) max - min < MAX_SPAN) {
+            table = new Object[max - min + 1];
+            for (int i = 0; i < values.length; i++) {
+                if (table[keys[i] - min] == null) table[keys[i] - min] = values[i];
+            }
+        } else {
+            table = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int value) {
+        if (table != null) {
+            long index = (long) value - min;
+            if (index < 0 || index >= table.length) return fallback;
+            Object e = table[(int) index];
+            return e == null ? fallback : (E) e;
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == value) return values[i];
+        }
+        return fallback;
+    }
+}
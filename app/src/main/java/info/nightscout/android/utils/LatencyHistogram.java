@@ -0,0 +1,86 @@
+package info.nightscout.android.utils;
+
+import java.util.List;
+
+/*
+Fixed bucket latency histograms held in flat lists so they can be stored as RealmList fields of the daily stat records.
+
+keys   - one entry per row, the phase or message type being timed
+counts - BUCKETS entries per row, row n is at n * BUCKETS
+max    - one entry per row, the largest latency seen in ms
+
+Recording is an index lookup and an increment, no allocation once a row exists.
+Percentiles are reported as the upper bound of the bucket that holds them, for the overflow bucket the max is used.
+*/
+
+public class LatencyHistogram {
+
+    // bucket upper bounds in ms
+    public static final int[] BOUNDS = {10, 20, 50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 7500, 10000, 20000, 30000, 60000};
+    public static final int BUCKETS = BOUNDS.length + 1;
+
+    public static void record(List<Integer> keys, List<Integer> counts, List<Integer> max, int key, long ms) {
+        if (ms < 0) ms = 0;
+
+        // rows written by a different bucket layout can't be merged, start again
+        if (max.size() != keys.size() || counts.size() != keys.size() * BUCKETS) {
+            keys.clear();
+            counts.clear();
+            max.clear();
+        }
+
+        int row = keys.indexOf(key);
+        if (row < 0) {
+            row = keys.size();
+            keys.add(key);
+            max.add(0);
+            for (int i = 0; i < BUCKETS; i++) counts.add(0);
+        }
+
+        int index = row * BUCKETS + bucket(ms);
+        counts.set(index, counts.get(index) + 1);
+
+        if (ms > max.get(row)) max.set(row, (int) Math.min(ms, Integer.MAX_VALUE));
+    }
+
+    public static int bucket(long ms) {
+        int lo = 0;
+        int hi = BOUNDS.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ms <= BOUNDS[mid]) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo;
+    }
+
+    public static int rows(List<Integer> keys, List<Integer> counts, List<Integer> max) {
+        return max.size() == keys.size() && counts.size() == keys.size() * BUCKETS ? keys.size() : 0;
+    }
+
+    public static int count(List<Integer> counts, int row) {
+        int count = 0;
+        for (int i = row * BUCKETS; i < (row + 1) * BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public static int percentile(List<Integer> counts, List<Integer> max, int row, int percent) {
+        int count = count(counts, row);
+        if (count == 0) return 0;
+
+        // rank of the percentile sample, 1 based
+        long rank = ((long) count * percent + 99) / 100;
+        if (rank < 1) rank = 1;
+
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            total += counts.get(row * BUCKETS + bucket);
+            if (total >= rank)
+                return bucket < BOUNDS.length ? Math.min(BOUNDS[bucket], max.get(row)) : max.get(row);
+        }
+        return max.get(row);
+    }
+
+}
@@ -58,6 +58,14 @@ public class RealmKit {
                 sharedPreferences.edit().putLong("RealmCompactTimestampHistory", now).apply();
             }
 
+            lastrun = sharedPreferences.getLong("RealmCompactTimestampHistoryBlock", 0);
+            Log.d(TAG, String.format("compactRealm: last run on history block cache: %s", new Date(lastrun).toString()));
+            if (lastrun < compact && Realm.compactRealm(UploaderApplication.getHistoryBlockConfiguration())) {
+                Log.i(TAG, "compactRealm: compacting history block cache successful");
+                sb.append(" historyblock");
+                sharedPreferences.edit().putLong("RealmCompactTimestampHistoryBlock", now).apply();
+            }
+
             if (sb.length() > 0) {
                 UserLogMessage.getInstance().addAsync(UserLogMessage.TYPE.NOTE, UserLogMessage.FLAG.EXTENDED,
                         "Realm: compacted" + sb.toString());
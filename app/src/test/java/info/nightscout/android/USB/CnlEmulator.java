@@ -0,0 +1,829 @@
+package info.nightscout.android.USB;
+
+import org.anarres.lzo.LzoAlgorithm;
+import org.anarres.lzo.LzoCompressor;
+import org.anarres.lzo.LzoLibrary;
+import org.anarres.lzo.LzoTransformer;
+import org.anarres.lzo.lzo_uintp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import info.nightscout.android.medtronic.message.MessageUtils;
+
+/**
+ * Deterministic Contour Next Link and 600 series pump emulator.
+ *
+ * Implements the transport so MedtronicCnlReader can run a full poll on a plain JVM:
+ * the CNL ASCII control handshake, the binary CNL commands (open/close connection, read info, link key),
+ * channel negotiation and the encrypted NGP pump requests carried in SEND_MESSAGE.
+ * History requests are answered with multipacket transfers of 2048 byte CRC'd history blocks,
+ * LZO compressed by default, built from synthetic pump and sensor events or from recorded event data.
+ *
+ * There is no radio or USB latency, an empty stream times out immediately so a poll runs at CPU speed.
+ * Any protocol error from the host side is thrown as an IOException from write().
+ */
+public class CnlEmulator implements CnlTransport {
+
+    public static final String STICK_SERIAL = "6213-1000007";
+
+    public static final int HISTORY_PUMP = 0x02;
+    public static final int HISTORY_SENSOR = 0x03;
+
+    private static final long LINK_MAC = 0x0023F706821122BEL;
+    private static final long PUMP_MAC = 0x0023F745EE10372CL;
+    private static final String HMAC_PADDING = "A4BD6CED9A42602564F413123";
+
+    private static final int HISTORY_BLOCK_SIZE = 2048;
+    private static final int HISTORY_BLOCK_DATA = HISTORY_BLOCK_SIZE - 4;
+    private static final int HISTORY_BLOCKS_PER_TRANSFER = 8;
+
+    // segment data size, the encrypted size is a signed byte on the host so a segment must stay below 128 bytes
+    private static final int SEGMENT_SIZE = 120;
+
+    private static final byte NAK = 0x15;
+    private static final byte EOT = 0x04;
+    private static final byte ENQ = 0x05;
+    private static final byte ACK = 0x06;
+    private static final byte STX = 0x02;
+    private static final byte ETX = 0x03;
+
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private final ByteArrayOutputStream incoming = new ByteArrayOutputStream();
+
+    private final byte[] linkKey = new byte[16];
+    private final byte pumpChannel;
+    private final byte pumpRSSI = 0x55;
+
+    private final int pumpRTC;
+    private final int pumpOFFSET;
+    private final long created = System.currentTimeMillis();
+
+    private final History pumpHistory;
+    private final History sensorHistory;
+
+    private boolean connectionOpen;
+    private boolean compressed = true;
+    private int segmentLoss;
+    private int cnlSequence = 1;
+
+    private byte radioChannel;
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+
+    // transfers remaining for the current history request, the head is the one in progress
+    private final ArrayDeque<byte[]> transfers = new ArrayDeque<>();
+    private byte transferSequence;
+
+    private int messagesIn;
+    private int messagesOut;
+    private int framesIn;
+    private int framesOut;
+    private int segmentsSent;
+    private int segmentsDropped;
+
+    public CnlEmulator(int pumpRTC, int pumpOFFSET, byte[] pumpEvents, byte[] sensorEvents) {
+        this(pumpRTC, pumpOFFSET, pumpEvents, sensorEvents, (byte) 0x11, 1);
+    }
+
+    private CnlEmulator(int pumpRTC, int pumpOFFSET, byte[] pumpEvents, byte[] sensorEvents, byte pumpChannel, long seed) {
+        this.pumpRTC = pumpRTC;
+        this.pumpOFFSET = pumpOFFSET;
+        this.pumpChannel = pumpChannel;
+        this.pumpHistory = new History(pumpEvents);
+        this.sensorHistory = new History(sensorEvents);
+        new Random(seed).nextBytes(linkKey);
+    }
+
+    /**
+     * Emulator with synthetic history ending now, sensor readings every 5 minutes
+     * and a basal segment start / bolus pattern for the pump history.
+     */
+    public static CnlEmulator synthetic(int days, long seed) {
+        long now = System.currentTimeMillis();
+        int rtc = 0x90000000;
+        int offset = (int) MessageUtils.offsetFromTime(now, rtc & 0xFFFFFFFFL);
+
+        Random random = new Random(seed);
+        byte[] pumpEvents = syntheticPumpEvents(rtc, offset, days, random);
+        byte[] sensorEvents = syntheticSensorEvents(rtc, offset, days, random);
+
+        return new CnlEmulator(rtc, offset, pumpEvents, sensorEvents, (byte) 0x11, seed);
+    }
+
+    // compress history transfers as the pump does, uncompressed transfers set the flag to 0
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    // drop every nth segment on the first transmission of a transfer, the host requests them with a resend
+    public void setSegmentLoss(int every) {
+        this.segmentLoss = every;
+    }
+
+    public int getPumpRTC() {
+        return pumpRTC + (int) ((System.currentTimeMillis() - created) / 1000L);
+    }
+
+    public int getPumpOFFSET() {
+        return pumpOFFSET;
+    }
+
+    public String stats() {
+        return String.format("messages in/out: %s/%s frames in/out: %s/%s segments: %s dropped: %s",
+                messagesIn, messagesOut, framesIn, framesOut, segmentsSent, segmentsDropped);
+    }
+
+    @Override
+    public void open() throws IOException {
+        connectionOpen = true;
+    }
+
+    @Override
+    public void close() {
+        connectionOpen = false;
+        frames.clear();
+        incoming.reset();
+    }
+
+    @Override
+    public boolean isConnectionOpen() {
+        return connectionOpen;
+    }
+
+    @Override
+    public int read(byte[] dest, int timeoutMillis) {
+        byte[] frame = frames.poll();
+        if (frame == null) return -1;
+        System.arraycopy(frame, 0, dest, 0, USB_BLOCKSIZE);
+        framesOut++;
+        return USB_BLOCKSIZE;
+    }
+
+    @Override
+    public void write(byte[] src, int timeoutMillis) throws IOException {
+        if (!connectionOpen)
+            throw new IOException("emulator: connection not open");
+        if (src.length != USB_BLOCKSIZE || src[0] != 'A' || src[1] != 'B' || src[2] != 'C')
+            throw new IOException("emulator: bad frame header");
+
+        int size = src[3] & 0xFF;
+        if (size > 60)
+            throw new IOException("emulator: bad frame size " + size);
+
+        framesIn++;
+        incoming.write(src, 4, size);
+
+        byte[] message = incoming.toByteArray();
+
+        // binary messages carry their payload size, control messages are a single short frame
+        // the "Q|" control command also starts with 0x51 so the second header byte is checked too
+        boolean binary = message.length > 1 && message[0] == 0x51 && message[1] == 0x03;
+        if (binary) {
+            if (message.length < 33 || message.length < 33 + read32LE(message, 0x1C)) return;
+        } else if (size == 60) {
+            return;
+        }
+
+        incoming.reset();
+        messagesIn++;
+
+        if (binary) binaryMessage(message);
+        else controlMessage(message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // CNL
+
+    private void controlMessage(byte[] message) throws IOException {
+        String command = new String(message);
+
+        if (message.length == 1 && message[0] == NAK) {
+            reply(new byte[]{EOT});
+        } else if (message.length == 1 && message[0] == ENQ) {
+            reply(new byte[]{ACK});
+        } else if (message.length == 1 && message[0] == EOT) {
+            reply(new byte[]{ENQ});
+        } else if (command.equals("X")) {
+            reply(new byte[]{ENQ});
+            reply(astmHeader());
+        } else if (command.equals("W|") || command.equals("Q|") || command.equals("1|") || command.equals("0|")) {
+            reply(new byte[]{ACK});
+        } else {
+            throw new IOException("emulator: unexpected control message " + command);
+        }
+    }
+
+    private byte[] astmHeader() {
+        String header = "1H|\\^&||" + STICK_SERIAL.replace("-", "")
+                + "|Bayer7350^01.14\\01.03\\04.13^" + STICK_SERIAL + "^0000-|A/C^1|1|||||P|1|"
+                + "20161004060606\r";
+        ByteArrayOutputStream astm = new ByteArrayOutputStream();
+        astm.write(STX);
+        astm.write(header.getBytes(), 0, header.length());
+        astm.write(ETX);
+        astm.write('5');
+        astm.write('C');
+        astm.write('\r');
+        astm.write('\n');
+        return astm.toByteArray();
+    }
+
+    private void binaryMessage(byte[] message) throws IOException {
+        byte checksum = message[32];
+        message[32] = 0;
+        if (MessageUtils.oneByteSum(message) != checksum)
+            throw new IOException("emulator: bad binary message checksum");
+        message[32] = checksum;
+
+        byte[] payload = Arrays.copyOfRange(message, 33, message.length);
+
+        switch (message[0x12] & 0xFF) {
+            case 0x10: // OPEN_CONNECTION
+                checkHMAC(payload);
+                reply(cnlMessage(0x10, new byte[0]));
+                break;
+            case 0x11: // CLOSE_CONNECTION
+                checkHMAC(payload);
+                reply(cnlMessage(0x11, new byte[0]));
+                break;
+            case 0x14: // READ_INFO
+                reply(cnlMessage(0x14, ByteBuffer.allocate(16).putLong(LINK_MAC).putLong(PUMP_MAC).array()));
+                break;
+            case 0x16: // REQUEST_LINK_KEY
+                reply(cnlMessage(0x86, packedLinkKey()));
+                break;
+            case 0x12: // SEND_MESSAGE
+                medtronicMessage(payload);
+                break;
+            default:
+                throw new IOException(String.format("emulator: unexpected binary command 0x%02X", message[0x12]));
+        }
+    }
+
+    private void checkHMAC(byte[] payload) throws IOException {
+        try {
+            String shortSerial = STICK_SERIAL.replaceAll("\\d+-", "");
+            MessageDigest instance = MessageDigest.getInstance("SHA-256");
+            byte[] hmac = instance.digest((shortSerial + HMAC_PADDING).getBytes());
+            for (int i = 0; i < hmac.length / 2; i++) {
+                byte b = hmac[i];
+                hmac[i] = hmac[hmac.length - 1 - i];
+                hmac[hmac.length - 1 - i] = b;
+            }
+            if (!Arrays.equals(hmac, payload))
+                throw new IOException("emulator: HMAC does not match the stick serial");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("emulator: " + e.getMessage());
+        }
+    }
+
+    // packed as read by RequestLinkKeyResponseMessage, the start position comes from the last serial digit
+    private byte[] packedLinkKey() {
+        byte[] packed = new byte[55];
+        Random random = new Random(STICK_SERIAL.hashCode());
+        random.nextBytes(packed);
+
+        int pos = STICK_SERIAL.charAt(STICK_SERIAL.length() - 1) & 7;
+        for (byte key : linkKey) {
+            boolean invert = random.nextBoolean();
+            boolean step2 = random.nextBoolean();
+            packed[pos] = invert ? (byte) ~key : key;
+            packed[pos + 1] = (byte) ((packed[pos + 1] & 0xFC) | (step2 ? 2 : 0) | (invert ? 1 : 0));
+            pos += step2 ? 2 : 3;
+        }
+        return packed;
+    }
+
+    private void medtronicMessage(byte[] payload) throws IOException {
+        int action = payload[0];
+        int size = payload[1] & 0xFF;
+        int crc = MessageUtils.CRC16CCITT(payload, 0xFFFF, 0x1021, size);
+        if (crc != read16LE(payload, size))
+            throw new IOException("emulator: bad medtronic message crc");
+
+        byte[] data = Arrays.copyOfRange(payload, 2, size);
+
+        switch (action) {
+            case 0x03: // JOIN_NETWORK
+                radioChannel = data[1];
+                encryptCipher = null;
+                decryptCipher = null;
+                reply(sendMessageResponse(0));
+                if (radioChannel == pumpChannel) reply(networkConnect());
+                else reply(noConnect());
+                break;
+            case 0x10: // CLEAR_STATUS
+                reply(sendMessageResponse(0));
+                reply(networkConnect());
+                break;
+            case 0x05: // TRANSMIT_PACKET
+                transmitPacket(data);
+                break;
+            default:
+                throw new IOException(String.format("emulator: unexpected command action 0x%02X", action));
+        }
+    }
+
+    // 0x81 standard response
+    // 55 | 0D | 00 04 | 00 00 00 00 03 00 01 | seq | state
+    private byte[] sendMessageResponse(int sequence) {
+        return cnlMessage(0x81, new byte[]{
+                0x55, 0x0D, 0x00, 0x04, 0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x01,
+                (byte) sequence, 0x02, 0x00, 0x00});
+    }
+
+    // 55 | 2C | 00 04 | pump serial | 02 | pump mac | 82 | ... | 07 | 00 | rssi | cnl mac | 42 | ... | channel | crc
+    private byte[] networkConnect() {
+        ByteBuffer buffer = ByteBuffer.allocate(0x2E).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0x55).put((byte) 0x2C).put((byte) 0x00).put((byte) 0x04);
+        buffer.put(Arrays.copyOfRange(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(PUMP_MAC).array(), 0, 5));
+        buffer.put((byte) 0x02);
+        buffer.putLong(PUMP_MAC);
+        buffer.put((byte) 0x82);
+        buffer.put(new byte[5]);
+        buffer.put((byte) 0x07).put((byte) 0x00).put(pumpRSSI);
+        buffer.putLong(LINK_MAC);
+        buffer.put((byte) 0x42);
+        buffer.put(new byte[7]);
+        buffer.put(radioChannel);
+        buffer.putShort((short) MessageUtils.CRC16CCITT(buffer.array(), 0xFFFF, 0x1021, 0x2C));
+        return cnlMessage(0x80, buffer.array());
+    }
+
+    // 55 | 0B | 00 00 | 20 00 00 00 03 00 00
+    private byte[] noConnect() {
+        return cnlMessage(0x80, new byte[]{0x55, 0x0B, 0x00, 0x00, 0x20, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00});
+    }
+
+    private byte[] cnlMessage(int command, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(33 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0x51).put((byte) 0x03).put("000000".getBytes()).put(new byte[10]);
+        buffer.put((byte) command);
+        buffer.putInt(cnlSequence++);
+        buffer.put(new byte[5]);
+        buffer.putInt(payload.length);
+        buffer.put((byte) 0);
+        buffer.put(payload);
+        buffer.put(32, MessageUtils.oneByteSum(buffer.array()));
+        return buffer.array();
+    }
+
+    // split into HID frames, the host only knows the full size of 0x80 and 0x81 messages
+    // any other message that ends on a frame boundary gets an empty frame to end the read
+    private void reply(byte[] message) {
+        messagesOut++;
+        boolean sized = message.length >= 33 && message[0] == 0x51
+                && ((message[0x12] & 0xFF) == 0x80 || (message[0x12] & 0xFF) == 0x81);
+        int pos = 0;
+        do {
+            int size = Math.min(60, message.length - pos);
+            byte[] frame = new byte[USB_BLOCKSIZE];
+            frame[0] = 'A';
+            frame[1] = 'B';
+            frame[2] = 'C';
+            frame[3] = (byte) size;
+            System.arraycopy(message, pos, frame, 4, size);
+            frames.add(frame);
+            pos += size;
+            if (pos == message.length && size == 60 && !sized) frames.add(emptyFrame());
+        } while (pos < message.length);
+    }
+
+    private byte[] emptyFrame() {
+        byte[] frame = new byte[USB_BLOCKSIZE];
+        frame[0] = 'A';
+        frame[1] = 'B';
+        frame[2] = 'C';
+        return frame;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // pump
+
+    private void transmitPacket(byte[] data) throws IOException {
+        if (read64LE(data, 0) != PUMP_MAC)
+            throw new IOException("emulator: message for a different pump");
+        if (radioChannel != pumpChannel)
+            throw new IOException("emulator: pump request on a channel without a connection");
+
+        int encryptedSize = data[10] & 0xFF;
+        byte[] decrypted = crypt(Cipher.DECRYPT_MODE, Arrays.copyOfRange(data, 11, 11 + encryptedSize));
+
+        int crc = MessageUtils.CRC16CCITT(decrypted, 0xFFFF, 0x1021, decrypted.length - 2);
+        if (crc != read16BE(decrypted, decrypted.length - 2))
+            throw new IOException("emulator: bad pump request crc");
+
+        int sequence = decrypted[0] & 0xFF;
+        int type = read16BE(decrypted, 1);
+        byte[] payload = Arrays.copyOfRange(decrypted, 3, decrypted.length - 2);
+
+        reply(sendMessageResponse(sequence));
+
+        switch (type) {
+            case 0x0412: // EHSM_SESSION, no pump response
+                break;
+            case 0x0403: // READ_PUMP_TIME
+                pumpResponse(sequence, 0x0407, ByteBuffer.allocate(9)
+                        .put((byte) 0x01).putInt(getPumpRTC()).putInt(pumpOFFSET).array());
+                break;
+            case 0x0112: // READ_PUMP_STATUS
+                pumpResponse(sequence, 0x013C, pumpStatus());
+                break;
+            case 0x0116: // READ_BASAL_PATTERN
+                pumpResponse(sequence, 0x0123, basalPattern(payload[0]));
+                break;
+            case 0x012B: // READ_BOLUS_WIZARD_CARB_RATIOS
+                pumpResponse(sequence, 0x012C, ByteBuffer.allocate(12)
+                        .put(new byte[2]).put((byte) 1).putInt(100).putInt(0).put((byte) 0).array());
+                break;
+            case 0x012E: // READ_BOLUS_WIZARD_SENSITIVITY_FACTORS
+                pumpResponse(sequence, 0x012F, ByteBuffer.allocate(8)
+                        .put(new byte[2]).put((byte) 1).putShort((short) 50).putShort((short) 28).put((byte) 0).array());
+                break;
+            case 0x0131: // READ_BOLUS_WIZARD_BG_TARGETS
+                pumpResponse(sequence, 0x0132, ByteBuffer.allocate(12)
+                        .put(new byte[2]).put((byte) 1).putShort((short) 120).putShort((short) 67)
+                        .putShort((short) 100).putShort((short) 56).put((byte) 0).array());
+                break;
+            case 0x030C: // READ_HISTORY_INFO
+                historyInfo(sequence, payload);
+                break;
+            case 0x0304: // READ_HISTORY
+                history(sequence, payload);
+                break;
+            case 0x00FE: // ACK
+                ack(sequence, read16BE(payload, 0));
+                break;
+            case 0xFF02: // MULTIPACKET_RESEND_PACKETS
+                resend(read16BE(payload, 0), read16BE(payload, 2));
+                break;
+            default:
+                // MESSAGE_IS_NOT_SUPPORTED
+                pumpResponse(sequence, 0x00FF, new byte[]{(byte) (type >> 8), (byte) type, 0x08});
+        }
+    }
+
+    private byte[] pumpStatus() {
+        int rtc = getPumpRTC();
+        int cgmRTC = rtc - (rtc - sensorHistory.newestRTC) % 300;
+
+        // offsets as read by PumpStatusResponseMessage, less the 3 byte response header
+        ByteBuffer status = ByteBuffer.allocate(0x58 - 3);
+        status.put(0x03 - 3, (byte) 0x50); // cgm active, delivering insulin
+        status.putInt(0x14 - 3, rtc - 3 * 3600);
+        status.putInt(0x10 - 3, 25000);
+        status.put(0x1A - 3, (byte) 1);
+        status.putInt(0x1B - 3, 8500);
+        status.putInt(0x26 - 3, 123000);
+        status.put(0x2A - 3, (byte) 75);
+        status.putInt(0x2B - 3, 1234000);
+        status.put(0x2F - 3, (byte) 3);
+        status.putInt(0x31 - 3, 12500);
+        status.putShort(0x35 - 3, (short) syntheticSGV(cgmRTC));
+        status.putInt(0x37 - 3, cgmRTC);
+        status.putInt(0x3B - 3, pumpOFFSET);
+        status.put(0x40 - 3, (byte) 0x60);
+        status.putShort(0x43 - 3, (short) 360);
+        status.put(0x45 - 3, (byte) 0x0F);
+        status.putInt(0x4D - 3, rtc);
+        status.putInt(0x51 - 3, pumpOFFSET);
+        return status.array();
+    }
+
+    private byte[] basalPattern(byte pattern) {
+        if (pattern != 1) return new byte[]{pattern, 0};
+
+        // [pattern] [count] { [rate] [time period (mult 30 min)] }
+        return ByteBuffer.allocate(2 + 3 * 5)
+                .put(pattern).put((byte) 3)
+                .putInt(8500).put((byte) 0)
+                .putInt(12000).put((byte) 12)
+                .putInt(9500).put((byte) 36)
+                .array();
+    }
+
+    private void pumpResponse(int sequence, int type, byte[] payload) throws IOException {
+        // | seq | BE type | payload | BE crc |
+        ByteBuffer decrypted = ByteBuffer.allocate(3 + payload.length + 2);
+        decrypted.put((byte) sequence).putShort((short) type).put(payload);
+        decrypted.putShort((short) MessageUtils.CRC16CCITT(decrypted.array(), 0xFFFF, 0x1021, 3 + payload.length));
+
+        if (decrypted.capacity() > 127)
+            throw new IOException("emulator: pump response too large for a single message");
+
+        byte[] encrypted = crypt(Cipher.ENCRYPT_MODE, decrypted.array());
+
+        // 55 | size | 00 06 | pump mac | link mac | seq | 00 | 00 | encrypted size | encrypted | crc
+        ByteBuffer message = ByteBuffer.allocate(26 + encrypted.length).order(ByteOrder.LITTLE_ENDIAN);
+        message.put((byte) 0x55).put((byte) (message.capacity() - 2)).put((byte) 0x00).put((byte) 0x06);
+        message.putLong(PUMP_MAC).putLong(LINK_MAC);
+        message.put((byte) sequence).put((byte) 0x00).put((byte) 0x00);
+        message.put((byte) encrypted.length).put(encrypted);
+        message.putShort((short) MessageUtils.CRC16CCITT(message.array(), 0xFFFF, 0x1021, message.capacity() - 2));
+
+        reply(cnlMessage(0x80, message.array()));
+    }
+
+    private byte[] crypt(int mode, byte[] input) throws IOException {
+        try {
+            Cipher cipher = mode == Cipher.ENCRYPT_MODE ? encryptCipher : decryptCipher;
+            if (cipher == null) {
+                byte[] iv = Arrays.copyOf(linkKey, linkKey.length);
+                iv[0] = radioChannel;
+                cipher = Cipher.getInstance("AES/CFB/NoPadding");
+                cipher.init(mode, new SecretKeySpec(linkKey, "AES"), new IvParameterSpec(iv));
+                if (mode == Cipher.ENCRYPT_MODE) encryptCipher = cipher;
+                else decryptCipher = cipher;
+            }
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("emulator: " + e.getMessage());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // history
+
+    private History history(int type) {
+        return type == HISTORY_SENSOR ? sensorHistory : pumpHistory;
+    }
+
+    private void historyInfo(int sequence, byte[] payload) throws IOException {
+        History history = history(payload[0]);
+        int start = read32BE(payload, 2);
+        int end = read32BE(payload, 6);
+
+        int[] range = history.range(start, end);
+        int length = blockCount(range[1] - range[0]) * HISTORY_BLOCK_SIZE;
+        int fromRTC = range[1] > range[0] ? history.rtcAt(range[0]) : start;
+        int toRTC = range[1] > range[0] ? history.rtcAt(history.lastEvent(range[1])) : end;
+
+        pumpResponse(sequence, 0x030D, ByteBuffer.allocate(21)
+                .put((byte) 0x00).putInt(length)
+                .putInt(fromRTC).putInt(pumpOFFSET)
+                .putInt(toRTC).putInt(pumpOFFSET)
+                .array());
+    }
+
+    private void history(int sequence, byte[] payload) throws IOException {
+        int type = payload[0];
+        History history = history(type);
+        int[] range = history.range(read32BE(payload, 2), read32BE(payload, 6));
+        byte[] blocks = history.blocks(range[0], range[1]);
+
+        transfers.clear();
+        for (int pos = 0; pos < blocks.length; pos += HISTORY_BLOCKS_PER_TRANSFER * HISTORY_BLOCK_SIZE) {
+            int end = Math.min(blocks.length, pos + HISTORY_BLOCKS_PER_TRANSFER * HISTORY_BLOCK_SIZE);
+            transfers.add(unmergedHistory(type, Arrays.copyOfRange(blocks, pos, end)));
+        }
+
+        nextTransfer(sequence);
+    }
+
+    // | BE 0x030E | type | BE compressed size | BE uncompressed size | compressed flag | data |
+    private byte[] unmergedHistory(int type, byte[] blocks) throws IOException {
+        byte[] data = blocks;
+        if (compressed) {
+            LzoCompressor compressor = LzoLibrary.getInstance().newCompressor(LzoAlgorithm.LZO1X, null);
+            byte[] out = new byte[blocks.length + compressor.getCompressionOverhead(blocks.length)];
+            lzo_uintp outLength = new lzo_uintp(out.length);
+            if (compressor.compress(blocks, 0, blocks.length, out, 0, outLength) != LzoTransformer.LZO_E_OK)
+                throw new IOException("emulator: history compression failed");
+            data = Arrays.copyOf(out, outLength.value);
+        }
+
+        return ByteBuffer.allocate(12 + data.length)
+                .putShort((short) 0x030E).put((byte) type)
+                .putInt(data.length).putInt(blocks.length)
+                .put((byte) (compressed ? 1 : 0))
+                .put(data)
+                .array();
+    }
+
+    // the pump offers each history transfer with an initiate and ends the request with end history and an EHSM message
+    private void nextTransfer(int sequence) throws IOException {
+        byte[] transfer = transfers.peek();
+        if (transfer == null) {
+            pumpResponse(sequence, 0x030A, new byte[0]);
+            pumpResponse(0x80, 0x0412, new byte[]{0x01});
+            return;
+        }
+
+        transferSequence = (byte) sequence;
+        int packets = (transfer.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        int lastPacket = transfer.length - (packets - 1) * SEGMENT_SIZE;
+        pumpResponse(sequence, 0xFF00, ByteBuffer.allocate(10)
+                .putInt(transfer.length).putShort((short) SEGMENT_SIZE)
+                .putShort((short) lastPacket).putShort((short) packets)
+                .array());
+    }
+
+    private void ack(int sequence, int command) throws IOException {
+        byte[] transfer = transfers.peek();
+        if (transfer == null)
+            throw new IOException(String.format("emulator: ack 0x%04X without a history transfer", command));
+
+        if (command == 0xFF00) {
+            // initiate accepted, send all segments
+            int packets = (transfer.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+            for (int i = 0; i < packets; i++) {
+                if (segmentLoss > 0 && i > 0 && i % segmentLoss == 0) segmentsDropped++;
+                else segment(transfer, i);
+            }
+        } else if (command == 0xFF01) {
+            // transfer complete, EHSM message ends the host read of this transfer
+            transfers.poll();
+            pumpResponse(0x80, 0x0412, new byte[]{0x01});
+            nextTransfer(sequence);
+        } else {
+            throw new IOException(String.format("emulator: unexpected ack 0x%04X", command));
+        }
+    }
+
+    private void resend(int start, int count) throws IOException {
+        byte[] transfer = transfers.peek();
+        if (transfer == null)
+            throw new IOException("emulator: resend without a history transfer");
+        for (int i = start; i < start + count; i++) segment(transfer, i);
+    }
+
+    // | seq | BE 0xFF01 | BE packet number | data | BE crc |
+    private void segment(byte[] transfer, int packet) throws IOException {
+        int from = packet * SEGMENT_SIZE;
+        int size = Math.min(SEGMENT_SIZE, transfer.length - from);
+        pumpResponse(transferSequence, 0xFF01, ByteBuffer.allocate(2 + size)
+                .putShort((short) packet).put(transfer, from, size)
+                .array());
+        segmentsSent++;
+    }
+
+    private static int blockCount(int size) {
+        return (size + HISTORY_BLOCK_DATA - 1) / HISTORY_BLOCK_DATA;
+    }
+
+    /**
+     * Event stream for one history type, events are oldest first and each has the standard header
+     * | type | ? | size | BE rtc | BE offset | data |
+     */
+    private static class History {
+        private final byte[] events;
+        private final int[] starts;
+        private final int newestRTC;
+
+        private History(byte[] events) {
+            this.events = events;
+
+            List<Integer> list = new ArrayList<>();
+            int pos = 0;
+            while (pos + 0x0B <= events.length) {
+                int size = events[pos + 2] & 0xFF;
+                if (size == 0) break;
+                list.add(pos);
+                pos += size;
+            }
+            starts = new int[list.size()];
+            for (int i = 0; i < starts.length; i++) starts[i] = list.get(i);
+
+            newestRTC = starts.length > 0 ? rtcAt(starts[starts.length - 1]) : 0x80000000;
+        }
+
+        private int rtcAt(int pos) {
+            return read32BE(events, pos + 3);
+        }
+
+        private int lastEvent(int end) {
+            int i = Arrays.binarySearch(starts, end);
+            return starts[(i >= 0 ? i : -i - 1) - 1];
+        }
+
+        // byte range of the events within the rtc range, rtc compared unsigned
+        private int[] range(int startRTC, int endRTC) {
+            long start = startRTC & 0xFFFFFFFFL;
+            long end = endRTC & 0xFFFFFFFFL;
+            int from = -1;
+            int to = -1;
+            for (int i = 0; i < starts.length; i++) {
+                long rtc = rtcAt(starts[i]) & 0xFFFFFFFFL;
+                if (rtc < start) continue;
+                if (rtc > end) break;
+                if (from < 0) from = starts[i];
+                to = i + 1 < starts.length ? starts[i + 1] : events.length;
+            }
+            return from < 0 ? new int[]{0, 0} : new int[]{from, to};
+        }
+
+        // events packed into 2048 byte blocks, an event can continue in the next block
+        // | data | BE used size | BE crc16 ccitt of the used size |
+        private byte[] blocks(int from, int to) {
+            int count = blockCount(to - from);
+            byte[] blocks = new byte[count * HISTORY_BLOCK_SIZE];
+            for (int i = 0; i < count; i++) {
+                int pos = from + i * HISTORY_BLOCK_DATA;
+                int size = Math.min(HISTORY_BLOCK_DATA, to - pos);
+                int block = i * HISTORY_BLOCK_SIZE;
+                System.arraycopy(events, pos, blocks, block, size);
+                int crc = MessageUtils.CRC16CCITT(blocks, block, 0xFFFF, 0x1021, size);
+                blocks[block + HISTORY_BLOCK_DATA] = (byte) (size >> 8);
+                blocks[block + HISTORY_BLOCK_DATA + 1] = (byte) size;
+                blocks[block + HISTORY_BLOCK_DATA + 2] = (byte) (crc >> 8);
+                blocks[block + HISTORY_BLOCK_DATA + 3] = (byte) crc;
+            }
+            return blocks;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // synthetic history
+
+    private static int syntheticSGV(int rtc) {
+        double hours = (rtc & 0xFFFFFFFFL) / 3600.0;
+        return (int) (140 + 60 * Math.sin(hours / 3.0) + 15 * Math.sin(hours * 1.7));
+    }
+
+    // SENSOR_GLUCOSE_READINGS_EXTENDED every 30 minutes with 6 readings, newest reading first
+    private static byte[] syntheticSensorEvents(int rtc, int offset, int days, Random random) {
+        int interval = 30 * 60;
+        int readings = 6;
+        int size = 15 + readings * 9;
+        int events = days * 24 * 2;
+
+        ByteBuffer buffer = ByteBuffer.allocate(events * size);
+        for (int e = events - 1; e >= 0; e--) {
+            int eventRTC = rtc - e * interval;
+            buffer.put((byte) 0xD6).put((byte) 0x0E).put((byte) size);
+            buffer.putInt(eventRTC).putInt(offset);
+            buffer.put((byte) 5).put((byte) readings).putShort((short) 0);
+            for (int i = 0; i < readings; i++) {
+                int sgv = syntheticSGV(eventRTC - i * 300);
+                int isig = 2000 + random.nextInt(1000);
+                int roc = random.nextInt(200) - 100;
+                buffer.putShort((short) (sgv & 0x03FF));
+                buffer.putShort((short) isig);
+                buffer.put((byte) (50 + random.nextInt(40)));
+                buffer.putShort((short) roc);
+                buffer.put((byte) 0);
+                buffer.put((byte) 0);
+            }
+        }
+        return buffer.array();
+    }
+
+    // BASAL_SEGMENT_START at the start of each day and NORMAL_BOLUS_DELIVERED every 4 hours
+    private static byte[] syntheticPumpEvents(int rtc, int offset, int days, Random random) {
+        ByteBuffer buffer = ByteBuffer.allocate(days * (0x11 + 6 * 0x1A));
+        int bolusRef = 0;
+        for (int d = days - 1; d >= 0; d--) {
+            int dayRTC = rtc - (d + 1) * 86400 + 60;
+
+            buffer.put((byte) 0x1D).put((byte) 0x0E).put((byte) 0x11);
+            buffer.putInt(dayRTC).putInt(offset);
+            buffer.put((byte) 1).put((byte) 0).putInt(8500);
+
+            for (int b = 0; b < 6; b++) {
+                int amount = (10 + random.nextInt(60)) * 1000;
+                buffer.put((byte) 0xDC).put((byte) 0x0E).put((byte) 0x1A);
+                buffer.putInt(dayRTC + b * 4 * 3600 + 1800).putInt(offset);
+                buffer.put((byte) 1).put((byte) (bolusRef++ & 0xFF)).put((byte) 0);
+                buffer.putInt(amount).putInt(amount).putInt(random.nextInt(40000));
+            }
+        }
+        return buffer.array();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int read16BE(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 8 | data[pos + 1] & 0xFF;
+    }
+
+    private static int read32BE(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8 | data[pos + 3] & 0xFF;
+    }
+
+    private static int read16LE(byte[] data, int pos) {
+        return data[pos] & 0xFF | (data[pos + 1] & 0xFF) << 8;
+    }
+
+    private static int read32LE(byte[] data, int pos) {
+        return read16LE(data, pos) | read16LE(data, pos + 2) << 16;
+    }
+
+    private static long read64LE(byte[] data, int pos) {
+        return read32LE(data, pos) & 0xFFFFFFFFL | (long) read32LE(data, pos + 4) << 32;
+    }
+}
@@ -0,0 +1,211 @@
+package info.nightscout.android.medtronic;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import info.nightscout.android.USB.CnlEmulator;
+import info.nightscout.android.medtronic.message.PumpStatusResponseMessage;
+import info.nightscout.android.medtronic.message.ReadHistoryInfoResponseMessage;
+import info.nightscout.android.medtronic.message.ReadHistoryResponseMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives MedtronicCnlReader through a full poll and a multi-day history pull against the CNL emulator
+ * and reports the time and allocations of each phase.
+ *
+ * Run with: ./gradlew testDebugUnitTest --tests '*MedtronicCnlReaderBenchmark'
+ * The report is written to stdout, allocations need a JVM with thread allocation counters (HotSpot).
+ */
+public class MedtronicCnlReaderBenchmark {
+
+    private static final int HISTORY_DAYS = 7;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    @Test
+    public void poll() throws Throwable {
+        benchmark("poll, compressed history", true, 0);
+    }
+
+    @Test
+    public void pollUncompressed() throws Throwable {
+        benchmark("poll, uncompressed history", false, 0);
+    }
+
+    @Test
+    public void pollWithSegmentLoss() throws Throwable {
+        benchmark("poll, compressed history, 1 in 25 segments lost", true, 25);
+    }
+
+    private void benchmark(String name, boolean compressed, int segmentLoss) throws Throwable {
+        for (int i = 0; i < WARMUP; i++) {
+            poll(new Phases(), compressed, segmentLoss);
+        }
+
+        Phases phases = new Phases();
+        String stats = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            stats = poll(phases, compressed, segmentLoss);
+        }
+
+        System.out.println(phases.report(name + ", " + HISTORY_DAYS + " days, " + ITERATIONS + " iterations"));
+        System.out.println("emulator: " + stats);
+    }
+
+    private String poll(Phases phases, boolean compressed, int segmentLoss) throws Throwable {
+        final CnlEmulator emulator = CnlEmulator.synthetic(HISTORY_DAYS, 1);
+        emulator.setCompressed(compressed);
+        emulator.setSegmentLoss(segmentLoss);
+        emulator.open();
+
+        final MedtronicCnlReader reader = new MedtronicCnlReader(emulator);
+
+        phases.run("connect", new Phase() {
+            @Override
+            void run() throws Throwable {
+                reader.requestDeviceInfo();
+                reader.getPumpSession().setStickSerial(reader.getStickSerial());
+                reader.enterControlMode();
+                reader.enterPassthroughMode();
+                reader.openConnection();
+                reader.requestReadInfo();
+                reader.requestLinkKey();
+            }
+        });
+        assertEquals(CnlEmulator.STICK_SERIAL, reader.getStickSerial());
+
+        phases.run("negotiate channel", new Phase() {
+            @Override
+            void run() throws Throwable {
+                reader.negotiateChannel((byte) 0);
+            }
+        });
+        assertEquals(0x11, reader.getPumpSession().getRadioChannel());
+
+        phases.run("pump time", new Phase() {
+            @Override
+            void run() throws Throwable {
+                reader.getPumpTime();
+            }
+        });
+        assertEquals(emulator.getPumpOFFSET(), reader.getSessionOFFSET());
+
+        final PumpStatusResponseMessage[] status = new PumpStatusResponseMessage[1];
+        phases.run("pump status", new Phase() {
+            @Override
+            void run() throws Throwable {
+                status[0] = reader.updatePumpStatus();
+            }
+        });
+        assertNotNull(status[0]);
+
+        phases.run("pump settings", new Phase() {
+            @Override
+            void run() throws Throwable {
+                reader.getBasalPatterns();
+                reader.getBolusWizardCarbRatios();
+                reader.getBolusWizardSensitivity();
+                reader.getBolusWizardTargets();
+            }
+        });
+
+        final long end = reader.getSessionDate().getTime();
+        final long start = end - HISTORY_DAYS * 24 * 60 * 60000L;
+
+        final ReadHistoryInfoResponseMessage[] info = new ReadHistoryInfoResponseMessage[1];
+        phases.run("history info", new Phase() {
+            @Override
+            void run() throws Throwable {
+                reader.getHistoryInfo(start, end, CnlEmulator.HISTORY_PUMP);
+                info[0] = reader.getHistoryInfo(start, end, CnlEmulator.HISTORY_SENSOR);
+            }
+        });
+
+        final ReadHistoryResponseMessage[] history = new ReadHistoryResponseMessage[2];
+        phases.run("history pump", new Phase() {
+            @Override
+            void run() throws Throwable {
+                history[0] = reader.getHistory(start, end, CnlEmulator.HISTORY_PUMP);
+            }
+        });
+        phases.run("history sensor", new Phase() {
+            @Override
+            void run() throws Throwable {
+                history[1] = reader.getHistory(start, end, CnlEmulator.HISTORY_SENSOR);
+            }
+        });
+        assertTrue(history[0].getEventData().length > 0);
+        assertTrue(history[1].getEventData().length > 0);
+        assertEquals(info[0].getBlocks() * 2048, blocks(history[1].getEventData().length) * 2048);
+
+        phases.run("disconnect", new Phase() {
+            @Override
+            void run() throws Throwable {
+                reader.closeConnection();
+                reader.endPassthroughMode();
+                reader.endControlMode();
+            }
+        });
+
+        emulator.close();
+        return emulator.stats();
+    }
+
+    private static int blocks(int size) {
+        return (size + 2043) / 2044;
+    }
+
+    private abstract static class Phase {
+        abstract void run() throws Throwable;
+    }
+
+    private static class Phases {
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        private final Map<String, long[]> totals = new LinkedHashMap<>();
+
+        private void run(String name, Phase phase) throws Throwable {
+            long allocated = allocated();
+            long time = System.nanoTime();
+            phase.run();
+            time = System.nanoTime() - time;
+            allocated = allocated() - allocated;
+
+            long[] total = totals.get(name);
+            if (total == null) {
+                total = new long[3];
+                totals.put(name, total);
+            }
+            total[0] += time;
+            total[1] += allocated;
+            total[2]++;
+        }
+
+        private long allocated() {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            return 0;
+        }
+
+        private String report(String title) {
+            StringBuilder sb = new StringBuilder(title).append('\n');
+            sb.append(String.format("%-20s %12s %14s%n", "phase", "ms", "allocated KB"));
+            long time = 0;
+            long allocated = 0;
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                long[] total = entry.getValue();
+                time += total[0] / total[2];
+                allocated += total[1] / total[2];
+                sb.append(String.format("%-20s %12.2f %14.1f%n", entry.getKey(), total[0] / total[2] / 1e6, total[1] / total[2] / 1024.0));
+            }
+            sb.append(String.format("%-20s %12.2f %14.1f", "total", time / 1e6, allocated / 1024.0));
+            return sb.toString();
+        }
+    }
+}